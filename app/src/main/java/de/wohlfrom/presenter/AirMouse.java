@@ -0,0 +1,188 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Presenter. Android Client to remote control a presentation.          *
+ *  Copyright (C) 2019 Felix Wohlfrom                                    *
+ *                                                                       *
+ *  This program is free software: you can redistribute it and/or modify *
+ *  it under the terms of the GNU General Public License as published by *
+ *  the Free Software Foundation, either version 3 of the License, or    *
+ *  (at your option) any later version.                                  *
+ *                                                                       *
+ *  This program is distributed in the hope that it will be useful,      *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of       *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the        *
+ *  GNU General Public License for more details.                         *
+ *                                                                       *
+ *  You should have received a copy of the GNU General Public License    *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.*
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+
+package de.wohlfrom.presenter;
+
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import de.wohlfrom.presenter.connectors.PointerStreamer;
+
+/**
+ * Moves the pointer by rotating the device, see {@link AirMouseFusion}.
+ *
+ * The sensor events are received, fused and streamed on a dedicated thread, so neither a busy
+ * ui thread nor its garbage collection delays the pointer. The positions are passed to the
+ * {@link PointerStreamer} in a reused buffer.
+ */
+public class AirMouse implements SensorEventListener {
+    /**
+     * Resolves the link to send the pointer positions over.
+     */
+    public interface SinkProvider {
+        /**
+         * Returns the link of the connection that is currently active. Called on every start,
+         * so the air mouse follows the connection if it changes, e.g. after a failover.
+         *
+         * @return The pointer sink, null if not connected
+         */
+        PointerStreamer.PointerSink getPointerSink();
+    }
+
+    // Debugging
+    private static final String TAG = "AirMouse";
+
+    private final SensorManager mSensorManager;
+    private final Sensor mGyroscope;
+    private final Sensor mGravity;
+    private final SinkProvider mSinkProvider;
+
+    private final AirMouseFusion mFusion = new AirMouseFusion(this::onPosition);
+
+    /**
+     * The buffer used to pass the positions to the streamer.
+     */
+    private final float[] mSample = new float[2];
+
+    private HandlerThread mThread = null;
+    private volatile PointerStreamer mStreamer = null;
+
+    /**
+     * Creates a new air mouse.
+     *
+     * @param context The context to access the sensors
+     * @param sinkProvider Resolves the link to send the pointer positions over
+     */
+    public AirMouse(Context context, SinkProvider sinkProvider) {
+        mSinkProvider = sinkProvider;
+        mSensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
+
+        if (mSensorManager != null) {
+            mGyroscope = mSensorManager.getDefaultSensor(Sensor.TYPE_GYROSCOPE);
+            Sensor gravity = mSensorManager.getDefaultSensor(Sensor.TYPE_GRAVITY);
+            mGravity = gravity != null
+                    ? gravity : mSensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
+        } else {
+            mGyroscope = null;
+            mGravity = null;
+        }
+    }
+
+    /**
+     * Returns if the device has the sensors needed for the air mouse.
+     *
+     * @return If the air mouse can be used
+     */
+    public boolean isAvailable() {
+        return mGyroscope != null;
+    }
+
+    /**
+     * Shows the pointer in the center of the presentation and starts following the rotation of
+     * the device. Does nothing if already started, not available or not connected.
+     */
+    public synchronized void start() {
+        if (mThread != null || !isAvailable()) {
+            return;
+        }
+
+        PointerStreamer.PointerSink sink = mSinkProvider.getPointerSink();
+        if (sink == null) {
+            return;
+        }
+
+        mThread = new HandlerThread("AirMouse", Process.THREAD_PRIORITY_DISPLAY);
+        mThread.start();
+        Handler handler = new Handler(mThread.getLooper());
+        mStreamer = new PointerStreamer(sink, mThread.getLooper());
+
+        handler.post(mFusion::reset);
+        mSensorManager.registerListener(this, mGyroscope,
+                SensorManager.SENSOR_DELAY_FASTEST, handler);
+        if (mGravity != null) {
+            mSensorManager.registerListener(this, mGravity,
+                    SensorManager.SENSOR_DELAY_GAME, handler);
+        }
+    }
+
+    /**
+     * Stops following the rotation of the device and hides the pointer.
+     */
+    public synchronized void stop() {
+        if (mThread == null) {
+            return;
+        }
+
+        mSensorManager.unregisterListener(this);
+
+        final PointerStreamer streamer = mStreamer;
+        new Handler(mThread.getLooper()).post(() -> {
+            streamer.release();
+
+            if (BuildConfig.DEBUG) {
+                Log.d(TAG, "Air mouse statistics: " + mFusion + ", " + streamer);
+            }
+        });
+        mThread.quitSafely();
+        mThread = null;
+        mStreamer = null;
+    }
+
+    @Override
+    public void onSensorChanged(SensorEvent event) {
+        switch (event.sensor.getType()) {
+            case Sensor.TYPE_GYROSCOPE:
+                mFusion.onGyroscope(event.timestamp,
+                        event.values[0], event.values[1], event.values[2]);
+                break;
+
+            case Sensor.TYPE_GRAVITY:
+            case Sensor.TYPE_ACCELEROMETER:
+                mFusion.onGravity(event.values[0], event.values[1], event.values[2]);
+                break;
+        }
+    }
+
+    @Override
+    public void onAccuracyChanged(Sensor sensor, int accuracy) {
+    }
+
+    /**
+     * Passes a new position to the streamer. Called on the air mouse thread.
+     *
+     * @param x The horizontal position, normalized to [0, 1]
+     * @param y The vertical position, normalized to [0, 1]
+     */
+    private void onPosition(float x, float y) {
+        PointerStreamer streamer = mStreamer;
+        if (streamer == null) {
+            return;
+        }
+
+        mSample[0] = x;
+        mSample[1] = y;
+        streamer.addSamples(mSample, 1);
+    }
+}
@@ -0,0 +1,298 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Presenter. Android Client to remote control a presentation.          *
+ *  Copyright (C) 2019 Felix Wohlfrom                                    *
+ *                                                                       *
+ *  This program is free software: you can redistribute it and/or modify *
+ *  it under the terms of the GNU General Public License as published by *
+ *  the Free Software Foundation, either version 3 of the License, or    *
+ *  (at your option) any later version.                                  *
+ *                                                                       *
+ *  This program is distributed in the hope that it will be useful,      *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of       *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the        *
+ *  GNU General Public License for more details.                         *
+ *                                                                       *
+ *  You should have received a copy of the GNU General Public License    *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.*
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+
+package de.wohlfrom.presenter;
+
+/**
+ * Turns the rotation of the device into pointer positions, like an air mouse.
+ *
+ * The device is expected to be pointed at the presentation with its top edge. The rotation
+ * rates measured by the gyroscope are projected onto the world using the direction of gravity:
+ * turning around the vertical axis moves the pointer horizontally, tilting the top edge up or
+ * down moves it vertically. This works independent of how the device is held in the hand.
+ *
+ * The rates are smoothed to remove the tremor of the hand and small rates are ignored, so the
+ * pointer stands still as long as the device is not moved. The gyroscope delivers several
+ * hundred samples per second, but positions are only reported up to
+ * {@link #MAX_OUTPUT_RATE} times per second.
+ *
+ * The fusion does not depend on android, so recorded sensor traces can be replayed in tests.
+ * It keeps its whole state in primitive fields and creates no objects per sample. It is not
+ * thread safe, all methods need to be called on the same thread.
+ */
+class AirMouseFusion {
+    /**
+     * The maximum number of positions reported per second.
+     */
+    static final int MAX_OUTPUT_RATE = 120;
+
+    /**
+     * The minimum time in ns between two reported positions.
+     */
+    private static final long OUTPUT_INTERVAL = 1000000000L / MAX_OUTPUT_RATE;
+
+    /**
+     * The pointer movement per rotation, in pad sizes per radian. Turning the device by about
+     * 25 degrees moves the pointer over the whole presentation.
+     */
+    static final float GAIN = 2.3f;
+
+    /**
+     * Rotation rates in rad/s below this value are ignored.
+     */
+    static final float DEAD_ZONE = 0.03f;
+
+    /**
+     * The time constant in s of the smoothing filter of the rotation rates.
+     */
+    private static final float SMOOTHING_TIME = 0.02f;
+
+    /**
+     * The weight of a new gravity sample. Filters the linear acceleration, if the
+     * accelerometer is used instead of the gravity sensor.
+     */
+    private static final float GRAVITY_FILTER = 0.1f;
+
+    /**
+     * If two gyroscope samples are further apart than this time in ns, e.g. because the
+     * sensor was paused, the rotation between them is ignored.
+     */
+    static final long MAX_SAMPLE_GAP = 100000000L;
+
+    /**
+     * Listener for the calculated positions.
+     */
+    interface PositionListener {
+        /**
+         * Called if the pointer moved.
+         *
+         * @param x The horizontal position, normalized to [0, 1]
+         * @param y The vertical position, normalized to [0, 1]
+         */
+        void onPosition(float x, float y);
+    }
+
+    private final PositionListener mListener;
+
+    /**
+     * The direction of gravity in device coordinates, normalized. Defaults to a device lying
+     * flat on its back.
+     */
+    private float mUpX = 0;
+    private float mUpY = 0;
+    private float mUpZ = 1;
+    private boolean mGravityKnown = false;
+
+    /**
+     * The smoothed rotation rates in rad/s around the vertical and the horizontal axis.
+     */
+    private float mYawRate = 0;
+    private float mPitchRate = 0;
+
+    /**
+     * The timestamps in ns of the last gyroscope sample and the last reported position.
+     */
+    private long mLastSample = 0;
+    private long mLastOutput = 0;
+
+    /**
+     * The current position and the last reported one.
+     */
+    private float mX = 0.5f;
+    private float mY = 0.5f;
+    private float mReportedX = 0.5f;
+    private float mReportedY = 0.5f;
+
+    /**
+     * Statistics.
+     */
+    private int mInputSamples = 0;
+    private int mOutputSamples = 0;
+
+    /**
+     * Creates a new fusion with the pointer in the center.
+     *
+     * @param listener The listener for the calculated positions
+     */
+    AirMouseFusion(PositionListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Moves the pointer back to the center and restarts the integration.
+     */
+    void reset() {
+        mX = 0.5f;
+        mY = 0.5f;
+        mReportedX = mX;
+        mReportedY = mY;
+        mYawRate = 0;
+        mPitchRate = 0;
+        mLastSample = 0;
+        mLastOutput = 0;
+    }
+
+    /**
+     * Updates the direction of gravity, as measured by the gravity sensor or accelerometer.
+     *
+     * @param x The acceleration along the device x axis
+     * @param y The acceleration along the device y axis
+     * @param z The acceleration along the device z axis
+     */
+    void onGravity(float x, float y, float z) {
+        float length = (float) Math.sqrt(x * x + y * y + z * z);
+        if (length < 1e-3f) {
+            return;
+        }
+
+        x /= length;
+        y /= length;
+        z /= length;
+        if (mGravityKnown) {
+            x = mUpX + GRAVITY_FILTER * (x - mUpX);
+            y = mUpY + GRAVITY_FILTER * (y - mUpY);
+            z = mUpZ + GRAVITY_FILTER * (z - mUpZ);
+            length = (float) Math.sqrt(x * x + y * y + z * z);
+            x /= length;
+            y /= length;
+            z /= length;
+        }
+
+        mUpX = x;
+        mUpY = y;
+        mUpZ = z;
+        mGravityKnown = true;
+    }
+
+    /**
+     * Integrates a gyroscope sample and reports the new position, if due.
+     *
+     * @param timestamp The time of the sample in ns
+     * @param x The rotation rate around the device x axis in rad/s
+     * @param y The rotation rate around the device y axis in rad/s
+     * @param z The rotation rate around the device z axis in rad/s
+     */
+    void onGyroscope(long timestamp, float x, float y, float z) {
+        mInputSamples++;
+
+        long elapsed = timestamp - mLastSample;
+        if (mLastSample == 0 || elapsed <= 0 || elapsed > MAX_SAMPLE_GAP) {
+            mLastSample = timestamp;
+            mLastOutput = timestamp;
+            return;
+        }
+        mLastSample = timestamp;
+        float dt = elapsed / 1e9f;
+
+        // Rotation around the vertical axis. Positive rates turn the device to the left.
+        float yaw = x * mUpX + y * mUpY + z * mUpZ;
+
+        // Rotation around the horizontal axis pointing to the right of the device, i.e. the
+        // cross product of the top edge (the y axis) and up. Positive rates tilt the top edge up.
+        float pitch = 0;
+        float rightLength = (float) Math.sqrt(mUpZ * mUpZ + mUpX * mUpX);
+        if (rightLength > 1e-3f) {
+            pitch = (x * mUpZ - z * mUpX) / rightLength;
+        }
+
+        float alpha = dt / (dt + SMOOTHING_TIME);
+        mYawRate += alpha * (yaw - mYawRate);
+        mPitchRate += alpha * (pitch - mPitchRate);
+
+        mX = clamp(mX - applyDeadZone(mYawRate) * dt * GAIN);
+        mY = clamp(mY - applyDeadZone(mPitchRate) * dt * GAIN);
+
+        if (timestamp - mLastOutput >= OUTPUT_INTERVAL
+                && (mX != mReportedX || mY != mReportedY)) {
+            mLastOutput = timestamp;
+            mReportedX = mX;
+            mReportedY = mY;
+            mOutputSamples++;
+            mListener.onPosition(mX, mY);
+        }
+    }
+
+    /**
+     * Removes the dead zone from the given rate, so the pointer starts moving smoothly.
+     *
+     * @param rate The rotation rate in rad/s
+     * @return The rate reduced by the dead zone, 0 if within the dead zone
+     */
+    private static float applyDeadZone(float rate) {
+        if (rate > DEAD_ZONE) {
+            return rate - DEAD_ZONE;
+        } else if (rate < -DEAD_ZONE) {
+            return rate + DEAD_ZONE;
+        }
+        return 0;
+    }
+
+    /**
+     * Clamps the given position to the pad.
+     *
+     * @param position The position
+     * @return The position limited to [0, 1]
+     */
+    private static float clamp(float position) {
+        return Math.max(0, Math.min(1, position));
+    }
+
+    /**
+     * Returns the current horizontal position.
+     *
+     * @return The position, normalized to [0, 1]
+     */
+    float getX() {
+        return mX;
+    }
+
+    /**
+     * Returns the current vertical position.
+     *
+     * @return The position, normalized to [0, 1]
+     */
+    float getY() {
+        return mY;
+    }
+
+    /**
+     * Returns the number of gyroscope samples received.
+     *
+     * @return The number of input samples
+     */
+    int getInputSamples() {
+        return mInputSamples;
+    }
+
+    /**
+     * Returns the number of reported positions.
+     *
+     * @return The number of output samples
+     */
+    int getOutputSamples() {
+        return mOutputSamples;
+    }
+
+    @Override
+    public String toString() {
+        return "{ " +
+                "\"inputSamples\": \"" + mInputSamples + "\"," +
+                "\"outputSamples\": \"" + mOutputSamples + "\"" +
+                "}";
+    }
+}
@@ -0,0 +1,66 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Presenter. Android Client to remote control a presentation.          *
+ *  Copyright (C) 2019 Felix Wohlfrom                                    *
+ *                                                                       *
+ *  This program is free software: you can redistribute it and/or modify *
+ *  it under the terms of the GNU General Public License as published by *
+ *  the Free Software Foundation, either version 3 of the License, or    *
+ *  (at your option) any later version.                                  *
+ *                                                                       *
+ *  This program is distributed in the hope that it will be useful,      *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of       *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the        *
+ *  GNU General Public License for more details.                         *
+ *                                                                       *
+ *  You should have received a copy of the GNU General Public License    *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.*
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+
+package de.wohlfrom.presenter;
+
+import android.app.Activity;
+import android.os.Bundle;
+import android.widget.TextView;
+
+import de.wohlfrom.presenter.connectors.LatencyTracker;
+import de.wohlfrom.presenter.connectors.TransportSelector;
+
+/**
+ * Shows the latencies of the send pipeline measured by the {@link LatencyTracker} and the
+ * decisions of the last {@link TransportSelector}. Only reachable in debug builds.
+ */
+public class DiagnosticsActivity extends Activity {
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_diagnostics);
+
+        findViewById(R.id.refresh_statistics).setOnClickListener(view -> showStatistics());
+
+        findViewById(R.id.reset_statistics).setOnClickListener(
+                view -> {
+                    LatencyTracker.reset();
+                    showStatistics();
+                });
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        showStatistics();
+    }
+
+    /**
+     * Shows the current statistics.
+     */
+    private void showStatistics() {
+        String stats = LatencyTracker.getStageStats();
+        TransportSelector selector = TransportSelector.getLastCreated();
+        if (selector != null) {
+            stats += "\n\n" + getString(R.string.transport_decisions) + "\n"
+                    + selector.exportDecisionLog();
+        }
+        ((TextView) findViewById(R.id.latency_stats)).setText(stats);
+    }
+}
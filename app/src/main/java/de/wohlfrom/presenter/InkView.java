@@ -0,0 +1,288 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Presenter. Android Client to remote control a presentation.          *
+ *  Copyright (C) 2019 Felix Wohlfrom                                    *
+ *                                                                       *
+ *  This program is free software: you can redistribute it and/or modify *
+ *  it under the terms of the GNU General Public License as published by *
+ *  the Free Software Foundation, either version 3 of the License, or    *
+ *  (at your option) any later version.                                  *
+ *                                                                       *
+ *  This program is distributed in the hope that it will be useful,      *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of       *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the        *
+ *  GNU General Public License for more details.                         *
+ *                                                                       *
+ *  You should have received a copy of the GNU General Public License    *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.*
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+
+package de.wohlfrom.presenter;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.Rect;
+import android.util.AttributeSet;
+import android.view.MotionEvent;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import de.wohlfrom.presenter.connectors.InkStreamer;
+
+/**
+ * A mirror view that allows to draw ink on the mirrored slide. The touches are passed to an
+ * {@link InkStreamer}, normalized to the area the frame is drawn to.
+ *
+ * The ink is drawn locally as soon as the finger moves, with reduced opacity until the server
+ * confirmed the stroke. The strokes are stored normalized, so they follow the frame if the
+ * size of the view changes.
+ */
+public class InkView extends MirrorView {
+    /**
+     * The alpha value of strokes that are not confirmed by the server yet.
+     */
+    private static final int PREDICTED_ALPHA = 0x80;
+
+    /**
+     * The width of the strokes in dp.
+     */
+    private static final float STROKE_WIDTH = 3;
+
+    /**
+     * A stroke drawn on this view.
+     */
+    private static class Stroke {
+        final Path path = new Path();
+
+        /**
+         * The normalized positions, x and y alternating.
+         */
+        float[] points = new float[64];
+        int count = 0;
+
+        /**
+         * Adds a normalized position to the stroke.
+         */
+        void add(float x, float y) {
+            if (2 * count == points.length) {
+                float[] grown = new float[2 * points.length];
+                System.arraycopy(points, 0, grown, 0, points.length);
+                points = grown;
+            }
+            points[2 * count] = x;
+            points[2 * count + 1] = y;
+            count++;
+        }
+    }
+
+    private final List<Stroke> mStrokes = new ArrayList<>();
+    private final Paint mConfirmedPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint mPredictedPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+
+    /**
+     * The frame area the paths were created for.
+     */
+    private final Rect mPathBounds = new Rect();
+
+    /**
+     * The positions of the current touch batch, x and y alternating.
+     */
+    private final float[] mSamples = new float[2 * PointerTouchListener.MAX_SAMPLES];
+
+    private InkStreamer mStreamer = null;
+    private Stroke mCurrentStroke = null;
+
+    /**
+     * The stroke id of the first stroke of this view.
+     */
+    private int mFirstStroke = 0;
+    private int mConfirmedStrokes = 0;
+
+    public InkView(Context context) {
+        super(context);
+        init();
+    }
+
+    public InkView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        init();
+    }
+
+    public InkView(Context context, AttributeSet attrs, int defStyleAttr) {
+        super(context, attrs, defStyleAttr);
+        init();
+    }
+
+    /**
+     * Initializes the paints.
+     */
+    private void init() {
+        float strokeWidth = STROKE_WIDTH * getResources().getDisplayMetrics().density;
+        for (Paint paint : new Paint[] { mConfirmedPaint, mPredictedPaint }) {
+            paint.setColor(Color.RED);
+            paint.setStyle(Paint.Style.STROKE);
+            paint.setStrokeWidth(strokeWidth);
+            paint.setStrokeCap(Paint.Cap.ROUND);
+            paint.setStrokeJoin(Paint.Join.ROUND);
+        }
+        mPredictedPaint.setAlpha(PREDICTED_ALPHA);
+    }
+
+    /**
+     * Sets the streamer the drawn strokes are sent with. Strokes drawn with a previous
+     * streamer are removed.
+     *
+     * @param streamer The streamer, null to disable drawing
+     */
+    public void setInkStreamer(InkStreamer streamer) {
+        if (mStreamer != null) {
+            mStreamer.endStroke();
+            mStreamer.setListener(null);
+        }
+        mStreamer = streamer;
+        mStrokes.clear();
+        mCurrentStroke = null;
+        if (streamer != null) {
+            streamer.setListener(this::onInkConfirmed);
+            mFirstStroke = streamer.getStrokeCount();
+            mConfirmedStrokes = streamer.getConfirmedStrokes();
+        }
+        invalidate();
+    }
+
+    /**
+     * Removes all ink, locally and on the remote screen.
+     */
+    public void clearInk() {
+        if (mStreamer != null) {
+            mStreamer.clear();
+            mFirstStroke = mStreamer.getStrokeCount();
+            mConfirmedStrokes = mStreamer.getConfirmedStrokes();
+        }
+        mStrokes.clear();
+        mCurrentStroke = null;
+        invalidate();
+    }
+
+    /**
+     * Draws the confirmed strokes with full opacity.
+     *
+     * @param confirmedStrokes The number of confirmed strokes
+     */
+    private void onInkConfirmed(int confirmedStrokes) {
+        mConfirmedStrokes = confirmedStrokes;
+        invalidate();
+    }
+
+    @SuppressLint("ClickableViewAccessibility") // Ink can not be drawn without touch
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        Rect bounds = getFrameBounds();
+        if (mStreamer == null || bounds.isEmpty()) {
+            return super.onTouchEvent(event);
+        }
+
+        switch (event.getActionMasked()) {
+            case MotionEvent.ACTION_DOWN:
+                if (!bounds.contains((int) event.getX(), (int) event.getY())) {
+                    return false;
+                }
+                // Keep the view pager from taking over horizontal movements
+                if (getParent() != null) {
+                    getParent().requestDisallowInterceptTouchEvent(true);
+                }
+                mCurrentStroke = new Stroke();
+                mStrokes.add(mCurrentStroke);
+                // Fall through
+
+            case MotionEvent.ACTION_MOVE:
+                if (mCurrentStroke != null) {
+                    int count = collectSamples(bounds, event);
+                    mStreamer.addSamples(mSamples, count);
+                    invalidate();
+                }
+                break;
+
+            case MotionEvent.ACTION_UP:
+            case MotionEvent.ACTION_CANCEL:
+                mStreamer.endStroke();
+                mCurrentStroke = null;
+                break;
+        }
+        return true;
+    }
+
+    /**
+     * Stores the historical and current positions of the given event in the sample buffer and
+     * adds them to the current stroke.
+     *
+     * @param bounds The area the frame is drawn to
+     * @param event The touch event
+     * @return The number of stored positions
+     */
+    private int collectSamples(Rect bounds, MotionEvent event) {
+        int history = event.getHistorySize();
+        int first = Math.max(0, history - (PointerTouchListener.MAX_SAMPLES - 1));
+        int count = 0;
+        for (int i = first; i <= history; i++) {
+            float x = i < history ? event.getHistoricalX(i) : event.getX();
+            float y = i < history ? event.getHistoricalY(i) : event.getY();
+            x = Math.max(0, Math.min(1, (x - bounds.left) / bounds.width()));
+            y = Math.max(0, Math.min(1, (y - bounds.top) / bounds.height()));
+            mSamples[2 * count] = x;
+            mSamples[2 * count + 1] = y;
+            count++;
+
+            appendToPath(mCurrentStroke, x, y, bounds);
+            mCurrentStroke.add(x, y);
+        }
+        return count;
+    }
+
+    /**
+     * Appends a normalized position to the path of the given stroke.
+     */
+    private void appendToPath(Stroke stroke, float x, float y, Rect bounds) {
+        float viewX = bounds.left + x * bounds.width();
+        float viewY = bounds.top + y * bounds.height();
+        if (stroke.count == 0) {
+            stroke.path.moveTo(viewX, viewY);
+            // Make single touches visible as a dot
+            stroke.path.lineTo(viewX, viewY);
+        } else {
+            stroke.path.lineTo(viewX, viewY);
+        }
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        Rect bounds = getFrameBounds();
+        if (bounds.isEmpty() || mStrokes.isEmpty()) {
+            return;
+        }
+
+        // The strokes follow the frame, if its area changed
+        if (!bounds.equals(mPathBounds)) {
+            mPathBounds.set(bounds);
+            for (Stroke stroke : mStrokes) {
+                int count = stroke.count;
+                stroke.path.rewind();
+                stroke.count = 0;
+                for (int i = 0; i < count; i++) {
+                    appendToPath(stroke, stroke.points[2 * i], stroke.points[2 * i + 1], bounds);
+                    stroke.count++;
+                }
+            }
+        }
+
+        for (int i = 0; i < mStrokes.size(); i++) {
+            boolean confirmed = mFirstStroke + i < mConfirmedStrokes;
+            canvas.drawPath(mStrokes.get(i).path, confirmed ? mConfirmedPaint : mPredictedPaint);
+        }
+    }
+}
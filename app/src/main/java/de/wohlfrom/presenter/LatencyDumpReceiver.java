@@ -0,0 +1,67 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Presenter. Android Client to remote control a presentation.          *
+ *  Copyright (C) 2019 Felix Wohlfrom                                    *
+ *                                                                       *
+ *  This program is free software: you can redistribute it and/or modify *
+ *  it under the terms of the GNU General Public License as published by *
+ *  the Free Software Foundation, either version 3 of the License, or    *
+ *  (at your option) any later version.                                  *
+ *                                                                       *
+ *  This program is distributed in the hope that it will be useful,      *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of       *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the        *
+ *  GNU General Public License for more details.                         *
+ *                                                                       *
+ *  You should have received a copy of the GNU General Public License    *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.*
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+
+package de.wohlfrom.presenter;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+
+import de.wohlfrom.presenter.connectors.LatencyTracker;
+
+/**
+ * Dumps the latencies of the send pipeline measured by the {@link LatencyTracker} to the log
+ * and returns them as result data. Only declared in the manifest of debug builds. To trigger
+ * it, use
+ * <pre>
+ * adb shell am broadcast -a de.wohlfrom.presenter.DUMP_LATENCY -p de.wohlfrom.presenter.debug
+ * </pre>
+ * Adding the boolean extra {@link #EXTRA_RESET} resets the statistics afterwards.
+ */
+public class LatencyDumpReceiver extends BroadcastReceiver {
+    // Debugging
+    private static final String TAG = "LatencyDumpReceiver";
+
+    /**
+     * The action to dump the statistics.
+     */
+    public static final String ACTION_DUMP_LATENCY = "de.wohlfrom.presenter.DUMP_LATENCY";
+
+    /**
+     * Boolean extra to reset the statistics after dumping them.
+     */
+    public static final String EXTRA_RESET = "reset";
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        if (!BuildConfig.DEBUG || !ACTION_DUMP_LATENCY.equals(intent.getAction())) {
+            return;
+        }
+
+        String stats = LatencyTracker.getStageStats();
+        Log.i(TAG, "Latency of send stages: " + stats);
+        if (isOrderedBroadcast()) {
+            setResultData(stats);
+        }
+
+        if (intent.getBooleanExtra(EXTRA_RESET, false)) {
+            LatencyTracker.reset();
+        }
+    }
+}
@@ -21,6 +21,7 @@ package de.wohlfrom.presenter;
 import android.app.Activity;
 import android.content.Intent;
 import android.os.Bundle;
+import android.view.View;
 import android.widget.Button;
 
 import de.wohlfrom.presenter.connectors.bluetooth.BluetoothConnector;
@@ -60,5 +61,16 @@ public class MainActivity extends Activity {
                     Intent intent = new Intent(MainActivity.this, AboutActivity.class);
                     startActivity(intent);
                 });
+
+        // The diagnostics are only meant for development
+        if (BuildConfig.DEBUG) {
+            findViewById(R.id.diagnostics).setVisibility(View.VISIBLE);
+            findViewById(R.id.diagnostics).setOnClickListener(
+                    view -> {
+                        Intent intent =
+                                new Intent(MainActivity.this, DiagnosticsActivity.class);
+                        startActivity(intent);
+                    });
+        }
     }
 }
@@ -0,0 +1,105 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Presenter. Android Client to remote control a presentation.          *
+ *  Copyright (C) 2019 Felix Wohlfrom                                    *
+ *                                                                       *
+ *  This program is free software: you can redistribute it and/or modify *
+ *  it under the terms of the GNU General Public License as published by *
+ *  the Free Software Foundation, either version 3 of the License, or    *
+ *  (at your option) any later version.                                  *
+ *                                                                       *
+ *  This program is distributed in the hope that it will be useful,      *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of       *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the        *
+ *  GNU General Public License for more details.                         *
+ *                                                                       *
+ *  You should have received a copy of the GNU General Public License    *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.*
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+
+package de.wohlfrom.presenter;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.util.AttributeSet;
+import android.view.View;
+
+/**
+ * Displays the frames of the screen mirror, scaled to fit the view and centered. Setting a new
+ * frame only invalidates the view, so showing a frame neither allocates memory nor changes the
+ * layout.
+ */
+public class MirrorView extends View {
+    private final Rect mSource = new Rect();
+    private final Rect mTarget = new Rect();
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private Bitmap mFrame = null;
+
+    public MirrorView(Context context) {
+        super(context);
+    }
+
+    public MirrorView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+    }
+
+    public MirrorView(Context context, AttributeSet attrs, int defStyleAttr) {
+        super(context, attrs, defStyleAttr);
+    }
+
+    /**
+     * Sets the frame to display.
+     *
+     * @param frame The frame, null to display nothing
+     */
+    public void setFrame(Bitmap frame) {
+        mFrame = frame;
+        invalidate();
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        if (updateFrameBounds()) {
+            canvas.drawBitmap(mFrame, mSource, mTarget, mPaint);
+        }
+    }
+
+    /**
+     * Returns the area of the view the frame is drawn to.
+     *
+     * @return The area, empty if no frame is shown. The rect is reused, so it must not be
+     *         modified or stored.
+     */
+    protected Rect getFrameBounds() {
+        updateFrameBounds();
+        return mTarget;
+    }
+
+    /**
+     * Fits the frame into the view, keeping its aspect ratio, and centers it.
+     *
+     * @return If a frame is shown
+     */
+    private boolean updateFrameBounds() {
+        int width = getWidth() - getPaddingLeft() - getPaddingRight();
+        int height = getHeight() - getPaddingTop() - getPaddingBottom();
+        if (mFrame == null || width <= 0 || height <= 0) {
+            mTarget.setEmpty();
+            return false;
+        }
+
+        float scale = Math.min((float) width / mFrame.getWidth(),
+                (float) height / mFrame.getHeight());
+        int scaledWidth = Math.round(mFrame.getWidth() * scale);
+        int scaledHeight = Math.round(mFrame.getHeight() * scale);
+        int left = getPaddingLeft() + (width - scaledWidth) / 2;
+        int top = getPaddingTop() + (height - scaledHeight) / 2;
+
+        mSource.set(0, 0, mFrame.getWidth(), mFrame.getHeight());
+        mTarget.set(left, top, left + scaledWidth, top + scaledHeight);
+        return true;
+    }
+}
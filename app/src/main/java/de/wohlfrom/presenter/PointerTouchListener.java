@@ -0,0 +1,103 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Presenter. Android Client to remote control a presentation.          *
+ *  Copyright (C) 2019 Felix Wohlfrom                                    *
+ *                                                                       *
+ *  This program is free software: you can redistribute it and/or modify *
+ *  it under the terms of the GNU General Public License as published by *
+ *  the Free Software Foundation, either version 3 of the License, or    *
+ *  (at your option) any later version.                                  *
+ *                                                                       *
+ *  This program is distributed in the hope that it will be useful,      *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of       *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the        *
+ *  GNU General Public License for more details.                         *
+ *                                                                       *
+ *  You should have received a copy of the GNU General Public License    *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.*
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+
+package de.wohlfrom.presenter;
+
+import android.annotation.SuppressLint;
+import android.view.MotionEvent;
+import android.view.View;
+
+/**
+ * Turns the touches of a view into pointer positions, normalized to the size of the view.
+ *
+ * Android delivers the touch positions batched once per frame. Besides the current position,
+ * the batch contains the historical positions measured since the previous event. All of them
+ * are passed to the {@link Presenter.PointerListener} at once, so the pointer follows the
+ * finger as exact as the touch screen allows it. The positions are passed in a reused buffer
+ * to avoid garbage while the finger moves.
+ */
+class PointerTouchListener implements View.OnTouchListener {
+    /**
+     * The maximum number of positions passed at once. Older historical positions of a batch
+     * are skipped.
+     */
+    static final int MAX_SAMPLES = 32;
+
+    private final Presenter.PointerListener mListener;
+
+    /**
+     * The positions of the current batch, x and y alternating.
+     */
+    private final float[] mSamples = new float[2 * MAX_SAMPLES];
+
+    /**
+     * Creates a new listener.
+     *
+     * @param listener The listener to pass the pointer positions to
+     */
+    PointerTouchListener(Presenter.PointerListener listener) {
+        mListener = listener;
+    }
+
+    @SuppressLint("ClickableViewAccessibility") // The pointer can not be used without touch
+    @Override
+    public boolean onTouch(View view, MotionEvent event) {
+        switch (event.getActionMasked()) {
+            case MotionEvent.ACTION_DOWN:
+                // Keep the view pager from taking over horizontal movements
+                if (view.getParent() != null) {
+                    view.getParent().requestDisallowInterceptTouchEvent(true);
+                }
+                // Fall through
+
+            case MotionEvent.ACTION_MOVE:
+                mListener.onPointerMoved(mSamples, collectSamples(view, event));
+                break;
+
+            case MotionEvent.ACTION_UP:
+            case MotionEvent.ACTION_CANCEL:
+                mListener.onPointerReleased();
+                break;
+        }
+        return true;
+    }
+
+    /**
+     * Stores the historical and current positions of the given event in the sample buffer.
+     *
+     * @param view The touched view
+     * @param event The touch event
+     * @return The number of stored positions
+     */
+    private int collectSamples(View view, MotionEvent event) {
+        float width = Math.max(view.getWidth(), 1);
+        float height = Math.max(view.getHeight(), 1);
+
+        int history = event.getHistorySize();
+        int first = Math.max(0, history - (MAX_SAMPLES - 1));
+        int count = 0;
+        for (int i = first; i < history; i++) {
+            mSamples[2 * count] = event.getHistoricalX(i) / width;
+            mSamples[2 * count + 1] = event.getHistoricalY(i) / height;
+            count++;
+        }
+        mSamples[2 * count] = event.getX() / width;
+        mSamples[2 * count + 1] = event.getY() / height;
+        return count + 1;
+    }
+}
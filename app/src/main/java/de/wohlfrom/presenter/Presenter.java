@@ -18,28 +18,54 @@
 
 package de.wohlfrom.presenter;
 
+import android.annotation.SuppressLint;
 import android.app.Fragment;
 import android.app.FragmentManager;
 import android.content.Context;
+import android.graphics.Bitmap;
+import android.hardware.Sensor;
+import android.hardware.SensorManager;
 import android.media.AudioManager;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
+import android.support.v4.text.PrecomputedTextCompat;
 import android.support.v13.app.FragmentStatePagerAdapter;
 import android.support.v4.view.PagerAdapter;
 import android.support.v4.view.ViewPager;
+import android.support.v4.widget.TextViewCompat;
+import android.text.format.DateUtils;
+import android.util.Log;
 import android.view.LayoutInflater;
+import android.view.MotionEvent;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.Button;
+import android.widget.ImageView;
+import android.widget.ProgressBar;
+import android.widget.TextView;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
+import de.wohlfrom.presenter.connectors.AutoAdvanceScheduler;
 import de.wohlfrom.presenter.connectors.Command;
+import de.wohlfrom.presenter.connectors.InkStreamer;
+import de.wohlfrom.presenter.connectors.LatencyTracker;
+import de.wohlfrom.presenter.connectors.PresentationState;
 import de.wohlfrom.presenter.connectors.ProtocolVersion;
+import de.wohlfrom.presenter.connectors.RemoteControl;
+import de.wohlfrom.presenter.connectors.ScreenMirror;
+import de.wohlfrom.presenter.connectors.SessionFeatures;
+import de.wohlfrom.presenter.connectors.SpeakerNotesStore;
+import de.wohlfrom.presenter.connectors.SynchronizedClock;
+import de.wohlfrom.presenter.connectors.ThumbnailCache;
 
 import static android.content.Context.AUDIO_SERVICE;
+import static android.content.Context.SENSOR_SERVICE;
 
 /**
  * This fragment displays the main presenter. Depending on the supported protocol version, it
@@ -47,10 +73,13 @@ import static android.content.Context.AUDIO_SERVICE;
  * previous slide.
  */
 public class Presenter extends Fragment {
+    // Debugging
+    private static final String TAG = "Presenter";
+
     /**
      * Audio management
      */
-    private Settings mSettings;
+    private Settings.Snapshot mSettings;
     private AudioManager mAudioManager;
     private int mPreviousAudioRingerMode;
 
@@ -108,6 +137,49 @@ public class Presenter extends Fragment {
         void onStopPresentation();
     }
 
+    /**
+     * Optional listener interface for activities that support showing a pointer on the
+     * presentation. Only used if the server supports protocol version
+     * {@link RemoteControl#POINTER_VERSION}.
+     */
+    public interface PointerListener {
+        /**
+         * Called if the pointer was moved.
+         *
+         * @param samples The positions of the pointer since the last call, normalized to [0, 1],
+         *                x and y alternating. The array is reused, so it must not be stored.
+         * @param count The number of positions
+         */
+        void onPointerMoved(float[] samples, int count);
+
+        /**
+         * Called if the pointer should be hidden.
+         */
+        void onPointerReleased();
+
+        /**
+         * Called if the pointer should follow the rotation of the device, see
+         * {@link AirMouse}.
+         *
+         * @param active If the air mouse should be started or stopped
+         */
+        void onAirMouse(boolean active);
+    }
+
+    /**
+     * Optional interface for activities that keep the features of their connection, like
+     * thumbnails, speaker notes or the screen mirror. Each feature is only used if the server
+     * supports it.
+     */
+    public interface SessionProvider {
+        /**
+         * Returns the features of the current connection.
+         *
+         * @return The session features
+         */
+        SessionFeatures getSessionFeatures();
+    }
+
     /**
      * Creates a new instance of presenter class. The displayed control elements depend on the given
      * protocol version.
@@ -155,7 +227,7 @@ public class Presenter extends Fragment {
         mContentView = getActivity().findViewById(R.id.presenter);
         mHideHandler.postDelayed(mHideSystemUi, UI_ANIMATION_DELAY);
 
-        mSettings = new Settings(getActivity());
+        mSettings = Settings.getSnapshot(getActivity());
 
         // Silence audio during presentation. Store old audio state to reset it afterwards.
         if (mSettings.silenceDuringPresentation()) {
@@ -175,6 +247,11 @@ public class Presenter extends Fragment {
         if (mSettings.silenceDuringPresentation()) {
             mAudioManager.setRingerMode(mPreviousAudioRingerMode);
         }
+
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "Input to socket write latency: " + LatencyTracker.getStats());
+            Log.d(TAG, "Latency of send stages: " + LatencyTracker.getStageStats());
+        }
     }
 
     /**
@@ -209,6 +286,16 @@ public class Presenter extends Fragment {
                 activeFragmentList.add(
                         PresenterPage.newInstance(R.layout.fragment_presenter_startstop));
             }
+
+            if (activeProtocolVersion.getMaxVersion() >= RemoteControl.POINTER_VERSION) {
+                activeFragmentList.add(
+                        PresenterPage.newInstance(R.layout.fragment_presenter_pointer));
+            }
+
+            if (activeProtocolVersion.getMaxVersion() >= RemoteControl.MIRROR_VERSION) {
+                activeFragmentList.add(
+                        PresenterPage.newInstance(R.layout.fragment_presenter_mirror));
+            }
         }
 
         @Override
@@ -241,6 +328,58 @@ public class Presenter extends Fragment {
          */
         private int mLayoutId;
 
+        /**
+         * The thumbnails shown by this page, null if the page shows no thumbnails.
+         */
+        private ThumbnailCache mThumbnails;
+
+        /**
+         * The presentation state shown by this page, null if the page shows no state.
+         */
+        private PresentationState mPresentationState;
+
+        /**
+         * The clock the talk time is computed with, null if the page shows no talk time.
+         */
+        private SynchronizedClock mClock;
+        private final Handler mTalkTimeHandler = new Handler();
+        private final Runnable mTalkTimeUpdate = this::showTalkTime;
+
+        /**
+         * The screen mirror shown by this page, null if the page shows no mirror.
+         */
+        private ScreenMirror mMirror;
+
+        /**
+         * The view ink is drawn on, null if the page does not allow drawing.
+         */
+        private InkView mInkView;
+
+        /**
+         * The auto advance scheduler controlled by this page, null if the page does not
+         * control it.
+         */
+        private AutoAdvanceScheduler mScheduler;
+
+        /**
+         * Lays out the speaker notes in the background, shared by all pages.
+         */
+        private static final Executor NOTES_LAYOUT = Executors.newSingleThreadExecutor();
+
+        /**
+         * The speaker notes shown by this page, null if the page shows no notes.
+         */
+        private SpeakerNotesStore mNotes;
+
+        /**
+         * The slide and the notes currently shown, used to skip updates that do not change
+         * the notes. The generation is incremented for every layout, so outdated layouts are
+         * dropped.
+         */
+        private int mShownNotesSlide = -1;
+        private String mShownNotes = null;
+        private int mNotesGeneration = 0;
+
         /**
          * Creates a new page for a given layout.
          *
@@ -295,25 +434,410 @@ public class Presenter extends Fragment {
         public void onResume() {
             super.onResume();
 
+            // In touch down mode, slide changes are sent as soon as the button is touched.
+            // The touch can't be taken over by the view pager then.
+            boolean touchDown = Settings.getSnapshot(getActivity()).useTouchDownNavigation();
+            SessionFeatures features = mListener instanceof SessionProvider
+                    ? ((SessionProvider) mListener).getSessionFeatures() : null;
+
             Button nextSlideButton = getActivity().findViewById(R.id.next_slide);
             if (nextSlideButton != null) {
-                nextSlideButton.setOnClickListener(view -> mListener.onNextSlide());
+                nextSlideButton.setOnClickListener(trackedClick(() -> mListener.onNextSlide()));
+                nextSlideButton.setOnTouchListener(touchDown
+                        ? new TouchDownListener(() -> mListener.onNextSlide()) : null);
             }
 
             Button prevSlideButton = getActivity().findViewById(R.id.prev_slide);
             if (prevSlideButton != null) {
-                prevSlideButton.setOnClickListener(view -> mListener.onPrevSlide());
+                prevSlideButton.setOnClickListener(trackedClick(() -> mListener.onPrevSlide()));
+                prevSlideButton.setOnTouchListener(touchDown
+                        ? new TouchDownListener(() -> mListener.onPrevSlide()) : null);
             }
 
             Button startButton = getActivity().findViewById(R.id.start_presentation);
             if (startButton != null) {
-                startButton.setOnClickListener(view -> mListener.onStartPresentation());
+                startButton.setOnClickListener(
+                        trackedClick(() -> mListener.onStartPresentation()));
             }
 
             Button stopButton = getActivity().findViewById(R.id.stop_presentation);
             if (stopButton != null) {
-                stopButton.setOnClickListener(view -> mListener.onStopPresentation());
+                stopButton.setOnClickListener(
+                        trackedClick(() -> mListener.onStopPresentation()));
+            }
+
+            // Advance the slides automatically, if slide durations are configured
+            Button autoAdvanceButton = getActivity().findViewById(R.id.auto_advance);
+            if (autoAdvanceButton != null) {
+                long[] durations = Settings.getSnapshot(getActivity()).slideDurations();
+                if (features != null && durations.length > 0) {
+                    mScheduler = features.getAutoAdvanceScheduler();
+                    mScheduler.setListener(this::showSchedule);
+                    showSchedule(mScheduler);
+                    autoAdvanceButton.setVisibility(View.VISIBLE);
+                    autoAdvanceButton.setOnClickListener(view -> toggleSchedule());
+                } else {
+                    autoAdvanceButton.setVisibility(View.GONE);
+                }
+            }
+
+            View pointerPad = getActivity().findViewById(R.id.pointer_pad);
+            if (pointerPad != null && mListener instanceof PointerListener) {
+                pointerPad.setOnTouchListener(
+                        new PointerTouchListener((PointerListener) mListener));
+            }
+
+            // The air mouse is active as long as the button is held
+            Button airMouseButton = getActivity().findViewById(R.id.air_mouse);
+            if (airMouseButton != null) {
+                SensorManager sensorManager =
+                        (SensorManager) getActivity().getSystemService(SENSOR_SERVICE);
+                if (mListener instanceof PointerListener && sensorManager != null
+                        && sensorManager.getDefaultSensor(Sensor.TYPE_GYROSCOPE) != null) {
+                    airMouseButton.setOnTouchListener(
+                            airMouseListener((PointerListener) mListener));
+                } else {
+                    airMouseButton.setVisibility(View.GONE);
+                }
+            }
+
+            // Show the current and the next slide, once the server pushed their thumbnails
+            View slidePreviews = getActivity().findViewById(R.id.slide_previews);
+            if (slidePreviews != null && features != null) {
+                mThumbnails = features.getThumbnailCache();
+                // Both previews share the width of the page
+                mThumbnails.setTargetSize(getResources().getDisplayMetrics().widthPixels / 2,
+                        slidePreviews.getLayoutParams().height);
+                mThumbnails.setListener(this::showThumbnails);
+                showThumbnails(mThumbnails.getCurrentSlide());
+            }
+
+            // Show the position in the presentation, updated by the changes pushed by the server
+            View stateView = getActivity().findViewById(R.id.presentation_state);
+            if (stateView != null && features != null) {
+                mPresentationState = features.getPresentationState();
+                mPresentationState.setListener(this::showState);
+                mClock = features.getSynchronizedClock();
+                if (mClock != null) {
+                    mClock.setListener(clock -> showTalkTime());
+                }
+                showState(mPresentationState, PresentationState.SLIDE | PresentationState.TOTAL
+                        | PresentationState.RUNNING);
+            }
+
+            // Mirror the screen while this page is visible
+            if (getActivity().findViewById(R.id.mirror_view) != null && features != null) {
+                mMirror = features.getScreenMirror();
+                updateMirror();
+            }
+
+            // Draw ink on the mirrored slide, if the server supports it
+            View inkView = getActivity().findViewById(R.id.mirror_view);
+            if (inkView instanceof InkView && features != null) {
+                mInkView = (InkView) inkView;
+                InkStreamer streamer = features.getInkStreamer();
+                mInkView.setInkStreamer(streamer);
+
+                Button clearInkButton = getActivity().findViewById(R.id.clear_ink);
+                clearInkButton.setVisibility(streamer != null ? View.VISIBLE : View.GONE);
+                clearInkButton.setOnClickListener(v -> mInkView.clearInk());
+            }
+
+            // Show the speaker notes of the current slide
+            View speakerNotes = getActivity().findViewById(R.id.speaker_notes);
+            if (speakerNotes != null && features != null) {
+                mNotes = features.getSpeakerNotes();
+                mNotes.setListener(this::showNotes);
+                int currentSlide = mNotes.getCurrentSlide();
+                showNotes(currentSlide, currentSlide >= 0 ? mNotes.get(currentSlide) : null);
+            }
+        }
+
+        @Override
+        public void onPause() {
+            super.onPause();
+
+            if (mThumbnails != null) {
+                mThumbnails.setListener(null);
+                mThumbnails = null;
+            }
+
+            if (mMirror != null) {
+                mMirror.setListener(null);
+                mMirror.stop();
+                mMirror = null;
+            }
+
+            if (mInkView != null) {
+                mInkView.setInkStreamer(null);
+                mInkView = null;
+            }
+
+            // The schedule keeps running, only the page stops showing it
+            if (mScheduler != null) {
+                mScheduler.setListener(null);
+                mScheduler = null;
+            }
+
+            if (mPresentationState != null) {
+                mPresentationState.setListener(null);
+                mPresentationState = null;
+            }
+
+            if (mClock != null) {
+                mClock.setListener(null);
+                mClock = null;
+            }
+            mTalkTimeHandler.removeCallbacks(mTalkTimeUpdate);
+
+            if (mNotes != null) {
+                mNotes.setListener(null);
+                mNotes = null;
+                mShownNotesSlide = -1;
+                mShownNotes = null;
+            }
+        }
+
+        @Override
+        public void setUserVisibleHint(boolean isVisibleToUser) {
+            super.setUserVisibleHint(isVisibleToUser);
+            updateMirror();
+        }
+
+        /**
+         * Starts the auto advance schedule with the configured slide durations, or stops it if
+         * it is running.
+         */
+        private void toggleSchedule() {
+            if (mScheduler == null) {
+                return;
+            }
+
+            if (mScheduler.isRunning()) {
+                mScheduler.stop();
+            } else {
+                Settings.Snapshot settings = Settings.getSnapshot(getActivity());
+                mScheduler.start(settings.slideDurations(), settings.loopSlides());
+            }
+        }
+
+        /**
+         * Shows if the auto advance schedule is running and its current slide.
+         *
+         * @param scheduler The auto advance scheduler
+         */
+        private void showSchedule(AutoAdvanceScheduler scheduler) {
+            View view = getView();
+            if (view == null) {
+                return;
+            }
+
+            Button autoAdvanceButton = view.findViewById(R.id.auto_advance);
+            if (scheduler.isRunning()) {
+                autoAdvanceButton.setText(
+                        getString(R.string.stop_auto_advance, scheduler.getSlide() + 1));
+            } else {
+                autoAdvanceButton.setText(R.string.auto_advance);
+            }
+        }
+
+        /**
+         * Starts the screen mirror if this page is visible to the user and stops it otherwise.
+         * The pager also resumes the neighbours of the visible page, so being resumed is not
+         * enough to start the mirror.
+         */
+        private void updateMirror() {
+            View view = getView();
+            if (mMirror == null || view == null) {
+                return;
+            }
+
+            boolean visible = isResumed() && getUserVisibleHint();
+            if (visible && !mMirror.isActive()) {
+                MirrorView mirrorView = view.findViewById(R.id.mirror_view);
+                mMirror.setListener(mirrorView::setFrame);
+                mirrorView.setFrame(mMirror.getFrame());
+                mMirror.start();
+            } else if (!visible && mMirror.isActive()) {
+                mMirror.setListener(null);
+                mMirror.stop();
+            }
+        }
+
+        /**
+         * Updates the views showing the changed fields of the presentation state. The state
+         * bar has a fixed height, so updates do not change the layout of the page.
+         *
+         * @param state The presentation state
+         * @param changes The changed fields, see {@link PresentationState.StateListener}
+         */
+        private void showState(PresentationState state, int changes) {
+            View view = getView();
+            if (view == null) {
+                return;
+            }
+
+            boolean known = state.isPositionKnown();
+            view.findViewById(R.id.presentation_state).setVisibility(
+                    known || state.isRunning() ? View.VISIBLE : View.GONE);
+
+            if ((changes & (PresentationState.SLIDE | PresentationState.RUNNING)) != 0) {
+                TextView position = view.findViewById(R.id.presentation_position);
+                if (!state.isRunning()) {
+                    position.setText(R.string.presentation_not_running);
+                } else if (known) {
+                    position.setText(getString(R.string.presentation_position,
+                            state.getSlide() + 1, state.getTotal()));
+                } else {
+                    position.setText(null);
+                }
             }
+
+            if (known && (changes & (PresentationState.SLIDE | PresentationState.TOTAL)) != 0) {
+                ProgressBar progress = view.findViewById(R.id.presentation_progress);
+                progress.setMax(state.getTotal());
+                progress.setProgress(state.getSlide() + 1);
+            }
+
+            if ((changes & (PresentationState.RUNNING | PresentationState.START_TIME)) != 0) {
+                showTalkTime();
+            }
+        }
+
+        /**
+         * Shows the time since the presentation was started. The start time is given by the
+         * clock of the server, so the talk time agrees with the timer shown on the presenter
+         * pc. The time is updated when the server clock reaches the next full second.
+         */
+        private void showTalkTime() {
+            mTalkTimeHandler.removeCallbacks(mTalkTimeUpdate);
+            View view = getView();
+            if (view == null || mPresentationState == null) {
+                return;
+            }
+
+            TextView talkTime = view.findViewById(R.id.talk_time);
+            long startTime = mPresentationState.getStartTime();
+            if (mClock == null || !mClock.isSynchronized() || !mPresentationState.isRunning()
+                    || startTime == PresentationState.UNKNOWN) {
+                talkTime.setVisibility(View.GONE);
+                return;
+            }
+
+            long elapsed = Math.max(mClock.currentTimeMillis() - startTime, 0);
+            talkTime.setText(DateUtils.formatElapsedTime(elapsed / 1000));
+            talkTime.setVisibility(View.VISIBLE);
+
+            long nextSecond = startTime + (elapsed / 1000 + 1) * 1000;
+            mTalkTimeHandler.postAtTime(mTalkTimeUpdate, mClock.toUptimeMillis(nextSecond));
+        }
+
+        /**
+         * Shows the speaker notes of the current slide. The text layout of long notes is
+         * expensive, so it is computed in the background and only the finished layout is set
+         * on the ui thread. The notes have a fixed height, so changing them does not change
+         * the layout of the page.
+         *
+         * @param currentSlide The slide currently shown by the server
+         * @param notes The notes of the slide, null if not received yet
+         */
+        private void showNotes(int currentSlide, String notes) {
+            View view = getView();
+            if (view == null || mNotes == null) {
+                return;
+            }
+
+            View container = view.findViewById(R.id.speaker_notes_container);
+            container.setVisibility(notes != null && !notes.isEmpty() ? View.VISIBLE : View.GONE);
+            if (notes == null || (currentSlide == mShownNotesSlide && notes.equals(mShownNotes))) {
+                return;
+            }
+
+            // Start reading the notes of a new slide at the top
+            if (currentSlide != mShownNotesSlide) {
+                container.scrollTo(0, 0);
+            }
+            mShownNotesSlide = currentSlide;
+            mShownNotes = notes;
+
+            TextView notesView = view.findViewById(R.id.speaker_notes);
+            PrecomputedTextCompat.Params params = TextViewCompat.getTextMetricsParams(notesView);
+            int generation = ++mNotesGeneration;
+            NOTES_LAYOUT.execute(() -> {
+                PrecomputedTextCompat text = PrecomputedTextCompat.create(notes, params);
+                notesView.post(() -> {
+                    if (generation == mNotesGeneration) {
+                        TextViewCompat.setPrecomputedText(notesView, text);
+                    }
+                });
+            });
+        }
+
+        /**
+         * Shows the thumbnails of the given and the following slide. The previews have a fixed
+         * size, so changing the thumbnails does not change the layout of the page.
+         *
+         * @param currentSlide The slide currently shown by the server, -1 if unknown
+         */
+        private void showThumbnails(int currentSlide) {
+            View view = getView();
+            if (view == null || mThumbnails == null) {
+                return;
+            }
+
+            Bitmap current = currentSlide >= 0 ? mThumbnails.get(currentSlide) : null;
+            Bitmap next = currentSlide >= 0 ? mThumbnails.get(currentSlide + 1) : null;
+            ((ImageView) view.findViewById(R.id.current_slide)).setImageBitmap(current);
+            ((ImageView) view.findViewById(R.id.next_slide_preview)).setImageBitmap(next);
+
+            view.findViewById(R.id.slide_previews).setVisibility(
+                    current != null || next != null ? View.VISIBLE : View.GONE);
+        }
+
+        /**
+         * Creates a touch listener that keeps the air mouse active while the view is touched.
+         *
+         * @param listener The listener to start and stop the air mouse
+         * @return The touch listener
+         */
+        @SuppressLint("ClickableViewAccessibility") // The air mouse needs to be held
+        private static View.OnTouchListener airMouseListener(PointerListener listener) {
+            return (view, event) -> {
+                switch (event.getActionMasked()) {
+                    case MotionEvent.ACTION_DOWN:
+                        view.setPressed(true);
+                        // Keep the view pager from taking over the touch
+                        if (view.getParent() != null) {
+                            view.getParent().requestDisallowInterceptTouchEvent(true);
+                        }
+                        listener.onAirMouse(true);
+                        break;
+
+                    case MotionEvent.ACTION_UP:
+                    case MotionEvent.ACTION_CANCEL:
+                        view.setPressed(false);
+                        listener.onAirMouse(false);
+                        break;
+                }
+                return true;
+            };
+        }
+
+        /**
+         * Creates a click listener running the given action. The click is marked as input for
+         * the {@link LatencyTracker}. Since clicks do not offer the time of their input event,
+         * the time of the click is used.
+         *
+         * @param action The action to run on click
+         * @return The click listener
+         */
+        private static View.OnClickListener trackedClick(Runnable action) {
+            return view -> {
+                LatencyTracker.beginSection(LatencyTracker.Stage.LISTENER);
+                LatencyTracker.markInput(SystemClock.uptimeMillis());
+                action.run();
+                LatencyTracker.endSection();
+            };
         }
     }
 }
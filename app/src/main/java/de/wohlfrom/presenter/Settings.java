@@ -18,13 +18,18 @@
 
 package de.wohlfrom.presenter;
 
-import android.app.Activity;
+import android.content.Context;
 import android.content.SharedPreferences;
 
+import de.wohlfrom.presenter.connectors.CommandCoalescer;
+
 import static android.content.Context.MODE_PRIVATE;
 
 /**
  * This class is used to store and read settings for our application in a central way.
+ *
+ * Code running often, e.g. for every key event, should not read the preferences directly but
+ * use the application wide {@link Snapshot} instead, see {@link #getSnapshot(Context)}.
  */
 public class Settings {
 
@@ -34,14 +39,105 @@ public class Settings {
     // The settings keys
     private static final String SILENCE_DURING_PRESENTATION_SETTING = "silenceDuringPresentation";
     private static final String USE_VOLUME_KEY_SETTING = "useVolumeKeys";
+    private static final String USE_UDP_COMMAND_CHANNEL_SETTING = "useUdpCommandChannel";
+    private static final String USE_BLUETOOTH_STANDBY_SETTING = "useBluetoothStandby";
+    private static final String USE_MULTIPATH_SETTING = "useMultipath";
+    private static final String USE_TOUCH_DOWN_NAVIGATION_SETTING = "useTouchDownNavigation";
+    private static final String COALESCING_WINDOW_SETTING = "coalescingWindow";
+    private static final String SLIDE_DURATIONS_SETTING = "slideDurations";
+    private static final String LOOP_SLIDES_SETTING = "loopSlides";
+
+    /**
+     * The name of our preferences file.
+     */
+    private static final String PREFERENCES_NAME = "Settings";
+
+    /**
+     * The preferences the current snapshot was read from.
+     */
+    private static SharedPreferences sSnapshotPreferences = null;
+
+    /**
+     * The current snapshot of the settings, null if not loaded yet.
+     */
+    private static volatile Snapshot sSnapshot = null;
+
+    /**
+     * Replaces the snapshot if the settings were changed. The preferences only keep a weak
+     * reference to their listeners, so we need to keep it here.
+     */
+    private static final SharedPreferences.OnSharedPreferenceChangeListener sChangeListener =
+            (preferences, key) -> {
+                synchronized (Settings.class) {
+                    if (preferences == sSnapshotPreferences) {
+                        sSnapshot = new Snapshot(new Settings(preferences));
+                    }
+                }
+            };
+
+    /**
+     * Initialize settings for a given context.
+     *
+     * @param context The context to initialize the settings with
+     */
+    public Settings(Context context) {
+        this(context.getSharedPreferences(PREFERENCES_NAME, MODE_PRIVATE));
+    }
 
     /**
-     * Initialize settings for a given activity.
+     * Initialize settings for the given preferences.
      *
-     * @param activity The activity to initialize the settings with
+     * @param preferences The preferences storing the settings
      */
-    public Settings(Activity activity) {
-        mPreferences = activity.getSharedPreferences("Settings", MODE_PRIVATE);
+    private Settings(SharedPreferences preferences) {
+        mPreferences = preferences;
+    }
+
+    /**
+     * Loads the settings snapshot in background, so it is available once the first activity
+     * needs it. Called by the application on start.
+     *
+     * @param context The context to load the settings with
+     */
+    static void preload(Context context) {
+        final Context applicationContext = context.getApplicationContext();
+        new Thread(() -> getSnapshot(applicationContext), "SettingsLoader").start();
+    }
+
+    /**
+     * Returns the current snapshot of the settings. The snapshot is loaded on first access and
+     * replaced whenever a setting is changed.
+     *
+     * @param context The context to load the settings with, if not loaded yet
+     * @return The current snapshot
+     */
+    public static Snapshot getSnapshot(Context context) {
+        SharedPreferences preferences =
+                context.getSharedPreferences(PREFERENCES_NAME, MODE_PRIVATE);
+
+        synchronized (Settings.class) {
+            if (preferences != sSnapshotPreferences) {
+                if (sSnapshotPreferences != null) {
+                    sSnapshotPreferences.unregisterOnSharedPreferenceChangeListener(
+                            sChangeListener);
+                }
+                sSnapshotPreferences = preferences;
+                preferences.registerOnSharedPreferenceChangeListener(sChangeListener);
+                sSnapshot = new Snapshot(new Settings(preferences));
+            }
+            return sSnapshot;
+        }
+    }
+
+    /**
+     * Returns the current snapshot of the settings without touching the preferences.
+     * {@link #getSnapshot(Context)} needs to be called once before, e.g. when creating the
+     * activity.
+     *
+     * @return The current snapshot or null, if it was never loaded
+     */
+    public static Snapshot getSnapshot() {
+        return sSnapshot;
     }
 
     /**
@@ -63,6 +159,103 @@ public class Settings {
         return mPreferences.getBoolean(USE_VOLUME_KEY_SETTING, true);
     }
 
+    /**
+     * If this value is set, commands are sent using udp to wifi servers that support it.
+     *
+     * @return If the udp command channel should be used. Defaults to false.
+     */
+    public boolean useUdpCommandChannel() {
+        return mPreferences.getBoolean(USE_UDP_COMMAND_CHANNEL_SETTING, false);
+    }
+
+    /**
+     * If this value is set, a bluetooth connection to the server is kept as standby while
+     * connected via wifi.
+     *
+     * @return If a bluetooth standby connection should be used. Defaults to false.
+     */
+    public boolean useBluetoothStandby() {
+        return mPreferences.getBoolean(USE_BLUETOOTH_STANDBY_SETTING, false);
+    }
+
+    /**
+     * If this value is set, commands are sent over wifi and bluetooth at the same time while
+     * connected via wifi, so they arrive with the latency of the faster connection.
+     *
+     * @return If commands should be sent over all connections. Defaults to false.
+     */
+    public boolean useMultipath() {
+        return mPreferences.getBoolean(USE_MULTIPATH_SETTING, false);
+    }
+
+    /**
+     * If this value is set, slide changes are sent as soon as the button is touched instead
+     * of when it is released.
+     *
+     * @return If touch down navigation should be used. Defaults to false.
+     */
+    public boolean useTouchDownNavigation() {
+        return mPreferences.getBoolean(USE_TOUCH_DOWN_NAVIGATION_SETTING, false);
+    }
+
+    /**
+     * The time in which consecutive slide changes in the same direction are merged into a
+     * single command.
+     *
+     * @return The coalescing window in ms, 0 if disabled. Defaults to
+     *         {@link CommandCoalescer#DEFAULT_WINDOW}.
+     */
+    public long coalescingWindow() {
+        return mPreferences.getLong(COALESCING_WINDOW_SETTING, CommandCoalescer.DEFAULT_WINDOW);
+    }
+
+    /**
+     * The time each slide is shown if the slides are advanced automatically, as comma
+     * separated list of seconds, e.g. "30, 45, 60".
+     *
+     * @return The slide durations. Defaults to an empty string, i.e. no automatic advancing.
+     */
+    public String slideDurations() {
+        return mPreferences.getString(SLIDE_DURATIONS_SETTING, "");
+    }
+
+    /**
+     * If this value is set, the first slide is shown again after the last one if the slides
+     * are advanced automatically.
+     *
+     * @return If the slides should be shown in a loop. Defaults to false.
+     */
+    public boolean loopSlides() {
+        return mPreferences.getBoolean(LOOP_SLIDES_SETTING, false);
+    }
+
+    /**
+     * Parses the given slide durations, see {@link #slideDurations()}. Invalid and negative
+     * durations are skipped.
+     *
+     * @param durations The comma separated durations in seconds
+     * @return The durations in ms
+     */
+    static long[] parseSlideDurations(String durations) {
+        String[] values = durations.split(",");
+        long[] parsed = new long[values.length];
+        int count = 0;
+        for (String value : values) {
+            try {
+                double seconds = Double.parseDouble(value.trim());
+                if (seconds > 0) {
+                    parsed[count++] = Math.round(seconds * 1000);
+                }
+            } catch (NumberFormatException e) {
+                // Skip invalid durations
+            }
+        }
+
+        long[] result = new long[count];
+        System.arraycopy(parsed, 0, result, 0, count);
+        return result;
+    }
+
     /**
      * Set if the device should be silenced while presenter is connected to the server.
      *
@@ -84,4 +277,187 @@ public class Settings {
         editor.putBoolean(USE_VOLUME_KEY_SETTING, value);
         editor.apply();
     }
+
+    /**
+     * Set if commands should be sent using udp to wifi servers that support it.
+     *
+     * @param value If the udp command channel should be used.
+     */
+    public void useUdpCommandChannel(boolean value) {
+        SharedPreferences.Editor editor = mPreferences.edit();
+        editor.putBoolean(USE_UDP_COMMAND_CHANNEL_SETTING, value);
+        editor.apply();
+    }
+
+    /**
+     * Set if a bluetooth connection to the server should be kept as standby while connected
+     * via wifi.
+     *
+     * @param value If a bluetooth standby connection should be used.
+     */
+    public void useBluetoothStandby(boolean value) {
+        SharedPreferences.Editor editor = mPreferences.edit();
+        editor.putBoolean(USE_BLUETOOTH_STANDBY_SETTING, value);
+        editor.apply();
+    }
+
+    /**
+     * Set if commands should be sent over wifi and bluetooth at the same time while connected
+     * via wifi.
+     *
+     * @param value If commands should be sent over all connections.
+     */
+    public void useMultipath(boolean value) {
+        SharedPreferences.Editor editor = mPreferences.edit();
+        editor.putBoolean(USE_MULTIPATH_SETTING, value);
+        editor.apply();
+    }
+
+    /**
+     * Set if slide changes should be sent as soon as the button is touched.
+     *
+     * @param value If touch down navigation should be used.
+     */
+    public void useTouchDownNavigation(boolean value) {
+        SharedPreferences.Editor editor = mPreferences.edit();
+        editor.putBoolean(USE_TOUCH_DOWN_NAVIGATION_SETTING, value);
+        editor.apply();
+    }
+
+    /**
+     * Set the time in which consecutive slide changes in the same direction should be merged
+     * into a single command.
+     *
+     * @param value The coalescing window in ms, 0 to disable merging.
+     */
+    public void coalescingWindow(long value) {
+        SharedPreferences.Editor editor = mPreferences.edit();
+        editor.putLong(COALESCING_WINDOW_SETTING, value);
+        editor.apply();
+    }
+
+    /**
+     * Set the time each slide is shown if the slides are advanced automatically.
+     *
+     * @param value The comma separated durations in seconds, empty to disable.
+     */
+    public void slideDurations(String value) {
+        SharedPreferences.Editor editor = mPreferences.edit();
+        editor.putString(SLIDE_DURATIONS_SETTING, value);
+        editor.apply();
+    }
+
+    /**
+     * Set if the first slide should be shown again after the last one.
+     *
+     * @param value If the slides should be shown in a loop.
+     */
+    public void loopSlides(boolean value) {
+        SharedPreferences.Editor editor = mPreferences.edit();
+        editor.putBoolean(LOOP_SLIDES_SETTING, value);
+        editor.apply();
+    }
+
+    /**
+     * An immutable copy of all settings. Reading it is cheap and does not need any locking.
+     * See {@link Settings} for the meaning of the single values.
+     */
+    public static final class Snapshot {
+        private final boolean mSilenceDuringPresentation;
+        private final boolean mUseVolumeKeysForNavigation;
+        private final boolean mUseUdpCommandChannel;
+        private final boolean mUseBluetoothStandby;
+        private final boolean mUseMultipath;
+        private final boolean mUseTouchDownNavigation;
+        private final long mCoalescingWindow;
+        private final long[] mSlideDurations;
+        private final boolean mLoopSlides;
+
+        /**
+         * Creates a snapshot of the given settings.
+         *
+         * @param settings The settings to copy
+         */
+        Snapshot(Settings settings) {
+            mSilenceDuringPresentation = settings.silenceDuringPresentation();
+            mUseVolumeKeysForNavigation = settings.useVolumeKeysForNavigation();
+            mUseUdpCommandChannel = settings.useUdpCommandChannel();
+            mUseBluetoothStandby = settings.useBluetoothStandby();
+            mUseMultipath = settings.useMultipath();
+            mUseTouchDownNavigation = settings.useTouchDownNavigation();
+            mCoalescingWindow = settings.coalescingWindow();
+            mSlideDurations = parseSlideDurations(settings.slideDurations());
+            mLoopSlides = settings.loopSlides();
+        }
+
+        /**
+         * @return If the device should be silenced, see
+         *         {@link Settings#silenceDuringPresentation()}
+         */
+        public boolean silenceDuringPresentation() {
+            return mSilenceDuringPresentation;
+        }
+
+        /**
+         * @return If volume keys can be used for navigation, see
+         *         {@link Settings#useVolumeKeysForNavigation()}
+         */
+        public boolean useVolumeKeysForNavigation() {
+            return mUseVolumeKeysForNavigation;
+        }
+
+        /**
+         * @return If the udp command channel should be used, see
+         *         {@link Settings#useUdpCommandChannel()}
+         */
+        public boolean useUdpCommandChannel() {
+            return mUseUdpCommandChannel;
+        }
+
+        /**
+         * @return If a bluetooth standby connection should be used, see
+         *         {@link Settings#useBluetoothStandby()}
+         */
+        public boolean useBluetoothStandby() {
+            return mUseBluetoothStandby;
+        }
+
+        /**
+         * @return If commands should be sent over all connections, see
+         *         {@link Settings#useMultipath()}
+         */
+        public boolean useMultipath() {
+            return mUseMultipath;
+        }
+
+        /**
+         * @return If touch down navigation should be used, see
+         *         {@link Settings#useTouchDownNavigation()}
+         */
+        public boolean useTouchDownNavigation() {
+            return mUseTouchDownNavigation;
+        }
+
+        /**
+         * @return The coalescing window in ms, see {@link Settings#coalescingWindow()}
+         */
+        public long coalescingWindow() {
+            return mCoalescingWindow;
+        }
+
+        /**
+         * @return A copy of the slide durations in ms, empty if the slides should not be
+         *         advanced automatically, see {@link Settings#slideDurations()}
+         */
+        public long[] slideDurations() {
+            return mSlideDurations.clone();
+        }
+
+        /**
+         * @return If the slides should be shown in a loop, see {@link Settings#loopSlides()}
+         */
+        public boolean loopSlides() {
+            return mLoopSlides;
+        }
+    }
 }
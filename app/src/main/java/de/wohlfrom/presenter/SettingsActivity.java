@@ -20,8 +20,11 @@ package de.wohlfrom.presenter;
 
 import android.app.Activity;
 import android.os.Bundle;
+import android.widget.EditText;
 import android.widget.Switch;
 
+import de.wohlfrom.presenter.connectors.CommandCoalescer;
+
 /**
  * The settings activity can be used to change the presenter settings.
  */
@@ -43,6 +46,26 @@ public class SettingsActivity extends Activity {
         ((Switch) findViewById(R.id.useVolumeKeysForNavigation))
                 .setChecked(mSettings.useVolumeKeysForNavigation());
 
+        ((Switch) findViewById(R.id.useUdpCommandChannel))
+                .setChecked(mSettings.useUdpCommandChannel());
+
+        ((Switch) findViewById(R.id.useBluetoothStandby))
+                .setChecked(mSettings.useBluetoothStandby());
+
+        ((Switch) findViewById(R.id.useMultipath))
+                .setChecked(mSettings.useMultipath());
+
+        ((Switch) findViewById(R.id.useTouchDownNavigation))
+                .setChecked(mSettings.useTouchDownNavigation());
+
+        ((Switch) findViewById(R.id.coalesceSlideChanges))
+                .setChecked(mSettings.coalescingWindow() > 0);
+
+        ((EditText) findViewById(R.id.slideDurations))
+                .setText(mSettings.slideDurations());
+
+        ((Switch) findViewById(R.id.loopSlides))
+                .setChecked(mSettings.loopSlides());
     }
 
     @Override
@@ -54,6 +77,30 @@ public class SettingsActivity extends Activity {
 
         mSettings.useVolumeKeysForNavigation(
                 ((Switch) findViewById(R.id.useVolumeKeysForNavigation)).isChecked());
+
+        mSettings.useUdpCommandChannel(
+                ((Switch) findViewById(R.id.useUdpCommandChannel)).isChecked());
+
+        mSettings.useBluetoothStandby(
+                ((Switch) findViewById(R.id.useBluetoothStandby)).isChecked());
+
+        mSettings.useMultipath(
+                ((Switch) findViewById(R.id.useMultipath)).isChecked());
+
+        mSettings.useTouchDownNavigation(
+                ((Switch) findViewById(R.id.useTouchDownNavigation)).isChecked());
+
+        // Keep a configured window, if merging stays enabled
+        boolean coalesce = ((Switch) findViewById(R.id.coalesceSlideChanges)).isChecked();
+        if (coalesce != mSettings.coalescingWindow() > 0) {
+            mSettings.coalescingWindow(coalesce ? CommandCoalescer.DEFAULT_WINDOW : 0);
+        }
+
+        mSettings.slideDurations(
+                ((EditText) findViewById(R.id.slideDurations)).getText().toString().trim());
+
+        mSettings.loopSlides(
+                ((Switch) findViewById(R.id.loopSlides)).isChecked());
     }
 
 }
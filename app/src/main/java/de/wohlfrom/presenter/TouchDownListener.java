@@ -0,0 +1,92 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Presenter. Android Client to remote control a presentation.          *
+ *  Copyright (C) 2019 Felix Wohlfrom                                    *
+ *                                                                       *
+ *  This program is free software: you can redistribute it and/or modify *
+ *  it under the terms of the GNU General Public License as published by *
+ *  the Free Software Foundation, either version 3 of the License, or    *
+ *  (at your option) any later version.                                  *
+ *                                                                       *
+ *  This program is distributed in the hope that it will be useful,      *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of       *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the        *
+ *  GNU General Public License for more details.                         *
+ *                                                                       *
+ *  You should have received a copy of the GNU General Public License    *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.*
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+
+package de.wohlfrom.presenter;
+
+import android.annotation.SuppressLint;
+import android.view.MotionEvent;
+import android.view.View;
+import android.view.ViewConfiguration;
+import android.view.ViewParent;
+
+import de.wohlfrom.presenter.connectors.LatencyTracker;
+
+/**
+ * Triggers an action as soon as a view is touched, instead of waiting for the finger to be
+ * lifted like a click listener does. This saves the time the finger rests on the screen.
+ *
+ * Since the action is already sent when the finger goes down, the touch can't be taken back.
+ * The parents of the view are therefore not allowed to take over the touch, e.g. the view
+ * pager can't turn it into a swipe to another presenter page.
+ *
+ * The click listener of the view is still used for accessibility actions.
+ */
+class TouchDownListener implements View.OnTouchListener {
+    private final Runnable mAction;
+
+    /**
+     * Creates a new listener.
+     *
+     * @param action The action to trigger on touch down
+     */
+    TouchDownListener(Runnable action) {
+        mAction = action;
+    }
+
+    @SuppressLint("ClickableViewAccessibility") // The click listener is kept for accessibility
+    @Override
+    public boolean onTouch(View view, MotionEvent event) {
+        switch (event.getActionMasked()) {
+            case MotionEvent.ACTION_DOWN:
+                ViewParent parent = view.getParent();
+                if (parent != null) {
+                    parent.requestDisallowInterceptTouchEvent(true);
+                }
+                view.setPressed(true);
+                LatencyTracker.beginSection(LatencyTracker.Stage.LISTENER);
+                LatencyTracker.markInput(event.getEventTime());
+                mAction.run();
+                LatencyTracker.endSection();
+                break;
+
+            case MotionEvent.ACTION_MOVE:
+                view.setPressed(isInside(view, event));
+                break;
+
+            case MotionEvent.ACTION_UP:
+            case MotionEvent.ACTION_CANCEL:
+                view.setPressed(false);
+                break;
+        }
+        return true;
+    }
+
+    /**
+     * Checks if the touch is still inside of the view, allowing some slop.
+     *
+     * @param view The touched view
+     * @param event The touch event
+     * @return If the touch is inside of the view
+     */
+    private static boolean isInside(View view, MotionEvent event) {
+        float slop = ViewConfiguration.get(view.getContext()).getScaledTouchSlop();
+        return event.getX() >= -slop && event.getY() >= -slop
+                && event.getX() < view.getWidth() + slop
+                && event.getY() < view.getHeight() + slop;
+    }
+}
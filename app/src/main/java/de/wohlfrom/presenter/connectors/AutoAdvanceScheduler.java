@@ -0,0 +1,338 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Presenter. Android Client to remote control a presentation.          *
+ *  Copyright (C) 2019 Felix Wohlfrom                                    *
+ *                                                                       *
+ *  This program is free software: you can redistribute it and/or modify *
+ *  it under the terms of the GNU General Public License as published by *
+ *  the Free Software Foundation, either version 3 of the License, or    *
+ *  (at your option) any later version.                                  *
+ *                                                                       *
+ *  This program is distributed in the hope that it will be useful,      *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of       *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the        *
+ *  GNU General Public License for more details.                         *
+ *                                                                       *
+ *  You should have received a copy of the GNU General Public License    *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.*
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+
+package de.wohlfrom.presenter.connectors;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import de.wohlfrom.presenter.BuildConfig;
+
+/**
+ * Advances the slides automatically after a configured time per slide, e.g. for kiosk or
+ * rehearsal modes.
+ *
+ * The fire times are computed from the time the schedule was started and the sum of the
+ * durations of the previous slides, so a late advance does not delay the following ones.
+ * The commands are encoded when the schedule is started, so firing only needs to pass the
+ * prepared frame to the connection. For every advance, the difference between the actual and
+ * the planned time is recorded.
+ *
+ * The scheduler runs on its own thread, so it is neither delayed by the ui nor affected if the
+ * presenter fragment is recreated. The listener is informed on the thread of the looper the
+ * scheduler was created on, usually the ui thread.
+ */
+public class AutoAdvanceScheduler {
+    // Debugging
+    private static final String TAG = "AutoAdvanceScheduler";
+
+    /**
+     * The link the commands are sent over.
+     */
+    public interface AdvanceSink {
+        /**
+         * Encodes the given command.
+         *
+         * @param command The command to encode
+         * @return The encoded frame
+         */
+        String encodeCommand(Command command);
+
+        /**
+         * Encodes a command moving the presentation by the given number of slides.
+         *
+         * @param slides The number of slides to move, negative values move backwards
+         * @return The encoded frame, null if not supported
+         */
+        String encodeAdvance(int slides);
+
+        /**
+         * Sends a frame encoded before. Called on the thread of the scheduler.
+         *
+         * @param frame The encoded frame
+         */
+        void sendEncoded(String frame);
+    }
+
+    /**
+     * Listener interface that is informed if the schedule advanced or finished.
+     */
+    public interface ScheduleListener {
+        /**
+         * Called if the slide changed or the schedule was started or stopped.
+         *
+         * @param scheduler The scheduler that changed
+         */
+        void onScheduleChanged(AutoAdvanceScheduler scheduler);
+    }
+
+    private final AdvanceSink mSink;
+    private final Handler mHandler;
+    private final Handler mListenerHandler;
+    private final HandlerThread mThread;
+    private final Runnable mFire = this::fire;
+    private final Runnable mNotify = this::notifyListener;
+    private ScheduleListener mListener = null;
+
+    /**
+     * The schedule, guarded by this. The fire times are given as offset in ms from the start
+     * time, which is stored in the {@link SystemClock#uptimeMillis()} time base used by the
+     * handler and in the {@link SystemClock#elapsedRealtimeNanos()} time base used to measure
+     * the jitter.
+     */
+    private boolean mRunning = false;
+    private long[] mDurations = new long[0];
+    private boolean mLoop = false;
+    private int mSlide = 0;
+    private long mStartUptime = 0;
+    private long mStartRealtimeNanos = 0;
+    private long mNextOffset = 0;
+
+    /**
+     * The prepared frames.
+     */
+    private String mNextFrame = null;
+    private String mRewindFrame = null;
+
+    /**
+     * Statistics, guarded by this.
+     */
+    private int mAdvances = 0;
+    private final LatencyHistogram mJitter = new LatencyHistogram();
+    private long mMaxEarly = 0;
+
+    /**
+     * Creates a new scheduler running on its own thread.
+     *
+     * @param sink The link to send the commands over
+     */
+    public AutoAdvanceScheduler(AdvanceSink sink) {
+        mThread = new HandlerThread("AutoAdvance", Process.THREAD_PRIORITY_FOREGROUND);
+        mThread.start();
+        mSink = sink;
+        mHandler = new Handler(mThread.getLooper());
+        mListenerHandler = new Handler();
+    }
+
+    /**
+     * Creates a new scheduler running on the given looper.
+     *
+     * @param sink The link to send the commands over
+     * @param looper The looper of the thread the commands are sent on
+     */
+    AutoAdvanceScheduler(AdvanceSink sink, Looper looper) {
+        mThread = null;
+        mSink = sink;
+        mHandler = new Handler(looper);
+        mListenerHandler = new Handler();
+    }
+
+    /**
+     * Sets the listener that is informed about changes of the schedule.
+     *
+     * @param listener The listener, might be null
+     */
+    public void setListener(ScheduleListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Starts the schedule, assuming that the first slide is shown now. A running schedule is
+     * replaced.
+     *
+     * @param durations The time in ms each slide is shown
+     * @param loop If the first slide should be shown again after the last one. Otherwise the
+     *             schedule stops after the last slide.
+     */
+    public void start(long[] durations, boolean loop) {
+        if (durations.length == 0) {
+            stop();
+            return;
+        }
+
+        // Encode the commands now, so firing does not need to
+        String nextFrame = mSink.encodeCommand(Command.NEXT_SLIDE);
+        String rewindFrame = loop && durations.length > 1
+                ? mSink.encodeAdvance(-(durations.length - 1)) : null;
+
+        synchronized (this) {
+            mHandler.removeCallbacks(mFire);
+            mDurations = durations.clone();
+            mLoop = loop;
+            mNextFrame = nextFrame;
+            mRewindFrame = rewindFrame;
+            mSlide = 0;
+            mStartUptime = SystemClock.uptimeMillis();
+            mStartRealtimeNanos = SystemClock.elapsedRealtimeNanos();
+            mNextOffset = mDurations[0];
+            mRunning = true;
+            mHandler.postAtTime(mFire, mStartUptime + mNextOffset);
+        }
+        mListenerHandler.post(mNotify);
+    }
+
+    /**
+     * Stops the schedule.
+     */
+    public void stop() {
+        synchronized (this) {
+            if (!mRunning) {
+                return;
+            }
+            mRunning = false;
+            mHandler.removeCallbacks(mFire);
+        }
+        mListenerHandler.post(mNotify);
+    }
+
+    /**
+     * Stops the schedule and its thread.
+     */
+    public void shutdown() {
+        stop();
+        mListenerHandler.removeCallbacks(mNotify);
+        if (mThread != null) {
+            mThread.quit();
+        }
+
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "Auto advance statistics: " + this);
+        }
+    }
+
+    /**
+     * Returns if the schedule is running.
+     *
+     * @return If the schedule is running
+     */
+    public synchronized boolean isRunning() {
+        return mRunning;
+    }
+
+    /**
+     * Returns the slide of the schedule that is currently shown.
+     *
+     * @return The index of the slide, starting with 0 for the slide shown on start
+     */
+    public synchronized int getSlide() {
+        return mSlide;
+    }
+
+    /**
+     * Returns the time of the next advance.
+     *
+     * @return The time in the {@link SystemClock#uptimeMillis()} time base, 0 if the schedule
+     *         is not running
+     */
+    public synchronized long getNextAdvanceTime() {
+        return mRunning ? mStartUptime + mNextOffset : 0;
+    }
+
+    /**
+     * Returns the number of slide changes sent so far.
+     *
+     * @return The number of slide changes
+     */
+    public synchronized int getAdvances() {
+        return mAdvances;
+    }
+
+    /**
+     * Returns the distribution of the times in us the slide changes were sent after their
+     * planned time.
+     *
+     * @return A copy of the jitter histogram
+     */
+    public synchronized LatencyHistogram getJitter() {
+        return new LatencyHistogram(mJitter);
+    }
+
+    /**
+     * Sends the next slide change and schedules the following one. Runs on the thread of the
+     * scheduler.
+     */
+    private void fire() {
+        String frame;
+        synchronized (this) {
+            if (!mRunning) {
+                return;
+            }
+
+            long jitter = (SystemClock.elapsedRealtimeNanos() - mStartRealtimeNanos) / 1000
+                    - mNextOffset * 1000;
+            if (jitter >= 0) {
+                mJitter.record(jitter);
+            } else {
+                mMaxEarly = Math.max(mMaxEarly, -jitter);
+            }
+
+            if (mSlide < mDurations.length - 1) {
+                frame = mNextFrame;
+                mSlide++;
+            } else if (mLoop && mRewindFrame != null) {
+                frame = mRewindFrame;
+                mSlide = 0;
+            } else if (mLoop && mDurations.length == 1) {
+                // A single slide has nothing to advance to, just keep the schedule
+                frame = null;
+            } else {
+                // The last slide was shown or the server can not move back to the first one
+                frame = null;
+                mRunning = false;
+            }
+
+            if (mRunning) {
+                // Based on the start time, so late advances do not accumulate
+                mNextOffset += mDurations[mSlide];
+                mHandler.postAtTime(mFire, mStartUptime + mNextOffset);
+            }
+            if (frame != null) {
+                mAdvances++;
+            }
+        }
+
+        if (frame != null) {
+            mSink.sendEncoded(frame);
+        }
+        mListenerHandler.post(mNotify);
+    }
+
+    /**
+     * Informs the listener about a change of the schedule.
+     */
+    private void notifyListener() {
+        if (mListener != null) {
+            mListener.onScheduleChanged(this);
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "{ " +
+                "\"running\": \"" + mRunning + "\"," +
+                "\"slide\": \"" + mSlide + "\"," +
+                "\"advances\": \"" + mAdvances + "\"," +
+                "\"maxEarly\": \"" + mMaxEarly + "\"," +
+                "\"jitter\": " + mJitter +
+                "}";
+    }
+}
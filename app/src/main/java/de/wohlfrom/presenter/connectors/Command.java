@@ -7,22 +7,28 @@ public enum Command {
     /**
      * Request switch to previous slide.
      */
-    PREV_SLIDE("prevSlide", 1, 2),
+    PREV_SLIDE("prevSlide", 1, 14),
 
     /**
      * Request switch to next slide.
      */
-    NEXT_SLIDE("nextSlide", 1, 2),
+    NEXT_SLIDE("nextSlide", 1, 14),
 
     /**
      * Request to start the presentation.
      */
-    START_PRESENTATION("startPresentation", 2, 2),
+    START_PRESENTATION("startPresentation", 2, 14),
 
     /**
      * Request to stop the presentation.
      */
-    STOP_PRESENTATION("stopPresentation", 2, 2);
+    STOP_PRESENTATION("stopPresentation", 2, 14),
+
+    /**
+     * Request to move by several slides at once. The number of slides is sent as additional
+     * argument, see {@link RemoteControl#sendAdvance(int)}.
+     */
+    ADVANCE("advance", 6, 14);
 
     /**
      * The command to send.
@@ -78,4 +84,15 @@ public enum Command {
     public int getMaxVersion() {
         return maxVersion;
     }
+
+    /**
+     * Returns if this command can be used with the given protocol version range, i.e. if the
+     * range overlaps the versions supporting this command.
+     *
+     * @param version The protocol version range to check.
+     * @return If the command is supported.
+     */
+    public boolean isSupportedBy(ProtocolVersion version) {
+        return version.getMaxVersion() >= minVersion && version.getMinVersion() <= maxVersion;
+    }
 }
@@ -0,0 +1,322 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Presenter. Android Client to remote control a presentation.          *
+ *  Copyright (C) 2019 Felix Wohlfrom                                    *
+ *                                                                       *
+ *  This program is free software: you can redistribute it and/or modify *
+ *  it under the terms of the GNU General Public License as published by *
+ *  the Free Software Foundation, either version 3 of the License, or    *
+ *  (at your option) any later version.                                  *
+ *                                                                       *
+ *  This program is distributed in the hope that it will be useful,      *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of       *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the        *
+ *  GNU General Public License for more details.                         *
+ *                                                                       *
+ *  You should have received a copy of the GNU General Public License    *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.*
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+
+package de.wohlfrom.presenter.connectors;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merges bursts of consecutive {@link Command#NEXT_SLIDE} or {@link Command#PREV_SLIDE}
+ * commands into a single command that moves by several slides.
+ *
+ * The first command of a burst is sent immediately, so single commands are not delayed. All
+ * further commands in the same direction that are submitted within the coalescing window are
+ * collected and sent together once the window ends. A command in the other direction ends the
+ * burst immediately, so the order of the commands is kept.
+ */
+public class CommandCoalescer {
+    /**
+     * The default coalescing window in ms.
+     */
+    public static final long DEFAULT_WINDOW = 150;
+
+    /**
+     * Interface of the receiver of the coalesced commands.
+     */
+    public interface CommandSink {
+        /**
+         * Called if a command should be sent.
+         *
+         * @param command The command to send, either {@link Command#NEXT_SLIDE} or
+         *                {@link Command#PREV_SLIDE}
+         * @param count The number of times the command should be executed
+         * @param input The input event that caused the command, see {@link LatencyTracker}.
+         *              Only given for the first command of a burst, otherwise null.
+         */
+        void send(Command command, int count, LatencyTracker.InputTrace input);
+    }
+
+    private final CommandSink mSink;
+
+    /**
+     * Held while deciding about and passing commands to the sink, to keep their order. The lock
+     * of the coalescer itself is never held while calling the sink, so {@link #cancel()} can be
+     * called while the sink is locked.
+     */
+    private final Object mSendLock = new Object();
+
+    private long mWindow;
+    private ScheduledExecutorService mExecutor;
+    private ScheduledFuture<?> mWindowEnd;
+
+    /**
+     * Counts the started windows. Used to ignore the end of windows that were already
+     * cancelled while their timer was running.
+     */
+    private int mWindowNumber = 0;
+
+    /**
+     * The direction of the running burst and the number of commands not sent yet.
+     */
+    private Command mBurstCommand = null;
+    private int mPendingCount = 0;
+
+    /**
+     * Coalescing statistics.
+     */
+    private int mSubmittedCommands = 0;
+    private int mSentFrames = 0;
+    private int mLargestBurst = 0;
+
+    /**
+     * Creates a new coalescer using the {@link #DEFAULT_WINDOW}.
+     *
+     * @param sink The receiver of the coalesced commands
+     */
+    public CommandCoalescer(CommandSink sink) {
+        this(sink, DEFAULT_WINDOW);
+    }
+
+    /**
+     * Creates a new coalescer.
+     *
+     * @param sink The receiver of the coalesced commands
+     * @param window The coalescing window in ms, 0 to disable coalescing
+     */
+    public CommandCoalescer(CommandSink sink, long window) {
+        mSink = sink;
+        mWindow = window;
+    }
+
+    /**
+     * Sets the coalescing window. Pending commands are sent immediately.
+     *
+     * @param window The coalescing window in ms, 0 to disable coalescing
+     */
+    public void setWindow(long window) {
+        synchronized (mSendLock) {
+            int pending;
+            Command command;
+            synchronized (this) {
+                command = mBurstCommand;
+                pending = endBurst();
+                mWindow = window;
+            }
+            send(command, pending, null);
+        }
+    }
+
+    /**
+     * Returns the coalescing window.
+     *
+     * @return The coalescing window in ms
+     */
+    public synchronized long getWindow() {
+        return mWindow;
+    }
+
+    /**
+     * Submits a command. The command is either sent immediately or merged with the following
+     * commands of the running burst.
+     *
+     * @param command The command, either {@link Command#NEXT_SLIDE} or
+     *                {@link Command#PREV_SLIDE}
+     */
+    public void submit(Command command) {
+        submit(command, null);
+    }
+
+    /**
+     * Submits a command caused by the given input event, see {@link #submit(Command)}. The
+     * input is only passed on if the command is sent immediately.
+     *
+     * @param command The command, either {@link Command#NEXT_SLIDE} or
+     *                {@link Command#PREV_SLIDE}
+     * @param input The input event that caused the command, might be null
+     */
+    public void submit(Command command, LatencyTracker.InputTrace input) {
+        synchronized (mSendLock) {
+            int pending = 0;
+            Command pendingCommand = null;
+            synchronized (this) {
+                mSubmittedCommands++;
+
+                if (mWindowEnd != null && command == mBurstCommand) {
+                    mPendingCount++;
+                    return;
+                }
+
+                // New burst, the first command is sent immediately
+                if (mWindow > 0) {
+                    pendingCommand = mBurstCommand;
+                    pending = endBurst();
+                    mBurstCommand = command;
+                    openWindow();
+                }
+            }
+            send(pendingCommand, pending, null);
+            send(command, 1, input);
+        }
+    }
+
+    /**
+     * Sends all pending commands immediately and ends the running burst. Needs to be called
+     * before other commands are sent, to keep the order of the commands.
+     */
+    public void flush() {
+        synchronized (mSendLock) {
+            int pending;
+            Command command;
+            synchronized (this) {
+                command = mBurstCommand;
+                pending = endBurst();
+            }
+            send(command, pending, null);
+        }
+    }
+
+    /**
+     * Drops all pending commands and stops the timer thread, e.g. because the connection
+     * was closed.
+     */
+    public synchronized void cancel() {
+        mPendingCount = 0;
+        mBurstCommand = null;
+        mWindowEnd = null;
+        if (mExecutor != null) {
+            mExecutor.shutdownNow();
+            mExecutor = null;
+        }
+    }
+
+    /**
+     * Returns the number of submitted commands.
+     *
+     * @return The number of submitted commands
+     */
+    public synchronized int getSubmittedCommands() {
+        return mSubmittedCommands;
+    }
+
+    /**
+     * Returns the number of frames sent for the submitted commands.
+     *
+     * @return The number of sent frames
+     */
+    public synchronized int getSentFrames() {
+        return mSentFrames;
+    }
+
+    /**
+     * Returns the largest number of commands merged into a single frame.
+     *
+     * @return The largest burst
+     */
+    public synchronized int getLargestBurst() {
+        return mLargestBurst;
+    }
+
+    /**
+     * Starts a new coalescing window.
+     */
+    private void openWindow() {
+        if (mExecutor == null) {
+            mExecutor = Executors.newSingleThreadScheduledExecutor();
+        }
+        int windowNumber = ++mWindowNumber;
+        mWindowEnd = mExecutor.schedule(() -> onWindowEnd(windowNumber),
+                mWindow, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Ends the running burst and its window.
+     *
+     * @return The number of pending commands of the burst that still need to be sent
+     */
+    private int endBurst() {
+        if (mWindowEnd != null) {
+            mWindowEnd.cancel(false);
+            mWindowEnd = null;
+        }
+        int pending = mPendingCount;
+        mPendingCount = 0;
+        mBurstCommand = null;
+        return pending;
+    }
+
+    /**
+     * Sends the commands collected during the window. If there were any, the burst might
+     * still be running, so a new window is started.
+     *
+     * @param windowNumber The number of the window that ended
+     */
+    private void onWindowEnd(int windowNumber) {
+        synchronized (mSendLock) {
+            int pending;
+            Command command;
+            synchronized (this) {
+                if (mWindowEnd == null || windowNumber != mWindowNumber) {
+                    return;
+                }
+                mWindowEnd = null;
+
+                command = mBurstCommand;
+                pending = mPendingCount;
+                mPendingCount = 0;
+                if (pending > 0) {
+                    openWindow();
+                } else {
+                    mBurstCommand = null;
+                }
+            }
+            send(command, pending, null);
+        }
+    }
+
+    /**
+     * Passes the given command to the sink and updates the statistics. Must only be called
+     * while holding the send lock, but not the lock of the coalescer.
+     *
+     * @param command The command to send
+     * @param count The number of times the command should be executed, nothing is sent if 0
+     * @param input The input event that caused the command, might be null
+     */
+    private void send(Command command, int count, LatencyTracker.InputTrace input) {
+        if (count <= 0) {
+            return;
+        }
+        synchronized (this) {
+            mSentFrames++;
+            mLargestBurst = Math.max(mLargestBurst, count);
+        }
+        mSink.send(command, count, input);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "{ " +
+                "\"window\": \"" + mWindow + "\"," +
+                "\"submittedCommands\": \"" + mSubmittedCommands + "\"," +
+                "\"sentFrames\": \"" + mSentFrames + "\"," +
+                "\"largestBurst\": \"" + mLargestBurst + "\"" +
+                "}";
+    }
+}
@@ -0,0 +1,282 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Presenter. Android Client to remote control a presentation.          *
+ *  Copyright (C) 2019 Felix Wohlfrom                                    *
+ *                                                                       *
+ *  This program is free software: you can redistribute it and/or modify *
+ *  it under the terms of the GNU General Public License as published by *
+ *  the Free Software Foundation, either version 3 of the License, or    *
+ *  (at your option) any later version.                                  *
+ *                                                                       *
+ *  This program is distributed in the hope that it will be useful,      *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of       *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the        *
+ *  GNU General Public License for more details.                         *
+ *                                                                       *
+ *  You should have received a copy of the GNU General Public License    *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.*
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+
+package de.wohlfrom.presenter.connectors;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+/**
+ * Runs device discovery in bursts instead of keeping the radio busy all the time.
+ * Between two bursts, the scheduler waits for some time. This time is short as long as no device
+ * was found and grows up to {@link #MAX_IDLE_TIME} once the target was found.
+ * While the scheduler is paused (e.g. because we are connected to a device), no discovery is
+ * done at all.
+ *
+ * All callbacks are executed on the thread of the looper the scheduler was created on.
+ */
+public class DiscoveryScheduler {
+    /**
+     * The default time in ms a single discovery burst lasts.
+     */
+    public static final long DEFAULT_BURST_TIME = 4000;
+
+    /**
+     * Time in ms to wait between two bursts as long as no device was found.
+     */
+    static final long FAST_IDLE_TIME = 2000;
+
+    /**
+     * Time in ms to wait between two bursts directly after a device was found. Will be doubled
+     * after every burst up to {@link #MAX_IDLE_TIME}.
+     */
+    static final long SLOW_IDLE_TIME = 4000;
+
+    /**
+     * The maximum time in ms to wait between two bursts.
+     */
+    static final long MAX_IDLE_TIME = 16000;
+
+    /**
+     * Listener interface that will do the real discovery.
+     */
+    public interface DiscoveryListener {
+        /**
+         * Called if a discovery burst should be started.
+         */
+        void onStartDiscovery();
+
+        /**
+         * Called if the running discovery burst should be stopped.
+         */
+        void onStopDiscovery();
+    }
+
+    private final DiscoveryListener mListener;
+    private final Handler mHandler;
+    private final long mBurstTime;
+
+    /**
+     * The current state of the scheduler.
+     */
+    private boolean mStarted = false;
+    private boolean mPaused = false;
+    private boolean mBurstActive = false;
+    private boolean mTargetFound = false;
+    private long mIdleTime = FAST_IDLE_TIME;
+
+    /**
+     * Energy relevant statistics.
+     */
+    private int mWakeups = 0;
+    private long mBurstStartTime = 0;
+    private long mRadioOnTime = 0;
+    private long mStartTime = 0;
+
+    private final Runnable mStartBurst = this::startBurst;
+    private final Runnable mStopBurst = this::stopBurst;
+
+    /**
+     * Creates a new discovery scheduler using the {@link #DEFAULT_BURST_TIME}.
+     *
+     * @param listener The listener that will start and stop the discovery.
+     */
+    public DiscoveryScheduler(DiscoveryListener listener) {
+        this(listener, DEFAULT_BURST_TIME);
+    }
+
+    /**
+     * Creates a new discovery scheduler.
+     *
+     * @param listener  The listener that will start and stop the discovery.
+     * @param burstTime The time in ms a single discovery burst lasts.
+     */
+    public DiscoveryScheduler(DiscoveryListener listener, long burstTime) {
+        mListener = listener;
+        mBurstTime = burstTime;
+        mHandler = new Handler();
+    }
+
+    /**
+     * Starts the discovery. The first burst is started immediately. If the scheduler is already
+     * started, the backoff is reset and a new burst is started.
+     */
+    public void start() {
+        if (!mStarted) {
+            mStartTime = SystemClock.elapsedRealtime();
+        }
+        mStarted = true;
+        mPaused = false;
+        mIdleTime = mTargetFound ? SLOW_IDLE_TIME : FAST_IDLE_TIME;
+
+        mHandler.removeCallbacks(mStartBurst);
+        if (!mBurstActive) {
+            startBurst();
+        }
+    }
+
+    /**
+     * Stops the discovery completely.
+     */
+    public void stop() {
+        pause();
+        mStarted = false;
+    }
+
+    /**
+     * Pauses the discovery, e.g. because a connection to a device was established. A running
+     * burst is stopped immediately.
+     */
+    public void pause() {
+        mPaused = true;
+        mHandler.removeCallbacks(mStartBurst);
+        mHandler.removeCallbacks(mStopBurst);
+        if (mBurstActive) {
+            stopBurst();
+        }
+    }
+
+    /**
+     * Resumes a paused discovery. Will do nothing if the scheduler was never started.
+     */
+    public void resume() {
+        if (mStarted && mPaused) {
+            start();
+        }
+    }
+
+    /**
+     * Finishes the running burst early, e.g. because the device we are looking for was found.
+     * The next burst will be scheduled as usual.
+     */
+    public void finishBurst() {
+        if (mBurstActive) {
+            mHandler.removeCallbacks(mStopBurst);
+            stopBurst();
+        }
+    }
+
+    /**
+     * Sets if the device we are looking for was already found. This will change the time
+     * between two bursts.
+     *
+     * @param found If the target device was found.
+     */
+    public void setTargetFound(boolean found) {
+        if (found && !mTargetFound) {
+            mIdleTime = SLOW_IDLE_TIME;
+        } else if (!found) {
+            mIdleTime = FAST_IDLE_TIME;
+        }
+        mTargetFound = found;
+    }
+
+    /**
+     * Returns if the scheduler is started and not paused, i.e. if further bursts will follow.
+     *
+     * @return If the scheduler is running.
+     */
+    public boolean isRunning() {
+        return mStarted && !mPaused;
+    }
+
+    /**
+     * Returns if a discovery burst is currently running.
+     *
+     * @return If a burst is running.
+     */
+    public boolean isBurstActive() {
+        return mBurstActive;
+    }
+
+    /**
+     * Returns the number of wakeups caused by the scheduler, i.e. the number of started bursts.
+     *
+     * @return The number of wakeups.
+     */
+    public int getWakeups() {
+        return mWakeups;
+    }
+
+    /**
+     * Returns an estimation of the time in ms in which the radio was used for discovery.
+     *
+     * @return The estimated radio on time.
+     */
+    public long getRadioOnTime() {
+        if (mBurstActive) {
+            return mRadioOnTime + SystemClock.elapsedRealtime() - mBurstStartTime;
+        }
+        return mRadioOnTime;
+    }
+
+    /**
+     * Returns the time in ms since the scheduler was started the first time.
+     *
+     * @return The time since first start.
+     */
+    public long getElapsedTime() {
+        if (mStartTime == 0) {
+            return 0;
+        }
+        return SystemClock.elapsedRealtime() - mStartTime;
+    }
+
+    /**
+     * Starts a single discovery burst and schedules its end.
+     */
+    private void startBurst() {
+        if (mPaused) {
+            return;
+        }
+
+        mWakeups++;
+        mBurstActive = true;
+        mBurstStartTime = SystemClock.elapsedRealtime();
+        mListener.onStartDiscovery();
+
+        mHandler.postDelayed(mStopBurst, mBurstTime);
+    }
+
+    /**
+     * Stops the running discovery burst and schedules the next one, if not paused.
+     */
+    private void stopBurst() {
+        mBurstActive = false;
+        mRadioOnTime += SystemClock.elapsedRealtime() - mBurstStartTime;
+        mListener.onStopDiscovery();
+
+        if (mPaused) {
+            return;
+        }
+
+        mHandler.postDelayed(mStartBurst, mIdleTime);
+        if (mTargetFound) {
+            mIdleTime = Math.min(mIdleTime * 2, MAX_IDLE_TIME);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "{ " +
+                "\"wakeups\": \"" + getWakeups() + "\"," +
+                "\"radioOnTime\": \"" + getRadioOnTime() + "\"," +
+                "\"elapsedTime\": \"" + getElapsedTime() + "\"" +
+                "}";
+    }
+}
@@ -0,0 +1,325 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Presenter. Android Client to remote control a presentation.          *
+ *  Copyright (C) 2019 Felix Wohlfrom                                    *
+ *                                                                       *
+ *  This program is free software: you can redistribute it and/or modify *
+ *  it under the terms of the GNU General Public License as published by *
+ *  the Free Software Foundation, either version 3 of the License, or    *
+ *  (at your option) any later version.                                  *
+ *                                                                       *
+ *  This program is distributed in the hope that it will be useful,      *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of       *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the        *
+ *  GNU General Public License for more details.                         *
+ *                                                                       *
+ *  You should have received a copy of the GNU General Public License    *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.*
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+
+package de.wohlfrom.presenter.connectors;
+
+import android.util.Log;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import de.wohlfrom.presenter.BuildConfig;
+
+/**
+ * A session that keeps a second connection to the same server as warm standby. The health of
+ * the active connection is checked using heartbeats. If it fails, commands are sent using the
+ * standby connection without any user interaction.
+ *
+ * The failover time is measured from the last sign of life of the failed connection until
+ * commands are routed to the standby connection.
+ *
+ * Optionally, a {@link TransportSelector} may choose the connection used for commands, e.g.
+ * to use the standby connection while it is faster. It is evaluated on each heartbeat and
+ * uses the liveness of this session, so both always agree which connections are alive.
+ */
+public class FailoverSession {
+    // Debugging
+    private static final String TAG = "FailoverSession";
+
+    /**
+     * The default time in ms between two heartbeats.
+     */
+    public static final long DEFAULT_HEARTBEAT_INTERVAL = 250;
+
+    /**
+     * The default time in ms without heartbeat response after which a connection is
+     * considered dead.
+     */
+    public static final long DEFAULT_HEARTBEAT_TIMEOUT = 750;
+
+    /**
+     * Listener interface that is informed about failovers.
+     */
+    public interface FailoverListener {
+        /**
+         * Called after commands were rerouted to the standby connection.
+         *
+         * @param failed The connection that failed
+         * @param active The connection that is used from now on
+         * @param failoverTime The failover time in ms
+         */
+        void onFailover(RemoteControl failed, RemoteControl active, long failoverTime);
+    }
+
+    private final FailoverListener mListener;
+    private final long mHeartbeatInterval;
+    private final long mHeartbeatTimeout;
+    private RemoteControl mActive;
+    private RemoteControl mStandby;
+    private TransportSelector mSelector;
+    private ScheduledExecutorService mExecutor;
+
+    /**
+     * Failover statistics.
+     */
+    private int mFailoverCount = 0;
+    private long mLastFailoverTime = -1;
+
+    /**
+     * Creates a new session using the default heartbeat interval and timeout.
+     *
+     * @param active The connection to use for commands
+     * @param listener The listener to inform about failovers
+     */
+    public FailoverSession(RemoteControl active, FailoverListener listener) {
+        this(active, listener, DEFAULT_HEARTBEAT_INTERVAL, DEFAULT_HEARTBEAT_TIMEOUT);
+    }
+
+    /**
+     * Creates a new session.
+     *
+     * @param active The connection to use for commands
+     * @param listener The listener to inform about failovers
+     * @param heartbeatInterval The time in ms between two heartbeats
+     * @param heartbeatTimeout The time in ms after which a connection without heartbeat
+     *                         response is considered dead
+     */
+    public FailoverSession(RemoteControl active, FailoverListener listener,
+                           long heartbeatInterval, long heartbeatTimeout) {
+        mActive = active;
+        mListener = listener;
+        mHeartbeatInterval = heartbeatInterval;
+        mHeartbeatTimeout = heartbeatTimeout;
+    }
+
+    /**
+     * Sets the standby connection. Should be connected to the same server as the active one.
+     *
+     * @param standby The standby connection, might be null to remove the standby
+     */
+    public synchronized void setStandby(RemoteControl standby) {
+        mStandby = standby;
+    }
+
+    /**
+     * Sets the selector that chooses the connection used for commands. Its paths should be
+     * the active and the standby connection and it should use {@link #isAlive} as liveness.
+     * Switches to a faster connection are no failovers, so they are not reported.
+     *
+     * @param selector The selector, might be null to only switch if the active connection
+     *                 fails
+     */
+    public synchronized void setSelector(TransportSelector selector) {
+        mSelector = selector;
+    }
+
+    /**
+     * Returns the connection currently used for commands.
+     *
+     * @return The active connection
+     */
+    public synchronized RemoteControl getActive() {
+        return mActive;
+    }
+
+    /**
+     * Returns the standby connection.
+     *
+     * @return The standby connection, might be null
+     */
+    public synchronized RemoteControl getStandby() {
+        return mStandby;
+    }
+
+    /**
+     * Returns if the standby connection is alive and could take over.
+     *
+     * @return If the standby is available
+     */
+    public synchronized boolean isStandbyAvailable() {
+        return mStandby != null && isAlive(mStandby);
+    }
+
+    /**
+     * Starts sending heartbeats and monitoring the connections.
+     */
+    public synchronized void start() {
+        if (mExecutor != null) {
+            return;
+        }
+        mExecutor = Executors.newSingleThreadScheduledExecutor();
+        mExecutor.scheduleAtFixedRate(this::checkConnections,
+                0, mHeartbeatInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops monitoring the connections. The connections themselves are not stopped.
+     */
+    public synchronized void stop() {
+        if (mExecutor != null) {
+            mExecutor.shutdownNow();
+            mExecutor = null;
+        }
+    }
+
+    /**
+     * Sends the given command using the active connection. If the active connection is dead,
+     * the session fails over to the standby connection first.
+     *
+     * @param command The command to send
+     */
+    public void sendCommand(Command command) {
+        RemoteControl active;
+        synchronized (this) {
+            if (mActive.getState() != RemoteControl.ServiceState.CONNECTED) {
+                updateActive();
+            }
+            active = mActive;
+        }
+        active.sendCommand(command);
+    }
+
+    /**
+     * Switches to the standby connection, if it is alive.
+     *
+     * @return If the session switched to the standby connection
+     */
+    public boolean failover() {
+        RemoteControl failed;
+        RemoteControl active;
+        long failoverTime;
+        synchronized (this) {
+            long now = System.nanoTime();
+            if (mStandby == null || !isAlive(mStandby)) {
+                return false;
+            }
+
+            failed = mActive;
+            active = mStandby;
+            mActive = active;
+            mStandby = failed;
+
+            failoverTime = TimeUnit.NANOSECONDS.toMillis(now - failed.getLastHeartbeatResponse());
+            mFailoverCount++;
+            mLastFailoverTime = failoverTime;
+        }
+
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "Failover took " + failoverTime + "ms");
+        }
+
+        if (mListener != null) {
+            mListener.onFailover(failed, active, failoverTime);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of failovers done by this session.
+     *
+     * @return The number of failovers
+     */
+    public synchronized int getFailoverCount() {
+        return mFailoverCount;
+    }
+
+    /**
+     * Returns the duration of the last failover.
+     *
+     * @return The failover time in ms or -1, if no failover happened yet
+     */
+    public synchronized long getLastFailoverTime() {
+        return mLastFailoverTime;
+    }
+
+    /**
+     * Checks if the given connection is alive. A connection is alive if it is connected and,
+     * if it supports heartbeats, answered a heartbeat within the heartbeat timeout.
+     *
+     * @param control The connection to check
+     * @return If the connection is alive
+     */
+    public boolean isAlive(RemoteControl control) {
+        if (control.getState() != RemoteControl.ServiceState.CONNECTED) {
+            return false;
+        }
+        long sinceResponse = System.nanoTime() - control.getLastHeartbeatResponse();
+        return !control.supportsHeartbeat()
+                || sinceResponse <= TimeUnit.MILLISECONDS.toNanos(mHeartbeatTimeout);
+    }
+
+    /**
+     * Sends heartbeats on all connections and updates the active connection.
+     * Executed regularly on the executor thread.
+     */
+    private void checkConnections() {
+        RemoteControl active;
+        RemoteControl standby;
+        synchronized (this) {
+            active = mActive;
+            standby = mStandby;
+        }
+
+        active.sendHeartbeat();
+        if (standby != null) {
+            standby.sendHeartbeat();
+        }
+
+        updateActive();
+    }
+
+    /**
+     * Fails over if the active connection is dead. If a selector is set, it decides which
+     * connection is used instead.
+     */
+    private void updateActive() {
+        TransportSelector selector;
+        synchronized (this) {
+            selector = mSelector;
+        }
+        if (selector == null) {
+            if (!isAlive(getActive())) {
+                failover();
+            }
+            return;
+        }
+
+        RemoteControl selected = selector.evaluate();
+        synchronized (this) {
+            if (selected == null || selected != mStandby) {
+                return;
+            }
+            if (isAlive(mActive)) {
+                // Just a faster connection, the current one is kept as standby
+                mStandby = mActive;
+                mActive = selected;
+                return;
+            }
+        }
+        failover();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "{ " +
+                "\"failovers\": \"" + mFailoverCount + "\"," +
+                "\"lastFailoverTime\": \"" + mLastFailoverTime + "\"" +
+                "}";
+    }
+}
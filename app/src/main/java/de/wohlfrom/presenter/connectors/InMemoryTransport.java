@@ -0,0 +1,180 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Presenter. Android Client to remote control a presentation.          *
+ *  Copyright (C) 2019 Felix Wohlfrom                                    *
+ *                                                                       *
+ *  This program is free software: you can redistribute it and/or modify *
+ *  it under the terms of the GNU General Public License as published by *
+ *  the Free Software Foundation, either version 3 of the License, or    *
+ *  (at your option) any later version.                                  *
+ *                                                                       *
+ *  This program is distributed in the hope that it will be useful,      *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of       *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the        *
+ *  GNU General Public License for more details.                         *
+ *                                                                       *
+ *  You should have received a copy of the GNU General Public License    *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.*
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+
+package de.wohlfrom.presenter.connectors;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * A transport that passes frames through memory to a peer transport instead of using a socket.
+ * Both ends of the pipe are created together using {@link #createPipe(String, String)}.
+ * This allows running and benchmarking the protocol stack deterministically, without any
+ * network involved. The server side of the pipe can be driven directly using the
+ * {@link Transport} methods of the peer.
+ */
+public class InMemoryTransport implements Transport {
+    /**
+     * Marker that is queued to signal that the peer closed the pipe.
+     */
+    private static final Object END_OF_STREAM = new Object();
+
+    // Member fields
+    private final String mName;
+    private final LinkedBlockingQueue<Object> mInbox = new LinkedBlockingQueue<>();
+    private InMemoryTransport mPeer;
+    private boolean mOpen = false;
+    private boolean mClosed = false;
+
+    /**
+     * Creates one end of the pipe.
+     *
+     * @param name The name of the device at the other end of the pipe
+     */
+    private InMemoryTransport(String name) {
+        mName = name;
+    }
+
+    /**
+     * Creates a new pipe and returns the client end of it. The server end can be retrieved
+     * using {@link #getPeer()}.
+     *
+     * @param serverName The name of the server, returned by the client end
+     * @param clientName The name of the client, returned by the server end
+     * @return The client end of the pipe
+     */
+    public static InMemoryTransport createPipe(String serverName, String clientName) {
+        InMemoryTransport client = new InMemoryTransport(serverName);
+        InMemoryTransport server = new InMemoryTransport(clientName);
+        client.mPeer = server;
+        server.mPeer = client;
+        return client;
+    }
+
+    /**
+     * Returns the other end of the pipe.
+     *
+     * @return The peer transport
+     */
+    public InMemoryTransport getPeer() {
+        return mPeer;
+    }
+
+    /**
+     * Returns the number of frames that were sent to this end of the pipe but not received yet.
+     *
+     * @return The number of pending frames
+     */
+    public int getPendingFrames() {
+        return mInbox.size();
+    }
+
+    @Override
+    public String getName() {
+        return mName;
+    }
+
+    @Override
+    public synchronized void open() throws IOException {
+        if (mClosed) {
+            throw new IOException("Transport closed");
+        }
+        mOpen = true;
+    }
+
+    @Override
+    public String receive() throws IOException {
+        if (isClosed()) {
+            throw new IOException("Transport closed");
+        }
+
+        Object frame;
+        try {
+            frame = mInbox.take();
+        } catch (InterruptedException e) {
+            throw new IOException("Receiving interrupted", e);
+        }
+
+        // The marker is either queued by our peer or by ourselves on close
+        if (frame == END_OF_STREAM) {
+            if (isClosed()) {
+                throw new IOException("Transport closed");
+            }
+            throw new EOFException("Peer closed the pipe");
+        }
+        return (String) frame;
+    }
+
+    @Override
+    public boolean send(String frame) {
+        return send(frame, Priority.CONTROL, null);
+    }
+
+    /**
+     * Sends the given frame to the peer. Since the pipe has no limited bandwidth, the frames
+     * are passed in order, independent of their priority.
+     *
+     * @param frame The frame to send
+     * @param priority The priority of the frame, ignored
+     * @param input The input event that caused the frame, ignored since no socket is written
+     * @return If the frame was queued, false if the transport is not open
+     */
+    @Override
+    public synchronized boolean send(String frame, Priority priority,
+                                     LatencyTracker.InputTrace input) {
+        if (!mOpen || mClosed) {
+            return false;
+        }
+        return mPeer.mInbox.offer(frame);
+    }
+
+    /**
+     * Returns the number of frames sent by this end of the pipe that were not received by the
+     * peer yet.
+     *
+     * @return The number of queued frames
+     */
+    @Override
+    public int getQueuedFrames() {
+        return mPeer.getPendingFrames();
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+        }
+
+        // Wake up our own reader and signal the end of the stream to our peer
+        mInbox.offer(END_OF_STREAM);
+        mPeer.mInbox.offer(END_OF_STREAM);
+    }
+
+    /**
+     * Returns if this end of the pipe was closed.
+     *
+     * @return If the transport was closed
+     */
+    private synchronized boolean isClosed() {
+        return mClosed;
+    }
+}
@@ -0,0 +1,550 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Presenter. Android Client to remote control a presentation.          *
+ *  Copyright (C) 2019 Felix Wohlfrom                                    *
+ *                                                                       *
+ *  This program is free software: you can redistribute it and/or modify *
+ *  it under the terms of the GNU General Public License as published by *
+ *  the Free Software Foundation, either version 3 of the License, or    *
+ *  (at your option) any later version.                                  *
+ *                                                                       *
+ *  This program is distributed in the hope that it will be useful,      *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of       *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the        *
+ *  GNU General Public License for more details.                         *
+ *                                                                       *
+ *  You should have received a copy of the GNU General Public License    *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.*
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+
+package de.wohlfrom.presenter.connectors;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+/**
+ * Streams ink strokes drawn on the slide to the server.
+ *
+ * The touch positions collected during a frame are batched and simplified with the
+ * Ramer-Douglas-Peucker algorithm before they are sent. The tolerance is given in pixels of the
+ * remote screen, so a stroke is never sent with more detail than the projector can show. Since
+ * later positions may change the simplification, the newest position of a stroke is only sent
+ * once the stroke ends or more than {@link #MAX_PENDING_POINTS} positions wait for it.
+ *
+ * Positions are quantized like the positions of the {@link PointerStreamer}. A frame starts
+ * with a header of the stroke id, the index of its first point within the stroke and 1 if the
+ * stroke ends with this frame. The first point follows as absolute position, every further
+ * point as difference to its predecessor, e.g. <code>7,0,0:5000,2500;12,-3;9,0</code>.
+ * The frame <code>clear</code> removes all ink.
+ *
+ * The server confirms every completely received stroke. Until then, the ink is only predicted
+ * locally, see {@link InkListener}.
+ *
+ * All methods except of {@link #postConfirmation(int)} and {@link #postRemoteSize(int, int)}
+ * need to be called on the thread of the looper the streamer is bound to. Positions are
+ * collected in preallocated buffers, so streaming creates no garbage besides the frames.
+ */
+public class InkStreamer {
+    /**
+     * The minimum time in ms between two frames, i.e. about one display frame.
+     */
+    static final long MIN_FRAME_INTERVAL = 16;
+
+    /**
+     * The maximum deviation in pixels of the remote screen between a drawn and a sent stroke.
+     */
+    static final float TOLERANCE = 1f;
+
+    /**
+     * The remote screen size assumed until the server reports its size.
+     */
+    static final int DEFAULT_REMOTE_WIDTH = 1920;
+    static final int DEFAULT_REMOTE_HEIGHT = 1080;
+
+    /**
+     * The maximum number of positions that may wait for being simplified. If more positions
+     * are collected, the newest one is sent, so the remote ink does not lag behind.
+     */
+    static final int MAX_PENDING_POINTS = 24;
+
+    /**
+     * The maximum number of frames that may wait for being written before new positions are
+     * held back. Held back positions are simplified together with the next positions.
+     */
+    static final int MAX_QUEUED_FRAMES = 1;
+
+    /**
+     * The link the frames are sent over.
+     */
+    public interface InkSink {
+        /**
+         * Sends the given ink frame.
+         *
+         * @param frame The encoded frame
+         */
+        void sendInk(String frame);
+
+        /**
+         * Returns the number of frames that are queued but not written yet.
+         *
+         * @return The number of queued frames
+         */
+        int getQueuedFrames();
+    }
+
+    /**
+     * Listener interface that is informed about confirmed strokes.
+     */
+    public interface InkListener {
+        /**
+         * Called if the server confirmed strokes.
+         *
+         * @param confirmedStrokes The number of strokes confirmed so far, all strokes with
+         *                         lower ids are drawn on the remote screen
+         */
+        void onInkConfirmed(int confirmedStrokes);
+    }
+
+    private final InkSink mSink;
+    private final Handler mHandler;
+    private final Runnable mFlush = this::flush;
+    private InkListener mListener = null;
+
+    /**
+     * The quantized positions not sent yet. If the stroke was already started, the first
+     * position is the last sent one.
+     */
+    private final int[] mPendingX = new int[MAX_PENDING_POINTS + 1];
+    private final int[] mPendingY = new int[MAX_PENDING_POINTS + 1];
+    private int mPendingCount = 0;
+    private boolean mAnchorSent = false;
+
+    /**
+     * Reused by the simplification.
+     */
+    private final boolean[] mKeep = new boolean[MAX_PENDING_POINTS + 1];
+    private final int[] mStack = new int[2 * (MAX_PENDING_POINTS + 1)];
+    private final StringBuilder mFrame = new StringBuilder();
+
+    /**
+     * The current stroke, -1 if no stroke is drawn, and the number of its sent points.
+     */
+    private int mStroke = -1;
+    private int mStrokePoints = 0;
+    private boolean mEndPending = false;
+    private int mNextStroke = 0;
+    private int mConfirmedStrokes = 0;
+
+    /**
+     * The size of the remote screen in px, used to scale the tolerance.
+     */
+    private int mRemoteWidth = DEFAULT_REMOTE_WIDTH;
+    private int mRemoteHeight = DEFAULT_REMOTE_HEIGHT;
+
+    /**
+     * The time the last frame was sent, in the {@link SystemClock#uptimeMillis()} time base.
+     */
+    private long mLastFrameTime = 0;
+    private boolean mFlushScheduled = false;
+
+    /**
+     * Statistics.
+     */
+    private int mCollectedPoints = 0;
+    private int mSentPoints = 0;
+    private int mSentFrames = 0;
+    private long mSentCharacters = 0;
+
+    /**
+     * Creates a new streamer bound to the looper of the calling thread.
+     *
+     * @param sink The link to send the frames over
+     */
+    public InkStreamer(InkSink sink) {
+        this(sink, Looper.myLooper());
+    }
+
+    /**
+     * Creates a new streamer bound to the given looper.
+     *
+     * @param sink The link to send the frames over
+     * @param looper The looper of the thread the streamer is used on
+     */
+    public InkStreamer(InkSink sink, Looper looper) {
+        mSink = sink;
+        mHandler = new Handler(looper);
+    }
+
+    /**
+     * Sets the listener that is informed about confirmed strokes.
+     *
+     * @param listener The listener, might be null
+     */
+    public void setListener(InkListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Adds the given positions to the current stroke and sends them as soon as the rate
+     * allows it. Starts a new stroke if no stroke is drawn.
+     *
+     * @param samples The normalized positions, x and y alternating, in the order they were
+     *                measured
+     * @param count The number of positions in the array
+     */
+    public void addSamples(float[] samples, int count) {
+        if (mStroke < 0) {
+            startStroke();
+        }
+        for (int i = 0; i < count; i++) {
+            addSample(PointerStreamer.quantize(samples[2 * i]),
+                    PointerStreamer.quantize(samples[2 * i + 1]));
+        }
+        flush();
+    }
+
+    /**
+     * Ends the current stroke. Its remaining positions are sent as soon as the rate allows it.
+     */
+    public void endStroke() {
+        if (mStroke < 0 || mEndPending) {
+            return;
+        }
+        mEndPending = true;
+        flush();
+    }
+
+    /**
+     * Removes all ink from the remote screen. Positions of the current stroke not sent yet are
+     * dropped.
+     */
+    public void clear() {
+        cancel();
+        mSink.sendInk("clear");
+        mConfirmedStrokes = mNextStroke;
+        mLastFrameTime = SystemClock.uptimeMillis();
+    }
+
+    /**
+     * Drops the current stroke, e.g. because the connection was closed.
+     */
+    public void cancel() {
+        mHandler.removeCallbacks(mFlush);
+        mFlushScheduled = false;
+        mPendingCount = 0;
+        mAnchorSent = false;
+        mEndPending = false;
+        mStroke = -1;
+    }
+
+    /**
+     * Returns the number of strokes started so far, which is also the id of the next stroke.
+     *
+     * @return The number of strokes
+     */
+    public int getStrokeCount() {
+        return mNextStroke;
+    }
+
+    /**
+     * Returns the number of strokes confirmed by the server. Cleared strokes count as
+     * confirmed.
+     *
+     * @return The number of confirmed strokes
+     */
+    public int getConfirmedStrokes() {
+        return mConfirmedStrokes;
+    }
+
+    /**
+     * Passes the confirmation of a stroke received from the server. May be called on any
+     * thread.
+     *
+     * @param stroke The id of the completely received stroke
+     */
+    public void postConfirmation(int stroke) {
+        mHandler.post(() -> {
+            if (stroke < mConfirmedStrokes || stroke >= mNextStroke) {
+                return;
+            }
+            mConfirmedStrokes = stroke + 1;
+            if (mListener != null) {
+                mListener.onInkConfirmed(mConfirmedStrokes);
+            }
+        });
+    }
+
+    /**
+     * Passes the screen size reported by the server. May be called on any thread.
+     *
+     * @param width The width of the remote screen in px
+     * @param height The height of the remote screen in px
+     */
+    public void postRemoteSize(int width, int height) {
+        if (width <= 0 || height <= 0) {
+            return;
+        }
+        mHandler.post(() -> {
+            mRemoteWidth = width;
+            mRemoteHeight = height;
+        });
+    }
+
+    /**
+     * Starts a new stroke. A previous stroke waiting for its end frame is finished first.
+     */
+    private void startStroke() {
+        if (mEndPending) {
+            sendFrame();
+        }
+        mStroke = mNextStroke++;
+        mStrokePoints = 0;
+        mPendingCount = 0;
+        mAnchorSent = false;
+    }
+
+    /**
+     * Adds a single quantized position to the current stroke. If too many positions wait,
+     * the newest one is sent.
+     *
+     * @param x The quantized x position
+     * @param y The quantized y position
+     */
+    private void addSample(int x, int y) {
+        if (mPendingCount > 0
+                && mPendingX[mPendingCount - 1] == x && mPendingY[mPendingCount - 1] == y) {
+            return;
+        }
+        mPendingX[mPendingCount] = x;
+        mPendingY[mPendingCount] = y;
+        mPendingCount++;
+        mCollectedPoints++;
+
+        if (mPendingCount > MAX_PENDING_POINTS) {
+            sendFrame();
+        }
+    }
+
+    /**
+     * Sends the collected positions, if the rate and the link allow it. Otherwise a new
+     * attempt is scheduled.
+     */
+    private void flush() {
+        mHandler.removeCallbacks(mFlush);
+        mFlushScheduled = false;
+        if (mStroke < 0 || (!mEndPending && mPendingCount <= (mAnchorSent ? 2 : 0))) {
+            // The newest position is held back anyway, so there is nothing to send
+            return;
+        }
+
+        long wait = mLastFrameTime + MIN_FRAME_INTERVAL - SystemClock.uptimeMillis();
+        if (wait > 0) {
+            scheduleFlush(wait);
+            return;
+        }
+
+        if (mSink.getQueuedFrames() > MAX_QUEUED_FRAMES) {
+            scheduleFlush(MIN_FRAME_INTERVAL);
+            return;
+        }
+
+        sendFrame();
+    }
+
+    /**
+     * Schedules sending the collected positions, if not scheduled yet.
+     *
+     * @param delay The time in ms to wait
+     */
+    private void scheduleFlush(long delay) {
+        if (!mFlushScheduled) {
+            mFlushScheduled = true;
+            mHandler.postDelayed(mFlush, delay);
+        }
+    }
+
+    /**
+     * Simplifies the collected positions and sends the kept ones. The newest position is
+     * only sent if the stroke ends or the buffer is full, all others are final.
+     */
+    private void sendFrame() {
+        int count = mPendingCount;
+        boolean end = mEndPending;
+        if (count > 0) {
+            simplify(mPendingX, mPendingY, count,
+                    (float) mRemoteWidth / PointerStreamer.RESOLUTION,
+                    (float) mRemoteHeight / PointerStreamer.RESOLUTION,
+                    TOLERANCE, mKeep, mStack);
+        }
+
+        // The newest point is held back, except of the first point of a stroke
+        int first = mAnchorSent ? 1 : 0;
+        int last = count - 1;
+        if (!end && count <= MAX_PENDING_POINTS) {
+            while (last > 0 && !mKeep[last - 1]) {
+                last--;
+            }
+            last = Math.max(last - 1, first == 0 ? 0 : -1);
+        }
+
+        mFrame.setLength(0);
+        mFrame.append(mStroke).append(',').append(mStrokePoints).append(',')
+                .append(end ? 1 : 0).append(':');
+        int points = 0;
+        int previous = -1;
+        for (int i = first; i <= last; i++) {
+            if (!mKeep[i]) {
+                continue;
+            }
+            if (previous < 0) {
+                mFrame.append(mPendingX[i]).append(',').append(mPendingY[i]);
+            } else {
+                mFrame.append(';')
+                        .append(mPendingX[i] - mPendingX[previous]).append(',')
+                        .append(mPendingY[i] - mPendingY[previous]);
+            }
+            previous = i;
+            points++;
+        }
+        if (points == 0 && !end) {
+            return;
+        }
+
+        String frame = mFrame.toString();
+        mSink.sendInk(frame);
+        mLastFrameTime = SystemClock.uptimeMillis();
+        mSentFrames++;
+        mSentPoints += points;
+        mSentCharacters += frame.length();
+        mStrokePoints += points;
+
+        if (end) {
+            mStroke = -1;
+            mEndPending = false;
+            mPendingCount = 0;
+            mAnchorSent = false;
+        } else if (last >= 0) {
+            // The last sent point is the anchor of the remaining positions
+            int remaining = count - last;
+            System.arraycopy(mPendingX, last, mPendingX, 0, remaining);
+            System.arraycopy(mPendingY, last, mPendingY, 0, remaining);
+            mPendingCount = remaining;
+            mAnchorSent = true;
+        }
+    }
+
+    /**
+     * Simplifies the given polyline using the Ramer-Douglas-Peucker algorithm. The first and
+     * the last point are always kept. Points are removed as long as the simplified line stays
+     * within the tolerance.
+     *
+     * @param x The x positions
+     * @param y The y positions
+     * @param count The number of points
+     * @param scaleX The factor to scale the x positions to the unit of the tolerance
+     * @param scaleY The factor to scale the y positions to the unit of the tolerance
+     * @param tolerance The maximum distance of a removed point from the simplified line
+     * @param keep Set to true for each kept point, needs to hold count entries
+     * @param stack Used to store the segments to process, needs to hold 2 * count entries
+     * @return The number of kept points
+     */
+    static int simplify(int[] x, int[] y, int count, float scaleX, float scaleY,
+                        float tolerance, boolean[] keep, int[] stack) {
+        for (int i = 0; i < count; i++) {
+            keep[i] = false;
+        }
+        keep[0] = true;
+        keep[count - 1] = true;
+        int kept = count > 1 ? 2 : 1;
+
+        int size = 0;
+        stack[size++] = 0;
+        stack[size++] = count - 1;
+        while (size > 0) {
+            int end = stack[--size];
+            int start = stack[--size];
+
+            float maxDistance = 0;
+            int farthest = -1;
+            for (int i = start + 1; i < end; i++) {
+                float distance = distance(x[i] * scaleX, y[i] * scaleY,
+                        x[start] * scaleX, y[start] * scaleY,
+                        x[end] * scaleX, y[end] * scaleY);
+                if (distance > maxDistance) {
+                    maxDistance = distance;
+                    farthest = i;
+                }
+            }
+
+            if (farthest >= 0 && maxDistance > tolerance) {
+                keep[farthest] = true;
+                kept++;
+                stack[size++] = start;
+                stack[size++] = farthest;
+                stack[size++] = farthest;
+                stack[size++] = end;
+            }
+        }
+        return kept;
+    }
+
+    /**
+     * Returns the distance of a point from a line segment.
+     *
+     * @param x The x position of the point
+     * @param y The y position of the point
+     * @param startX The x position of the start of the segment
+     * @param startY The y position of the start of the segment
+     * @param endX The x position of the end of the segment
+     * @param endY The y position of the end of the segment
+     * @return The distance
+     */
+    static float distance(float x, float y, float startX, float startY, float endX, float endY) {
+        float dx = endX - startX;
+        float dy = endY - startY;
+        float length = dx * dx + dy * dy;
+        float t = 0;
+        if (length > 0) {
+            t = Math.max(0, Math.min(1, ((x - startX) * dx + (y - startY) * dy) / length));
+        }
+        return (float) Math.hypot(x - (startX + t * dx), y - (startY + t * dy));
+    }
+
+    /**
+     * Returns the number of positions collected from the touch screen.
+     *
+     * @return The number of collected positions
+     */
+    public int getCollectedPoints() {
+        return mCollectedPoints;
+    }
+
+    /**
+     * Returns the number of points sent to the server after the simplification.
+     *
+     * @return The number of sent points
+     */
+    public int getSentPoints() {
+        return mSentPoints;
+    }
+
+    /**
+     * Returns the number of sent frames, excluding the frames clearing the ink.
+     *
+     * @return The number of sent frames
+     */
+    public int getSentFrames() {
+        return mSentFrames;
+    }
+
+    @Override
+    public String toString() {
+        return "{ " +
+                "\"collectedPoints\": \"" + mCollectedPoints + "\"," +
+                "\"sentPoints\": \"" + mSentPoints + "\"," +
+                "\"sentFrames\": \"" + mSentFrames + "\"," +
+                "\"sentCharacters\": \"" + mSentCharacters + "\"," +
+                "\"confirmedStrokes\": \"" + mConfirmedStrokes + "\"" +
+                "}";
+    }
+}
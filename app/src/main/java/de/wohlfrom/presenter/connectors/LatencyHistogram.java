@@ -0,0 +1,184 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Presenter. Android Client to remote control a presentation.          *
+ *  Copyright (C) 2019 Felix Wohlfrom                                    *
+ *                                                                       *
+ *  This program is free software: you can redistribute it and/or modify *
+ *  it under the terms of the GNU General Public License as published by *
+ *  the Free Software Foundation, either version 3 of the License, or    *
+ *  (at your option) any later version.                                  *
+ *                                                                       *
+ *  This program is distributed in the hope that it will be useful,      *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of       *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the        *
+ *  GNU General Public License for more details.                         *
+ *                                                                       *
+ *  You should have received a copy of the GNU General Public License    *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.*
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+
+package de.wohlfrom.presenter.connectors;
+
+/**
+ * A histogram of latencies in µs using buckets of exponentially growing size. Bucket i counts
+ * the latencies in [2^i, 2^(i+1)) µs, the first bucket also counts everything below 1 µs and
+ * the last one everything above. This keeps the memory fixed and recording cheap, while the
+ * percentiles are still exact enough to compare the stages of the send pipeline.
+ *
+ * This class is not thread safe, the {@link LatencyTracker} synchronizes all access.
+ */
+public final class LatencyHistogram {
+    /**
+     * The number of buckets. The last bucket starts at about 8.4 s.
+     */
+    static final int BUCKETS = 24;
+
+    private final long[] mBuckets = new long[BUCKETS];
+    private long mCount = 0;
+    private long mTotal = 0;
+    private long mMin = -1;
+    private long mMax = -1;
+
+    /**
+     * Creates an empty histogram.
+     */
+    public LatencyHistogram() {
+    }
+
+    /**
+     * Creates a copy of the given histogram.
+     *
+     * @param other The histogram to copy
+     */
+    public LatencyHistogram(LatencyHistogram other) {
+        System.arraycopy(other.mBuckets, 0, mBuckets, 0, BUCKETS);
+        mCount = other.mCount;
+        mTotal = other.mTotal;
+        mMin = other.mMin;
+        mMax = other.mMax;
+    }
+
+    /**
+     * Records a single latency.
+     *
+     * @param latency The latency in µs, negative values are counted as 0
+     */
+    public void record(long latency) {
+        latency = Math.max(latency, 0);
+
+        mBuckets[bucketOf(latency)]++;
+        mCount++;
+        mTotal += latency;
+        if (mMin < 0 || latency < mMin) {
+            mMin = latency;
+        }
+        mMax = Math.max(mMax, latency);
+    }
+
+    /**
+     * Returns the number of recorded latencies.
+     *
+     * @return The number of samples
+     */
+    public long getCount() {
+        return mCount;
+    }
+
+    /**
+     * Returns the smallest recorded latency.
+     *
+     * @return The latency in µs or -1, if nothing was recorded yet
+     */
+    public long getMin() {
+        return mMin;
+    }
+
+    /**
+     * Returns the largest recorded latency.
+     *
+     * @return The latency in µs or -1, if nothing was recorded yet
+     */
+    public long getMax() {
+        return mMax;
+    }
+
+    /**
+     * Returns the average of the recorded latencies.
+     *
+     * @return The latency in µs or -1, if nothing was recorded yet
+     */
+    public long getAverage() {
+        return mCount == 0 ? -1 : mTotal / mCount;
+    }
+
+    /**
+     * Returns an upper bound of the given percentile, i.e. the upper limit of the bucket
+     * containing the percentile, capped by the largest recorded latency.
+     *
+     * @param percentile The percentile, between 0 and 100
+     * @return The latency in µs or -1, if nothing was recorded yet
+     */
+    public long getPercentile(double percentile) {
+        if (mCount == 0) {
+            return -1;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(mCount * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += mBuckets[i];
+            if (seen >= rank) {
+                return Math.min((1L << (i + 1)) - 1, mMax);
+            }
+        }
+        return mMax;
+    }
+
+    /**
+     * Returns the number of latencies recorded in the given bucket.
+     *
+     * @param bucket The index of the bucket
+     * @return The number of samples in the bucket
+     */
+    public long getBucketCount(int bucket) {
+        return mBuckets[bucket];
+    }
+
+    /**
+     * Removes all recorded latencies.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            mBuckets[i] = 0;
+        }
+        mCount = 0;
+        mTotal = 0;
+        mMin = -1;
+        mMax = -1;
+    }
+
+    /**
+     * Returns the bucket for the given latency.
+     *
+     * @param latency The latency in µs, not negative
+     * @return The index of the bucket
+     */
+    static int bucketOf(long latency) {
+        if (latency <= 1) {
+            return 0;
+        }
+        return Math.min(63 - Long.numberOfLeadingZeros(latency), BUCKETS - 1);
+    }
+
+    @Override
+    public String toString() {
+        return "{ " +
+                "\"count\": \"" + mCount + "\"," +
+                "\"min\": \"" + mMin + "\"," +
+                "\"average\": \"" + getAverage() + "\"," +
+                "\"p50\": \"" + getPercentile(50) + "\"," +
+                "\"p90\": \"" + getPercentile(90) + "\"," +
+                "\"p99\": \"" + getPercentile(99) + "\"," +
+                "\"max\": \"" + mMax + "\"" +
+                "}";
+    }
+}
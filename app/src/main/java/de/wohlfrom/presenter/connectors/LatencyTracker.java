@@ -0,0 +1,351 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Presenter. Android Client to remote control a presentation.          *
+ *  Copyright (C) 2019 Felix Wohlfrom                                    *
+ *                                                                       *
+ *  This program is free software: you can redistribute it and/or modify *
+ *  it under the terms of the GNU General Public License as published by *
+ *  the Free Software Foundation, either version 3 of the License, or    *
+ *  (at your option) any later version.                                  *
+ *                                                                       *
+ *  This program is distributed in the hope that it will be useful,      *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of       *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the        *
+ *  GNU General Public License for more details.                         *
+ *                                                                       *
+ *  You should have received a copy of the GNU General Public License    *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.*
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+
+package de.wohlfrom.presenter.connectors;
+
+import android.os.SystemClock;
+import android.os.Trace;
+import android.view.InputEvent;
+
+/**
+ * Measures the time between an input event, e.g. touching a presenter button, and the
+ * resulting command being written to the socket and acknowledged by the server.
+ *
+ * The way of a command is split into {@link Stage}s. The input is marked on the ui thread and
+ * the following stages are marked as the command passes them, each stage recording the time
+ * since the previous stage into its own {@link LatencyHistogram}. The remote control takes the
+ * pending {@link InputTrace} of the calling thread once a command is sent and passes it along
+ * with the command, down to the transport that reports once the frame was written. Other
+ * frames, like heartbeats, never carry a trace. Marks that are not taken within
+ * {@link #MAX_INPUT_AGE} are dropped.
+ *
+ * The stages can additionally be inspected using systrace, see {@link #beginSection(Stage)}.
+ */
+public final class LatencyTracker {
+    /**
+     * The maximum time in ms between the input event and queueing its frame, or between writing
+     * the frame and its acknowledgement.
+     */
+    static final long MAX_INPUT_AGE = 1000;
+
+    /**
+     * The stages a command passes on its way from input to server, in their order.
+     */
+    public enum Stage {
+        /** The input event was created by the system. */
+        INPUT("input"),
+        /** The input reached our listener. */
+        LISTENER("listener"),
+        /** The command was passed to the remote control. */
+        SEND_COMMAND("sendCommand"),
+        /** The command was encoded as frame. */
+        ENCODE("encode"),
+        /** The frame was queued by the transport. */
+        QUEUE("queue"),
+        /** The frame was written to the socket. */
+        WRITE("write"),
+        /** The server acknowledged the command. */
+        ACK("ack");
+
+        private final String mName;
+        private final String mSectionName;
+
+        Stage(String name) {
+            mName = name;
+            mSectionName = "Presenter:" + name;
+        }
+
+        /**
+         * Returns the name of the stage as used in the statistics.
+         *
+         * @return The name of the stage
+         */
+        public String getName() {
+            return mName;
+        }
+    }
+
+    /**
+     * The timestamps of a single input on its way through the stages.
+     */
+    public static final class InputTrace {
+        /**
+         * The time of the input event in the {@link SystemClock#uptimeMillis()} time base.
+         */
+        private final long mmInputTime;
+
+        /**
+         * The time in ns each stage was reached, 0 if not reached yet.
+         */
+        private final long[] mmStageTimes = new long[Stage.values().length];
+
+        /**
+         * The last stage reached by this input.
+         */
+        private Stage mmLastStage = Stage.LISTENER;
+
+        private InputTrace(long inputTime, long listenerTime) {
+            mmInputTime = inputTime;
+            mmStageTimes[Stage.LISTENER.ordinal()] = listenerTime;
+        }
+    }
+
+    /**
+     * The last input of each thread not yet taken by a command.
+     */
+    private static final ThreadLocal<InputTrace> sPending = new ThreadLocal<>();
+
+    /**
+     * The last written input waiting for its acknowledgement, null if there is none.
+     */
+    private static InputTrace sAwaitingAck = null;
+
+    /**
+     * The time in µs spent in each stage, i.e. the time between reaching the previous stage
+     * and this one. Nothing is stored for {@link Stage#INPUT}.
+     */
+    private static final LatencyHistogram[] sStageLatencies =
+            new LatencyHistogram[Stage.values().length];
+
+    static {
+        for (int i = 0; i < sStageLatencies.length; i++) {
+            sStageLatencies[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Input to socket write statistics, in ms.
+     */
+    private static int sSamples = 0;
+    private static long sTotalLatency = 0;
+    private static long sMinLatency = -1;
+    private static long sMaxLatency = -1;
+    private static long sLastLatency = -1;
+
+    private LatencyTracker() {
+    }
+
+    /**
+     * Marks an input event that will lead to a command being sent. Should be called by the
+     * listener receiving the input, since this also marks {@link Stage#LISTENER}.
+     *
+     * @param eventTime The time of the input event in the {@link SystemClock#uptimeMillis()}
+     *                  time base, like reported by input events
+     */
+    public static synchronized void markInput(long eventTime) {
+        sPending.set(new InputTrace(eventTime, System.nanoTime()));
+        sStageLatencies[Stage.LISTENER.ordinal()].record(
+                (SystemClock.uptimeMillis() - eventTime) * 1000);
+    }
+
+    /**
+     * Marks the given input event, see {@link #markInput(long)}.
+     *
+     * @param event The input event, if null the current time is used as event time
+     */
+    public static void markInput(InputEvent event) {
+        markInput(event != null ? event.getEventTime() : SystemClock.uptimeMillis());
+    }
+
+    /**
+     * Marks that the given input reached the given stage. Does nothing if the input already
+     * passed the stage.
+     *
+     * @param input The trace of the input, might be null
+     * @param stage The reached stage, one of {@link Stage#SEND_COMMAND}, {@link Stage#ENCODE}
+     *              or {@link Stage#QUEUE}
+     */
+    public static synchronized void markStage(InputTrace input, Stage stage) {
+        if (input != null) {
+            mark(input, stage);
+        }
+    }
+
+    /**
+     * Takes the pending input of the calling thread. Called once a command is sent, the
+     * command then carries the input.
+     *
+     * @return The trace of the input or null, if there is no input pending
+     */
+    public static synchronized InputTrace takeInput() {
+        InputTrace input = sPending.get();
+        sPending.remove();
+        if (input == null || SystemClock.uptimeMillis() - input.mmInputTime > MAX_INPUT_AGE) {
+            return null;
+        }
+        return input;
+    }
+
+    /**
+     * Records that the frame of an input event was written to the socket.
+     *
+     * @param input The trace of the input taken by {@link #takeInput()}, might be null
+     */
+    public static synchronized void recordWrite(InputTrace input) {
+        if (input == null) {
+            return;
+        }
+
+        mark(input, Stage.WRITE);
+        sAwaitingAck = input;
+
+        long latency = SystemClock.uptimeMillis() - input.mmInputTime;
+        sSamples++;
+        sTotalLatency += latency;
+        sLastLatency = latency;
+        if (sMinLatency < 0 || latency < sMinLatency) {
+            sMinLatency = latency;
+        }
+        sMaxLatency = Math.max(sMaxLatency, latency);
+    }
+
+    /**
+     * Records that the server acknowledged a command. Only the last written input is
+     * considered, so this is exact as long as the inputs are slower than the round trip.
+     */
+    public static synchronized void recordAck() {
+        InputTrace input = sAwaitingAck;
+        sAwaitingAck = null;
+        if (input == null || SystemClock.uptimeMillis() - input.mmInputTime > 2 * MAX_INPUT_AGE) {
+            return;
+        }
+
+        mark(input, Stage.ACK);
+    }
+
+    /**
+     * Marks the given stage of a trace and records the time spent since its last stage.
+     *
+     * @param input The trace to mark
+     * @param stage The reached stage
+     */
+    private static void mark(InputTrace input, Stage stage) {
+        if (stage.ordinal() <= input.mmLastStage.ordinal()) {
+            return;
+        }
+
+        long now = System.nanoTime();
+        input.mmStageTimes[stage.ordinal()] = now;
+        sStageLatencies[stage.ordinal()].record(
+                (now - input.mmStageTimes[input.mmLastStage.ordinal()]) / 1000);
+        input.mmLastStage = stage;
+    }
+
+    /**
+     * Starts a systrace section for the given stage on the calling thread. Needs to be closed
+     * using {@link #endSection()} on the same thread.
+     *
+     * @param stage The stage to trace
+     */
+    public static void beginSection(Stage stage) {
+        Trace.beginSection(stage.mSectionName);
+    }
+
+    /**
+     * Ends the last section started by {@link #beginSection(Stage)} on the calling thread.
+     */
+    public static void endSection() {
+        Trace.endSection();
+    }
+
+    /**
+     * Returns the number of measured inputs.
+     *
+     * @return The number of samples
+     */
+    public static synchronized int getSamples() {
+        return sSamples;
+    }
+
+    /**
+     * Returns the last measured input to socket write latency.
+     *
+     * @return The latency in ms or -1, if nothing was measured yet
+     */
+    public static synchronized long getLastLatency() {
+        return sLastLatency;
+    }
+
+    /**
+     * Returns the average input to socket write latency.
+     *
+     * @return The latency in ms or -1, if nothing was measured yet
+     */
+    public static synchronized long getAverageLatency() {
+        return sSamples == 0 ? -1 : sTotalLatency / sSamples;
+    }
+
+    /**
+     * Returns the time spent in the given stage.
+     *
+     * @param stage The stage
+     * @return A copy of the histogram of the stage latencies in µs
+     */
+    public static synchronized LatencyHistogram getStageLatency(Stage stage) {
+        return new LatencyHistogram(sStageLatencies[stage.ordinal()]);
+    }
+
+    /**
+     * Removes all pending marks and statistics.
+     */
+    public static synchronized void reset() {
+        sPending.remove();
+        sAwaitingAck = null;
+        for (LatencyHistogram histogram : sStageLatencies) {
+            histogram.reset();
+        }
+        sSamples = 0;
+        sTotalLatency = 0;
+        sMinLatency = -1;
+        sMaxLatency = -1;
+        sLastLatency = -1;
+    }
+
+    /**
+     * Returns the statistics as json string.
+     *
+     * @return The statistics
+     */
+    public static synchronized String getStats() {
+        return "{ " +
+                "\"samples\": \"" + sSamples + "\"," +
+                "\"minLatency\": \"" + sMinLatency + "\"," +
+                "\"averageLatency\": \"" + getAverageLatency() + "\"," +
+                "\"maxLatency\": \"" + sMaxLatency + "\"," +
+                "\"lastLatency\": \"" + sLastLatency + "\"" +
+                "}";
+    }
+
+    /**
+     * Returns the latencies of all stages as json string, one stage per line.
+     *
+     * @return The stage statistics
+     */
+    public static synchronized String getStageStats() {
+        StringBuilder stats = new StringBuilder("{\n");
+        for (Stage stage : Stage.values()) {
+            if (stage == Stage.INPUT) {
+                continue;
+            }
+            stats.append("\"").append(stage.getName()).append("\": ")
+                    .append(sStageLatencies[stage.ordinal()]).append(",\n");
+        }
+        stats.append("\"total\": ").append(getStats()).append("\n}");
+        return stats.toString();
+    }
+}
@@ -0,0 +1,165 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Presenter. Android Client to remote control a presentation.          *
+ *  Copyright (C) 2019 Felix Wohlfrom                                    *
+ *                                                                       *
+ *  This program is free software: you can redistribute it and/or modify *
+ *  it under the terms of the GNU General Public License as published by *
+ *  the Free Software Foundation, either version 3 of the License, or    *
+ *  (at your option) any later version.                                  *
+ *                                                                       *
+ *  This program is distributed in the hope that it will be useful,      *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of       *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the        *
+ *  GNU General Public License for more details.                         *
+ *                                                                       *
+ *  You should have received a copy of the GNU General Public License    *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.*
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+
+package de.wohlfrom.presenter.connectors;
+
+/**
+ * Chooses the resolution and frame rate of the screen mirror. The controller starts at a
+ * medium quality and steps down as soon as the link is congested, i.e. if the round trip time
+ * grows or received frames queue up before they are decoded. Only after the link was fine for
+ * a while, the quality is increased again, so it does not oscillate.
+ *
+ * A sample is taken for every received frame. Not thread safe, the samples need to be passed
+ * from the same thread.
+ */
+class MirrorController {
+    /**
+     * The widths in px of the quality levels, from the highest to the lowest quality.
+     */
+    static final int[] WIDTHS = {640, 480, 320, 240, 160};
+
+    /**
+     * The frame rates in frames per second of the quality levels.
+     */
+    static final int[] FRAME_RATES = {10, 8, 5, 3, 2};
+
+    /**
+     * The level used when the mirror is started.
+     */
+    static final int START_LEVEL = 1;
+
+    /**
+     * Round trip time in us above which the link is considered congested.
+     */
+    static final long HIGH_ROUND_TRIP_TIME = 150000;
+
+    /**
+     * Round trip time in us below which the link is considered good.
+     */
+    static final long LOW_ROUND_TRIP_TIME = 60000;
+
+    /**
+     * The number of frames that may wait for decoding before the link is considered congested.
+     */
+    static final int MAX_QUEUED_FRAMES = 2;
+
+    /**
+     * The number of good samples in a row needed to increase the quality.
+     */
+    static final int UPGRADE_SAMPLES = 20;
+
+    /**
+     * The number of samples to wait after decreasing the quality before decreasing it again,
+     * so the frames that were already sent with the old quality can drain.
+     */
+    static final int DOWNGRADE_HOLD_SAMPLES = 3;
+
+    private int mLevel = START_LEVEL;
+    private int mGoodSamples = 0;
+    private int mHoldSamples = 0;
+
+    /**
+     * Statistics.
+     */
+    private int mDowngrades = 0;
+    private int mUpgrades = 0;
+
+    /**
+     * Adds a sample of the link state and adapts the quality.
+     *
+     * @param roundTripTime The round trip time in us, -1 if unknown
+     * @param queuedFrames The number of received frames waiting to be decoded
+     * @return If the quality changed
+     */
+    boolean onSample(long roundTripTime, int queuedFrames) {
+        if (mHoldSamples > 0) {
+            mHoldSamples--;
+        }
+
+        if (roundTripTime > HIGH_ROUND_TRIP_TIME || queuedFrames > MAX_QUEUED_FRAMES) {
+            mGoodSamples = 0;
+            if (mHoldSamples > 0 || mLevel == WIDTHS.length - 1) {
+                return false;
+            }
+            mLevel++;
+            mDowngrades++;
+            mHoldSamples = DOWNGRADE_HOLD_SAMPLES;
+            return true;
+        }
+
+        if (roundTripTime >= LOW_ROUND_TRIP_TIME || queuedFrames > 0) {
+            mGoodSamples = 0;
+            return false;
+        }
+
+        mGoodSamples++;
+        if (mGoodSamples < UPGRADE_SAMPLES || mLevel == 0) {
+            return false;
+        }
+        mLevel--;
+        mUpgrades++;
+        mGoodSamples = 0;
+        return true;
+    }
+
+    /**
+     * Resets the quality to the {@link #START_LEVEL}.
+     */
+    void reset() {
+        mLevel = START_LEVEL;
+        mGoodSamples = 0;
+        mHoldSamples = 0;
+    }
+
+    /**
+     * Returns the current quality level, 0 is the highest quality.
+     *
+     * @return The level
+     */
+    int getLevel() {
+        return mLevel;
+    }
+
+    /**
+     * Returns the width the server should scale the screen to.
+     *
+     * @return The width in px
+     */
+    int getWidth() {
+        return WIDTHS[mLevel];
+    }
+
+    /**
+     * Returns the maximum frame rate the server should send.
+     *
+     * @return The frame rate in frames per second
+     */
+    int getFrameRate() {
+        return FRAME_RATES[mLevel];
+    }
+
+    @Override
+    public String toString() {
+        return "{ " +
+                "\"width\": \"" + getWidth() + "\"," +
+                "\"frameRate\": \"" + getFrameRate() + "\"," +
+                "\"downgrades\": \"" + mDowngrades + "\"," +
+                "\"upgrades\": \"" + mUpgrades + "\"" +
+                "}";
+    }
+}
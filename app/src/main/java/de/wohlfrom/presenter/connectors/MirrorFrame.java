@@ -0,0 +1,211 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Presenter. Android Client to remote control a presentation.          *
+ *  Copyright (C) 2019 Felix Wohlfrom                                    *
+ *                                                                       *
+ *  This program is free software: you can redistribute it and/or modify *
+ *  it under the terms of the GNU General Public License as published by *
+ *  the Free Software Foundation, either version 3 of the License, or    *
+ *  (at your option) any later version.                                  *
+ *                                                                       *
+ *  This program is distributed in the hope that it will be useful,      *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of       *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the        *
+ *  GNU General Public License for more details.                         *
+ *                                                                       *
+ *  You should have received a copy of the GNU General Public License    *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.*
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+
+package de.wohlfrom.presenter.connectors;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * The pixels of the mirrored screen, updated tile by tile. A tile is a rectangle of RGB565
+ * pixels in little endian byte order, compressed with deflate and base64 encoded.
+ *
+ * All buffers are reused, so applying tiles does not allocate memory once the buffers grew to
+ * the size of the largest tile. Not thread safe.
+ */
+class MirrorFrame {
+    /**
+     * Maps the characters of the base64 alphabet to their values, -1 for all others.
+     */
+    private static final int[] BASE64_VALUES = new int[128];
+
+    static {
+        Arrays.fill(BASE64_VALUES, -1);
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < alphabet.length(); i++) {
+            BASE64_VALUES[alphabet.charAt(i)] = i;
+        }
+    }
+
+    private final Inflater mInflater = new Inflater();
+    private byte[] mCompressed = new byte[0];
+    private byte[] mTile = new byte[0];
+    private int[] mPixels = new int[0];
+    private int mWidth = 0;
+    private int mHeight = 0;
+
+    /**
+     * Sets the size of the frame and clears it. The pixel buffer is only reallocated if it
+     * grows.
+     *
+     * @param width The width in px
+     * @param height The height in px
+     */
+    void resize(int width, int height) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Invalid frame size " + width + "x" + height);
+        }
+        if (mPixels.length < width * height) {
+            mPixels = new int[width * height];
+        }
+        mWidth = width;
+        mHeight = height;
+        Arrays.fill(mPixels, 0, width * height, 0xff000000);
+    }
+
+    /**
+     * Returns if the frame has the given size.
+     *
+     * @param width The width in px
+     * @param height The height in px
+     * @return If the size matches
+     */
+    boolean hasSize(int width, int height) {
+        return mWidth == width && mHeight == height;
+    }
+
+    /**
+     * Replaces the pixels of a tile.
+     *
+     * @param x The left edge of the tile in px
+     * @param y The top edge of the tile in px
+     * @param width The width of the tile in px
+     * @param height The height of the tile in px
+     * @param data The compressed and base64 encoded pixels of the tile
+     * @throws DataFormatException If the tile data is invalid
+     */
+    void applyTile(int x, int y, int width, int height, String data)
+            throws DataFormatException {
+        if (x < 0 || y < 0 || width <= 0 || height <= 0
+                || x + width > mWidth || y + height > mHeight) {
+            throw new DataFormatException("Tile outside of frame");
+        }
+
+        int compressedLength = decodeBase64(data);
+        int length = width * height * 2;
+        if (mTile.length < length) {
+            mTile = new byte[length];
+        }
+
+        mInflater.reset();
+        mInflater.setInput(mCompressed, 0, compressedLength);
+        int inflated = 0;
+        while (inflated < length && !mInflater.finished()) {
+            int count = mInflater.inflate(mTile, inflated, length - inflated);
+            if (count == 0 && (mInflater.needsInput() || mInflater.needsDictionary())) {
+                break;
+            }
+            inflated += count;
+        }
+        if (inflated != length) {
+            throw new DataFormatException("Tile has " + inflated + " of " + length + " bytes");
+        }
+
+        for (int row = 0; row < height; row++) {
+            int source = row * width * 2;
+            int target = (y + row) * mWidth + x;
+            for (int column = 0; column < width; column++) {
+                int color = (mTile[source] & 0xff) | (mTile[source + 1] & 0xff) << 8;
+                mPixels[target + column] = rgb565ToArgb(color);
+                source += 2;
+            }
+        }
+    }
+
+    /**
+     * Decodes the given base64 data into the buffer of the compressed tile. Line breaks and
+     * padding are skipped.
+     *
+     * @param data The base64 encoded data
+     * @return The number of decoded bytes
+     * @throws DataFormatException If the data contains invalid characters
+     */
+    private int decodeBase64(String data) throws DataFormatException {
+        int maxLength = data.length() * 3 / 4 + 3;
+        if (mCompressed.length < maxLength) {
+            mCompressed = new byte[maxLength];
+        }
+
+        int length = 0;
+        int bits = 0;
+        int bitCount = 0;
+        for (int i = 0; i < data.length(); i++) {
+            char character = data.charAt(i);
+            if (character == '=' || character == '\n' || character == '\r') {
+                continue;
+            }
+            int value = character < BASE64_VALUES.length ? BASE64_VALUES[character] : -1;
+            if (value < 0) {
+                throw new DataFormatException("Invalid base64 character " + character);
+            }
+
+            bits = bits << 6 | value;
+            bitCount += 6;
+            if (bitCount >= 8) {
+                bitCount -= 8;
+                mCompressed[length++] = (byte) (bits >> bitCount);
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Converts a RGB565 color to ARGB8888.
+     *
+     * @param color The RGB565 color
+     * @return The ARGB8888 color
+     */
+    static int rgb565ToArgb(int color) {
+        int red = color >> 11 & 0x1f;
+        int green = color >> 5 & 0x3f;
+        int blue = color & 0x1f;
+        return 0xff000000
+                | (red << 3 | red >> 2) << 16
+                | (green << 2 | green >> 4) << 8
+                | (blue << 3 | blue >> 2);
+    }
+
+    /**
+     * Returns the pixels of the frame. The buffer might be larger than the frame, the pixels
+     * are stored row by row with a stride of {@link #getWidth()}.
+     *
+     * @return The pixels
+     */
+    int[] getPixels() {
+        return mPixels;
+    }
+
+    /**
+     * Returns the width of the frame.
+     *
+     * @return The width in px, 0 if no size was set yet
+     */
+    int getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * Returns the height of the frame.
+     *
+     * @return The height in px, 0 if no size was set yet
+     */
+    int getHeight() {
+        return mHeight;
+    }
+}
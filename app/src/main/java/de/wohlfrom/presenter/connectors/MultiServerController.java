@@ -0,0 +1,322 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Presenter. Android Client to remote control a presentation.          *
+ *  Copyright (C) 2019 Felix Wohlfrom                                    *
+ *                                                                       *
+ *  This program is free software: you can redistribute it and/or modify *
+ *  it under the terms of the GNU General Public License as published by *
+ *  the Free Software Foundation, either version 3 of the License, or    *
+ *  (at your option) any later version.                                  *
+ *                                                                       *
+ *  This program is distributed in the hope that it will be useful,      *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of       *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the        *
+ *  GNU General Public License for more details.                         *
+ *                                                                       *
+ *  You should have received a copy of the GNU General Public License    *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.*
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+
+package de.wohlfrom.presenter.connectors;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import de.wohlfrom.presenter.BuildConfig;
+
+/**
+ * Controls several presentation servers at once, e.g. the main projector and a streaming pc
+ * showing the same deck. The connections may use different transports.
+ *
+ * A command is only sent if it is supported by the lowest common protocol version of all
+ * connected servers, so all servers stay in sync. Sending never blocks, since every connection
+ * writes using its own writer thread, so a slow server can't delay the others.
+ *
+ * Servers supporting protocol version {@link RemoteControl#MULTIPATH_VERSION} acknowledge the
+ * commands. This is used to measure the delivery skew, i.e. the time between the first and the
+ * last server receiving a command.
+ */
+public class MultiServerController implements RemoteControl.AckListener {
+    // Debugging
+    private static final String TAG = "MultiServerController";
+
+    /**
+     * The number of unacknowledged commands stored. Older commands are forgotten.
+     */
+    private static final int MAX_PENDING_COMMANDS = 64;
+
+    /**
+     * A single connected server.
+     */
+    private static class Server {
+        private final String mmName;
+        private final RemoteControl mmControl;
+        private int mmAcknowledged = 0;
+        private long mmTotalLatency = 0;
+
+        Server(String name, RemoteControl control) {
+            mmName = name;
+            mmControl = control;
+        }
+    }
+
+    /**
+     * A command that was not acknowledged by all servers yet.
+     */
+    private static class PendingCommand {
+        private final long mmSendTime;
+        private final int mmExpectedAcks;
+        private final boolean mmAllAcknowledging;
+        private int mmAcks = 0;
+        private long mmFirstAck = 0;
+        private long mmLastAck = 0;
+
+        PendingCommand(long sendTime, int expectedAcks, boolean allAcknowledging) {
+            mmSendTime = sendTime;
+            mmExpectedAcks = expectedAcks;
+            mmAllAcknowledging = allAcknowledging;
+        }
+    }
+
+    private final String mSessionId = UUID.randomUUID().toString();
+    private final List<Server> mServers = new ArrayList<>();
+    private final Map<Long, PendingCommand> mPendingCommands =
+            new LinkedHashMap<Long, PendingCommand>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, PendingCommand> eldest) {
+                    return size() > MAX_PENDING_COMMANDS;
+                }
+            };
+    private long mSequenceNumber = 0;
+
+    /**
+     * Delivery skew statistics, in us.
+     */
+    private int mSkewSamples = 0;
+    private long mTotalSkew = 0;
+    private long mMaxSkew = 0;
+    private long mLastSkew = -1;
+
+    /**
+     * Adds a server. The connection should already be established, so the protocol version is
+     * known. Adding a server twice has no effect.
+     *
+     * @param name The name of the server used in the statistics
+     * @param control The connection to the server
+     */
+    public synchronized void addServer(String name, RemoteControl control) {
+        for (Server server : mServers) {
+            if (server.mmControl == control) {
+                return;
+            }
+        }
+
+        mServers.add(new Server(name, control));
+        if (control.supportsMultipath()) {
+            control.setAckListener(this);
+            control.joinSession(mSessionId);
+        }
+    }
+
+    /**
+     * Removes a server.
+     *
+     * @param control The connection to the server
+     */
+    public synchronized void removeServer(RemoteControl control) {
+        for (int i = 0; i < mServers.size(); i++) {
+            if (mServers.get(i).mmControl == control) {
+                mServers.remove(i);
+                control.setAckListener(null);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of connected servers.
+     *
+     * @return The number of connected servers
+     */
+    public synchronized int getConnectedServers() {
+        int connected = 0;
+        for (Server server : mServers) {
+            if (server.mmControl.getState() == RemoteControl.ServiceState.CONNECTED) {
+                connected++;
+            }
+        }
+        return connected;
+    }
+
+    /**
+     * Returns the protocol version range supported by all connected servers.
+     *
+     * @return The common protocol version or null, if no server is connected or the servers
+     *         have no common version
+     */
+    public synchronized ProtocolVersion getCommonProtocolVersion() {
+        int minVersion = Integer.MIN_VALUE;
+        int maxVersion = Integer.MAX_VALUE;
+        boolean connected = false;
+
+        for (Server server : mServers) {
+            if (server.mmControl.getState() != RemoteControl.ServiceState.CONNECTED) {
+                continue;
+            }
+            ProtocolVersion version = server.mmControl.getActiveProtocolVersion();
+            minVersion = Math.max(minVersion, version.getMinVersion());
+            maxVersion = Math.min(maxVersion, version.getMaxVersion());
+            connected = true;
+        }
+
+        if (!connected || minVersion > maxVersion) {
+            return null;
+        }
+        return new ProtocolVersion(minVersion, maxVersion);
+    }
+
+    /**
+     * Sends the given command to all connected servers, if it is supported by the common
+     * protocol version.
+     *
+     * @param command The command to send
+     * @return The number of servers the command was sent to
+     */
+    public int sendCommand(Command command) {
+        List<RemoteControl> plain = new ArrayList<>();
+        List<RemoteControl> acknowledged = new ArrayList<>();
+        long sequenceNumber;
+
+        synchronized (this) {
+            ProtocolVersion version = getCommonProtocolVersion();
+            if (version == null || !command.isSupportedBy(version)) {
+                return 0;
+            }
+
+            for (Server server : mServers) {
+                RemoteControl control = server.mmControl;
+                if (control.supportsMultipath()) {
+                    acknowledged.add(control);
+                } else if (control.getState() == RemoteControl.ServiceState.CONNECTED) {
+                    plain.add(control);
+                }
+            }
+
+            sequenceNumber = ++mSequenceNumber;
+            if (!acknowledged.isEmpty()) {
+                // The acknowledgements still give the latency of each server, but the skew is
+                // only known if no server received the command unnoticed
+                mPendingCommands.put(sequenceNumber, new PendingCommand(System.nanoTime(),
+                        acknowledged.size(), plain.isEmpty()));
+            }
+        }
+
+        for (RemoteControl control : acknowledged) {
+            control.sendCommand(command, sequenceNumber);
+        }
+        for (RemoteControl control : plain) {
+            control.sendCommand(command);
+        }
+        return acknowledged.size() + plain.size();
+    }
+
+    @Override
+    public synchronized void onAck(RemoteControl control, long sequenceNumber) {
+        PendingCommand command = mPendingCommands.get(sequenceNumber);
+        if (command == null) {
+            return;
+        }
+
+        long now = System.nanoTime();
+        for (Server server : mServers) {
+            if (server.mmControl == control) {
+                server.mmAcknowledged++;
+                server.mmTotalLatency += TimeUnit.NANOSECONDS.toMicros(now - command.mmSendTime);
+                break;
+            }
+        }
+
+        if (command.mmAcks == 0) {
+            command.mmFirstAck = now;
+        }
+        command.mmLastAck = now;
+        command.mmAcks++;
+
+        if (command.mmAcks >= command.mmExpectedAcks) {
+            mPendingCommands.remove(sequenceNumber);
+            if (!command.mmAllAcknowledging) {
+                return;
+            }
+
+            long skew = TimeUnit.NANOSECONDS.toMicros(command.mmLastAck - command.mmFirstAck);
+            mSkewSamples++;
+            mTotalSkew += skew;
+            mMaxSkew = Math.max(mMaxSkew, skew);
+            mLastSkew = skew;
+
+            if (BuildConfig.DEBUG) {
+                Log.d(TAG, "Delivery skew of command " + sequenceNumber + ": " + skew + "us");
+            }
+        }
+    }
+
+    /**
+     * Returns the delivery skew of the last command acknowledged by all servers.
+     *
+     * @return The skew in us or -1, if unknown
+     */
+    public synchronized long getLastSkew() {
+        return mLastSkew;
+    }
+
+    /**
+     * Returns the maximum delivery skew.
+     *
+     * @return The maximum skew in us
+     */
+    public synchronized long getMaxSkew() {
+        return mMaxSkew;
+    }
+
+    /**
+     * Returns the average delivery skew.
+     *
+     * @return The average skew in us or -1, if unknown
+     */
+    public synchronized long getAverageSkew() {
+        return mSkewSamples == 0 ? -1 : mTotalSkew / mSkewSamples;
+    }
+
+    /**
+     * Returns the average latency until the given server acknowledged a command.
+     *
+     * @param control The connection to the server
+     * @return The average latency in us or -1, if unknown
+     */
+    public synchronized long getAverageLatency(RemoteControl control) {
+        for (Server server : mServers) {
+            if (server.mmControl == control) {
+                return server.mmAcknowledged == 0
+                        ? -1 : server.mmTotalLatency / server.mmAcknowledged;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder result = new StringBuilder("{ ");
+        for (Server server : mServers) {
+            result.append("\"").append(server.mmName).append("\": \"")
+                    .append(getAverageLatency(server.mmControl)).append("\",");
+        }
+        return result.append("\"averageSkew\": \"").append(getAverageSkew()).append("\",")
+                .append("\"maxSkew\": \"").append(mMaxSkew).append("\"")
+                .append("}").toString();
+    }
+}
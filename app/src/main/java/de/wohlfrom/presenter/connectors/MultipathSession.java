@@ -0,0 +1,345 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Presenter. Android Client to remote control a presentation.          *
+ *  Copyright (C) 2019 Felix Wohlfrom                                    *
+ *                                                                       *
+ *  This program is free software: you can redistribute it and/or modify *
+ *  it under the terms of the GNU General Public License as published by *
+ *  the Free Software Foundation, either version 3 of the License, or    *
+ *  (at your option) any later version.                                  *
+ *                                                                       *
+ *  This program is distributed in the hope that it will be useful,      *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of       *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the        *
+ *  GNU General Public License for more details.                         *
+ *                                                                       *
+ *  You should have received a copy of the GNU General Public License    *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.*
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+
+package de.wohlfrom.presenter.connectors;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import de.wohlfrom.presenter.BuildConfig;
+
+/**
+ * A session that sends every command over all connected paths to the same server, e.g. wifi
+ * and bluetooth. The commands get a sequence number that is shared by all paths, so the server
+ * executes only the first copy it receives and drops the others. This way the latency of a
+ * command is always the latency of the fastest path.
+ *
+ * Requires protocol version {@link RemoteControl#MULTIPATH_VERSION} on all paths. If no path
+ * supports it, commands are sent only once using the first connected path.
+ *
+ * For each path, the latency until the server acknowledged a command is recorded, together
+ * with the number of commands for which this path was the first one to be acknowledged.
+ */
+public class MultipathSession implements RemoteControl.AckListener {
+    // Debugging
+    private static final String TAG = "MultipathSession";
+
+    /**
+     * The number of unacknowledged commands stored per path. Older commands are forgotten.
+     */
+    private static final int MAX_PENDING_COMMANDS = 64;
+
+    /**
+     * The latency statistics of a single path.
+     */
+    public static class PathStats {
+        private int mSent = 0;
+        private int mAcknowledged = 0;
+        private int mWins = 0;
+        private long mMinLatency = -1;
+        private long mTotalLatency = 0;
+
+        private PathStats() {
+        }
+
+        private PathStats(PathStats other) {
+            mSent = other.mSent;
+            mAcknowledged = other.mAcknowledged;
+            mWins = other.mWins;
+            mMinLatency = other.mMinLatency;
+            mTotalLatency = other.mTotalLatency;
+        }
+
+        /**
+         * Returns the number of commands sent using this path.
+         *
+         * @return The number of sent commands
+         */
+        public int getSent() {
+            return mSent;
+        }
+
+        /**
+         * Returns the number of commands acknowledged by the server using this path.
+         *
+         * @return The number of acknowledged commands
+         */
+        public int getAcknowledged() {
+            return mAcknowledged;
+        }
+
+        /**
+         * Returns the number of commands for which this path was the fastest one.
+         *
+         * @return The number of won commands
+         */
+        public int getWins() {
+            return mWins;
+        }
+
+        /**
+         * Returns the minimum latency of this path.
+         *
+         * @return The minimum latency in us or -1 if no command was acknowledged yet
+         */
+        public long getMinLatency() {
+            return mMinLatency;
+        }
+
+        /**
+         * Returns the average latency of this path.
+         *
+         * @return The average latency in us or -1 if no command was acknowledged yet
+         */
+        public long getAverageLatency() {
+            return mAcknowledged == 0 ? -1 : mTotalLatency / mAcknowledged;
+        }
+
+        @Override
+        public String toString() {
+            return "{ " +
+                    "\"sent\": \"" + mSent + "\"," +
+                    "\"acknowledged\": \"" + mAcknowledged + "\"," +
+                    "\"wins\": \"" + mWins + "\"," +
+                    "\"minLatency\": \"" + mMinLatency + "\"," +
+                    "\"averageLatency\": \"" + getAverageLatency() + "\"" +
+                    "}";
+        }
+    }
+
+    /**
+     * A single path of the session.
+     */
+    private static class Path {
+        private final RemoteControl mmControl;
+        private final PathStats mmStats = new PathStats();
+
+        /**
+         * The send times of the unacknowledged commands as {@link System#nanoTime()},
+         * by sequence number.
+         */
+        private final Map<Long, Long> mmSendTimes = new BoundedMap<>();
+
+        Path(RemoteControl control) {
+            mmControl = control;
+        }
+    }
+
+    /**
+     * A map that forgets its oldest entries once {@link #MAX_PENDING_COMMANDS} is reached.
+     */
+    private static class BoundedMap<V> extends LinkedHashMap<Long, V> {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, V> eldest) {
+            return size() > MAX_PENDING_COMMANDS;
+        }
+    }
+
+    private final String mSessionId;
+    private final List<Path> mPaths = new ArrayList<>();
+
+    /**
+     * The winning path for the last acknowledged commands, by sequence number.
+     */
+    private final Map<Long, RemoteControl> mWinners = new BoundedMap<>();
+    private long mSequenceNumber = 0;
+
+    /**
+     * Creates a new session with a random session id.
+     */
+    public MultipathSession() {
+        this(UUID.randomUUID().toString());
+    }
+
+    /**
+     * Creates a new session.
+     *
+     * @param sessionId The id of the session, needs to be unique for the server
+     */
+    public MultipathSession(String sessionId) {
+        mSessionId = sessionId;
+    }
+
+    /**
+     * Returns the id of this session.
+     *
+     * @return The session id
+     */
+    public String getSessionId() {
+        return mSessionId;
+    }
+
+    /**
+     * Adds a path to the session. The path should already be connected, so it can join the
+     * session on the server.
+     *
+     * @param control The connection to add
+     */
+    public synchronized void addPath(RemoteControl control) {
+        for (Path path : mPaths) {
+            if (path.mmControl == control) {
+                return;
+            }
+        }
+
+        mPaths.add(new Path(control));
+        if (control.supportsMultipath()) {
+            control.setAckListener(this);
+            control.joinSession(mSessionId);
+        }
+    }
+
+    /**
+     * Removes a path from the session.
+     *
+     * @param control The connection to remove
+     */
+    public synchronized void removePath(RemoteControl control) {
+        for (int i = 0; i < mPaths.size(); i++) {
+            if (mPaths.get(i).mmControl == control) {
+                mPaths.remove(i);
+                control.setAckListener(null);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Sends the given command over all paths that support multipath sessions. If no path
+     * supports it, the command is sent using the first connected path.
+     *
+     * @param command The command to send
+     * @return The number of paths the command was sent on
+     */
+    public int sendCommand(Command command) {
+        List<Path> paths = new ArrayList<>();
+        RemoteControl fallback = null;
+        long sequenceNumber;
+        synchronized (this) {
+            sequenceNumber = ++mSequenceNumber;
+            long now = System.nanoTime();
+            for (Path path : mPaths) {
+                if (path.mmControl.supportsMultipath()) {
+                    path.mmStats.mSent++;
+                    path.mmSendTimes.put(sequenceNumber, now);
+                    paths.add(path);
+                } else if (fallback == null
+                        && path.mmControl.getState() == RemoteControl.ServiceState.CONNECTED) {
+                    fallback = path.mmControl;
+                }
+            }
+        }
+
+        if (paths.isEmpty()) {
+            if (fallback == null) {
+                return 0;
+            }
+            fallback.sendCommand(command);
+            return 1;
+        }
+
+        for (Path path : paths) {
+            path.mmControl.sendCommand(command, sequenceNumber);
+        }
+        return paths.size();
+    }
+
+    @Override
+    public void onAck(RemoteControl control, long sequenceNumber) {
+        long now = System.nanoTime();
+        synchronized (this) {
+            for (Path path : mPaths) {
+                if (path.mmControl != control) {
+                    continue;
+                }
+
+                Long sendTime = path.mmSendTimes.remove(sequenceNumber);
+                if (sendTime == null) {
+                    return;
+                }
+
+                long latency = TimeUnit.NANOSECONDS.toMicros(now - sendTime);
+                PathStats stats = path.mmStats;
+                stats.mAcknowledged++;
+                stats.mTotalLatency += latency;
+                if (stats.mMinLatency < 0 || latency < stats.mMinLatency) {
+                    stats.mMinLatency = latency;
+                }
+
+                if (!mWinners.containsKey(sequenceNumber)) {
+                    mWinners.put(sequenceNumber, control);
+                    stats.mWins++;
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the path that was acknowledged first for the given command.
+     *
+     * @param sequenceNumber The sequence number of the command
+     * @return The winning path or null, if unknown
+     */
+    public synchronized RemoteControl getWinner(long sequenceNumber) {
+        return mWinners.get(sequenceNumber);
+    }
+
+    /**
+     * Returns the statistics of the given path.
+     *
+     * @param control The connection to get the statistics for
+     * @return A copy of the statistics or null, if the path is not part of this session
+     */
+    public synchronized PathStats getPathStats(RemoteControl control) {
+        for (Path path : mPaths) {
+            if (path.mmControl == control) {
+                return new PathStats(path.mmStats);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Logs the statistics of all paths, if this is a debug build.
+     */
+    public void logStats() {
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, toString());
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder result = new StringBuilder("{ ");
+        for (int i = 0; i < mPaths.size(); i++) {
+            Path path = mPaths.get(i);
+            if (i > 0) {
+                result.append(",");
+            }
+            result.append("\"path").append(i).append("\": ").append(path.mmStats);
+        }
+        return result.append("}").toString();
+    }
+}
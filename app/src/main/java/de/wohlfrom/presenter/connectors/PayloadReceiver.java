@@ -0,0 +1,203 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Presenter. Android Client to remote control a presentation.          *
+ *  Copyright (C) 2019 Felix Wohlfrom                                    *
+ *                                                                       *
+ *  This program is free software: you can redistribute it and/or modify *
+ *  it under the terms of the GNU General Public License as published by *
+ *  the Free Software Foundation, either version 3 of the License, or    *
+ *  (at your option) any later version.                                  *
+ *                                                                       *
+ *  This program is distributed in the hope that it will be useful,      *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of       *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the        *
+ *  GNU General Public License for more details.                         *
+ *                                                                       *
+ *  You should have received a copy of the GNU General Public License    *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.*
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+
+package de.wohlfrom.presenter.connectors;
+
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import de.wohlfrom.presenter.BuildConfig;
+
+/**
+ * Reassembles the payloads the server sends in chunks. Each payload is sent as its own stream
+ * that may only have {@link #DEFAULT_WINDOW} characters in flight. Once a stream consumed a
+ * quarter of its window, more window is granted to the sender, so large payloads keep flowing
+ * while the data in flight stays bounded.
+ *
+ * Not thread safe, all chunks need to be passed from the same thread.
+ */
+public class PayloadReceiver {
+    private static final String TAG = "PayloadReceiver";
+
+    /**
+     * The default number of characters a stream may send before waiting for a window update.
+     */
+    public static final int DEFAULT_WINDOW = 65536;
+
+    /**
+     * The maximum length of a single payload. Longer payloads are dropped, so a broken length
+     * can not make us allocate huge buffers.
+     */
+    static final int MAX_PAYLOAD_LENGTH = 16 * 1024 * 1024;
+
+    /**
+     * The sink that sends the window updates.
+     */
+    public interface WindowSink {
+        /**
+         * Grants the sender more window for the given stream. Must not block.
+         *
+         * @param stream The stream
+         * @param window The number of characters the stream may send additionally
+         */
+        void sendWindowUpdate(int stream, int window);
+    }
+
+    private final WindowSink mSink;
+    private final int mUpdateThreshold;
+
+    /**
+     * The streams that are not complete yet.
+     */
+    private final Map<Integer, IncomingStream> mStreams = new HashMap<>();
+
+    /**
+     * Statistics of the received payloads.
+     */
+    private int mReceivedPayloads = 0;
+    private int mDroppedPayloads = 0;
+    private int mWindowUpdates = 0;
+
+    /**
+     * Creates a new receiver for senders using the {@link #DEFAULT_WINDOW}.
+     *
+     * @param sink The sink that sends the window updates
+     */
+    public PayloadReceiver(WindowSink sink) {
+        this(sink, DEFAULT_WINDOW);
+    }
+
+    /**
+     * Creates a new receiver.
+     *
+     * @param sink The sink that sends the window updates
+     * @param window The window used by the sender
+     */
+    PayloadReceiver(WindowSink sink, int window) {
+        mSink = sink;
+        mUpdateThreshold = Math.max(1, window / 4);
+    }
+
+    /**
+     * Adds a received chunk to its stream. Chunks of a stream need to arrive in order, since
+     * the transports are ordered. A stream that skips data is dropped.
+     *
+     * @param stream The stream the chunk belongs to
+     * @param offset The offset of the chunk in the payload
+     * @param length The total length of the payload
+     * @param chunk The chunk data
+     * @return The complete payload if this was the last chunk of the stream, null otherwise
+     */
+    public String onChunk(int stream, int offset, int length, String chunk) {
+        IncomingStream incoming = mStreams.get(stream);
+        if (incoming == null) {
+            if (offset != 0 || length < 0 || length > MAX_PAYLOAD_LENGTH) {
+                drop(stream, "invalid start of stream");
+                return null;
+            }
+            incoming = new IncomingStream(length);
+            mStreams.put(stream, incoming);
+        }
+
+        if (offset != incoming.mmPayload.length() || length != incoming.mmLength
+                || offset + chunk.length() > length) {
+            mStreams.remove(stream);
+            drop(stream, "unexpected chunk at " + offset);
+            return null;
+        }
+
+        incoming.mmPayload.append(chunk);
+        if (incoming.mmPayload.length() == length) {
+            mStreams.remove(stream);
+            mReceivedPayloads++;
+            return incoming.mmPayload.toString();
+        }
+
+        incoming.mmUnacknowledged += chunk.length();
+        if (incoming.mmUnacknowledged >= mUpdateThreshold) {
+            mWindowUpdates++;
+            mSink.sendWindowUpdate(stream, incoming.mmUnacknowledged);
+            incoming.mmUnacknowledged = 0;
+        }
+        return null;
+    }
+
+    /**
+     * Drops all incomplete streams, e.g. because the connection was lost.
+     */
+    public void reset() {
+        mStreams.clear();
+    }
+
+    /**
+     * Counts a dropped stream.
+     *
+     * @param stream The dropped stream
+     * @param reason The reason why the stream is dropped
+     */
+    private void drop(int stream, String reason) {
+        mDroppedPayloads++;
+        if (BuildConfig.DEBUG) {
+            Log.w(TAG, "Dropping stream " + stream + ": " + reason);
+        }
+    }
+
+    /**
+     * Returns the number of streams that are not complete yet.
+     *
+     * @return The number of pending streams
+     */
+    public int getPendingStreams() {
+        return mStreams.size();
+    }
+
+    /**
+     * Returns the number of streams that were dropped because of invalid chunks.
+     *
+     * @return The number of dropped streams
+     */
+    public int getDroppedPayloads() {
+        return mDroppedPayloads;
+    }
+
+    @Override
+    public String toString() {
+        return "{ " +
+                "\"payloads\": \"" + mReceivedPayloads + "\"," +
+                "\"dropped\": \"" + mDroppedPayloads + "\"," +
+                "\"pendingStreams\": \"" + getPendingStreams() + "\"," +
+                "\"windowUpdates\": \"" + mWindowUpdates + "\"" +
+                "}";
+    }
+
+    /**
+     * The state of a stream that is not complete yet.
+     */
+    private static class IncomingStream {
+        private final StringBuilder mmPayload;
+        private final int mmLength;
+        private int mmUnacknowledged = 0;
+
+        IncomingStream(int length) {
+            mmPayload = new StringBuilder(length);
+            mmLength = length;
+        }
+    }
+}
@@ -0,0 +1,319 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Presenter. Android Client to remote control a presentation.          *
+ *  Copyright (C) 2019 Felix Wohlfrom                                    *
+ *                                                                       *
+ *  This program is free software: you can redistribute it and/or modify *
+ *  it under the terms of the GNU General Public License as published by *
+ *  the Free Software Foundation, either version 3 of the License, or    *
+ *  (at your option) any later version.                                  *
+ *                                                                       *
+ *  This program is distributed in the hope that it will be useful,      *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of       *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the        *
+ *  GNU General Public License for more details.                         *
+ *                                                                       *
+ *  You should have received a copy of the GNU General Public License    *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.*
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+
+package de.wohlfrom.presenter.connectors;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+/**
+ * Streams the position of a pointer, e.g. a finger moved over a touch pad, to the server.
+ *
+ * The positions are normalized to [0, 1] and quantized to {@link #RESOLUTION} steps. All
+ * samples collected since the last frame are sent together in a compact frame. The first sample
+ * of a frame is sent as absolute position, every further sample as difference to its
+ * predecessor, e.g. <code>5000,2500;12,-3;9,0</code>. Since every frame starts with an absolute
+ * position, a lost frame does not move the pointer to a wrong place. An empty frame hides the
+ * pointer.
+ *
+ * At most {@link #MAX_RATE} frames per second are sent. If the link falls behind, i.e. more
+ * than {@link #MAX_QUEUED_FRAMES} frames wait to be written, the intermediate samples are
+ * dropped and only the newest position is kept, so the pointer never lags behind the finger by
+ * more than a frame or two.
+ *
+ * All methods need to be called on the thread of the looper the streamer is bound to.
+ * Samples are stored in preallocated buffers, so streaming creates no garbage besides the frames.
+ */
+public class PointerStreamer {
+    /**
+     * The maximum number of frames sent per second.
+     */
+    public static final int MAX_RATE = 120;
+
+    /**
+     * The minimum time in ms between two frames.
+     */
+    static final long MIN_FRAME_INTERVAL = 1000 / MAX_RATE;
+
+    /**
+     * The number of steps a normalized position is quantized to.
+     */
+    public static final int RESOLUTION = 10000;
+
+    /**
+     * The maximum number of samples sent in a single frame. If more samples are collected,
+     * the intermediate ones are dropped.
+     */
+    static final int MAX_SAMPLES_PER_FRAME = 16;
+
+    /**
+     * The maximum number of frames that may wait for being written before samples are dropped.
+     */
+    static final int MAX_QUEUED_FRAMES = 1;
+
+    /**
+     * The link the frames are sent over.
+     */
+    public interface PointerSink {
+        /**
+         * Sends the given pointer frame.
+         *
+         * @param frame The encoded frame, empty to hide the pointer
+         */
+        void sendPointer(String frame);
+
+        /**
+         * Returns the number of frames that are queued but not written yet.
+         *
+         * @return The number of queued frames
+         */
+        int getQueuedFrames();
+    }
+
+    private final PointerSink mSink;
+    private final Handler mHandler;
+    private final Runnable mFlush = this::flush;
+
+    /**
+     * The quantized samples not sent yet.
+     */
+    private final int[] mSamplesX = new int[MAX_SAMPLES_PER_FRAME];
+    private final int[] mSamplesY = new int[MAX_SAMPLES_PER_FRAME];
+    private int mSampleCount = 0;
+
+    /**
+     * The last sample that was collected, used to skip samples that did not move the pointer.
+     */
+    private int mLastX = -1;
+    private int mLastY = -1;
+
+    /**
+     * Reused to encode the frames.
+     */
+    private final StringBuilder mFrame = new StringBuilder();
+
+    /**
+     * The time the last frame was sent, in the {@link SystemClock#uptimeMillis()} time base.
+     */
+    private long mLastFrameTime = 0;
+    private boolean mFlushScheduled = false;
+
+    /**
+     * Statistics.
+     */
+    private int mSentFrames = 0;
+    private int mSentSamples = 0;
+    private int mDroppedSamples = 0;
+
+    /**
+     * Creates a new streamer bound to the looper of the calling thread.
+     *
+     * @param sink The link to send the frames over
+     */
+    public PointerStreamer(PointerSink sink) {
+        this(sink, Looper.myLooper());
+    }
+
+    /**
+     * Creates a new streamer bound to the given looper.
+     *
+     * @param sink The link to send the frames over
+     * @param looper The looper of the thread the streamer is used on
+     */
+    public PointerStreamer(PointerSink sink, Looper looper) {
+        mSink = sink;
+        mHandler = new Handler(looper);
+    }
+
+    /**
+     * Adds the given samples to the stream and sends them as soon as the rate allows it.
+     *
+     * @param samples The normalized positions, x and y alternating, in the order they were
+     *                measured
+     * @param count The number of positions in the array
+     */
+    public void addSamples(float[] samples, int count) {
+        for (int i = 0; i < count; i++) {
+            addSample(quantize(samples[2 * i]), quantize(samples[2 * i + 1]));
+        }
+        flush();
+    }
+
+    /**
+     * Hides the pointer. Samples not sent yet are dropped.
+     */
+    public void release() {
+        cancel();
+        mLastX = -1;
+        mLastY = -1;
+        mSink.sendPointer("");
+        mLastFrameTime = SystemClock.uptimeMillis();
+    }
+
+    /**
+     * Drops all samples not sent yet, e.g. because the connection was closed.
+     */
+    public void cancel() {
+        mHandler.removeCallbacks(mFlush);
+        mFlushScheduled = false;
+        mDroppedSamples += mSampleCount;
+        mSampleCount = 0;
+    }
+
+    /**
+     * Adds a single quantized sample to the buffers. If the buffers are full, the last sample
+     * is replaced.
+     *
+     * @param x The quantized x position
+     * @param y The quantized y position
+     */
+    private void addSample(int x, int y) {
+        if (x == mLastX && y == mLastY) {
+            return;
+        }
+        mLastX = x;
+        mLastY = y;
+
+        if (mSampleCount == MAX_SAMPLES_PER_FRAME) {
+            mSampleCount--;
+            mDroppedSamples++;
+        }
+        mSamplesX[mSampleCount] = x;
+        mSamplesY[mSampleCount] = y;
+        mSampleCount++;
+    }
+
+    /**
+     * Sends the collected samples, if the rate and the link allow it. Otherwise a new attempt
+     * is scheduled.
+     */
+    private void flush() {
+        mHandler.removeCallbacks(mFlush);
+        mFlushScheduled = false;
+        if (mSampleCount == 0) {
+            return;
+        }
+
+        long wait = mLastFrameTime + MIN_FRAME_INTERVAL - SystemClock.uptimeMillis();
+        if (wait > 0) {
+            scheduleFlush(wait);
+            return;
+        }
+
+        if (mSink.getQueuedFrames() > MAX_QUEUED_FRAMES) {
+            // The link falls behind, so only the newest position is of interest
+            dropIntermediateSamples();
+            scheduleFlush(MIN_FRAME_INTERVAL);
+            return;
+        }
+
+        mSink.sendPointer(encode());
+        mLastFrameTime = SystemClock.uptimeMillis();
+        mSentFrames++;
+        mSentSamples += mSampleCount;
+        mSampleCount = 0;
+    }
+
+    /**
+     * Schedules sending the collected samples, if not scheduled yet.
+     *
+     * @param delay The time in ms to wait
+     */
+    private void scheduleFlush(long delay) {
+        if (!mFlushScheduled) {
+            mFlushScheduled = true;
+            mHandler.postDelayed(mFlush, delay);
+        }
+    }
+
+    /**
+     * Drops all collected samples except of the newest one.
+     */
+    private void dropIntermediateSamples() {
+        if (mSampleCount > 1) {
+            mDroppedSamples += mSampleCount - 1;
+            mSamplesX[0] = mSamplesX[mSampleCount - 1];
+            mSamplesY[0] = mSamplesY[mSampleCount - 1];
+            mSampleCount = 1;
+        }
+    }
+
+    /**
+     * Encodes the collected samples as frame.
+     *
+     * @return The encoded frame
+     */
+    private String encode() {
+        mFrame.setLength(0);
+        mFrame.append(mSamplesX[0]).append(',').append(mSamplesY[0]);
+        for (int i = 1; i < mSampleCount; i++) {
+            mFrame.append(';')
+                    .append(mSamplesX[i] - mSamplesX[i - 1]).append(',')
+                    .append(mSamplesY[i] - mSamplesY[i - 1]);
+        }
+        return mFrame.toString();
+    }
+
+    /**
+     * Quantizes the given normalized position.
+     *
+     * @param position The position, values outside of [0, 1] are clamped
+     * @return The quantized position
+     */
+    static int quantize(float position) {
+        return Math.round(Math.max(0, Math.min(1, position)) * RESOLUTION);
+    }
+
+    /**
+     * Returns the number of sent frames, excluding the frames hiding the pointer.
+     *
+     * @return The number of sent frames
+     */
+    public int getSentFrames() {
+        return mSentFrames;
+    }
+
+    /**
+     * Returns the number of samples sent to the server.
+     *
+     * @return The number of sent samples
+     */
+    public int getSentSamples() {
+        return mSentSamples;
+    }
+
+    /**
+     * Returns the number of samples that were dropped because the link fell behind or too many
+     * samples were collected for a single frame.
+     *
+     * @return The number of dropped samples
+     */
+    public int getDroppedSamples() {
+        return mDroppedSamples;
+    }
+
+    @Override
+    public String toString() {
+        return "{ " +
+                "\"sentFrames\": \"" + mSentFrames + "\"," +
+                "\"sentSamples\": \"" + mSentSamples + "\"," +
+                "\"droppedSamples\": \"" + mDroppedSamples + "\"" +
+                "}";
+    }
+}
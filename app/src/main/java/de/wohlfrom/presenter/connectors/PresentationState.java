@@ -0,0 +1,223 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Presenter. Android Client to remote control a presentation.          *
+ *  Copyright (C) 2019 Felix Wohlfrom                                    *
+ *                                                                       *
+ *  This program is free software: you can redistribute it and/or modify *
+ *  it under the terms of the GNU General Public License as published by *
+ *  the Free Software Foundation, either version 3 of the License, or    *
+ *  (at your option) any later version.                                  *
+ *                                                                       *
+ *  This program is distributed in the hope that it will be useful,      *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of       *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the        *
+ *  GNU General Public License for more details.                         *
+ *                                                                       *
+ *  You should have received a copy of the GNU General Public License    *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.*
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+
+package de.wohlfrom.presenter.connectors;
+
+import android.os.Handler;
+
+/**
+ * Holds the state of the presentation pushed by the server: the current slide, the number of
+ * slides, if the presentation is running and when it was started. The server only sends the
+ * fields that changed, so the store applies each update on top of the known state and informs
+ * its listener about the changed fields only.
+ *
+ * Updates are applied and the listener is informed on the thread of the looper the store was
+ * created on, usually the ui thread.
+ */
+public class PresentationState {
+    /**
+     * Flags of the changed fields passed to the {@link StateListener}.
+     */
+    public static final int SLIDE = 1;
+    public static final int TOTAL = 1 << 1;
+    public static final int RUNNING = 1 << 2;
+    public static final int START_TIME = 1 << 3;
+
+    /**
+     * Value of the slide, total and start time fields if they are unknown or not changed by
+     * an update.
+     */
+    public static final int UNKNOWN = -1;
+
+    /**
+     * Listener interface that is informed if the state changed.
+     */
+    public interface StateListener {
+        /**
+         * Called if at least one field of the state changed.
+         *
+         * @param state The updated state
+         * @param changes The changed fields, a combination of {@link #SLIDE}, {@link #TOTAL},
+         *                {@link #RUNNING} and {@link #START_TIME}
+         */
+        void onStateChanged(PresentationState state, int changes);
+    }
+
+    private final Handler mHandler;
+
+    /**
+     * The current state. Only accessed on the thread of the handler.
+     */
+    private int mSlide = UNKNOWN;
+    private int mTotal = UNKNOWN;
+    private Boolean mRunning = null;
+    private long mStartTime = UNKNOWN;
+
+    private StateListener mListener = null;
+
+    /**
+     * Statistics.
+     */
+    private int mUpdates = 0;
+    private int mUnchangedUpdates = 0;
+
+    /**
+     * Creates a new store informing its listener on the thread of the current looper.
+     */
+    public PresentationState() {
+        mHandler = new Handler();
+    }
+
+    /**
+     * Sets the listener that is informed about state changes.
+     *
+     * @param listener The listener, might be null
+     */
+    public void setListener(StateListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Applies an update sent by the server. Can be called from any thread.
+     *
+     * @param slide The current slide, {@link #UNKNOWN} if not changed
+     * @param total The number of slides, {@link #UNKNOWN} if not changed
+     * @param running If the presentation is running, null if not changed
+     * @param startTime The server time in ms the presentation was started at, see
+     *                  {@link SynchronizedClock}, {@link #UNKNOWN} if not changed
+     */
+    public void onUpdate(int slide, int total, Boolean running, long startTime) {
+        mHandler.post(() -> apply(slide, total, running, startTime));
+    }
+
+    /**
+     * Applies an update on the thread of the handler.
+     *
+     * @param slide The current slide, {@link #UNKNOWN} if not changed
+     * @param total The number of slides, {@link #UNKNOWN} if not changed
+     * @param running If the presentation is running, null if not changed
+     * @param startTime The server time in ms the presentation was started at,
+     *                  {@link #UNKNOWN} if not changed
+     */
+    private void apply(int slide, int total, Boolean running, long startTime) {
+        mUpdates++;
+
+        int changes = 0;
+        if (slide != UNKNOWN && slide != mSlide) {
+            mSlide = slide;
+            changes |= SLIDE;
+        }
+        if (total != UNKNOWN && total != mTotal) {
+            mTotal = total;
+            changes |= TOTAL;
+        }
+        if (running != null && !running.equals(mRunning)) {
+            mRunning = running;
+            changes |= RUNNING;
+        }
+        if (startTime != UNKNOWN && startTime != mStartTime) {
+            mStartTime = startTime;
+            changes |= START_TIME;
+        }
+
+        if (changes == 0) {
+            mUnchangedUpdates++;
+        } else if (mListener != null) {
+            mListener.onStateChanged(this, changes);
+        }
+    }
+
+    /**
+     * Returns the slide currently shown, counted from 0.
+     *
+     * @return The current slide, {@link #UNKNOWN} if unknown
+     */
+    public int getSlide() {
+        return mSlide;
+    }
+
+    /**
+     * Returns the number of slides of the presentation.
+     *
+     * @return The number of slides, {@link #UNKNOWN} if unknown
+     */
+    public int getTotal() {
+        return mTotal;
+    }
+
+    /**
+     * Returns if the presentation is running.
+     *
+     * @return If the presentation is running, false if unknown
+     */
+    public boolean isRunning() {
+        return mRunning != null && mRunning;
+    }
+
+    /**
+     * Returns the time the presentation was started at.
+     *
+     * @return The server time in ms, see {@link SynchronizedClock}, {@link #UNKNOWN} if
+     *         unknown
+     */
+    public long getStartTime() {
+        return mStartTime;
+    }
+
+    /**
+     * Returns if the position in the presentation is known, i.e. if the current slide and the
+     * number of slides were received.
+     *
+     * @return If the position is known
+     */
+    public boolean isPositionKnown() {
+        return mSlide != UNKNOWN && mTotal > 0;
+    }
+
+    /**
+     * Forgets the state, e.g. because the connection was closed. The listener is informed
+     * about all fields that were known.
+     */
+    public void clear() {
+        mHandler.post(() -> {
+            int changes = (mSlide != UNKNOWN ? SLIDE : 0) | (mTotal != UNKNOWN ? TOTAL : 0)
+                    | (mRunning != null ? RUNNING : 0)
+                    | (mStartTime != UNKNOWN ? START_TIME : 0);
+            mSlide = UNKNOWN;
+            mTotal = UNKNOWN;
+            mRunning = null;
+            mStartTime = UNKNOWN;
+
+            if (changes != 0 && mListener != null) {
+                mListener.onStateChanged(this, changes);
+            }
+        });
+    }
+
+    @Override
+    public String toString() {
+        return "{ " +
+                "\"slide\": \"" + mSlide + "\"," +
+                "\"total\": \"" + mTotal + "\"," +
+                "\"running\": \"" + mRunning + "\"," +
+                "\"startTime\": \"" + mStartTime + "\"," +
+                "\"updates\": \"" + mUpdates + "\"," +
+                "\"unchangedUpdates\": \"" + mUnchangedUpdates + "\"" +
+                "}";
+    }
+}
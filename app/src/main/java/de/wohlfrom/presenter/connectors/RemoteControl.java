@@ -2,17 +2,30 @@ package de.wohlfrom.presenter.connectors;
 
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.Message;
+import android.util.Log;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
 
+import de.wohlfrom.presenter.BuildConfig;
+
 /**
  * The base class for all remote control connections. This class is used to handle version
  * negotiation and transmitting commands via different networks.
+ * The network specific parts are implemented by a {@link Transport}, this class manages the
+ * connection and its threads independent from the network used.
  */
 public abstract class RemoteControl {
+    // Debugging
+    private static final String TAG = "RemoteControl";
+
 
     /**
      * The id of our remote control service.
@@ -66,10 +79,40 @@ public abstract class RemoteControl {
          * Raw data string.
          */
         private final String data;
+        /**
+         * Additional json fields of the message, might be empty.
+         */
+        private final String arguments;
 
         PresenterMessage(MessageType type, String data) {
+            this(type, data, "");
+        }
+
+        PresenterMessage(MessageType type, String data, String arguments) {
             this.type = type;
             this.data = data;
+            this.arguments = arguments;
+        }
+
+        /**
+         * Returns if this message is a command.
+         *
+         * @return If the message is a command
+         */
+        public boolean isCommand() {
+            return type == MessageType.COMMAND;
+        }
+
+        /**
+         * Returns the priority the message is sent with. Thumbnails are only requested to
+         * prefetch the slides around the current one, so these requests must not delay
+         * commands.
+         *
+         * @return The priority of the message
+         */
+        Transport.Priority getPriority() {
+            return type == MessageType.THUMBNAIL
+                    ? Transport.Priority.BULK : Transport.Priority.CONTROL;
         }
 
         @Override
@@ -77,6 +120,48 @@ public abstract class RemoteControl {
             return "{" +
                     " \"type\": \"" + type.toString().toLowerCase(Locale.getDefault()) + "\"," +
                     " \"data\": \"" + data + "\"" +
+                    arguments +
+                    "}";
+        }
+
+        /**
+         * Returns the message including the given sequence number. Since protocol version 3,
+         * the server will use the sequence number to drop duplicated commands.
+         *
+         * @param sequenceNumber The sequence number of the message
+         * @return The message string
+         */
+        public String toString(long sequenceNumber) {
+            return toString("seq", sequenceNumber);
+        }
+
+        /**
+         * Returns the message including the given sequence number of a multipath session.
+         * Since protocol version 5, the server will use it to drop the commands already
+         * received by another connection of the session. This is a separate field, since the
+         * sequence numbers of the udp command channel only count the commands of a single
+         * connection.
+         *
+         * @param sequenceNumber The sequence number of the message in the session
+         * @return The message string
+         */
+        String toSessionString(long sequenceNumber) {
+            return toString("sessionSeq", sequenceNumber);
+        }
+
+        /**
+         * Returns the message including the given sequence number.
+         *
+         * @param field The name of the sequence number field
+         * @param sequenceNumber The sequence number of the message
+         * @return The message string
+         */
+        private String toString(String field, long sequenceNumber) {
+            return "{" +
+                    " \"type\": \"" + type.toString().toLowerCase(Locale.getDefault()) + "\"," +
+                    " \"data\": \"" + data + "\"" +
+                    arguments + "," +
+                    " \"" + field + "\": \"" + sequenceNumber + "\"" +
                     "}";
         }
     }
@@ -92,7 +177,84 @@ public abstract class RemoteControl {
         /**
          * A command to be transmitted.
          */
-        COMMAND
+        COMMAND,
+        /**
+         * Request or offer of the udp command channel. Since protocol version 3.
+         */
+        UDP,
+        /**
+         * Heartbeat request, containing a timestamp. Since protocol version 4.
+         */
+        PING,
+        /**
+         * Heartbeat response, containing the timestamp of the request. Since protocol version 4.
+         */
+        PONG,
+        /**
+         * Joins a multipath session, containing the session id. Commands of the same session
+         * are deduplicated by the server using their session sequence number. Since protocol
+         * version 5.
+         */
+        SESSION,
+        /**
+         * Acknowledges a command, containing its sequence number. Sent by the server for
+         * commands of a multipath session. Since protocol version 5.
+         */
+        ACK,
+        /**
+         * Positions of the pointer, see {@link PointerStreamer}. Since protocol version 7.
+         */
+        POINTER,
+        /**
+         * Thumbnail of a slide pushed by the server, containing the slide, the slide currently
+         * shown, optionally the content hash of the presentation and the base64 encoded image.
+         * Sent by the client containing only the slide to request its thumbnail. Since protocol
+         * version 8.
+         */
+        THUMBNAIL,
+        /**
+         * A chunk of a large payload, containing the escaped chunk data. The stream, the offset
+         * of the chunk and the total length of the payload are sent as additional arguments.
+         * Sent by the server, see {@link PayloadReceiver}. Since protocol version 9.
+         */
+        CHUNK,
+        /**
+         * Grants more window to a stream of chunks, containing the number of characters. The
+         * stream is sent as additional argument. Sent by the client, see
+         * {@link PayloadReceiver}. Since protocol version 9.
+         */
+        WINDOW,
+        /**
+         * Speaker notes of a slide pushed by the server, containing the slide, the slide
+         * currently shown, the content hash of the presentation and the revision of the notes.
+         * Contains either the full text or the edits based on an older revision, see
+         * {@link SpeakerNotesStore}. Sent by the client containing only the slide to request
+         * the full notes. Since protocol version 10.
+         */
+        NOTES,
+        /**
+         * State of the presentation pushed by the server, containing the fields of the state
+         * that changed since the last update, see {@link PresentationState}. The first update
+         * after connecting contains all fields. Since protocol version 11.
+         */
+        STATE,
+        /**
+         * Frame of the screen mirror pushed by the server, containing the changed tiles of
+         * the screen, see {@link ScreenMirror}. Sent by the client to start or stop the mirror
+         * or to request a key frame. Since protocol version 12.
+         */
+        MIRROR,
+        /**
+         * Ink strokes drawn on the slide, see {@link InkStreamer}. Sent by the server to
+         * confirm received strokes and to report its screen size. Since protocol version 13.
+         */
+        INK,
+        /**
+         * Time request, containing the local time it was sent at. The server answers with the
+         * same time and the times it received the request and sent the response, see
+         * {@link SynchronizedClock}. Since protocol version 14.
+         */
+        TIME
     }
 
     /**
@@ -104,13 +266,160 @@ public abstract class RemoteControl {
     /**
      * The protocol version supported by our android client.
      */
-    public final static ProtocolVersion CLIENT_PROTOCOL_VERSION = new ProtocolVersion(1, 2);
+    public final static ProtocolVersion CLIENT_PROTOCOL_VERSION = new ProtocolVersion(1, 14);
+
+    /**
+     * The first protocol version that supports the udp command channel.
+     */
+    public final static int UDP_COMMAND_CHANNEL_VERSION = 3;
+
+    /**
+     * The first protocol version that supports heartbeats.
+     */
+    public final static int HEARTBEAT_VERSION = 4;
+
+    /**
+     * The first protocol version that supports multipath sessions.
+     */
+    public final static int MULTIPATH_VERSION = 5;
+
+    /**
+     * The first protocol version that supports moving by several slides at once, see
+     * {@link Command#ADVANCE}.
+     */
+    public final static int ADVANCE_VERSION = 6;
+
+    /**
+     * The first protocol version that supports streaming pointer positions, see
+     * {@link PointerStreamer}.
+     */
+    public final static int POINTER_VERSION = 7;
+
+    /**
+     * The first protocol version in which the server pushes slide thumbnails, see
+     * {@link ThumbnailCache}.
+     */
+    public final static int THUMBNAIL_VERSION = 8;
+
+    /**
+     * The first protocol version that supports receiving large payloads in chunks, see
+     * {@link PayloadReceiver}.
+     */
+    public final static int PAYLOAD_VERSION = 9;
+
+    /**
+     * The first protocol version in which the server pushes speaker notes, see
+     * {@link SpeakerNotesStore}.
+     */
+    public final static int NOTES_VERSION = 10;
+
+    /**
+     * The first protocol version in which the server pushes the state of the presentation, see
+     * {@link PresentationState}.
+     */
+    public final static int STATE_VERSION = 11;
+
+    /**
+     * The first protocol version that supports mirroring the screen of the server, see
+     * {@link ScreenMirror}.
+     */
+    public final static int MIRROR_VERSION = 12;
+
+    /**
+     * The first protocol version that supports drawing ink on the slides, see
+     * {@link InkStreamer}.
+     */
+    public final static int INK_VERSION = 13;
+
+    /**
+     * The first protocol version that supports synchronizing the clock with the server, see
+     * {@link SynchronizedClock}. The state of the presentation contains the time the
+     * presentation was started since this version.
+     */
+    public final static int CLOCK_VERSION = 14;
+
+    /**
+     * Listener interface that is informed about received heartbeat responses.
+     */
+    public interface HeartbeatListener {
+        /**
+         * Called if a heartbeat response was received.
+         *
+         * @param control The control that received the response
+         * @param roundTripTime The round trip time of the heartbeat in us
+         */
+        void onHeartbeat(RemoteControl control, long roundTripTime);
+    }
+
+    /**
+     * Listener interface that is informed about acknowledged commands of a multipath session.
+     */
+    public interface AckListener {
+        /**
+         * Called if the server acknowledged a command.
+         *
+         * @param control The control that received the acknowledgement
+         * @param sequenceNumber The sequence number of the acknowledged command
+         */
+        void onAck(RemoteControl control, long sequenceNumber);
+    }
 
     /**
      * The resulting protocol version negotiated between server and client.
      */
     private ProtocolVersion mActiveProtocolVersion = null;
 
+    /**
+     * The time of the last sign of life of the server as {@link System#nanoTime()}. This is
+     * the time of the last heartbeat response or the time the connection was established.
+     */
+    private volatile long mLastHeartbeatResponse = 0;
+
+    /**
+     * The round trip time in us of the last heartbeat, -1 if unknown.
+     */
+    private volatile long mRoundTripTime = -1;
+
+    /**
+     * The listener for heartbeat responses, might be null.
+     */
+    private volatile HeartbeatListener mHeartbeatListener;
+
+    /**
+     * The listener for command acknowledgements, might be null.
+     */
+    private volatile AckListener mAckListener;
+
+    /**
+     * The cache the pushed thumbnails are decoded into, might be null.
+     */
+    private volatile ThumbnailCache mThumbnailCache;
+
+    /**
+     * The store the pushed speaker notes are applied to, might be null.
+     */
+    private volatile SpeakerNotesStore mSpeakerNotes;
+
+    /**
+     * The store the pushed presentation state is applied to, might be null.
+     */
+    private volatile PresentationState mPresentationState;
+
+    /**
+     * The mirror the pushed screen frames are decoded by, might be null.
+     */
+    private volatile ScreenMirror mScreenMirror;
+
+    /**
+     * The streamer the ink confirmations are passed to, might be null.
+     */
+    private volatile InkStreamer mInkStreamer;
+
+    /**
+     * The clock the time responses are passed to, might be null.
+     */
+    private volatile SynchronizedClock mSynchronizedClock;
+
     /**
      * The current state of the remote control service.
      */
@@ -121,6 +430,42 @@ public abstract class RemoteControl {
      */
     protected final Handler mHandler;
 
+    // Member fields
+    private ConnectThread mConnectThread;
+    private ReaderThread mReaderThread;
+
+    /**
+     * Merges bursts of slide changes, if supported by the server.
+     */
+    private final CommandCoalescer mCoalescer = new CommandCoalescer(this::sendCoalesced);
+
+    /**
+     * Sends the pointer frames of all streamers of this connection.
+     */
+    private final PointerStreamer.PointerSink mPointerSink = new PointerStreamer.PointerSink() {
+        @Override
+        public void sendPointer(String frame) {
+            sendMessage(new PresenterMessage(MessageType.POINTER, frame));
+        }
+
+        @Override
+        public int getQueuedFrames() {
+            return RemoteControl.this.getQueuedFrames();
+        }
+    };
+
+    /**
+     * Reassembles the large payloads sent by the server. Only used by the reader thread.
+     */
+    private final PayloadReceiver mPayloadReceiver = new PayloadReceiver(
+            (stream, window) -> sendMessage(new PresenterMessage(MessageType.WINDOW,
+                    String.valueOf(window), ", \"stream\": \"" + stream + "\"")));
+
+    /**
+     * Streams the pointer positions, created on first use.
+     */
+    private PointerStreamer mPointerStreamer = null;
+
     /**
      * Creates a new remote control
      *
@@ -165,6 +510,23 @@ public abstract class RemoteControl {
         return mActiveProtocolVersion;
     }
 
+    /**
+     * Returns if the given frame is a version message. The server sends its version right
+     * after the connection was established, so this can be used to verify that we are
+     * connected to the presenter service.
+     *
+     * @param frame The received frame
+     * @return If the frame is a version message
+     */
+    public static boolean isVersionMessage(String frame) {
+        try {
+            JSONObject parser = new JSONObject(frame);
+            return MessageType.VERSION.toString().equalsIgnoreCase(parser.getString("type"));
+        } catch (JSONException e) {
+            return false;
+        }
+    }
+
     /**
      * Parses a given message. The message needs to be a json string.
      *
@@ -178,9 +540,16 @@ public abstract class RemoteControl {
             String type = parser.getString("type");
             String data = parser.getString("data");
 
-            PresenterMessage msg =
-                    new PresenterMessage(
-                            MessageType.valueOf(type.toUpperCase(Locale.getDefault())), data);
+            MessageType messageType;
+            try {
+                messageType = MessageType.valueOf(type.toUpperCase(Locale.getDefault()));
+            } catch (IllegalArgumentException e) {
+                // Servers might send messages we don't know yet, these are no errors
+                Log.w(TAG, "Ignoring message of unknown type: " + type);
+                return;
+            }
+
+            PresenterMessage msg = new PresenterMessage(messageType, data);
             switch (msg.type) {
                 case VERSION:
                     // Parse the version from given message
@@ -208,6 +577,8 @@ public abstract class RemoteControl {
 
                     // We have a valid version range, so we are connected from now on.
                     this.mState = ServiceState.CONNECTED;
+                    mLastHeartbeatResponse = System.nanoTime();
+                    mRoundTripTime = -1;
 
                     // Send the name of the connected device back to the result listener
                     android.os.Message userNotification
@@ -217,11 +588,119 @@ public abstract class RemoteControl {
                     userNotification.setData(bundle);
                     mHandler.sendMessage(userNotification);
 
+                    onConnected();
+                    break;
+
+                case UDP:
+                    // The server offers the port of its udp command channel
+                    parser = new JSONObject(msg.data);
+                    onUdpCommandChannelOffered(parser.getInt("port"));
+                    break;
+
+                case PING:
+                    // Answer heartbeats of the server using the same timestamp
+                    sendMessage(new PresenterMessage(MessageType.PONG, msg.data));
+                    break;
+
+                case PONG:
+                    long now = System.nanoTime();
+                    mLastHeartbeatResponse = now;
+                    mRoundTripTime = now / 1000 - parser.getLong("data");
+
+                    HeartbeatListener listener = mHeartbeatListener;
+                    if (listener != null) {
+                        listener.onHeartbeat(this, mRoundTripTime);
+                    }
+                    break;
+
+                case ACK:
+                    LatencyTracker.recordAck();
+
+                    AckListener ackListener = mAckListener;
+                    if (ackListener != null) {
+                        ackListener.onAck(this, parser.getLong("data"));
+                    }
+                    break;
+
+                case THUMBNAIL:
+                    ThumbnailCache thumbnailCache = mThumbnailCache;
+                    if (thumbnailCache != null) {
+                        parser = new JSONObject(msg.data);
+                        thumbnailCache.decode(parser.getInt("slide"),
+                                parser.getInt("current"), parser.optString("deck", ""),
+                                parser.getString("image"));
+                    }
+                    break;
+
+                case NOTES:
+                    SpeakerNotesStore speakerNotes = mSpeakerNotes;
+                    if (speakerNotes != null) {
+                        parser = new JSONObject(msg.data);
+                        handleNotes(speakerNotes, parser);
+                    }
+                    break;
+
+                case STATE:
+                    parser = new JSONObject(msg.data);
+                    PresentationState presentationState = mPresentationState;
+                    if (presentationState != null) {
+                        presentationState.onUpdate(
+                                parser.optInt("slide", PresentationState.UNKNOWN),
+                                parser.optInt("total", PresentationState.UNKNOWN),
+                                parser.has("running")
+                                        ? Boolean.valueOf(parser.getBoolean("running")) : null,
+                                parser.optLong("started", PresentationState.UNKNOWN));
+                    }
+
+                    // Move the thumbnails along, without waiting for the next pushed thumbnail
+                    ThumbnailCache stateThumbnails = mThumbnailCache;
+                    if (stateThumbnails != null && parser.has("slide")) {
+                        stateThumbnails.postCurrentSlide(parser.getInt("slide"));
+                    }
+                    break;
+
+                case MIRROR:
+                    ScreenMirror screenMirror = mScreenMirror;
+                    if (screenMirror != null) {
+                        screenMirror.onFrame(msg.data, mRoundTripTime);
+                    }
+                    break;
+
+                case INK:
+                    InkStreamer inkStreamer = mInkStreamer;
+                    if (inkStreamer != null) {
+                        parser = new JSONObject(msg.data);
+                        if (parser.has("width") && parser.has("height")) {
+                            inkStreamer.postRemoteSize(parser.getInt("width"),
+                                    parser.getInt("height"));
+                        }
+                        if (parser.has("confirmed")) {
+                            inkStreamer.postConfirmation(parser.getInt("confirmed"));
+                        }
+                    }
+                    break;
+
+                case TIME:
+                    long arrival = SynchronizedClock.localTime();
+                    SynchronizedClock clock = mSynchronizedClock;
+                    if (clock != null) {
+                        parser = new JSONObject(msg.data);
+                        clock.onTimeResponse(parser.getLong("origin"), parser.getLong("receive"),
+                                parser.getLong("transmit"), arrival);
+                    }
+                    break;
+
+                case CHUNK:
+                    String payload = mPayloadReceiver.onChunk(parser.getInt("stream"),
+                            parser.getInt("offset"), parser.getInt("length"), msg.data);
+                    if (payload != null) {
+                        handleMessage(sender, payload);
+                    }
                     break;
             }
 
-        } catch (JSONException e) {
-            // Notify the user
+        } catch (JSONException | IllegalArgumentException e) {
+            // Malformed messages must not end the connection, so only notify the user
             android.os.Message userNotification
                     = mHandler.obtainMessage(ServiceState.ERROR.ordinal());
             Bundle bundle = new Bundle();
@@ -239,20 +718,863 @@ public abstract class RemoteControl {
      * @param command The command to send.
      */
     public void sendCommand(Command command) {
-        PresenterMessage toSend = new PresenterMessage(MessageType.COMMAND, command.getCommand());
+        LatencyTracker.beginSection(LatencyTracker.Stage.SEND_COMMAND);
+        LatencyTracker.InputTrace input = LatencyTracker.takeInput();
+        LatencyTracker.markStage(input, LatencyTracker.Stage.SEND_COMMAND);
+        try {
+            if ((command == Command.NEXT_SLIDE || command == Command.PREV_SLIDE)
+                    && supportsAdvance()) {
+                mCoalescer.submit(command, input);
+                return;
+            }
 
-        sendMessage(toSend);
+            // Keep the order of the commands
+            mCoalescer.flush();
+
+            PresenterMessage toSend =
+                    new PresenterMessage(MessageType.COMMAND, command.getCommand());
+
+            sendMessage(toSend, input);
+        } finally {
+            LatencyTracker.endSection();
+        }
     }
 
     /**
-     * Will send a given message to the presenter server.
+     * Moves the presentation by the given number of slides. Only supported since protocol
+     * version {@link #ADVANCE_VERSION}.
      *
-     * @param message The message to send.
+     * @param slides The number of slides to move, negative values move backwards.
      */
-    protected abstract void sendMessage(PresenterMessage message);
+    public void sendAdvance(int slides) {
+        sendMessage(createAdvance(slides));
+    }
 
     /**
-     * Will disconnect from the server.
+     * Creates a command moving the presentation by the given number of slides.
+     *
+     * @param slides The number of slides to move, negative values move backwards.
+     * @return The command
+     */
+    private PresenterMessage createAdvance(int slides) {
+        return new PresenterMessage(MessageType.COMMAND, Command.ADVANCE.getCommand(),
+                ", \"slides\": \"" + slides + "\"");
+    }
+
+    /**
+     * Encodes the given command, so it can be sent later with {@link #sendEncoded(String)}
+     * without any further work.
+     *
+     * @param command The command to encode.
+     * @return The encoded frame.
+     */
+    public String encodeCommand(Command command) {
+        return new PresenterMessage(MessageType.COMMAND, command.getCommand()).toString();
+    }
+
+    /**
+     * Encodes a command moving the presentation by the given number of slides, so it can be
+     * sent later with {@link #sendEncoded(String)}.
+     *
+     * @param slides The number of slides to move, negative values move backwards.
+     * @return The encoded frame, null if the server does not support {@link Command#ADVANCE}.
+     */
+    public String encodeAdvance(int slides) {
+        if (!supportsAdvance()) {
+            return null;
+        }
+        return createAdvance(slides).toString();
+    }
+
+    /**
+     * Sends a command encoded by {@link #encodeCommand(Command)} or
+     * {@link #encodeAdvance(int)}. The command is not merged with other slide changes.
+     *
+     * @param frame The encoded frame.
+     */
+    public void sendEncoded(String frame) {
+        sendFrame(frame);
+    }
+
+    /**
+     * Returns if the server supports moving by several slides at once.
+     *
+     * @return If {@link Command#ADVANCE} is supported
+     */
+    public boolean supportsAdvance() {
+        return getState() == ServiceState.CONNECTED
+                && Command.ADVANCE.isSupportedBy(mActiveProtocolVersion);
+    }
+
+    /**
+     * Sets the window in which consecutive slide changes in the same direction are merged
+     * into a single command.
+     *
+     * @param window The coalescing window in ms, 0 to disable coalescing
+     */
+    public void setCoalescingWindow(long window) {
+        mCoalescer.setWindow(window);
+    }
+
+    /**
+     * Returns the coalescer that merges bursts of slide changes, e.g. to read its statistics.
+     *
+     * @return The command coalescer
+     */
+    public CommandCoalescer getCoalescer() {
+        return mCoalescer;
+    }
+
+    /**
+     * Sends the commands merged by the coalescer.
+     *
+     * @param command The command to send
+     * @param count The number of times the command should be executed
+     * @param input The input event that caused the command, might be null
+     */
+    private void sendCoalesced(Command command, int count, LatencyTracker.InputTrace input) {
+        if (count == 1) {
+            sendMessage(new PresenterMessage(MessageType.COMMAND, command.getCommand()), input);
+        } else {
+            sendMessage(createAdvance(command == Command.NEXT_SLIDE ? count : -count), input);
+        }
+    }
+
+    /**
+     * Sends the given command using the given sequence number. The command is always sent using
+     * the connected transport, since the sequence number belongs to the multipath session.
+     * Only supported since protocol version {@link #MULTIPATH_VERSION}.
+     *
+     * @param command The command to send.
+     * @param sequenceNumber The sequence number of the command in the session.
      */
-    protected abstract void disconnect();
+    public void sendCommand(Command command, long sequenceNumber) {
+        LatencyTracker.beginSection(LatencyTracker.Stage.SEND_COMMAND);
+        LatencyTracker.InputTrace input = LatencyTracker.takeInput();
+        LatencyTracker.markStage(input, LatencyTracker.Stage.SEND_COMMAND);
+        try {
+            PresenterMessage toSend =
+                    new PresenterMessage(MessageType.COMMAND, command.getCommand());
+
+            LatencyTracker.beginSection(LatencyTracker.Stage.ENCODE);
+            String frame = toSend.toSessionString(sequenceNumber);
+            LatencyTracker.markStage(input, LatencyTracker.Stage.ENCODE);
+            LatencyTracker.endSection();
+
+            sendFrame(frame, Transport.Priority.CONTROL, input);
+        } finally {
+            LatencyTracker.endSection();
+        }
+    }
+
+    /**
+     * Start the presenter service. Called by the Activity onResume()
+     */
+    public synchronized void start() {
+        // Cancel any thread attempting to make a connection
+        if (mConnectThread != null) {
+            mConnectThread.cancel();
+            mConnectThread = null;
+        }
+
+        // Cancel any thread currently running a connection
+        if (mReaderThread != null) {
+            mReaderThread.cancel();
+            mReaderThread = null;
+        }
+    }
+
+    /**
+     * Start the ConnectThread to initiate a connection using the given transport.
+     *
+     * @param transport The transport to connect
+     */
+    public synchronized void connect(Transport transport) {
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "connect to: " + transport.getName());
+        }
+
+        // Cancel any thread attempting to make a connection
+        if (mState == ServiceState.CONNECTING) {
+            if (mConnectThread != null) {
+                mConnectThread.cancel();
+                mConnectThread = null;
+            }
+        }
+
+        // Cancel any thread currently running a connection
+        if (mReaderThread != null) {
+            mReaderThread.cancel();
+            mReaderThread = null;
+        }
+
+        // Start the thread to connect with the given transport
+        mConnectThread = new ConnectThread(transport);
+        mConnectThread.start();
+    }
+
+    /**
+     * Start the ReaderThread to begin managing a connection
+     *
+     * @param transport The transport on which the connection was made
+     */
+    private synchronized void connected(Transport transport) {
+        // Cancel any thread currently running a connection
+        if (mReaderThread != null) {
+            mReaderThread.cancel();
+            mReaderThread = null;
+        }
+
+        // Payloads of the previous connection will never be completed
+        mPayloadReceiver.reset();
+
+        // Start the thread to manage the connection and receive transmissions
+        mReaderThread = new ReaderThread(transport);
+        mReaderThread.start();
+    }
+
+    /**
+     * Stop all threads
+     */
+    public synchronized void stop() {
+        mState = ServiceState.NONE;
+        mCoalescer.cancel();
+
+        if (mConnectThread != null) {
+            mConnectThread.cancel();
+            mConnectThread = null;
+        }
+
+        if (mReaderThread != null) {
+            mReaderThread.cancel();
+            mReaderThread = null;
+        }
+    }
+
+    /**
+     * Will send a given message to the presenter server. If no server is connected, no data is
+     * written.
+     *
+     * @param message The message to send.
+     */
+    protected void sendMessage(PresenterMessage message) {
+        sendMessage(message, null);
+    }
+
+    /**
+     * Will send a given message caused by the given input event to the presenter server. If no
+     * server is connected, no data is written.
+     *
+     * @param message The message to send.
+     * @param input The input event that caused the message, see {@link LatencyTracker}.
+     *              Might be null.
+     */
+    protected void sendMessage(PresenterMessage message, LatencyTracker.InputTrace input) {
+        LatencyTracker.beginSection(LatencyTracker.Stage.ENCODE);
+        String frame = message.toString();
+        LatencyTracker.markStage(input, LatencyTracker.Stage.ENCODE);
+        LatencyTracker.endSection();
+
+        sendFrame(frame, message.getPriority(), input);
+    }
+
+    /**
+     * Will send a given frame to the presenter server using the connected transport. If no
+     * server is connected, no data is written.
+     *
+     * @param frame The frame to send.
+     */
+    protected void sendFrame(String frame) {
+        sendFrame(frame, Transport.Priority.CONTROL, null);
+    }
+
+    /**
+     * Will send a given frame with the given priority to the presenter server using the
+     * connected transport. If no server is connected, no data is written.
+     *
+     * @param frame The frame to send.
+     * @param priority The priority of the frame.
+     * @param input The input event that caused the frame, see {@link LatencyTracker}.
+     *              Might be null.
+     */
+    protected void sendFrame(String frame, Transport.Priority priority,
+                             LatencyTracker.InputTrace input) {
+        Transport transport;
+        synchronized (this) {
+            if (mState == ServiceState.NONE || mReaderThread == null) {
+                return;
+            }
+            transport = mReaderThread.mmTransport;
+        }
+        // Sending does not block, so no need to synchronize
+        transport.send(frame, priority, input);
+    }
+
+    /**
+     * Escapes the given data, so it can be sent as json string.
+     *
+     * @param data The data to escape
+     * @return The escaped data, without the surrounding quotes
+     */
+    private static String escape(String data) {
+        String quoted = JSONObject.quote(data);
+        return quoted.substring(1, quoted.length() - 1);
+    }
+
+    /**
+     * Requests the udp command channel from the server. The server will answer with the port
+     * of the channel, see {@link #onUdpCommandChannelOffered(int)}. Only supported since
+     * protocol version {@link #UDP_COMMAND_CHANNEL_VERSION}.
+     */
+    protected void requestUdpCommandChannel() {
+        sendMessage(new PresenterMessage(MessageType.UDP, ""));
+    }
+
+    /**
+     * Returns if heartbeats can be sent, i.e. if we are connected and the server supports
+     * protocol version {@link #HEARTBEAT_VERSION}.
+     *
+     * @return If heartbeats are supported
+     */
+    public boolean supportsHeartbeat() {
+        return getState() == ServiceState.CONNECTED
+                && mActiveProtocolVersion.getMaxVersion() >= HEARTBEAT_VERSION;
+    }
+
+    /**
+     * Sends a heartbeat to the server. The response is reported to the
+     * {@link HeartbeatListener}. Does nothing if heartbeats are not supported.
+     */
+    public void sendHeartbeat() {
+        if (supportsHeartbeat()) {
+            sendMessage(new PresenterMessage(MessageType.PING,
+                    Long.toString(System.nanoTime() / 1000)));
+        }
+    }
+
+    /**
+     * Returns the time of the last sign of life of the server, i.e. the time of the last
+     * heartbeat response or the time the connection was established.
+     *
+     * @return The time as {@link System#nanoTime()} or 0 if we were never connected
+     */
+    public long getLastHeartbeatResponse() {
+        return mLastHeartbeatResponse;
+    }
+
+    /**
+     * Returns the round trip time of the last heartbeat.
+     *
+     * @return The round trip time in us or -1 if unknown
+     */
+    public long getRoundTripTime() {
+        return mRoundTripTime;
+    }
+
+    /**
+     * Sets the listener that is informed about heartbeat responses.
+     *
+     * @param listener The listener, might be null
+     */
+    public void setHeartbeatListener(HeartbeatListener listener) {
+        mHeartbeatListener = listener;
+    }
+
+    /**
+     * Returns if pointer positions can be streamed, i.e. if we are connected and the server
+     * supports protocol version {@link #POINTER_VERSION}.
+     *
+     * @return If pointer streaming is supported
+     */
+    public boolean supportsPointer() {
+        return getState() == ServiceState.CONNECTED
+                && mActiveProtocolVersion.getMaxVersion() >= POINTER_VERSION;
+    }
+
+    /**
+     * Returns the streamer that sends the pointer positions to the server. It is created on
+     * first use and bound to the looper of the calling thread, usually the ui thread. Only
+     * supported since protocol version {@link #POINTER_VERSION}.
+     *
+     * @return The pointer streamer
+     */
+    public synchronized PointerStreamer getPointerStreamer() {
+        if (mPointerStreamer == null) {
+            mPointerStreamer = new PointerStreamer(mPointerSink);
+        }
+        return mPointerStreamer;
+    }
+
+    /**
+     * Returns the link pointer frames are sent over. Allows to create additional streamers,
+     * e.g. running on another thread. Only supported since protocol version
+     * {@link #POINTER_VERSION}.
+     *
+     * @return The pointer sink of this connection
+     */
+    public PointerStreamer.PointerSink getPointerSink() {
+        return mPointerSink;
+    }
+
+    /**
+     * Returns the number of frames that were sent but are not written to the connection yet.
+     *
+     * @return The number of queued frames, 0 if not connected
+     */
+    public int getQueuedFrames() {
+        Transport transport;
+        synchronized (this) {
+            if (mReaderThread == null) {
+                return 0;
+            }
+            transport = mReaderThread.mmTransport;
+        }
+        return transport.getQueuedFrames();
+    }
+
+    /**
+     * Returns if multipath sessions can be used, i.e. if we are connected and the server
+     * supports protocol version {@link #MULTIPATH_VERSION}.
+     *
+     * @return If multipath sessions are supported
+     */
+    public boolean supportsMultipath() {
+        return getState() == ServiceState.CONNECTED
+                && mActiveProtocolVersion.getMaxVersion() >= MULTIPATH_VERSION;
+    }
+
+    /**
+     * Joins the multipath session with the given id. The server will deduplicate commands sent
+     * with the same sequence number by all connections of the session and acknowledge them.
+     *
+     * @param sessionId The id of the session
+     */
+    public void joinSession(String sessionId) {
+        sendMessage(new PresenterMessage(MessageType.SESSION, sessionId));
+    }
+
+    /**
+     * Sets the listener that is informed about acknowledged commands.
+     *
+     * @param listener The listener, might be null
+     */
+    public void setAckListener(AckListener listener) {
+        mAckListener = listener;
+    }
+
+    /**
+     * Returns if slide thumbnails can be requested, i.e. if we are connected and the server
+     * supports protocol version {@link #THUMBNAIL_VERSION}.
+     *
+     * @return If thumbnails are supported
+     */
+    public boolean supportsThumbnails() {
+        return getState() == ServiceState.CONNECTED
+                && mActiveProtocolVersion.getMaxVersion() >= THUMBNAIL_VERSION;
+    }
+
+    /**
+     * Requests the thumbnail of the given slide. The server will push it like the thumbnails
+     * of the current slide. The request is sent with {@link Transport.Priority#BULK}, so it
+     * does not delay commands. Does nothing if thumbnails are not supported.
+     *
+     * @param slide The slide to request
+     */
+    public void requestThumbnail(int slide) {
+        if (supportsThumbnails()) {
+            sendMessage(new PresenterMessage(MessageType.THUMBNAIL, String.valueOf(slide)));
+        }
+    }
+
+    /**
+     * Sets the cache the thumbnails pushed by the server are decoded into.
+     *
+     * @param cache The cache, might be null to ignore the thumbnails
+     */
+    public void setThumbnailCache(ThumbnailCache cache) {
+        mThumbnailCache = cache;
+    }
+
+    /**
+     * Returns if speaker notes can be requested, i.e. if we are connected and the server
+     * supports protocol version {@link #NOTES_VERSION}.
+     *
+     * @return If speaker notes are supported
+     */
+    public boolean supportsNotes() {
+        return getState() == ServiceState.CONNECTED
+                && mActiveProtocolVersion.getMaxVersion() >= NOTES_VERSION;
+    }
+
+    /**
+     * Requests the full notes of the given slide. The server will push them like the notes of
+     * the current slide. Does nothing if speaker notes are not supported.
+     *
+     * @param slide The slide to request
+     * @param deck The content hash of the presentation
+     * @param revision The revision of the notes we have, -1 if we have none
+     */
+    public void requestNotes(int slide, String deck, int revision) {
+        if (supportsNotes()) {
+            sendMessage(new PresenterMessage(MessageType.NOTES, String.valueOf(slide),
+                    ", \"deck\": \"" + escape(deck) + "\"," +
+                    " \"revision\": \"" + revision + "\""));
+        }
+    }
+
+    /**
+     * Sets the store the speaker notes pushed by the server are applied to.
+     *
+     * @param store The store, might be null to ignore the notes
+     */
+    public void setSpeakerNotes(SpeakerNotesStore store) {
+        mSpeakerNotes = store;
+    }
+
+    /**
+     * Sets the store the presentation state pushed by the server is applied to.
+     *
+     * @param state The store, might be null to ignore the state
+     */
+    public void setPresentationState(PresentationState state) {
+        mPresentationState = state;
+    }
+
+    /**
+     * Returns if the screen can be mirrored, i.e. if we are connected and the server supports
+     * protocol version {@link #MIRROR_VERSION}.
+     *
+     * @return If the screen mirror is supported
+     */
+    public boolean supportsMirror() {
+        return getState() == ServiceState.CONNECTED
+                && mActiveProtocolVersion.getMaxVersion() >= MIRROR_VERSION;
+    }
+
+    /**
+     * Starts the screen mirror of the server or changes its quality. The server answers with
+     * a key frame. Does nothing if the mirror is not supported.
+     *
+     * @param width The width in px the screen should be scaled to
+     * @param frameRate The maximum number of frames per second
+     */
+    public void startMirror(int width, int frameRate) {
+        if (supportsMirror()) {
+            sendMessage(new PresenterMessage(MessageType.MIRROR, "start",
+                    ", \"width\": \"" + width + "\", \"fps\": \"" + frameRate + "\""));
+        }
+    }
+
+    /**
+     * Stops the screen mirror of the server. Does nothing if the mirror is not supported.
+     */
+    public void stopMirror() {
+        if (supportsMirror()) {
+            sendMessage(new PresenterMessage(MessageType.MIRROR, "stop"));
+        }
+    }
+
+    /**
+     * Requests a key frame of the screen mirror, e.g. because a frame was lost. Does nothing
+     * if the mirror is not supported.
+     */
+    public void requestKeyFrame() {
+        if (supportsMirror()) {
+            sendMessage(new PresenterMessage(MessageType.MIRROR, "key"));
+        }
+    }
+
+    /**
+     * Sets the mirror the screen frames pushed by the server are decoded by.
+     *
+     * @param mirror The mirror, might be null to ignore the frames
+     */
+    public void setScreenMirror(ScreenMirror mirror) {
+        mScreenMirror = mirror;
+    }
+
+    /**
+     * Returns if ink can be drawn on the slides, i.e. if we are connected and the server
+     * supports protocol version {@link #INK_VERSION}.
+     *
+     * @return If drawing ink is supported
+     */
+    public boolean supportsInk() {
+        return getState() == ServiceState.CONNECTED
+                && mActiveProtocolVersion.getMaxVersion() >= INK_VERSION;
+    }
+
+    /**
+     * Sends the given ink frame, see {@link InkStreamer}. Does nothing if ink is not
+     * supported.
+     *
+     * @param frame The encoded frame
+     */
+    public void sendInk(String frame) {
+        if (supportsInk()) {
+            sendMessage(new PresenterMessage(MessageType.INK, frame));
+        }
+    }
+
+    /**
+     * Sets the streamer the ink confirmations sent by the server are passed to.
+     *
+     * @param streamer The streamer, might be null to ignore the confirmations
+     */
+    public void setInkStreamer(InkStreamer streamer) {
+        mInkStreamer = streamer;
+    }
+
+    /**
+     * Returns if the clock can be synchronized with the server, i.e. if we are connected and
+     * the server supports protocol version {@link #CLOCK_VERSION}.
+     *
+     * @return If clock synchronization is supported
+     */
+    public boolean supportsClockSync() {
+        return getState() == ServiceState.CONNECTED
+                && mActiveProtocolVersion.getMaxVersion() >= CLOCK_VERSION;
+    }
+
+    /**
+     * Sends a time request, see {@link SynchronizedClock}. Does nothing if clock
+     * synchronization is not supported.
+     *
+     * @param origin The local time in us the request is sent at
+     */
+    public void sendTimeRequest(long origin) {
+        if (supportsClockSync()) {
+            sendMessage(new PresenterMessage(MessageType.TIME, Long.toString(origin)));
+        }
+    }
+
+    /**
+     * Sets the clock the time responses sent by the server are passed to.
+     *
+     * @param clock The clock, might be null to ignore the responses
+     */
+    public void setSynchronizedClock(SynchronizedClock clock) {
+        mSynchronizedClock = clock;
+    }
+
+    /**
+     * Passes the given notes message to the store, either as full notes or as edits.
+     *
+     * @param store The store to update
+     * @param notes The parsed notes message
+     * @throws JSONException If the message is invalid
+     */
+    private static void handleNotes(SpeakerNotesStore store, JSONObject notes)
+            throws JSONException {
+        int slide = notes.getInt("slide");
+        int current = notes.optInt("current", -1);
+        String deck = notes.optString("deck", "");
+        int revision = notes.getInt("revision");
+
+        if (notes.has("text")) {
+            store.onNotes(slide, current, deck, revision, notes.getString("text"));
+            return;
+        }
+
+        JSONArray edits = notes.optJSONArray("edits");
+        List<SpeakerNotesStore.Edit> parsedEdits = new ArrayList<>();
+        for (int i = 0; edits != null && i < edits.length(); i++) {
+            JSONObject edit = edits.getJSONObject(i);
+            parsedEdits.add(new SpeakerNotesStore.Edit(edit.getInt("start"),
+                    edit.optInt("delete", 0), edit.optString("insert", "")));
+        }
+        store.onNotesDiff(slide, current, deck, notes.getInt("base"), revision, parsedEdits);
+    }
+
+    /**
+     * Called once the protocol version was negotiated and we are connected to the server.
+     * Can be used by child classes to negotiate additional features.
+     */
+    protected void onConnected() {
+    }
+
+    /**
+     * Called if the server offers its udp command channel. Ignored by default.
+     *
+     * @param port The port on which the server receives udp commands
+     */
+    protected void onUdpCommandChannelOffered(int port) {
+    }
+
+    /**
+     * Called once the connection to the server was lost.
+     * Can be used by child classes to release resources bound to the connection.
+     */
+    protected void onConnectionLost() {
+    }
+
+    /**
+     * Will disconnect from the server.
+     */
+    public void disconnect() {
+        // This will signal the reader thread to stop reading
+        mState = ServiceState.NONE;
+        mCoalescer.cancel();
+        if (mReaderThread != null) {
+            mReaderThread.cancel();
+        }
+    }
+
+    /**
+     * Indicate that the connection attempt failed and notify the UI Activity.
+     */
+    private void connectionFailed() {
+        // Send a failure message back to the Activity
+        Message msg = mHandler.obtainMessage(ServiceState.ERROR.ordinal());
+        Bundle bundle = new Bundle();
+        bundle.putString(RESULT_VALUES[1], ERROR_TYPES.NO_CONNECTION.toString());
+        msg.setData(bundle);
+        mHandler.sendMessage(msg);
+
+        mState = ServiceState.NONE;
+    }
+
+    /**
+     * Indicate that the connection was lost and notify callback handler.
+     */
+    private void connectionLost() {
+        // Send a failure message back to the handler
+        Message msg = mHandler.obtainMessage(ServiceState.NONE.ordinal());
+        Bundle bundle = new Bundle();
+        msg.setData(bundle);
+        mHandler.sendMessage(msg);
+
+        mState = ServiceState.NONE;
+        onConnectionLost();
+    }
+
+    /**
+     * This thread runs while attempting to make an outgoing connection
+     * with a device. It runs straight through; the connection either
+     * succeeds or fails.
+     */
+    private class ConnectThread extends Thread {
+        private final Transport mmTransport;
+
+        // Stores if the connection is cancelled. Needed to not report an error to the user if
+        // the connection attempt failed because it was cancelled.
+        private boolean cancelled;
+
+        /**
+         * Creates the connection thread that will connect the given transport.
+         *
+         * @param transport The transport to connect
+         */
+        ConnectThread(Transport transport) {
+            cancelled = false;
+            mmTransport = transport;
+            mState = ServiceState.CONNECTING;
+
+            // Notify the user that we are now connecting
+            Message userNotification
+                    = mHandler.obtainMessage(ServiceState.CONNECTING.ordinal());
+            mHandler.sendMessage(userNotification);
+        }
+
+        /**
+         * Initiate the connection.
+         */
+        public void run() {
+            setName("ConnectThread");
+
+            try {
+                mmTransport.open();
+            } catch (IOException e) {
+                Log.e(TAG, "connect failed", e);
+                if (!isCancelled()) {
+                    connectionFailed();
+                }
+                return;
+            }
+
+            // Reset the ConnectThread because we're done
+            synchronized (RemoteControl.this) {
+                if (mConnectThread == this) {
+                    mConnectThread = null;
+                }
+            }
+
+            // Start the reader thread
+            connected(mmTransport);
+        }
+
+        /**
+         * Returns if the connection was cancelled.
+         *
+         * @return If the connection was cancelled.
+         */
+        private synchronized boolean isCancelled() {
+            return cancelled;
+        }
+
+        /**
+         * Cancel connection to the device.
+         */
+        void cancel() {
+            synchronized (this) {
+                cancelled = true;
+            }
+            mmTransport.close();
+        }
+    }
+
+    /**
+     * This thread runs during a connection with a remote device.
+     * It handles all incoming transmissions.
+     */
+    private class ReaderThread extends Thread {
+        private final Transport mmTransport;
+
+        /**
+         * Initiate the transmission using a given transport.
+         *
+         * @param transport The connected transport
+         */
+        ReaderThread(Transport transport) {
+            mmTransport = transport;
+            // State will be set to connected once the version information is exchanged and we
+            // found a common protocol version set to use.
+        }
+
+        /**
+         * Try reading from transport to wait until connection is lost.
+         */
+        public void run() {
+            setName("ReaderThread");
+
+            // Keep listening to the transport while connected
+            while (mState != ServiceState.NONE) {
+                try {
+                    String frame = mmTransport.receive();
+                    if (frame != null) {
+                        handleMessage(mmTransport.getName(), frame);
+                    }
+                } catch (IOException e) {
+                    // Ignore exception if we already recognized that we are disconnected
+                    if (mState != ServiceState.NONE) {
+                        Log.e(TAG, "disconnected", e);
+                        connectionLost();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Cancel connection to other device.
+         */
+        void cancel() {
+            mmTransport.close();
+            try {
+                // Wait some time until the thread is really closed
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Log.e(TAG, "closing of transport interrupted", e);
+            }
+        }
+    }
 }
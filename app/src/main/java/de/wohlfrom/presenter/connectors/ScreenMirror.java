@@ -0,0 +1,427 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Presenter. Android Client to remote control a presentation.          *
+ *  Copyright (C) 2019 Felix Wohlfrom                                    *
+ *                                                                       *
+ *  This program is free software: you can redistribute it and/or modify *
+ *  it under the terms of the GNU General Public License as published by *
+ *  the Free Software Foundation, either version 3 of the License, or    *
+ *  (at your option) any later version.                                  *
+ *                                                                       *
+ *  This program is distributed in the hope that it will be useful,      *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of       *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the        *
+ *  GNU General Public License for more details.                         *
+ *                                                                       *
+ *  You should have received a copy of the GNU General Public License    *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.*
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+
+package de.wohlfrom.presenter.connectors;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+
+import de.wohlfrom.presenter.BuildConfig;
+
+/**
+ * Shows a live, low resolution mirror of the screen of the presenter pc. The server sends the
+ * screen as frame diffs containing only the tiles that changed since the previous frame, see
+ * {@link MirrorFrame}. A key frame containing all tiles is sent when the mirror is started,
+ * if the resolution changed or if the client requests it because a frame was lost.
+ *
+ * The frames are decoded on a background thread into a reused pixel buffer. The result is
+ * copied into one of two bitmaps that are swapped with the displayed one, so no memory is
+ * allocated per frame and the displayed bitmap is never written while it is drawn. If frames
+ * arrive faster than they are displayed, only the latest state is shown.
+ *
+ * A {@link MirrorController} adapts the resolution and frame rate requested from the server to
+ * the round trip time and the number of frames waiting for decoding. The listener is informed
+ * on the thread of the looper the mirror was created on, usually the ui thread.
+ */
+public class ScreenMirror {
+    // Debugging
+    private static final String TAG = "ScreenMirror";
+
+    /**
+     * Listener interface that is informed about new frames.
+     */
+    public interface MirrorListener {
+        /**
+         * Called if a new frame is available. The bitmap stays valid until the next call.
+         *
+         * @param frame The frame to display
+         */
+        void onMirrorFrame(Bitmap frame);
+    }
+
+    /**
+     * Interface used to control the mirror stream of the server.
+     */
+    public interface MirrorRequester {
+        /**
+         * Starts the mirror stream or changes its quality.
+         *
+         * @param width The width in px the screen should be scaled to
+         * @param frameRate The maximum number of frames per second
+         */
+        void startMirror(int width, int frameRate);
+
+        /**
+         * Stops the mirror stream.
+         */
+        void stopMirror();
+
+        /**
+         * Requests a key frame containing all tiles.
+         */
+        void requestKeyFrame();
+    }
+
+    private final Executor mDecoder;
+    private final Handler mHandler;
+    private final MirrorController mController = new MirrorController();
+
+    /**
+     * The composited screen. Only accessed on the decoder thread.
+     */
+    private final MirrorFrame mFrame = new MirrorFrame();
+
+    /**
+     * The number of the last decoded frame and if a key frame was requested. Only accessed on
+     * the decoder thread.
+     */
+    private long mLastFrame = -1;
+    private boolean mKeyFrameRequested = false;
+
+    /**
+     * The displayed bitmap, owned by the handler thread, and the bitmap the next frame is
+     * copied into, owned by the decoder thread unless a swap is pending.
+     */
+    private Bitmap mShown = null;
+    private Bitmap mBack = null;
+    private boolean mSwapPending = false;
+
+    /**
+     * If the frame changed since it was copied the last time.
+     */
+    private volatile boolean mDirty = false;
+
+    private final AtomicInteger mQueuedFrames = new AtomicInteger();
+    private volatile boolean mActive = false;
+    private volatile MirrorRequester mRequester = null;
+    private MirrorListener mListener = null;
+
+    /**
+     * Statistics.
+     */
+    private final AtomicInteger mReceived = new AtomicInteger();
+    private int mDecoded = 0;
+    private int mLost = 0;
+    private int mTiles = 0;
+    private int mDisplayed = 0;
+    private final LatencyHistogram mDecodeTime = new LatencyHistogram();
+
+    /**
+     * Creates a new mirror decoding on a background thread.
+     */
+    public ScreenMirror() {
+        this(Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "MirrorDecoder")));
+    }
+
+    /**
+     * Creates a new mirror.
+     *
+     * @param decoder The executor decoding the frames, needs to run the tasks in order
+     */
+    ScreenMirror(Executor decoder) {
+        mDecoder = decoder;
+        mHandler = new Handler();
+    }
+
+    /**
+     * Sets the requester used to control the stream of the server.
+     *
+     * @param requester The requester, might be null
+     */
+    public void setRequester(MirrorRequester requester) {
+        mRequester = requester;
+    }
+
+    /**
+     * Sets the listener that is informed about new frames.
+     *
+     * @param listener The listener, might be null
+     */
+    public void setListener(MirrorListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Starts the mirror with the start quality of the {@link MirrorController}.
+     */
+    public void start() {
+        int width;
+        int frameRate;
+        synchronized (mController) {
+            mController.reset();
+            width = mController.getWidth();
+            frameRate = mController.getFrameRate();
+        }
+
+        mActive = true;
+        MirrorRequester requester = mRequester;
+        if (requester != null) {
+            requester.startMirror(width, frameRate);
+        }
+    }
+
+    /**
+     * Stops the mirror. Frames received afterwards are ignored.
+     */
+    public void stop() {
+        if (!mActive) {
+            return;
+        }
+
+        mActive = false;
+        MirrorRequester requester = mRequester;
+        if (requester != null) {
+            requester.stopMirror();
+        }
+    }
+
+    /**
+     * Returns if the mirror is started.
+     *
+     * @return If the mirror is started
+     */
+    public boolean isActive() {
+        return mActive;
+    }
+
+    /**
+     * Queues a frame received from the server for decoding and adapts the quality of the
+     * stream. Called on the thread receiving the frames.
+     *
+     * @param frame The frame as json string
+     * @param roundTripTime The current round trip time in us, -1 if unknown
+     */
+    public void onFrame(String frame, long roundTripTime) {
+        if (!mActive) {
+            return;
+        }
+        mReceived.incrementAndGet();
+
+        // Frames waiting for the decoder are a sign that we receive more than we can handle
+        int queuedFrames = mQueuedFrames.getAndIncrement();
+        boolean changed;
+        int width;
+        int frameRate;
+        synchronized (mController) {
+            changed = mController.onSample(roundTripTime, queuedFrames);
+            width = mController.getWidth();
+            frameRate = mController.getFrameRate();
+        }
+        MirrorRequester requester = mRequester;
+        if (changed && requester != null) {
+            requester.startMirror(width, frameRate);
+        }
+
+        try {
+            mDecoder.execute(() -> {
+                try {
+                    decode(frame);
+                } finally {
+                    mQueuedFrames.decrementAndGet();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // The mirror was shut down
+            mQueuedFrames.decrementAndGet();
+        }
+    }
+
+    /**
+     * Applies a frame to the composited screen. Runs on the decoder thread.
+     *
+     * @param frame The frame as json string
+     */
+    private void decode(String frame) {
+        long start = System.nanoTime();
+        try {
+            JSONObject parser = new JSONObject(frame);
+            long number = parser.getLong("frame");
+            int width = parser.getInt("width");
+            int height = parser.getInt("height");
+
+            if (parser.optBoolean("key", false)) {
+                mFrame.resize(width, height);
+                mKeyFrameRequested = false;
+            } else if (number != mLastFrame + 1 || !mFrame.hasSize(width, height)) {
+                // Diffs are based on the previous frame, so we need a key frame to continue
+                mLost++;
+                requestKeyFrame();
+                return;
+            }
+            mLastFrame = number;
+
+            JSONArray tiles = parser.getJSONArray("tiles");
+            for (int i = 0; i < tiles.length(); i++) {
+                JSONObject tile = tiles.getJSONObject(i);
+                mFrame.applyTile(tile.getInt("x"), tile.getInt("y"), tile.getInt("w"),
+                        tile.getInt("h"), tile.getString("data"));
+            }
+            mTiles += tiles.length();
+        } catch (JSONException | DataFormatException | IllegalArgumentException e) {
+            if (BuildConfig.DEBUG) {
+                Log.w(TAG, "Invalid mirror frame", e);
+            }
+            mLost++;
+            mLastFrame = -1;
+            requestKeyFrame();
+            return;
+        }
+
+        mDecoded++;
+        mDecodeTime.record((System.nanoTime() - start) / 1000);
+        mDirty = true;
+        publish();
+    }
+
+    /**
+     * Requests a key frame, if not already requested. Runs on the decoder thread.
+     */
+    private void requestKeyFrame() {
+        MirrorRequester requester = mRequester;
+        if (!mKeyFrameRequested && mActive && requester != null) {
+            mKeyFrameRequested = true;
+            requester.requestKeyFrame();
+        }
+    }
+
+    /**
+     * Copies the composited screen into the back bitmap and schedules the swap with the
+     * displayed bitmap. Does nothing if the last swap did not happen yet, the swap will
+     * publish the frame again. Runs on the decoder thread.
+     */
+    private void publish() {
+        synchronized (this) {
+            if (mSwapPending || mFrame.getWidth() == 0) {
+                return;
+            }
+            mSwapPending = true;
+        }
+        mDirty = false;
+
+        int width = mFrame.getWidth();
+        int height = mFrame.getHeight();
+        if (mBack == null || mBack.getWidth() != width || mBack.getHeight() != height) {
+            mBack = Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565);
+        }
+        mBack.setPixels(mFrame.getPixels(), 0, width, 0, 0, width, height);
+        mHandler.post(this::swap);
+    }
+
+    /**
+     * Displays the back bitmap. Runs on the thread of the handler.
+     */
+    private void swap() {
+        Bitmap shown;
+        synchronized (this) {
+            shown = mBack;
+            mBack = mShown;
+            mShown = shown;
+            mSwapPending = false;
+        }
+        mDisplayed++;
+
+        if (mListener != null) {
+            mListener.onMirrorFrame(shown);
+        }
+
+        // Frames decoded while the swap was pending were not published yet
+        if (mDirty) {
+            try {
+                mDecoder.execute(this::publish);
+            } catch (RejectedExecutionException e) {
+                // The mirror was shut down
+            }
+        }
+    }
+
+    /**
+     * Returns the frame currently displayed. Only call on the thread of the looper the mirror
+     * was created on.
+     *
+     * @return The frame, null if no frame was received yet
+     */
+    public Bitmap getFrame() {
+        return mShown;
+    }
+
+    /**
+     * Returns the width currently requested from the server.
+     *
+     * @return The width in px
+     */
+    public int getRequestedWidth() {
+        synchronized (mController) {
+            return mController.getWidth();
+        }
+    }
+
+    /**
+     * Returns the frame rate currently requested from the server.
+     *
+     * @return The frame rate in frames per second
+     */
+    public int getRequestedFrameRate() {
+        synchronized (mController) {
+            return mController.getFrameRate();
+        }
+    }
+
+    /**
+     * Stops the background decoding. Frames still being decoded are dropped.
+     */
+    public void shutdown() {
+        mActive = false;
+        if (mDecoder instanceof ExecutorService) {
+            ((ExecutorService) mDecoder).shutdownNow();
+        }
+        mHandler.removeCallbacksAndMessages(null);
+
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "Mirror statistics: " + this);
+        }
+    }
+
+    @Override
+    public String toString() {
+        String controller;
+        synchronized (mController) {
+            controller = mController.toString();
+        }
+        return "{ " +
+                "\"received\": \"" + mReceived.get() + "\"," +
+                "\"decoded\": \"" + mDecoded + "\"," +
+                "\"displayed\": \"" + mDisplayed + "\"," +
+                "\"lost\": \"" + mLost + "\"," +
+                "\"tiles\": \"" + mTiles + "\"," +
+                "\"controller\": " + controller + "," +
+                "\"decodeTime\": " + mDecodeTime +
+                "}";
+    }
+}
@@ -0,0 +1,283 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Presenter. Android Client to remote control a presentation.          *
+ *  Copyright (C) 2019 Felix Wohlfrom                                    *
+ *                                                                       *
+ *  This program is free software: you can redistribute it and/or modify *
+ *  it under the terms of the GNU General Public License as published by *
+ *  the Free Software Foundation, either version 3 of the License, or    *
+ *  (at your option) any later version.                                  *
+ *                                                                       *
+ *  This program is distributed in the hope that it will be useful,      *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of       *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the        *
+ *  GNU General Public License for more details.                         *
+ *                                                                       *
+ *  You should have received a copy of the GNU General Public License    *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.*
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+
+package de.wohlfrom.presenter.connectors;
+
+import java.io.File;
+
+/**
+ * Holds the features of a connection to a server that outlive the presenter fragment: the
+ * thumbnails, speaker notes, presentation state, screen mirror, ink, auto advance scheduler
+ * and synchronized clock. The requests of these features are sent using the connection that
+ * is currently active, so they keep working if a connector switches connections.
+ */
+public class SessionFeatures implements ScreenMirror.MirrorRequester, InkStreamer.InkSink,
+        AutoAdvanceScheduler.AdvanceSink, SynchronizedClock.TimeSink {
+
+    /**
+     * Resolves the connection the requests of the features are sent over.
+     */
+    public interface ControlProvider {
+        /**
+         * Returns the connection that is currently used for commands.
+         *
+         * @return The active connection, null if there is none
+         */
+        RemoteControl getActiveControl();
+    }
+
+    private final ControlProvider mControls;
+
+    private final ThumbnailCache mThumbnails = new ThumbnailCache();
+    private final SpeakerNotesStore mNotes = new SpeakerNotesStore();
+    private final PresentationState mPresentationState = new PresentationState();
+    private final ScreenMirror mMirror = new ScreenMirror();
+    private final InkStreamer mInk = new InkStreamer(this);
+    private final AutoAdvanceScheduler mScheduler = new AutoAdvanceScheduler(this);
+    private final SynchronizedClock mClock = new SynchronizedClock(this);
+
+    /**
+     * Creates the features. Needs to be called on the ui thread.
+     *
+     * @param cacheDir The directory the slide assets are stored in
+     * @param controls Resolves the connection the requests are sent over
+     */
+    public SessionFeatures(File cacheDir, ControlProvider controls) {
+        mControls = controls;
+
+        // Request the thumbnails of the following slides while the presenter talks
+        mThumbnails.setPrefetcher(new ThumbnailPrefetcher(mThumbnails, this::requestThumbnail));
+        mThumbnails.setAssetStore(new SlideAssetStore(
+                new File(cacheDir, SlideAssetStore.DEFAULT_FILE_NAME)));
+        mNotes.setRequester(this::requestNotes);
+        mMirror.setRequester(this);
+    }
+
+    /**
+     * Passes everything the server pushes using the given connection to the features.
+     *
+     * @param control The connection to attach
+     */
+    public void attach(RemoteControl control) {
+        control.setThumbnailCache(mThumbnails);
+        control.setSpeakerNotes(mNotes);
+        control.setPresentationState(mPresentationState);
+        control.setScreenMirror(mMirror);
+        control.setInkStreamer(mInk);
+        control.setSynchronizedClock(mClock);
+    }
+
+    /**
+     * Starts the features that run for the whole connection, if supported by the server.
+     */
+    public void onConnected() {
+        RemoteControl control = mControls.getActiveControl();
+        if (control != null && control.supportsClockSync()) {
+            mClock.start();
+        }
+    }
+
+    /**
+     * Stops all features and drops everything the server pushed, e.g. if the user left the
+     * presenter.
+     */
+    public void clear() {
+        mThumbnails.clear();
+        mNotes.clear();
+        mPresentationState.clear();
+        mMirror.stop();
+        mInk.cancel();
+        mScheduler.stop();
+        mClock.stop();
+    }
+
+    /**
+     * Stops all features and releases their threads. The features can't be used afterwards.
+     */
+    public void shutdown() {
+        mThumbnails.shutdown();
+        mMirror.shutdown();
+        mInk.cancel();
+        mScheduler.shutdown();
+        mClock.shutdown();
+    }
+
+    /**
+     * Returns the cache holding the thumbnails pushed by the server. Only filled if the server
+     * supports protocol version {@link RemoteControl#THUMBNAIL_VERSION}.
+     *
+     * @return The thumbnail cache
+     */
+    public ThumbnailCache getThumbnailCache() {
+        return mThumbnails;
+    }
+
+    /**
+     * Returns the store holding the speaker notes pushed by the server. Only filled if the
+     * server supports protocol version {@link RemoteControl#NOTES_VERSION}.
+     *
+     * @return The speaker notes store
+     */
+    public SpeakerNotesStore getSpeakerNotes() {
+        return mNotes;
+    }
+
+    /**
+     * Returns the store holding the presentation state pushed by the server. Only filled if the
+     * server supports protocol version {@link RemoteControl#STATE_VERSION}.
+     *
+     * @return The presentation state
+     */
+    public PresentationState getPresentationState() {
+        return mPresentationState;
+    }
+
+    /**
+     * Returns the mirror of the screen of the server. Only streams if the server supports
+     * protocol version {@link RemoteControl#MIRROR_VERSION}.
+     *
+     * @return The screen mirror
+     */
+    public ScreenMirror getScreenMirror() {
+        return mMirror;
+    }
+
+    /**
+     * Returns the streamer sending the ink to the server.
+     *
+     * @return The ink streamer, null if the connected server does not support protocol version
+     *         {@link RemoteControl#INK_VERSION}
+     */
+    public InkStreamer getInkStreamer() {
+        RemoteControl control = mControls.getActiveControl();
+        return control != null && control.supportsInk() ? mInk : null;
+    }
+
+    /**
+     * Returns the scheduler advancing the slides automatically. The scheduler is owned by the
+     * connection, so a running schedule survives the recreation of the presenter.
+     *
+     * @return The auto advance scheduler
+     */
+    public AutoAdvanceScheduler getAutoAdvanceScheduler() {
+        return mScheduler;
+    }
+
+    /**
+     * Returns the clock synchronized with the server.
+     *
+     * @return The synchronized clock, null if the connected server does not support protocol
+     *         version {@link RemoteControl#CLOCK_VERSION}
+     */
+    public SynchronizedClock getSynchronizedClock() {
+        RemoteControl control = mControls.getActiveControl();
+        return control != null && control.supportsClockSync() ? mClock : null;
+    }
+
+    @Override
+    public void startMirror(int width, int frameRate) {
+        RemoteControl control = mControls.getActiveControl();
+        if (control != null) {
+            control.startMirror(width, frameRate);
+        }
+    }
+
+    @Override
+    public void stopMirror() {
+        RemoteControl control = mControls.getActiveControl();
+        if (control != null) {
+            control.stopMirror();
+        }
+    }
+
+    @Override
+    public void requestKeyFrame() {
+        RemoteControl control = mControls.getActiveControl();
+        if (control != null) {
+            control.requestKeyFrame();
+        }
+    }
+
+    @Override
+    public void sendInk(String frame) {
+        RemoteControl control = mControls.getActiveControl();
+        if (control != null) {
+            control.sendInk(frame);
+        }
+    }
+
+    @Override
+    public int getQueuedFrames() {
+        RemoteControl control = mControls.getActiveControl();
+        return control != null ? control.getQueuedFrames() : 0;
+    }
+
+    @Override
+    public void sendTimeRequest(long origin) {
+        RemoteControl control = mControls.getActiveControl();
+        if (control != null) {
+            control.sendTimeRequest(origin);
+        }
+    }
+
+    @Override
+    public String encodeCommand(Command command) {
+        RemoteControl control = mControls.getActiveControl();
+        return control != null ? control.encodeCommand(command) : null;
+    }
+
+    @Override
+    public String encodeAdvance(int slides) {
+        RemoteControl control = mControls.getActiveControl();
+        return control != null ? control.encodeAdvance(slides) : null;
+    }
+
+    @Override
+    public void sendEncoded(String frame) {
+        RemoteControl control = mControls.getActiveControl();
+        if (control != null) {
+            control.sendEncoded(frame);
+        }
+    }
+
+    /**
+     * Requests the full speaker notes of the given slide from the server.
+     *
+     * @param slide The slide to request
+     * @param deck The content hash of the presentation
+     * @param revision The revision of the notes we have, -1 if we have none
+     */
+    private void requestNotes(int slide, String deck, int revision) {
+        RemoteControl control = mControls.getActiveControl();
+        if (control != null) {
+            control.requestNotes(slide, deck, revision);
+        }
+    }
+
+    /**
+     * Requests the thumbnail of the given slide from the server.
+     *
+     * @param slide The slide to request
+     */
+    private void requestThumbnail(int slide) {
+        RemoteControl control = mControls.getActiveControl();
+        if (control != null) {
+            control.requestThumbnail(slide);
+        }
+    }
+}
@@ -0,0 +1,475 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Presenter. Android Client to remote control a presentation.          *
+ *  Copyright (C) 2019 Felix Wohlfrom                                    *
+ *                                                                       *
+ *  This program is free software: you can redistribute it and/or modify *
+ *  it under the terms of the GNU General Public License as published by *
+ *  the Free Software Foundation, either version 3 of the License, or    *
+ *  (at your option) any later version.                                  *
+ *                                                                       *
+ *  This program is distributed in the hope that it will be useful,      *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of       *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the        *
+ *  GNU General Public License for more details.                         *
+ *                                                                       *
+ *  You should have received a copy of the GNU General Public License    *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.*
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+
+package de.wohlfrom.presenter.connectors;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Stores the encoded slide thumbnails on disk, so they survive reconnects and restarts of the
+ * app. The thumbnails are identified by the content hash of the presentation, as sent by the
+ * server, and the slide number.
+ *
+ * All thumbnails are appended to a single file, which is memory mapped for reading. The index
+ * is kept in memory and rebuilt by scanning the file when the store is used the first time.
+ * A thumbnail stored again for the same slide replaces the older one in the index. If the file
+ * grows above its maximum size, it is compacted: the most recently used thumbnails are copied
+ * to a new file and everything else is dropped.
+ *
+ * Each record consists of the length of the presentation hash, the hash itself, the slide, the
+ * length of the data and the data. A record that was not written completely, e.g. because the
+ * app was killed, is cut off when scanning the file.
+ *
+ * If the file can not be accessed, the store stays empty.
+ */
+public class SlideAssetStore {
+    // Debugging
+    private static final String TAG = "SlideAssetStore";
+
+    /**
+     * The default name of the store file within the cache directory of the app.
+     */
+    public static final String DEFAULT_FILE_NAME = "thumbnails";
+
+    /**
+     * The default maximum size of the store file in bytes.
+     */
+    public static final long DEFAULT_MAX_SIZE = 32 * 1024 * 1024;
+
+    /**
+     * The part of the maximum size that is kept when compacting the file.
+     */
+    private static final int COMPACTED_FRACTION = 2;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * The position of a stored thumbnail within the file.
+     */
+    private static final class Entry {
+        private final String mmDeck;
+        private final int mmSlide;
+        private final long mmOffset;
+        private final int mmLength;
+
+        Entry(String deck, int slide, long offset, int length) {
+            mmDeck = deck;
+            mmSlide = slide;
+            mmOffset = offset;
+            mmLength = length;
+        }
+    }
+
+    private final File mPath;
+    private final long mMaxSize;
+
+    /**
+     * The stored thumbnails in the order of their last use.
+     */
+    private final LinkedHashMap<String, Entry> mIndex = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * The keys of the stored thumbnails. Can be read without locking the store.
+     */
+    private final Set<String> mKeys =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private RandomAccessFile mFile = null;
+    private FileChannel mChannel = null;
+    private MappedByteBuffer mMap = null;
+    private long mSize = 0;
+    private boolean mFailed = false;
+    private boolean mClosed = false;
+
+    /**
+     * Statistics.
+     */
+    private int mHits = 0;
+    private int mMisses = 0;
+    private int mCompactions = 0;
+
+    /**
+     * Creates a new store using the {@link #DEFAULT_MAX_SIZE}. The file is not accessed until
+     * the store is used.
+     *
+     * @param path The file to store the thumbnails in
+     */
+    public SlideAssetStore(File path) {
+        this(path, DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * Creates a new store. The file is not accessed until the store is used.
+     *
+     * @param path The file to store the thumbnails in
+     * @param maxSize The maximum size of the file in bytes
+     */
+    public SlideAssetStore(File path, long maxSize) {
+        mPath = path;
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Opens the file and reads the index, if not done yet. Should be called on a background
+     * thread before the store is used.
+     *
+     * @return If the store can be used
+     */
+    public synchronized boolean open() {
+        if (mChannel != null) {
+            return true;
+        }
+        if (mFailed || mClosed) {
+            return false;
+        }
+
+        try {
+            File directory = mPath.getParentFile();
+            if (directory != null && !directory.exists() && !directory.mkdirs()) {
+                throw new IOException("Could not create " + directory);
+            }
+
+            mFile = new RandomAccessFile(mPath, "rw");
+            mChannel = mFile.getChannel();
+            scan();
+            return true;
+        } catch (IOException e) {
+            fail(e);
+            return false;
+        }
+    }
+
+    /**
+     * Reads the index from the file and cuts off an incomplete record at its end.
+     *
+     * @throws IOException If the file could not be read
+     */
+    private void scan() throws IOException {
+        mIndex.clear();
+        mKeys.clear();
+
+        long fileSize = mChannel.size();
+        map(fileSize);
+
+        long position = 0;
+        while (position + 2 <= fileSize) {
+            int deckLength = mMap.getShort((int) position) & 0xffff;
+            long slidePosition = position + 2 + deckLength;
+            if (slidePosition + 8 > fileSize) {
+                break;
+            }
+
+            byte[] deck = new byte[deckLength];
+            ByteBuffer buffer = mMap.duplicate();
+            buffer.position((int) position + 2);
+            buffer.get(deck);
+
+            int slide = mMap.getInt((int) slidePosition);
+            int length = mMap.getInt((int) slidePosition + 4);
+            long offset = slidePosition + 8;
+            if (length < 0 || offset + length > fileSize) {
+                break;
+            }
+
+            addEntry(new Entry(new String(deck, UTF_8), slide, offset, length));
+            position = offset + length;
+        }
+
+        if (position < fileSize) {
+            Log.w(TAG, "Dropping incomplete record at " + position);
+            mChannel.truncate(position);
+            map(position);
+        }
+        mSize = position;
+    }
+
+    /**
+     * Maps the given number of bytes of the file.
+     *
+     * @param size The number of bytes to map
+     * @throws IOException If the file could not be mapped
+     */
+    private void map(long size) throws IOException {
+        mMap = mChannel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+    }
+
+    /**
+     * Returns the key of the given thumbnail.
+     *
+     * @param deck The hash of the presentation
+     * @param slide The slide
+     * @return The key
+     */
+    private static String keyOf(String deck, int slide) {
+        return deck + "/" + slide;
+    }
+
+    /**
+     * Adds the given entry to the index.
+     *
+     * @param entry The entry to add
+     */
+    private void addEntry(Entry entry) {
+        String key = keyOf(entry.mmDeck, entry.mmSlide);
+        mIndex.put(key, entry);
+        mKeys.add(key);
+    }
+
+    /**
+     * Returns if the given thumbnail is stored. Does not block, so it can be called on the ui
+     * thread. Returns false as long as the store was not opened.
+     *
+     * @param deck The hash of the presentation
+     * @param slide The slide
+     * @return If the thumbnail is stored
+     */
+    public boolean contains(String deck, int slide) {
+        return mKeys.contains(keyOf(deck, slide));
+    }
+
+    /**
+     * Reads the given thumbnail.
+     *
+     * @param deck The hash of the presentation
+     * @param slide The slide
+     * @return The encoded thumbnail or null, if it is not stored
+     */
+    public synchronized byte[] get(String deck, int slide) {
+        Entry entry = open() ? mIndex.get(keyOf(deck, slide)) : null;
+        if (entry == null) {
+            mMisses++;
+            return null;
+        }
+
+        try {
+            // Thumbnails appended after mapping the file are not mapped yet
+            if (entry.mmOffset + entry.mmLength > mMap.capacity()) {
+                map(mSize);
+            }
+        } catch (IOException e) {
+            fail(e);
+            return null;
+        }
+
+        byte[] data = new byte[entry.mmLength];
+        ByteBuffer buffer = mMap.duplicate();
+        buffer.position((int) entry.mmOffset);
+        buffer.get(data);
+        mHits++;
+        return data;
+    }
+
+    /**
+     * Appends the given thumbnail to the store. Compacts the file first, if it would grow
+     * above its maximum size.
+     *
+     * @param deck The hash of the presentation
+     * @param slide The slide
+     * @param data The encoded thumbnail
+     */
+    public synchronized void put(String deck, int slide, byte[] data) {
+        byte[] deckBytes = deck.getBytes(UTF_8);
+        long recordLength = 2 + deckBytes.length + 8 + data.length;
+        if (deckBytes.length > 0xffff || recordLength > mMaxSize / COMPACTED_FRACTION
+                || !open()) {
+            return;
+        }
+
+        try {
+            if (mSize + recordLength > mMaxSize) {
+                compact(mMaxSize / COMPACTED_FRACTION - recordLength);
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(2 + deckBytes.length + 8);
+            header.putShort((short) deckBytes.length);
+            header.put(deckBytes);
+            header.putInt(slide);
+            header.putInt(data.length);
+            header.flip();
+
+            long offset = mSize + header.remaining();
+            write(header, mSize);
+            write(ByteBuffer.wrap(data), offset);
+            mSize = offset + data.length;
+
+            addEntry(new Entry(deck, slide, offset, data.length));
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Writes the given buffer completely at the given position of the file.
+     *
+     * @param buffer The buffer to write
+     * @param position The position in the file
+     * @throws IOException If writing failed
+     */
+    private void write(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += mChannel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Replaces the file by a file only containing the most recently used thumbnails.
+     *
+     * @param targetSize The maximum size of the compacted file
+     * @throws IOException If the file could not be compacted
+     */
+    private void compact(long targetSize) throws IOException {
+        map(mSize);
+
+        // Keep the most recently used thumbnails, the index is ordered from least recent use
+        List<Entry> entries = new ArrayList<>(mIndex.values());
+        List<Entry> kept = new ArrayList<>();
+        long size = 0;
+        for (int i = entries.size() - 1; i >= 0; i--) {
+            Entry entry = entries.get(i);
+            long recordLength = 2 + entry.mmDeck.getBytes(UTF_8).length + 8 + entry.mmLength;
+            if (size + recordLength > targetSize) {
+                break;
+            }
+            kept.add(0, entry);
+            size += recordLength;
+        }
+
+        File compacted = new File(mPath.getPath() + ".tmp");
+        try (RandomAccessFile file = new RandomAccessFile(compacted, "rw")) {
+            file.setLength(0);
+            FileChannel channel = file.getChannel();
+            for (Entry entry : kept) {
+                byte[] deckBytes = entry.mmDeck.getBytes(UTF_8);
+                ByteBuffer header = ByteBuffer.allocate(2 + deckBytes.length + 8);
+                header.putShort((short) deckBytes.length);
+                header.put(deckBytes);
+                header.putInt(entry.mmSlide);
+                header.putInt(entry.mmLength);
+                header.flip();
+                channel.write(header);
+
+                ByteBuffer data = mMap.duplicate();
+                data.position((int) entry.mmOffset);
+                data.limit((int) entry.mmOffset + entry.mmLength);
+                channel.write(data);
+            }
+        }
+
+        closeFile();
+        if (!compacted.renameTo(mPath)) {
+            throw new IOException("Could not replace " + mPath);
+        }
+
+        mFile = new RandomAccessFile(mPath, "rw");
+        mChannel = mFile.getChannel();
+        scan();
+        mCompactions++;
+    }
+
+    /**
+     * Disables the store after an error.
+     *
+     * @param e The error
+     */
+    private void fail(IOException e) {
+        Log.w(TAG, "Slide asset store not available", e);
+        mFailed = true;
+        closeFile();
+        mIndex.clear();
+        mKeys.clear();
+    }
+
+    /**
+     * Closes the file, if opened.
+     */
+    private void closeFile() {
+        mMap = null;
+        mChannel = null;
+        if (mFile != null) {
+            try {
+                mFile.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Could not close slide asset store", e);
+            }
+            mFile = null;
+        }
+    }
+
+    /**
+     * Closes the store. It stays empty afterwards.
+     */
+    public synchronized void close() {
+        mClosed = true;
+        closeFile();
+        mIndex.clear();
+        mKeys.clear();
+    }
+
+    /**
+     * Returns the size of the file.
+     *
+     * @return The size in bytes
+     */
+    public synchronized long getSize() {
+        return mSize;
+    }
+
+    /**
+     * Returns the number of stored thumbnails.
+     *
+     * @return The number of thumbnails
+     */
+    public synchronized int getEntries() {
+        return mIndex.size();
+    }
+
+    /**
+     * Returns how often the file was compacted.
+     *
+     * @return The number of compactions
+     */
+    public synchronized int getCompactions() {
+        return mCompactions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "{ " +
+                "\"entries\": \"" + mIndex.size() + "\"," +
+                "\"size\": \"" + mSize + "\"," +
+                "\"maxSize\": \"" + mMaxSize + "\"," +
+                "\"hits\": \"" + mHits + "\"," +
+                "\"misses\": \"" + mMisses + "\"," +
+                "\"compactions\": \"" + mCompactions + "\"" +
+                "}";
+    }
+}
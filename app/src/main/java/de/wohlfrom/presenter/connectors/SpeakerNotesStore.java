@@ -0,0 +1,393 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Presenter. Android Client to remote control a presentation.          *
+ *  Copyright (C) 2019 Felix Wohlfrom                                    *
+ *                                                                       *
+ *  This program is free software: you can redistribute it and/or modify *
+ *  it under the terms of the GNU General Public License as published by *
+ *  the Free Software Foundation, either version 3 of the License, or    *
+ *  (at your option) any later version.                                  *
+ *                                                                       *
+ *  This program is distributed in the hope that it will be useful,      *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of       *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the        *
+ *  GNU General Public License for more details.                         *
+ *                                                                       *
+ *  You should have received a copy of the GNU General Public License    *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.*
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+
+package de.wohlfrom.presenter.connectors;
+
+import android.os.Handler;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import de.wohlfrom.presenter.BuildConfig;
+
+/**
+ * Holds the speaker notes pushed by the server. The server sends the notes of each slide once
+ * and afterwards only the edits of the notes, based on the revision the client already has.
+ * If the revision does not match, e.g. because the notes were never received, the full notes
+ * are requested again.
+ *
+ * The notes are stored per presentation, identified by its content hash, so switching back to
+ * a recently shown presentation does not need to transfer its notes again.
+ *
+ * All updates are applied and the listener is informed on the thread of the looper the store
+ * was created on, usually the ui thread.
+ */
+public class SpeakerNotesStore {
+    // Debugging
+    private static final String TAG = "SpeakerNotesStore";
+
+    /**
+     * The number of presentations whose notes are kept.
+     */
+    static final int MAX_DECKS = 4;
+
+    /**
+     * Listener interface that is informed if the notes of the current slide changed.
+     */
+    public interface NotesListener {
+        /**
+         * Called if the current slide or its notes changed.
+         *
+         * @param currentSlide The slide currently shown by the server
+         * @param notes The notes of the slide, null if not received yet
+         */
+        void onNotesChanged(int currentSlide, String notes);
+    }
+
+    /**
+     * Interface used to request the full notes of a slide from the server.
+     */
+    public interface NotesRequester {
+        /**
+         * Requests the notes of the given slide.
+         *
+         * @param slide The slide
+         * @param deck The content hash of the presentation
+         * @param revision The revision of the notes we have, -1 if we have none
+         */
+        void requestNotes(int slide, String deck, int revision);
+    }
+
+    /**
+     * A single edit of the notes text. The edits of an update are applied in order, each one
+     * on the result of the previous one.
+     */
+    public static class Edit {
+        private final int mStart;
+        private final int mDelete;
+        private final String mInsert;
+
+        /**
+         * Creates a new edit.
+         *
+         * @param start The position of the edit
+         * @param delete The number of characters to remove at the position
+         * @param insert The text to insert at the position
+         */
+        public Edit(int start, int delete, String insert) {
+            mStart = start;
+            mDelete = delete;
+            mInsert = insert;
+        }
+    }
+
+    /**
+     * The notes of a single slide.
+     */
+    private static class Notes {
+        private final int mmRevision;
+        private final String mmText;
+
+        Notes(int revision, String text) {
+            mmRevision = revision;
+            mmText = text;
+        }
+    }
+
+    private final Handler mHandler;
+
+    /**
+     * The notes of the recently shown presentations, in access order. Only accessed on the
+     * thread of the handler.
+     */
+    private final Map<String, SparseArray<Notes>> mDecks =
+            new LinkedHashMap<String, SparseArray<Notes>>(MAX_DECKS, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<String, SparseArray<Notes>> eldest) {
+                    return size() > MAX_DECKS;
+                }
+            };
+
+    /**
+     * The slides whose full notes were requested but not received yet.
+     */
+    private final Set<Integer> mRequested = new HashSet<>();
+
+    /**
+     * The presentation and slide currently shown by the server. Only accessed on the thread
+     * of the handler.
+     */
+    private String mDeck = null;
+    private SparseArray<Notes> mNotes = new SparseArray<>();
+    private int mCurrentSlide = -1;
+
+    private volatile NotesRequester mRequester = null;
+    private NotesListener mListener = null;
+
+    /**
+     * Statistics.
+     */
+    private int mFullUpdates = 0;
+    private int mDiffUpdates = 0;
+    private int mResyncs = 0;
+    private long mReceivedCharacters = 0;
+    private long mUpdatedCharacters = 0;
+
+    /**
+     * Creates a new store informing its listener on the thread of the current looper.
+     */
+    public SpeakerNotesStore() {
+        mHandler = new Handler();
+    }
+
+    /**
+     * Sets the requester used to request the full notes of a slide.
+     *
+     * @param requester The requester, might be null
+     */
+    public void setRequester(NotesRequester requester) {
+        mRequester = requester;
+    }
+
+    /**
+     * Sets the listener that is informed about changed notes.
+     *
+     * @param listener The listener, might be null
+     */
+    public void setListener(NotesListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Stores the full notes of a slide. Can be called from any thread.
+     *
+     * @param slide The slide
+     * @param current The slide currently shown by the server, -1 to leave it unchanged
+     * @param deck The content hash of the presentation
+     * @param revision The revision of the notes
+     * @param text The notes
+     */
+    public void onNotes(int slide, int current, String deck, int revision, String text) {
+        mHandler.post(() -> {
+            selectDeck(deck);
+            mRequested.remove(slide);
+            mFullUpdates++;
+            mReceivedCharacters += text.length();
+            mUpdatedCharacters += text.length();
+
+            mNotes.put(slide, new Notes(revision, text));
+            update(slide, current);
+        });
+    }
+
+    /**
+     * Applies the edits of the notes of a slide. If the stored notes do not have the base
+     * revision of the edits, the full notes are requested. Can be called from any thread.
+     *
+     * @param slide The slide
+     * @param current The slide currently shown by the server, -1 to leave it unchanged
+     * @param deck The content hash of the presentation
+     * @param base The revision the edits are based on
+     * @param revision The revision of the notes after the edits
+     * @param edits The edits, empty if only the current slide changed
+     */
+    public void onNotesDiff(int slide, int current, String deck, int base, int revision,
+                            List<Edit> edits) {
+        mHandler.post(() -> {
+            selectDeck(deck);
+
+            Notes notes = mNotes.get(slide);
+            if (notes == null || notes.mmRevision != base) {
+                request(slide);
+                update(-1, current);
+                return;
+            }
+
+            if (revision != base) {
+                String text;
+                try {
+                    text = apply(notes.mmText, edits);
+                } catch (IllegalArgumentException e) {
+                    if (BuildConfig.DEBUG) {
+                        Log.w(TAG, "Invalid notes edit of slide " + slide, e);
+                    }
+                    request(slide);
+                    update(-1, current);
+                    return;
+                }
+
+                mDiffUpdates++;
+                for (Edit edit : edits) {
+                    mReceivedCharacters += edit.mInsert.length();
+                }
+                mUpdatedCharacters += text.length();
+                mNotes.put(slide, new Notes(revision, text));
+            }
+            update(revision != base ? slide : -1, current);
+        });
+    }
+
+    /**
+     * Applies the given edits to the given text.
+     *
+     * @param text The text to edit
+     * @param edits The edits to apply in order
+     * @return The edited text
+     * @throws IllegalArgumentException If an edit is outside of the text
+     */
+    static String apply(String text, List<Edit> edits) {
+        StringBuilder result = new StringBuilder(text);
+        for (Edit edit : edits) {
+            if (edit.mStart < 0 || edit.mDelete < 0
+                    || edit.mStart + edit.mDelete > result.length()) {
+                throw new IllegalArgumentException("Edit at " + edit.mStart + " of "
+                        + edit.mDelete + " characters outside of text");
+            }
+            result.replace(edit.mStart, edit.mStart + edit.mDelete, edit.mInsert);
+        }
+        return result.toString();
+    }
+
+    /**
+     * Switches to the notes of the given presentation, if it is not the current one.
+     *
+     * @param deck The content hash of the presentation
+     */
+    private void selectDeck(String deck) {
+        if (deck.equals(mDeck)) {
+            return;
+        }
+
+        mDeck = deck;
+        mRequested.clear();
+        mNotes = mDecks.get(deck);
+        if (mNotes == null) {
+            mNotes = new SparseArray<>();
+            mDecks.put(deck, mNotes);
+        }
+    }
+
+    /**
+     * Requests the full notes of the given slide, if not already requested.
+     *
+     * @param slide The slide
+     */
+    private void request(int slide) {
+        NotesRequester requester = mRequester;
+        if (requester == null || !mRequested.add(slide)) {
+            return;
+        }
+
+        mResyncs++;
+        Notes notes = mNotes.get(slide);
+        requester.requestNotes(slide, mDeck, notes != null ? notes.mmRevision : -1);
+    }
+
+    /**
+     * Updates the current slide and informs the listener if the notes it shows changed.
+     *
+     * @param changedSlide The slide whose notes changed, -1 if none
+     * @param current The slide currently shown by the server, -1 to leave it unchanged
+     */
+    private void update(int changedSlide, int current) {
+        boolean currentChanged = current >= 0 && current != mCurrentSlide;
+        if (current >= 0) {
+            mCurrentSlide = current;
+        }
+        if (mCurrentSlide < 0) {
+            return;
+        }
+
+        if (mNotes.get(mCurrentSlide) == null) {
+            request(mCurrentSlide);
+        }
+        if ((currentChanged || changedSlide == mCurrentSlide) && mListener != null) {
+            mListener.onNotesChanged(mCurrentSlide, get(mCurrentSlide));
+        }
+    }
+
+    /**
+     * Returns the notes of the given slide of the current presentation. Only call on the
+     * thread of the looper the store was created on.
+     *
+     * @param slide The slide
+     * @return The notes, null if not received yet
+     */
+    public String get(int slide) {
+        Notes notes = mNotes.get(slide);
+        return notes != null ? notes.mmText : null;
+    }
+
+    /**
+     * Returns the slide currently shown by the server.
+     *
+     * @return The current slide, -1 if unknown
+     */
+    public int getCurrentSlide() {
+        return mCurrentSlide;
+    }
+
+    /**
+     * Removes all stored notes, e.g. because the connection was closed.
+     */
+    public void clear() {
+        mHandler.post(() -> {
+            mDecks.clear();
+            mRequested.clear();
+            mNotes = new SparseArray<>();
+            mDeck = null;
+            mCurrentSlide = -1;
+        });
+    }
+
+    /**
+     * Returns how many characters were transferred for every character of updated notes.
+     * Lower values mean that the edits saved more of the transfer.
+     *
+     * @return The ratio of transferred and updated characters, 0 if nothing was updated
+     */
+    public double getTransferRatio() {
+        return mUpdatedCharacters > 0
+                ? (double) mReceivedCharacters / mUpdatedCharacters : 0;
+    }
+
+    /**
+     * Returns how often the full notes of a slide had to be requested.
+     *
+     * @return The number of requests
+     */
+    public int getResyncs() {
+        return mResyncs;
+    }
+
+    @Override
+    public String toString() {
+        return "{ " +
+                "\"fullUpdates\": \"" + mFullUpdates + "\"," +
+                "\"diffUpdates\": \"" + mDiffUpdates + "\"," +
+                "\"resyncs\": \"" + mResyncs + "\"," +
+                "\"transferRatio\": \"" + getTransferRatio() + "\"" +
+                "}";
+    }
+}
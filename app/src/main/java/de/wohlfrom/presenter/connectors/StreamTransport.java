@@ -0,0 +1,281 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Presenter. Android Client to remote control a presentation.          *
+ *  Copyright (C) 2019 Felix Wohlfrom                                    *
+ *                                                                       *
+ *  This program is free software: you can redistribute it and/or modify *
+ *  it under the terms of the GNU General Public License as published by *
+ *  the Free Software Foundation, either version 3 of the License, or    *
+ *  (at your option) any later version.                                  *
+ *                                                                       *
+ *  This program is distributed in the hope that it will be useful,      *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of       *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the        *
+ *  GNU General Public License for more details.                         *
+ *                                                                       *
+ *  You should have received a copy of the GNU General Public License    *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.*
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+
+package de.wohlfrom.presenter.connectors;
+
+import android.util.Log;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Base class for transports that are based on a connected byte stream, like a tcp or rfcomm
+ * socket. Frames are separated by {@link #FRAME_DELIMITER} on the stream. Outgoing frames are
+ * written by a separate writer thread, so sending never blocks the caller.
+ *
+ * Queued control frames are always written before queued bulk frames, so a command waits at
+ * most for the bulk frame that is currently written.
+ *
+ * Child classes only need to establish the connection and offer its streams.
+ */
+public abstract class StreamTransport implements Transport {
+    // Debugging
+    private static final String TAG = "StreamTransport";
+
+    /**
+     * The delimiter that terminates each frame on the stream.
+     */
+    public static final String FRAME_DELIMITER = "\n\n";
+
+    // Member fields
+    private final PriorityBlockingQueue<QueuedFrame> mSendQueue = new PriorityBlockingQueue<>();
+    private final AtomicInteger mQueuedControlFrames = new AtomicInteger();
+    private long mNextSequence = 0;
+    private final StringBuffer mMessageBuffer = new StringBuffer();
+    private final byte[] mReadBuffer = new byte[100];
+    private InputStream mInStream;
+    private WriterThread mWriterThread;
+    private boolean mClosed = false;
+
+    /**
+     * Establishes the connection. This is a blocking call and will only return on a successful
+     * connection or an exception.
+     *
+     * @throws IOException If the connection could not be established
+     */
+    protected abstract void connect() throws IOException;
+
+    /**
+     * Returns the input stream of the established connection.
+     *
+     * @return The input stream
+     * @throws IOException If the stream could not be retrieved
+     */
+    protected abstract InputStream getInputStream() throws IOException;
+
+    /**
+     * Returns the output stream of the established connection.
+     *
+     * @return The output stream
+     * @throws IOException If the stream could not be retrieved
+     */
+    protected abstract OutputStream getOutputStream() throws IOException;
+
+    /**
+     * Closes the connection. Should also abort a running {@link #connect()} call.
+     *
+     * @throws IOException If closing failed
+     */
+    protected abstract void closeConnection() throws IOException;
+
+    /**
+     * Returns if reaching the end of the input stream means that the connection was lost.
+     * Some streams also return end of stream if just no data is available.
+     *
+     * @return If the end of stream signals a lost connection
+     */
+    protected boolean isEndOfStreamConnectionLost() {
+        return true;
+    }
+
+    /**
+     * Returns if the transport was closed.
+     *
+     * @return If the transport was closed
+     */
+    protected synchronized boolean isClosed() {
+        return mClosed;
+    }
+
+    @Override
+    public void open() throws IOException {
+        connect();
+
+        InputStream inStream;
+        OutputStream outStream;
+        try {
+            inStream = getInputStream();
+            outStream = getOutputStream();
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+
+        synchronized (this) {
+            mInStream = inStream;
+            mWriterThread = new WriterThread(outStream);
+            mWriterThread.start();
+        }
+    }
+
+    @Override
+    public String receive() throws IOException {
+        int frameEnd = mMessageBuffer.indexOf(FRAME_DELIMITER);
+
+        if (frameEnd == -1) {
+            int readBytes = mInStream.read(mReadBuffer);
+            if (readBytes == -1) {
+                if (isEndOfStreamConnectionLost()) {
+                    throw new EOFException("End of stream reached");
+                }
+                return null;
+            }
+
+            for (int i = 0; i < readBytes; i++) {
+                mMessageBuffer.append((char) mReadBuffer[i]);
+            }
+
+            frameEnd = mMessageBuffer.indexOf(FRAME_DELIMITER);
+            if (frameEnd == -1) {
+                return null;
+            }
+        }
+
+        String frame = mMessageBuffer.substring(0, frameEnd);
+        mMessageBuffer.delete(0, frameEnd + FRAME_DELIMITER.length());
+        return frame;
+    }
+
+    @Override
+    public boolean send(String frame) {
+        return send(frame, Priority.CONTROL, null);
+    }
+
+    @Override
+    public synchronized boolean send(String frame, Priority priority,
+                                     LatencyTracker.InputTrace input) {
+        if (mClosed || mWriterThread == null) {
+            return false;
+        }
+        LatencyTracker.beginSection(LatencyTracker.Stage.QUEUE);
+        try {
+            if (priority == Priority.CONTROL) {
+                mQueuedControlFrames.incrementAndGet();
+            }
+            LatencyTracker.markStage(input, LatencyTracker.Stage.QUEUE);
+            return mSendQueue.offer(new QueuedFrame((frame + FRAME_DELIMITER).getBytes(),
+                    priority, mNextSequence++, input));
+        } finally {
+            LatencyTracker.endSection();
+        }
+    }
+
+    @Override
+    public int getQueuedFrames() {
+        return mQueuedControlFrames.get();
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            mClosed = true;
+            mSendQueue.clear();
+            mQueuedControlFrames.set(0);
+            if (mWriterThread != null) {
+                mWriterThread.interrupt();
+                mWriterThread = null;
+            }
+        }
+
+        try {
+            closeConnection();
+        } catch (IOException e) {
+            Log.e(TAG, "close() of connection failed", e);
+        }
+    }
+
+    /**
+     * A frame waiting to be written. Frames are ordered by their priority first and the order
+     * they were sent in second.
+     */
+    private static class QueuedFrame implements Comparable<QueuedFrame> {
+        private final byte[] mmData;
+        private final Priority mmPriority;
+        private final long mmSequence;
+
+        /**
+         * The input event that caused this frame, see {@link LatencyTracker}. Might be null.
+         */
+        private final LatencyTracker.InputTrace mmInput;
+
+        QueuedFrame(byte[] data, Priority priority, long sequence,
+                    LatencyTracker.InputTrace input) {
+            mmData = data;
+            mmPriority = priority;
+            mmSequence = sequence;
+            mmInput = input;
+        }
+
+        @Override
+        public int compareTo(QueuedFrame other) {
+            if (mmPriority != other.mmPriority) {
+                return mmPriority.compareTo(other.mmPriority);
+            }
+            return Long.compare(mmSequence, other.mmSequence);
+        }
+    }
+
+    /**
+     * This thread runs while the transport is open. It writes all queued frames to the stream.
+     */
+    private class WriterThread extends Thread {
+        private final OutputStream mOutStream;
+
+        /**
+         * Creates the writer thread for the given stream.
+         *
+         * @param outStream The stream to write to
+         */
+        WriterThread(OutputStream outStream) {
+            mOutStream = outStream;
+        }
+
+        /**
+         * Write all queued frames until the thread is interrupted.
+         */
+        public void run() {
+            setName("WriterThread");
+
+            while (!isInterrupted()) {
+                QueuedFrame frame;
+                try {
+                    frame = mSendQueue.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (frame.mmPriority == Priority.CONTROL) {
+                    mQueuedControlFrames.decrementAndGet();
+                }
+
+                LatencyTracker.beginSection(LatencyTracker.Stage.WRITE);
+                try {
+                    mOutStream.write(frame.mmData);
+                    LatencyTracker.recordWrite(frame.mmInput);
+                } catch (IOException e) {
+                    Log.e(TAG, "Exception during write", e);
+                } finally {
+                    LatencyTracker.endSection();
+                }
+            }
+        }
+    }
+}
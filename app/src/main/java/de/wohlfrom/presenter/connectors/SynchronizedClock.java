@@ -0,0 +1,485 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Presenter. Android Client to remote control a presentation.          *
+ *  Copyright (C) 2019 Felix Wohlfrom                                    *
+ *                                                                       *
+ *  This program is free software: you can redistribute it and/or modify *
+ *  it under the terms of the GNU General Public License as published by *
+ *  the Free Software Foundation, either version 3 of the License, or    *
+ *  (at your option) any later version.                                  *
+ *                                                                       *
+ *  This program is distributed in the hope that it will be useful,      *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of       *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the        *
+ *  GNU General Public License for more details.                         *
+ *                                                                       *
+ *  You should have received a copy of the GNU General Public License    *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.*
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+
+package de.wohlfrom.presenter.connectors;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import de.wohlfrom.presenter.BuildConfig;
+
+/**
+ * Estimates the clock of the presenter pc, so timers shown on the phone agree with the timers
+ * shown on the pc.
+ *
+ * The clock is synchronized in rounds. Each round sends {@link #SAMPLES_PER_ROUND} time
+ * requests, which the server answers with the times it received the request and sent the
+ * response. As in ntp, each sample gives the offset between both clocks and the round trip
+ * delay. The error of the offset is at most half the delay, and queueing usually delays only
+ * one direction, so only the sample with the lowest delay of each round is used.
+ *
+ * The best samples of the last {@link #MAX_ROUNDS} rounds are fitted by a line, whose slope
+ * is the drift of the server clock relative to ours. Between two rounds, the offset is
+ * extrapolated using the drift.
+ *
+ * Local times are taken from {@link SystemClock#elapsedRealtimeNanos()}, so they are monotonic
+ * and also advance during deep sleep. Server times are in the time base of the server, given in
+ * us for the exchange and in ms for the public api. Requests are sent and the listener is
+ * informed on the thread of the looper the clock was created on, usually the ui thread.
+ */
+public class SynchronizedClock {
+    // Debugging
+    private static final String TAG = "SynchronizedClock";
+
+    /**
+     * The number of time requests sent per round.
+     */
+    static final int SAMPLES_PER_ROUND = 8;
+
+    /**
+     * The time in ms between two time requests of a round.
+     */
+    static final long SAMPLE_INTERVAL = 100;
+
+    /**
+     * The time in ms to wait for responses after the last request of a round.
+     */
+    static final long ROUND_TIMEOUT = 1000;
+
+    /**
+     * The time in ms between the start of two rounds.
+     */
+    static final long ROUND_INTERVAL = 30000;
+
+    /**
+     * The number of rounds used to estimate offset and drift.
+     */
+    static final int MAX_ROUNDS = 8;
+
+    /**
+     * The minimum time in us the rounds need to span before the drift is estimated. Over
+     * shorter spans, the error of the offsets would dominate the drift.
+     */
+    static final long MIN_DRIFT_SPAN = 20000000;
+
+    /**
+     * The maximum drift accepted, as fraction. Real clocks drift far less, so larger values
+     * are errors of the estimate.
+     */
+    static final double MAX_DRIFT = 500e-6;
+
+    /**
+     * Samples with a higher round trip delay in us are ignored.
+     */
+    static final long MAX_DELAY = 2000000;
+
+    /**
+     * The link the time requests are sent over.
+     */
+    public interface TimeSink {
+        /**
+         * Sends a time request. The response needs to be passed to
+         * {@link #onTimeResponse(long, long, long, long)}.
+         *
+         * @param origin The local time in us the request is sent at
+         */
+        void sendTimeRequest(long origin);
+    }
+
+    /**
+     * Listener interface that is informed if the estimate was updated.
+     */
+    public interface ClockListener {
+        /**
+         * Called after each round of samples that updated the estimate.
+         *
+         * @param clock The updated clock
+         */
+        void onClockUpdated(SynchronizedClock clock);
+    }
+
+    private final TimeSink mSink;
+    private final Handler mHandler;
+    private final Runnable mStartRound = this::startRound;
+    private final Runnable mRequest = this::sendRequest;
+    private final Runnable mFinishRound = this::finishRound;
+    private final Runnable mNotify = this::notifyListener;
+    private ClockListener mListener = null;
+
+    /**
+     * The current round, guarded by this. The best sample is given as local time in the middle
+     * of the exchange, offset and delay in us.
+     */
+    private boolean mRunning = false;
+    private long mRoundStart = 0;
+    private int mRequests = 0;
+    private int mResponses = 0;
+    private long mBestTime = 0;
+    private long mBestOffset = 0;
+    private long mBestDelay = Long.MAX_VALUE;
+
+    /**
+     * The best samples of the last rounds as ring buffer, guarded by this.
+     */
+    private final long[] mRoundTimes = new long[MAX_ROUNDS];
+    private final long[] mRoundOffsets = new long[MAX_ROUNDS];
+    private int mRounds = 0;
+
+    /**
+     * The current estimate, guarded by this. The offset is valid at the given local time
+     * and changes with the drift.
+     */
+    private boolean mSynchronized = false;
+    private long mBaseTime = 0;
+    private long mBaseOffset = 0;
+    private double mDrift = 0;
+    private long mAccuracy = -1;
+
+    /**
+     * Statistics, guarded by this.
+     */
+    private int mSamples = 0;
+    private int mRejected = 0;
+
+    /**
+     * Creates a new clock sending its requests on the thread of the current looper.
+     *
+     * @param sink The link to send the time requests over
+     */
+    public SynchronizedClock(TimeSink sink) {
+        mSink = sink;
+        mHandler = new Handler();
+    }
+
+    /**
+     * Sets the listener that is informed about updated estimates.
+     *
+     * @param listener The listener, might be null
+     */
+    public void setListener(ClockListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Starts synchronizing with a new server. The previous estimate is dropped and the first
+     * time request is sent immediately.
+     */
+    public void start() {
+        stop();
+        synchronized (this) {
+            mRunning = true;
+        }
+        startRound();
+    }
+
+    /**
+     * Stops synchronizing, e.g. because the connection was closed, and drops the estimate.
+     * Responses received afterwards are ignored.
+     */
+    public void stop() {
+        mHandler.removeCallbacks(mStartRound);
+        mHandler.removeCallbacks(mRequest);
+        mHandler.removeCallbacks(mFinishRound);
+        mHandler.removeCallbacks(mNotify);
+
+        synchronized (this) {
+            mRunning = false;
+            mRounds = 0;
+            mSynchronized = false;
+            mDrift = 0;
+            mAccuracy = -1;
+            mBestDelay = Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Stops synchronizing and logs the statistics.
+     */
+    public void shutdown() {
+        stop();
+
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "Clock statistics: " + this);
+        }
+    }
+
+    /**
+     * Starts a new round of time requests.
+     */
+    private void startRound() {
+        synchronized (this) {
+            if (!mRunning) {
+                return;
+            }
+            mRoundStart = localTime();
+            mRequests = 0;
+            mResponses = 0;
+            mBestDelay = Long.MAX_VALUE;
+        }
+        sendRequest();
+    }
+
+    /**
+     * Sends the next time request of the current round and schedules the following one.
+     */
+    private void sendRequest() {
+        synchronized (this) {
+            if (!mRunning) {
+                return;
+            }
+            mRequests++;
+            if (mRequests < SAMPLES_PER_ROUND) {
+                mHandler.postDelayed(mRequest, SAMPLE_INTERVAL);
+            } else {
+                mHandler.postDelayed(mFinishRound, ROUND_TIMEOUT);
+            }
+        }
+        mSink.sendTimeRequest(localTime());
+    }
+
+    /**
+     * Applies the response to a time request. Can be called from any thread.
+     *
+     * @param origin The local time in us the request was sent at
+     * @param receive The server time in us the request was received at
+     * @param transmit The server time in us the response was sent at
+     * @param arrival The local time in us the response was received at, see
+     *                {@link #localTime()}
+     */
+    public void onTimeResponse(long origin, long receive, long transmit, long arrival) {
+        synchronized (this) {
+            long delay = (arrival - origin) - (transmit - receive);
+            // Responses to an earlier round are rejected, they would only be late samples
+            if (!mRunning || origin < mRoundStart || delay < 0 || delay > MAX_DELAY) {
+                mRejected++;
+                return;
+            }
+            mSamples++;
+            mResponses++;
+
+            if (delay < mBestDelay) {
+                mBestDelay = delay;
+                mBestTime = origin + (arrival - origin) / 2;
+                mBestOffset = ((receive - origin) + (transmit - arrival)) / 2;
+            }
+
+            if (mResponses < SAMPLES_PER_ROUND) {
+                return;
+            }
+        }
+
+        // All responses of the round arrived, no need to wait for the timeout
+        mHandler.removeCallbacks(mFinishRound);
+        mHandler.post(mFinishRound);
+    }
+
+    /**
+     * Adds the best sample of the current round to the estimate and schedules the next round.
+     */
+    private void finishRound() {
+        synchronized (this) {
+            if (!mRunning) {
+                return;
+            }
+            mHandler.removeCallbacks(mRequest);
+            long next = Math.max(ROUND_INTERVAL - (localTime() - mRoundStart) / 1000, 0);
+            mHandler.postDelayed(mStartRound, next);
+            // Ignore late responses until the next round starts
+            mRoundStart = Long.MAX_VALUE;
+
+            if (mBestDelay == Long.MAX_VALUE) {
+                // No response at all, keep the previous estimate
+                return;
+            }
+            int index = mRounds % MAX_ROUNDS;
+            mRoundTimes[index] = mBestTime;
+            mRoundOffsets[index] = mBestOffset;
+            mRounds++;
+            mAccuracy = (mBestDelay + 1) / 2;
+            mBestDelay = Long.MAX_VALUE;
+            estimate();
+        }
+        mHandler.post(mNotify);
+    }
+
+    /**
+     * Fits a line through the best samples of the last rounds. Needs to hold the lock.
+     */
+    private void estimate() {
+        int count = Math.min(mRounds, MAX_ROUNDS);
+        int newest = (mRounds - 1) % MAX_ROUNDS;
+        int oldest = mRounds > MAX_ROUNDS ? mRounds % MAX_ROUNDS : 0;
+        mSynchronized = true;
+
+        if (mRoundTimes[newest] - mRoundTimes[oldest] < MIN_DRIFT_SPAN) {
+            mBaseTime = mRoundTimes[newest];
+            mBaseOffset = mRoundOffsets[newest];
+            mDrift = 0;
+            return;
+        }
+
+        // Least squares relative to the newest sample, which keeps the sums small
+        double sumTime = 0;
+        double sumOffset = 0;
+        for (int i = 0; i < count; i++) {
+            sumTime += mRoundTimes[i] - mRoundTimes[newest];
+            sumOffset += mRoundOffsets[i] - mRoundOffsets[newest];
+        }
+        double meanTime = sumTime / count;
+        double meanOffset = sumOffset / count;
+
+        double covariance = 0;
+        double variance = 0;
+        for (int i = 0; i < count; i++) {
+            double time = mRoundTimes[i] - mRoundTimes[newest] - meanTime;
+            covariance += time * (mRoundOffsets[i] - mRoundOffsets[newest] - meanOffset);
+            variance += time * time;
+        }
+
+        mDrift = Math.max(-MAX_DRIFT, Math.min(MAX_DRIFT, covariance / variance));
+        mBaseTime = mRoundTimes[newest] + Math.round(meanTime);
+        mBaseOffset = mRoundOffsets[newest] + Math.round(meanOffset);
+    }
+
+    /**
+     * Informs the listener about an updated estimate.
+     */
+    private void notifyListener() {
+        if (mListener != null) {
+            mListener.onClockUpdated(this);
+        }
+    }
+
+    /**
+     * Returns the local time used for the exchange.
+     *
+     * @return The local time in us
+     */
+    public static long localTime() {
+        return SystemClock.elapsedRealtimeNanos() / 1000;
+    }
+
+    /**
+     * Returns if the clock was synchronized with the server.
+     *
+     * @return If at least one round was completed since the clock was started
+     */
+    public synchronized boolean isSynchronized() {
+        return mSynchronized;
+    }
+
+    /**
+     * Converts a local time to the time of the server.
+     *
+     * @param localTime The local time in us, see {@link #localTime()}
+     * @return The server time in us, the local time if not synchronized
+     */
+    public synchronized long toServerTime(long localTime) {
+        if (!mSynchronized) {
+            return localTime;
+        }
+        return localTime + mBaseOffset + Math.round(mDrift * (localTime - mBaseTime));
+    }
+
+    /**
+     * Returns the current time of the server.
+     *
+     * @return The server time in ms, the local wall clock time if not synchronized
+     */
+    public long currentTimeMillis() {
+        if (!isSynchronized()) {
+            return System.currentTimeMillis();
+        }
+        return toServerTime(localTime()) / 1000;
+    }
+
+    /**
+     * Converts a time of the server to the {@link SystemClock#uptimeMillis()} time base, so
+     * it can be used to schedule a message of a {@link Handler} at that time.
+     *
+     * @param serverTime The server time in ms
+     * @return The uptime in ms at which the server clock shows the given time, the current
+     *         uptime if not synchronized
+     */
+    public long toUptimeMillis(long serverTime) {
+        long now = localTime();
+        long uptime = SystemClock.uptimeMillis();
+        long localTime;
+        synchronized (this) {
+            if (!mSynchronized) {
+                return uptime;
+            }
+            // Inverse of toServerTime
+            localTime = mBaseTime + Math.round((serverTime * 1000 - mBaseOffset - mBaseTime)
+                    / (1 + mDrift));
+        }
+        return uptime + (localTime - now) / 1000;
+    }
+
+    /**
+     * Returns the current offset of the server clock to the local clock.
+     *
+     * @return The offset in us, 0 if not synchronized
+     */
+    public synchronized long getOffset() {
+        return toServerTime(localTime()) - localTime();
+    }
+
+    /**
+     * Returns the estimated drift of the server clock relative to the local clock.
+     *
+     * @return The drift in ppm, positive if the server clock runs faster
+     */
+    public synchronized double getDrift() {
+        return mDrift * 1e6;
+    }
+
+    /**
+     * Returns the maximum error of the offset measured in the last round, i.e. half its
+     * round trip delay. Asymmetric delays can not be detected by the exchange, so this is an
+     * upper bound of the error.
+     *
+     * @return The accuracy in us, -1 if not synchronized
+     */
+    public synchronized long getAccuracy() {
+        return mAccuracy;
+    }
+
+    /**
+     * Returns the number of samples used so far.
+     *
+     * @return The number of samples
+     */
+    public synchronized int getSamples() {
+        return mSamples;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "{ " +
+                "\"synchronized\": \"" + mSynchronized + "\"," +
+                "\"offset\": \"" + getOffset() + "\"," +
+                "\"drift\": \"" + getDrift() + "\"," +
+                "\"accuracy\": \"" + mAccuracy + "\"," +
+                "\"rounds\": \"" + mRounds + "\"," +
+                "\"samples\": \"" + mSamples + "\"," +
+                "\"rejected\": \"" + mRejected + "\"" +
+                "}";
+    }
+}
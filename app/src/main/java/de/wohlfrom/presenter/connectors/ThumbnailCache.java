@@ -0,0 +1,632 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Presenter. Android Client to remote control a presentation.          *
+ *  Copyright (C) 2019 Felix Wohlfrom                                    *
+ *                                                                       *
+ *  This program is free software: you can redistribute it and/or modify *
+ *  it under the terms of the GNU General Public License as published by *
+ *  the Free Software Foundation, either version 3 of the License, or    *
+ *  (at your option) any later version.                                  *
+ *                                                                       *
+ *  This program is distributed in the hope that it will be useful,      *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of       *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the        *
+ *  GNU General Public License for more details.                         *
+ *                                                                       *
+ *  You should have received a copy of the GNU General Public License    *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.*
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+
+package de.wohlfrom.presenter.connectors;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Process;
+import android.util.Base64;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.wohlfrom.presenter.BuildConfig;
+
+/**
+ * Holds the slide thumbnails pushed by the server. The thumbnails are decoded on a background
+ * thread, downscaled to the size they are displayed with, and kept in a cache that is limited
+ * by the number of bytes of its bitmaps. Once the thumbnail of the slide is too large for the
+ * budget, the least recently used slides are removed.
+ *
+ * The cache also tracks the slide currently shown by the server, so the presenter can display
+ * the current and the next slide. The listener is informed on the thread of the looper the cache
+ * was created on, usually the ui thread.
+ *
+ * The thumbnails of the displayed slides are decoded first. Thumbnails of other slides, e.g.
+ * requested by a {@link ThumbnailPrefetcher}, are decoded on a second thread with the lowest
+ * priority. If a prefetcher is set, thumbnails outside of its window are dropped without being
+ * decoded.
+ */
+public class ThumbnailCache {
+    // Debugging
+    private static final String TAG = "ThumbnailCache";
+
+    /**
+     * The part of the maximum heap size used by the default cache.
+     */
+    private static final int DEFAULT_HEAP_FRACTION = 8;
+
+    /**
+     * Listener interface that is informed if new thumbnails are available.
+     */
+    public interface ThumbnailListener {
+        /**
+         * Called if a thumbnail was decoded or the current slide changed.
+         *
+         * @param currentSlide The slide currently shown by the server
+         */
+        void onThumbnailsChanged(int currentSlide);
+    }
+
+    private final LruCache<Integer, Bitmap> mCache;
+    private final Executor mDecoder;
+    private final Executor mPrefetchDecoder;
+    private final Handler mHandler;
+
+    /**
+     * The prefetcher requesting the thumbnails around the current slide, might be null.
+     */
+    private volatile ThumbnailPrefetcher mPrefetcher = null;
+
+    /**
+     * The store keeping the thumbnails on disk, might be null.
+     */
+    private volatile SlideAssetStore mAssetStore = null;
+
+    /**
+     * The content hash of the presentation of the last received thumbnail, empty if unknown.
+     */
+    private volatile String mDeck = "";
+
+    /**
+     * The content hash of the presentation of the cached thumbnails, null if nothing was
+     * cached yet. Only accessed on the thread of the handler.
+     */
+    private String mCachedDeck = null;
+
+    /**
+     * The number of bytes of the last decoded thumbnail, 0 if unknown. Used to estimate how
+     * many thumbnails fit into the cache.
+     */
+    private volatile int mLastThumbnailSize = 0;
+
+    /**
+     * The size in px the thumbnails are displayed with. The thumbnails are downscaled, as long
+     * as they stay at least this large. 0 if unknown.
+     */
+    private volatile int mTargetWidth = 0;
+    private volatile int mTargetHeight = 0;
+
+    /**
+     * The slide currently shown by the server, -1 if unknown. Only accessed on the thread of
+     * the handler.
+     */
+    private int mCurrentSlide = -1;
+
+    private ThumbnailListener mListener = null;
+
+    /**
+     * Statistics.
+     */
+    private int mHits = 0;
+    private int mMisses = 0;
+    private final AtomicInteger mDropped = new AtomicInteger();
+    private final AtomicInteger mLoaded = new AtomicInteger();
+    private final LatencyHistogram mDecodeTime = new LatencyHistogram();
+
+    /**
+     * Creates a new cache using an eighth of the heap and decoding on background threads.
+     */
+    public ThumbnailCache() {
+        this((int) Math.min(Runtime.getRuntime().maxMemory() / DEFAULT_HEAP_FRACTION,
+                Integer.MAX_VALUE),
+                createDecoder("ThumbnailDecoder", Process.THREAD_PRIORITY_BACKGROUND),
+                createDecoder("ThumbnailPrefetcher", Process.THREAD_PRIORITY_LOWEST));
+    }
+
+    /**
+     * Creates a new cache.
+     *
+     * @param maxBytes The maximum number of bytes used by the cached bitmaps
+     * @param decoder The executor decoding the thumbnails of the displayed slides
+     * @param prefetchDecoder The executor decoding all other thumbnails
+     */
+    ThumbnailCache(int maxBytes, Executor decoder, Executor prefetchDecoder) {
+        mDecoder = decoder;
+        mPrefetchDecoder = prefetchDecoder;
+        mHandler = new Handler();
+        mCache = new LruCache<Integer, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(Integer slide, Bitmap thumbnail) {
+                return thumbnail.getByteCount();
+            }
+        };
+    }
+
+    /**
+     * Creates an executor that decodes the thumbnails on a single background thread.
+     *
+     * @param name The name of the thread
+     * @param priority The priority of the thread, see {@link Process#setThreadPriority(int)}
+     * @return The executor
+     */
+    private static ExecutorService createDecoder(String name, int priority) {
+        return Executors.newSingleThreadExecutor(runnable -> new Thread(() -> {
+            Process.setThreadPriority(priority);
+            runnable.run();
+        }, name));
+    }
+
+    /**
+     * Sets the size the thumbnails are displayed with. Thumbnails decoded afterwards are
+     * downscaled to this size.
+     *
+     * @param width The width in px
+     * @param height The height in px
+     */
+    public void setTargetSize(int width, int height) {
+        mTargetWidth = width;
+        mTargetHeight = height;
+    }
+
+    /**
+     * Sets the listener that is informed about new thumbnails.
+     *
+     * @param listener The listener, might be null
+     */
+    public void setListener(ThumbnailListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Sets the prefetcher that requests the thumbnails around the current slide.
+     *
+     * @param prefetcher The prefetcher, might be null
+     */
+    public void setPrefetcher(ThumbnailPrefetcher prefetcher) {
+        mPrefetcher = prefetcher;
+        if (prefetcher != null && mCurrentSlide >= 0) {
+            prefetcher.onCurrentSlide(mCurrentSlide);
+        }
+    }
+
+    /**
+     * Sets the store that keeps the thumbnails on disk. Thumbnails are added to the store once
+     * they were received and loaded from it instead of requesting them from the server.
+     *
+     * @param store The store, might be null
+     */
+    public void setAssetStore(SlideAssetStore store) {
+        mAssetStore = store;
+        if (store != null) {
+            // Read the index in background, until then the store appears empty
+            execute(false, store::open);
+        }
+    }
+
+    /**
+     * Decodes the given thumbnail in background and adds it to the cache. Can be called from
+     * any thread.
+     *
+     * @param slide The slide of the thumbnail
+     * @param currentSlide The slide currently shown by the server
+     * @param deck The content hash of the presentation, empty if unknown
+     * @param image The base64 encoded image
+     */
+    public void decode(int slide, int currentSlide, String deck, String image) {
+        mDeck = deck;
+        if (!isWanted(slide, currentSlide)) {
+            mDropped.incrementAndGet();
+            return;
+        }
+
+        // The displayed slides are decoded first
+        boolean displayed = slide == currentSlide || slide == currentSlide + 1;
+        execute(displayed, () -> {
+            byte[] data = decodeBase64(image);
+            SlideAssetStore store = mAssetStore;
+            if (data != null && store != null && !deck.isEmpty()) {
+                store.put(deck, slide, data);
+            }
+            decodeThumbnail(slide, currentSlide, deck, data);
+        });
+    }
+
+    /**
+     * Loads the thumbnail of the given slide of the current presentation from the asset store
+     * and decodes it in background.
+     *
+     * @param slide The slide to load
+     * @return True if the thumbnail is loaded, false if it is not stored
+     */
+    boolean load(int slide) {
+        SlideAssetStore store = mAssetStore;
+        String deck = mDeck;
+        if (store == null || deck.isEmpty() || !store.contains(deck, slide)) {
+            return false;
+        }
+
+        boolean displayed = slide == mCurrentSlide || slide == mCurrentSlide + 1;
+        return execute(displayed, () -> {
+            byte[] data = store.get(deck, slide);
+            if (data == null) {
+                // Removed from the store in the meantime, so get it from the server
+                mHandler.post(() -> {
+                    ThumbnailPrefetcher prefetcher = mPrefetcher;
+                    if (prefetcher != null) {
+                        prefetcher.onLoadFailed(slide);
+                    }
+                });
+                return;
+            }
+
+            mLoaded.incrementAndGet();
+            decodeThumbnail(slide, -1, deck, data);
+        });
+    }
+
+    /**
+     * Runs the given task on one of the decoder threads.
+     *
+     * @param displayed If the task is needed for the displayed slides
+     * @param task The task to run
+     * @return If the task was scheduled
+     */
+    private boolean execute(boolean displayed, Runnable task) {
+        try {
+            (displayed ? mDecoder : mPrefetchDecoder).execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            // The cache was shut down while the connection still received thumbnails
+            Log.w(TAG, "Cache already shut down");
+            return false;
+        }
+    }
+
+    /**
+     * Decodes the given thumbnail and adds it to the cache on the thread of the handler.
+     *
+     * @param slide The slide of the thumbnail
+     * @param currentSlide The slide currently shown by the server, -1 if not known
+     * @param deck The content hash of the presentation, empty if unknown
+     * @param data The encoded image, null if invalid
+     */
+    private void decodeThumbnail(int slide, int currentSlide, String deck, byte[] data) {
+        // The presenter might have jumped to another slide while we were waiting
+        if (!isWanted(slide, currentSlide)) {
+            mDropped.incrementAndGet();
+            return;
+        }
+
+        long start = System.nanoTime();
+        Bitmap thumbnail = data != null ? decodeImage(data, mTargetWidth, mTargetHeight) : null;
+        long decodeTime = (System.nanoTime() - start) / 1000;
+
+        mHandler.post(() -> {
+            // Thumbnails of another presentation can not be shown anymore
+            if (!deck.equals(mCachedDeck)) {
+                if (mCachedDeck != null) {
+                    evictAll();
+                }
+                mCachedDeck = deck;
+            }
+
+            ThumbnailPrefetcher prefetcher = mPrefetcher;
+            if (prefetcher != null) {
+                prefetcher.onThumbnailReceived(slide);
+            }
+
+            if (thumbnail != null) {
+                mDecodeTime.record(decodeTime);
+                put(slide, thumbnail);
+            }
+            if (currentSlide >= 0) {
+                updateCurrentSlide(currentSlide);
+            }
+            notifyListener();
+        });
+    }
+
+    /**
+     * Returns if the given thumbnail should be decoded, i.e. if no prefetcher is set or the
+     * slide is within its window.
+     *
+     * @param slide The slide of the thumbnail
+     * @param currentSlide The slide currently shown by the server
+     * @return If the thumbnail is wanted
+     */
+    private boolean isWanted(int slide, int currentSlide) {
+        ThumbnailPrefetcher prefetcher = mPrefetcher;
+        return prefetcher == null || prefetcher.isWanted(slide, currentSlide);
+    }
+
+    /**
+     * Decodes the given base64 encoded image.
+     *
+     * @param image The base64 encoded image
+     * @return The encoded image or null, if the image is invalid
+     */
+    private static byte[] decodeBase64(String image) {
+        try {
+            return Base64.decode(image, Base64.DEFAULT);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Invalid thumbnail received", e);
+            return null;
+        }
+    }
+
+    /**
+     * Decodes the given image, downscaled to the given size.
+     *
+     * @param data The encoded image
+     * @param targetWidth The width the image is displayed with, 0 if unknown
+     * @param targetHeight The height the image is displayed with, 0 if unknown
+     * @return The decoded image or null, if the image could not be decoded
+     */
+    private static Bitmap decodeImage(byte[] data, int targetWidth, int targetHeight) {
+        // Read the size first, so we decode only as many pixels as we need
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, options);
+
+        options.inSampleSize = calculateInSampleSize(options.outWidth, options.outHeight,
+                targetWidth, targetHeight);
+        options.inJustDecodeBounds = false;
+        return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+    }
+
+    /**
+     * Calculates the largest power of two the image can be downscaled by, so it is still at
+     * least as large as the target size.
+     *
+     * @param width The width of the image
+     * @param height The height of the image
+     * @param targetWidth The width the image is displayed with, 0 if unknown
+     * @param targetHeight The height the image is displayed with, 0 if unknown
+     * @return The sample size to decode the image with
+     */
+    static int calculateInSampleSize(int width, int height, int targetWidth, int targetHeight) {
+        int sampleSize = 1;
+        if (targetWidth <= 0 || targetHeight <= 0) {
+            return sampleSize;
+        }
+
+        while (width / (sampleSize * 2) >= targetWidth
+                && height / (sampleSize * 2) >= targetHeight) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * Adds the given thumbnail to the cache.
+     *
+     * @param slide The slide of the thumbnail
+     * @param thumbnail The decoded thumbnail
+     */
+    void put(int slide, Bitmap thumbnail) {
+        mLastThumbnailSize = thumbnail.getByteCount();
+        mCache.put(slide, thumbnail);
+    }
+
+    /**
+     * Sets the slide currently shown by the server and informs the listener, if it changed.
+     *
+     * @param slide The current slide
+     */
+    public void setCurrentSlide(int slide) {
+        if (updateCurrentSlide(slide)) {
+            notifyListener();
+        }
+    }
+
+    /**
+     * Sets the slide currently shown by the server on the thread of the looper the cache was
+     * created on. Can be called from any thread.
+     *
+     * @param slide The current slide
+     */
+    public void postCurrentSlide(int slide) {
+        mHandler.post(() -> setCurrentSlide(slide));
+    }
+
+    /**
+     * Stores the slide currently shown by the server and moves the window of the prefetcher.
+     *
+     * @param slide The current slide
+     * @return If the current slide changed
+     */
+    private boolean updateCurrentSlide(int slide) {
+        if (slide == mCurrentSlide) {
+            return false;
+        }
+
+        mCurrentSlide = slide;
+        ThumbnailPrefetcher prefetcher = mPrefetcher;
+        if (prefetcher != null && slide >= 0) {
+            prefetcher.onCurrentSlide(slide);
+        }
+        return true;
+    }
+
+    /**
+     * Informs the listener about the current thumbnails, if the current slide is known.
+     */
+    private void notifyListener() {
+        if (mListener != null && mCurrentSlide >= 0) {
+            mListener.onThumbnailsChanged(mCurrentSlide);
+        }
+    }
+
+    /**
+     * Returns the slide currently shown by the server.
+     *
+     * @return The current slide, -1 if unknown
+     */
+    public int getCurrentSlide() {
+        return mCurrentSlide;
+    }
+
+    /**
+     * Returns the thumbnail of the given slide.
+     *
+     * @param slide The slide
+     * @return The thumbnail or null, if it is not cached
+     */
+    public Bitmap get(int slide) {
+        Bitmap thumbnail = mCache.get(slide);
+        if (thumbnail != null) {
+            mHits++;
+        } else {
+            mMisses++;
+        }
+        return thumbnail;
+    }
+
+    /**
+     * Returns if the thumbnail of the given slide is cached. Unlike {@link #get(int)}, this does
+     * not count as a request.
+     *
+     * @param slide The slide
+     * @return If the thumbnail is cached
+     */
+    boolean contains(int slide) {
+        return mCache.get(slide) != null;
+    }
+
+    /**
+     * Removes all thumbnails, e.g. because another presentation was opened.
+     */
+    public void clear() {
+        evictAll();
+        mCachedDeck = null;
+        mDeck = "";
+    }
+
+    /**
+     * Removes all thumbnails from memory and forgets the current slide.
+     */
+    private void evictAll() {
+        mCache.evictAll();
+        mCurrentSlide = -1;
+
+        ThumbnailPrefetcher prefetcher = mPrefetcher;
+        if (prefetcher != null) {
+            prefetcher.reset();
+        }
+    }
+
+    /**
+     * Returns the number of bytes used by the cached thumbnails.
+     *
+     * @return The size of the cache
+     */
+    public int getSize() {
+        return mCache.size();
+    }
+
+    /**
+     * Returns the maximum number of bytes used by the cached thumbnails.
+     *
+     * @return The budget of the cache
+     */
+    public int getMaxSize() {
+        return mCache.maxSize();
+    }
+
+    /**
+     * Returns the number of bytes of the last decoded thumbnail.
+     *
+     * @return The size of the last thumbnail, 0 if no thumbnail was decoded yet
+     */
+    int getLastThumbnailSize() {
+        return mLastThumbnailSize;
+    }
+
+    /**
+     * Returns the number of thumbnails that were dropped without decoding, since they were
+     * outside of the window of the prefetcher.
+     *
+     * @return The number of dropped thumbnails
+     */
+    public int getDropped() {
+        return mDropped.get();
+    }
+
+    /**
+     * Returns the number of thumbnails that were loaded from the asset store.
+     *
+     * @return The number of loaded thumbnails
+     */
+    public int getLoaded() {
+        return mLoaded.get();
+    }
+
+    /**
+     * Returns the part of the requested thumbnails that were cached.
+     *
+     * @return The hit rate in [0, 1], 0 if no thumbnail was requested
+     */
+    public float getHitRate() {
+        int requests = mHits + mMisses;
+        return requests == 0 ? 0 : (float) mHits / requests;
+    }
+
+    /**
+     * Returns the time needed to decode the thumbnails.
+     *
+     * @return A copy of the decode time histogram in µs
+     */
+    public LatencyHistogram getDecodeTime() {
+        return new LatencyHistogram(mDecodeTime);
+    }
+
+    /**
+     * Stops the background decoding. Thumbnails still being decoded are dropped.
+     */
+    public void shutdown() {
+        if (mDecoder instanceof ExecutorService) {
+            ((ExecutorService) mDecoder).shutdownNow();
+        }
+        if (mPrefetchDecoder instanceof ExecutorService) {
+            ((ExecutorService) mPrefetchDecoder).shutdownNow();
+        }
+        mHandler.removeCallbacksAndMessages(null);
+
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "Thumbnail statistics: " + this + ", prefetcher: " + mPrefetcher
+                    + ", store: " + mAssetStore);
+        }
+
+        SlideAssetStore store = mAssetStore;
+        if (store != null) {
+            store.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "{ " +
+                "\"hits\": \"" + mHits + "\"," +
+                "\"misses\": \"" + mMisses + "\"," +
+                "\"hitRate\": \"" + getHitRate() + "\"," +
+                "\"dropped\": \"" + mDropped.get() + "\"," +
+                "\"loaded\": \"" + mLoaded.get() + "\"," +
+                "\"size\": \"" + getSize() + "\"," +
+                "\"maxSize\": \"" + getMaxSize() + "\"," +
+                "\"decodeTime\": " + mDecodeTime +
+                "}";
+    }
+}
@@ -0,0 +1,259 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Presenter. Android Client to remote control a presentation.          *
+ *  Copyright (C) 2019 Felix Wohlfrom                                    *
+ *                                                                       *
+ *  This program is free software: you can redistribute it and/or modify *
+ *  it under the terms of the GNU General Public License as published by *
+ *  the Free Software Foundation, either version 3 of the License, or    *
+ *  (at your option) any later version.                                  *
+ *                                                                       *
+ *  This program is distributed in the hope that it will be useful,      *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of       *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the        *
+ *  GNU General Public License for more details.                         *
+ *                                                                       *
+ *  You should have received a copy of the GNU General Public License    *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.*
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+
+package de.wohlfrom.presenter.connectors;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * Requests the thumbnails of the slides around the current slide ahead of time, so the
+ * previews are already decoded once the presenter switches slides. Slides following the current
+ * one are requested first, since presentations mostly move forward.
+ *
+ * Thumbnails kept in the {@link SlideAssetStore} of the cache are loaded from disk instead of
+ * being requested from the server.
+ *
+ * The number of prefetched slides is limited by the budget of the {@link ThumbnailCache}, so
+ * prefetching never evicts the thumbnail of the current slide. If the presenter jumps to
+ * another part of the presentation, requests for slides outside of the new window are
+ * forgotten and their thumbnails are dropped without being decoded.
+ *
+ * {@link #onCurrentSlide(int)} needs to be called on the thread of the cache, the window can be
+ * checked from any thread.
+ */
+public class ThumbnailPrefetcher {
+    /**
+     * The default number of slides following the current slide that are prefetched.
+     */
+    public static final int DEFAULT_AHEAD = 3;
+
+    /**
+     * The default number of slides preceding the current slide that are prefetched.
+     */
+    public static final int DEFAULT_BEHIND = 1;
+
+    /**
+     * Interface used to request the thumbnail of a slide from the server.
+     */
+    public interface ThumbnailRequester {
+        /**
+         * Requests the thumbnail of the given slide. The server will push it as usual.
+         *
+         * @param slide The slide to request
+         */
+        void requestThumbnail(int slide);
+    }
+
+    private final ThumbnailCache mCache;
+    private final ThumbnailRequester mRequester;
+    private final int mMaxAhead;
+    private final int mMaxBehind;
+
+    /**
+     * The current window of wanted slides, limited by the cache budget.
+     */
+    private volatile int mCurrentSlide = -1;
+    private volatile int mAhead;
+    private volatile int mBehind;
+
+    /**
+     * The slides that were requested, but whose thumbnails did not arrive yet.
+     */
+    private final Set<Integer> mPending = new HashSet<>();
+
+    /**
+     * Statistics.
+     */
+    private int mRequests = 0;
+    private int mCancelled = 0;
+
+    /**
+     * Creates a new prefetcher using {@link #DEFAULT_AHEAD} and {@link #DEFAULT_BEHIND}.
+     *
+     * @param cache The cache the thumbnails are decoded into
+     * @param requester The requester used to request the thumbnails
+     */
+    public ThumbnailPrefetcher(ThumbnailCache cache, ThumbnailRequester requester) {
+        this(cache, requester, DEFAULT_AHEAD, DEFAULT_BEHIND);
+    }
+
+    /**
+     * Creates a new prefetcher.
+     *
+     * @param cache The cache the thumbnails are decoded into
+     * @param requester The requester used to request the thumbnails
+     * @param ahead The number of slides following the current slide to prefetch
+     * @param behind The number of slides preceding the current slide to prefetch
+     */
+    public ThumbnailPrefetcher(ThumbnailCache cache, ThumbnailRequester requester,
+                               int ahead, int behind) {
+        mCache = cache;
+        mRequester = requester;
+        mMaxAhead = ahead;
+        mMaxBehind = behind;
+        mAhead = ahead;
+        mBehind = behind;
+    }
+
+    /**
+     * Moves the window of prefetched slides to the given slide and requests the thumbnails
+     * that are not cached yet.
+     *
+     * @param slide The slide currently shown by the server
+     */
+    public void onCurrentSlide(int slide) {
+        mCurrentSlide = slide;
+        limitToBudget();
+
+        // Forget the requests of slides we jumped away from
+        Iterator<Integer> pending = mPending.iterator();
+        while (pending.hasNext()) {
+            if (!isInWindow(pending.next(), slide)) {
+                pending.remove();
+                mCancelled++;
+            }
+        }
+
+        request(slide);
+        for (int i = 1; i <= mAhead; i++) {
+            request(slide + i);
+        }
+        for (int i = 1; i <= mBehind; i++) {
+            request(slide - i);
+        }
+    }
+
+    /**
+     * Limits the window, so all of its thumbnails fit into the cache.
+     */
+    private void limitToBudget() {
+        int thumbnailSize = mCache.getLastThumbnailSize();
+        if (thumbnailSize <= 0) {
+            mAhead = mMaxAhead;
+            mBehind = mMaxBehind;
+            return;
+        }
+
+        // Keep room for the current slide
+        int slides = Math.max(mCache.getMaxSize() / thumbnailSize - 1, 0);
+        mAhead = Math.min(mMaxAhead, slides);
+        mBehind = Math.min(mMaxBehind, slides - mAhead);
+    }
+
+    /**
+     * Requests the thumbnail of the given slide, if it is neither cached nor requested yet.
+     *
+     * @param slide The slide to request
+     */
+    private void request(int slide) {
+        if (slide < 0 || mPending.contains(slide) || mCache.contains(slide)) {
+            return;
+        }
+
+        mPending.add(slide);
+        if (!mCache.load(slide)) {
+            mRequests++;
+            mRequester.requestThumbnail(slide);
+        }
+    }
+
+    /**
+     * Called if the thumbnail of the given slide could not be loaded from the asset store.
+     * Requests it from the server instead, if still needed.
+     *
+     * @param slide The slide of the thumbnail
+     */
+    void onLoadFailed(int slide) {
+        if (mPending.contains(slide)) {
+            mRequests++;
+            mRequester.requestThumbnail(slide);
+        }
+    }
+
+    /**
+     * Called if the thumbnail of the given slide arrived.
+     *
+     * @param slide The slide of the thumbnail
+     */
+    void onThumbnailReceived(int slide) {
+        mPending.remove(slide);
+    }
+
+    /**
+     * Returns if the thumbnail of the given slide is wanted, i.e. if it is within the window
+     * around the given or the last known current slide. Can be called from any thread.
+     *
+     * @param slide The slide of the thumbnail
+     * @param currentSlide The current slide reported along with the thumbnail
+     * @return If the thumbnail should be decoded
+     */
+    boolean isWanted(int slide, int currentSlide) {
+        return isInWindow(slide, currentSlide) || isInWindow(slide, mCurrentSlide);
+    }
+
+    /**
+     * Returns if the given slide is within the window around the given current slide.
+     *
+     * @param slide The slide to check
+     * @param currentSlide The current slide
+     * @return If the slide is in the window
+     */
+    private boolean isInWindow(int slide, int currentSlide) {
+        return currentSlide >= 0
+                && slide >= currentSlide - mBehind && slide <= currentSlide + mAhead;
+    }
+
+    /**
+     * Forgets all pending requests, e.g. because another presentation was opened.
+     */
+    void reset() {
+        mPending.clear();
+        mCurrentSlide = -1;
+    }
+
+    /**
+     * Returns the number of requested thumbnails.
+     *
+     * @return The number of requests
+     */
+    public int getRequests() {
+        return mRequests;
+    }
+
+    /**
+     * Returns the number of requests that were cancelled, since the presenter jumped to
+     * another slide.
+     *
+     * @return The number of cancelled requests
+     */
+    public int getCancelled() {
+        return mCancelled;
+    }
+
+    @Override
+    public String toString() {
+        return "{ " +
+                "\"requests\": \"" + mRequests + "\"," +
+                "\"cancelled\": \"" + mCancelled + "\"," +
+                "\"ahead\": \"" + mAhead + "\"," +
+                "\"behind\": \"" + mBehind + "\"" +
+                "}";
+    }
+}
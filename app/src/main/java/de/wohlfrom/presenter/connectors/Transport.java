@@ -0,0 +1,107 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Presenter. Android Client to remote control a presentation.          *
+ *  Copyright (C) 2019 Felix Wohlfrom                                    *
+ *                                                                       *
+ *  This program is free software: you can redistribute it and/or modify *
+ *  it under the terms of the GNU General Public License as published by *
+ *  the Free Software Foundation, either version 3 of the License, or    *
+ *  (at your option) any later version.                                  *
+ *                                                                       *
+ *  This program is distributed in the hope that it will be useful,      *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of       *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the        *
+ *  GNU General Public License for more details.                         *
+ *                                                                       *
+ *  You should have received a copy of the GNU General Public License    *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.*
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+
+package de.wohlfrom.presenter.connectors;
+
+import java.io.IOException;
+
+/**
+ * A transport carries the frames of the remote control protocol between our client and the
+ * presenter server. The protocol handling itself is done by {@link RemoteControl}, so the
+ * same protocol stack can run on top of wifi, bluetooth or an in-memory pipe.
+ *
+ * A transport is used by exactly one connection. It is opened once, frames are read by a single
+ * reader thread and it is closed once the connection is not needed any more.
+ */
+public interface Transport {
+    /**
+     * The priority of a sent frame. Frames of the same priority are sent in order.
+     */
+    enum Priority {
+        /**
+         * Commands and other small frames that need to arrive fast.
+         */
+        CONTROL,
+        /**
+         * Chunks of large payloads and background requests like thumbnail prefetching, only
+         * written while no control frames are waiting.
+         */
+        BULK
+    }
+
+    /**
+     * Returns the name of the device this transport connects to. Used to inform the user to
+     * which server we are connected.
+     *
+     * @return The name of the connected device
+     */
+    String getName();
+
+    /**
+     * Opens the transport. This is a blocking call and will only return once the connection is
+     * established or throw an exception if connecting failed.
+     *
+     * @throws IOException If the connection could not be established
+     */
+    void open() throws IOException;
+
+    /**
+     * Returns the next frame received from the server. This is a blocking call that may return
+     * null if no complete frame is available yet. Must only be called by a single thread.
+     *
+     * @return The next received frame or null, if no complete frame was received yet
+     * @throws IOException If the connection was lost or the transport was closed
+     */
+    String receive() throws IOException;
+
+    /**
+     * Sends the given frame to the server using {@link Priority#CONTROL}. This call does not
+     * block, the frame is queued and written by the transport as soon as possible.
+     *
+     * @param frame The frame to send
+     * @return If the frame was queued, false if the transport is not open
+     */
+    boolean send(String frame);
+
+    /**
+     * Sends the given frame to the server. This call does not block, the frame is queued and
+     * written by the transport once all queued frames of higher priority were written.
+     *
+     * @param frame The frame to send
+     * @param priority The priority of the frame
+     * @param input The input event that caused the frame, reported to the
+     *              {@link LatencyTracker} once the frame was written. Might be null.
+     * @return If the frame was queued, false if the transport is not open
+     */
+    boolean send(String frame, Priority priority, LatencyTracker.InputTrace input);
+
+    /**
+     * Returns the number of control frames that were queued but not written yet. Allows to
+     * detect if the link falls behind. Queued bulk frames are not counted, since they do not
+     * delay control frames.
+     *
+     * @return The number of queued control frames
+     */
+    int getQueuedFrames();
+
+    /**
+     * Closes the transport. A blocking {@link #receive()} call will be interrupted and queued
+     * frames are dropped.
+     */
+    void close();
+}
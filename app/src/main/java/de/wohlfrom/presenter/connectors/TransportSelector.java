@@ -0,0 +1,403 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Presenter. Android Client to remote control a presentation.          *
+ *  Copyright (C) 2019 Felix Wohlfrom                                    *
+ *                                                                       *
+ *  This program is free software: you can redistribute it and/or modify *
+ *  it under the terms of the GNU General Public License as published by *
+ *  the Free Software Foundation, either version 3 of the License, or    *
+ *  (at your option) any later version.                                  *
+ *                                                                       *
+ *  This program is distributed in the hope that it will be useful,      *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of       *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the        *
+ *  GNU General Public License for more details.                         *
+ *                                                                       *
+ *  You should have received a copy of the GNU General Public License    *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.*
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+
+package de.wohlfrom.presenter.connectors;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import de.wohlfrom.presenter.BuildConfig;
+
+/**
+ * Selects the best of several paths to the same server, e.g. wifi and bluetooth. The round
+ * trip time and jitter of each path are measured using the heartbeats answered on the paths.
+ * The selector only switches to another path if it is clearly better than the current one,
+ * relatively and absolutely, to avoid flapping between paths with similar quality.
+ *
+ * The selector neither sends heartbeats nor decides on its own if a path is alive. Both is
+ * done by the {@link FailoverSession} using the selector, so there is only one heartbeat per
+ * path and a single view on the health of the paths.
+ *
+ * Every decision is recorded in a decision log that can be exported for analysis.
+ */
+public class TransportSelector implements RemoteControl.HeartbeatListener {
+    // Debugging
+    private static final String TAG = "TransportSelector";
+
+    /**
+     * Decides if a path can be used.
+     */
+    public interface Liveness {
+        /**
+         * Checks if the given connection is alive.
+         *
+         * @param control The connection of the path
+         * @return If the connection can be used
+         */
+        boolean isAlive(RemoteControl control);
+    }
+
+    /**
+     * The default relative improvement of the score a path needs to be selected instead of
+     * the current path.
+     */
+    public static final double DEFAULT_HYSTERESIS = 0.25;
+
+    /**
+     * The minimum absolute improvement of the score in us a path needs to be selected instead
+     * of the current path. Avoids switching because of scheduling noise on fast paths.
+     */
+    static final long MIN_IMPROVEMENT = 5000;
+
+    /**
+     * The number of measurements needed before a path can be selected because it is faster.
+     */
+    static final int MIN_SAMPLES = 3;
+
+    /**
+     * The maximum number of decisions stored in the decision log.
+     */
+    static final int MAX_DECISIONS = 100;
+
+    /**
+     * A single decision of the selector.
+     */
+    public static class Decision {
+        private final long mTime;
+        private final String mFrom;
+        private final String mTo;
+        private final String mReason;
+        private final long mScore;
+
+        private Decision(long time, String from, String to, String reason, long score) {
+            mTime = time;
+            mFrom = from;
+            mTo = to;
+            mReason = reason;
+            mScore = score;
+        }
+
+        /**
+         * Returns the time of the decision.
+         *
+         * @return The time in ms since the selector was created
+         */
+        public long getTime() {
+            return mTime;
+        }
+
+        /**
+         * Returns the name of the previously selected path.
+         *
+         * @return The previous path or null, if no path was selected
+         */
+        public String getFrom() {
+            return mFrom;
+        }
+
+        /**
+         * Returns the name of the selected path.
+         *
+         * @return The selected path or null, if no path is available
+         */
+        public String getTo() {
+            return mTo;
+        }
+
+        /**
+         * Returns the reason of the decision, one of "initial", "lost" or "faster".
+         *
+         * @return The reason
+         */
+        public String getReason() {
+            return mReason;
+        }
+
+        @Override
+        public String toString() {
+            return "{ " +
+                    "\"time\": \"" + mTime + "\"," +
+                    "\"from\": \"" + mFrom + "\"," +
+                    "\"to\": \"" + mTo + "\"," +
+                    "\"reason\": \"" + mReason + "\"," +
+                    "\"score\": \"" + mScore + "\"" +
+                    "}";
+        }
+    }
+
+    /**
+     * A single path with its measured quality.
+     */
+    private static class Path {
+        private final String mmName;
+        private final RemoteControl mmControl;
+
+        /**
+         * Smoothed round trip time and jitter in us, calculated like tcp and rtp do.
+         */
+        private long mmRoundTripTime = -1;
+        private long mmJitter = 0;
+        private int mmSamples = 0;
+
+        Path(String name, RemoteControl control) {
+            mmName = name;
+            mmControl = control;
+        }
+
+        /**
+         * Adds a new round trip time measurement.
+         *
+         * @param roundTripTime The measured round trip time in us
+         */
+        void addSample(long roundTripTime) {
+            if (mmSamples == 0) {
+                mmRoundTripTime = roundTripTime;
+                mmJitter = roundTripTime / 2;
+            } else {
+                mmJitter += (Math.abs(roundTripTime - mmRoundTripTime) - mmJitter) / 4;
+                mmRoundTripTime += (roundTripTime - mmRoundTripTime) / 8;
+            }
+            mmSamples++;
+        }
+
+        /**
+         * Returns the score of this path, lower is better. Jitter is weighted like in the
+         * retransmission timeout of tcp, since it delays single commands.
+         *
+         * @return The score in us or {@link Long#MAX_VALUE}, if unknown
+         */
+        long getScore() {
+            return mmSamples == 0 ? Long.MAX_VALUE : mmRoundTripTime + 4 * mmJitter;
+        }
+    }
+
+    /**
+     * The selector that was created last, so its decisions can be shown in the diagnostics.
+     */
+    private static volatile TransportSelector sLastCreated = null;
+
+    private final Liveness mLiveness;
+    private final double mHysteresis;
+    private final long mStartTime = System.nanoTime();
+    private final List<Path> mPaths = new ArrayList<>();
+    private final List<Decision> mDecisions = new ArrayList<>();
+    private Path mSelected = null;
+
+    /**
+     * Creates a new selector using the default hysteresis.
+     *
+     * @param liveness Decides if a path is alive, usually {@link FailoverSession#isAlive}
+     */
+    public TransportSelector(Liveness liveness) {
+        this(liveness, DEFAULT_HYSTERESIS);
+    }
+
+    /**
+     * Creates a new selector.
+     *
+     * @param liveness Decides if a path is alive, usually {@link FailoverSession#isAlive}
+     * @param hysteresis The relative improvement of the score a path needs to be selected
+     *                   instead of the current path, e.g. 0.25 for 25%
+     */
+    public TransportSelector(Liveness liveness, double hysteresis) {
+        mLiveness = liveness;
+        mHysteresis = hysteresis;
+        sLastCreated = this;
+    }
+
+    /**
+     * Adds a path to the selector. The path should be connected to the same server as all
+     * other paths.
+     *
+     * @param name The name of the path used in the decision log, e.g. "wifi"
+     * @param control The connection of the path
+     */
+    public synchronized void addPath(String name, RemoteControl control) {
+        mPaths.add(new Path(name, control));
+        control.setHeartbeatListener(this);
+        evaluate();
+    }
+
+    /**
+     * Removes all paths, so their heartbeats are not measured any more. The paths themselves
+     * are not stopped.
+     */
+    public synchronized void removePaths() {
+        for (Path path : mPaths) {
+            path.mmControl.setHeartbeatListener(null);
+        }
+        mPaths.clear();
+    }
+
+    /**
+     * Returns the selector that was created last. It is kept after its paths were removed, so
+     * its decisions can still be read.
+     *
+     * @return The selector created last or null, if no selector was created yet
+     */
+    public static TransportSelector getLastCreated() {
+        return sLastCreated;
+    }
+
+    /**
+     * Returns the currently selected path.
+     *
+     * @return The connection of the selected path or null, if no path is available
+     */
+    public synchronized RemoteControl getSelected() {
+        return mSelected == null ? null : mSelected.mmControl;
+    }
+
+    /**
+     * Returns the smoothed round trip time of the given path.
+     *
+     * @param control The connection of the path
+     * @return The round trip time in us or -1, if unknown
+     */
+    public synchronized long getRoundTripTime(RemoteControl control) {
+        Path path = getPath(control);
+        return path == null ? -1 : path.mmRoundTripTime;
+    }
+
+    /**
+     * Returns the smoothed jitter of the given path.
+     *
+     * @param control The connection of the path
+     * @return The jitter in us or -1, if unknown
+     */
+    public synchronized long getJitter(RemoteControl control) {
+        Path path = getPath(control);
+        return path == null || path.mmSamples == 0 ? -1 : path.mmJitter;
+    }
+
+    /**
+     * Returns all decisions of the selector, oldest first. Only the last
+     * {@link #MAX_DECISIONS} decisions are kept.
+     *
+     * @return The decisions
+     */
+    public synchronized List<Decision> getDecisionLog() {
+        return new ArrayList<>(mDecisions);
+    }
+
+    /**
+     * Exports the decision log as json array.
+     *
+     * @return The decision log
+     */
+    public synchronized String exportDecisionLog() {
+        StringBuilder result = new StringBuilder("[");
+        for (int i = 0; i < mDecisions.size(); i++) {
+            if (i > 0) {
+                result.append(",");
+            }
+            result.append(mDecisions.get(i));
+        }
+        return result.append("]").toString();
+    }
+
+    @Override
+    public synchronized void onHeartbeat(RemoteControl control, long roundTripTime) {
+        Path path = getPath(control);
+        if (path != null) {
+            path.addSample(roundTripTime);
+        }
+    }
+
+    /**
+     * Selects the best path. Switches immediately if the selected path is dead, otherwise
+     * only if another path is better by the configured hysteresis.
+     *
+     * @return The connection of the selected path or null, if no path is available
+     */
+    public synchronized RemoteControl evaluate() {
+        Path best = null;
+        for (Path path : mPaths) {
+            if (isAlive(path) && (best == null || path.getScore() < best.getScore())) {
+                best = path;
+            }
+        }
+
+        if (mSelected == null || !isAlive(mSelected)) {
+            if (best != mSelected) {
+                select(best, mSelected == null ? "initial" : "lost");
+            }
+            return getSelected();
+        }
+
+        if (best != null && best != mSelected && best.mmSamples >= MIN_SAMPLES
+                && best.getScore() < mSelected.getScore() * (1 - mHysteresis)
+                && best.getScore() < mSelected.getScore() - MIN_IMPROVEMENT) {
+            select(best, "faster");
+        }
+        return getSelected();
+    }
+
+    /**
+     * Selects the given path and records the decision.
+     *
+     * @param path The path to select, might be null if no path is available
+     * @param reason The reason of the decision
+     */
+    private void select(Path path, String reason) {
+        Decision decision = new Decision(
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - mStartTime),
+                mSelected == null ? null : mSelected.mmName,
+                path == null ? null : path.mmName,
+                reason,
+                path == null ? -1 : path.getScore());
+        mSelected = path;
+
+        if (mDecisions.size() >= MAX_DECISIONS) {
+            mDecisions.remove(0);
+        }
+        mDecisions.add(decision);
+
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "Selected path: " + decision);
+        }
+    }
+
+    /**
+     * Checks if the given path is alive.
+     *
+     * @param path The path to check
+     * @return If the path is alive
+     */
+    private boolean isAlive(Path path) {
+        return mLiveness.isAlive(path.mmControl);
+    }
+
+    /**
+     * Returns the path of the given connection.
+     *
+     * @param control The connection
+     * @return The path or null, if the connection is not known
+     */
+    private Path getPath(RemoteControl control) {
+        for (Path path : mPaths) {
+            if (path.mmControl == control) {
+                return path;
+            }
+        }
+        return null;
+    }
+}
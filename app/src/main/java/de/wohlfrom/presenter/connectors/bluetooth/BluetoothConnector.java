@@ -34,12 +34,15 @@ import android.os.Message;
 import android.view.KeyEvent;
 import android.widget.Toast;
 
+import de.wohlfrom.presenter.AirMouse;
 import de.wohlfrom.presenter.Connecting;
 import de.wohlfrom.presenter.Presenter;
 import de.wohlfrom.presenter.R;
 import de.wohlfrom.presenter.Settings;
 import de.wohlfrom.presenter.connectors.Command;
+import de.wohlfrom.presenter.connectors.LatencyTracker;
 import de.wohlfrom.presenter.connectors.RemoteControl;
+import de.wohlfrom.presenter.connectors.SessionFeatures;
 
 /**
  * The bluetooth connector activity is used to handle the complete presenter control using
@@ -48,7 +51,7 @@ import de.wohlfrom.presenter.connectors.RemoteControl;
  */
 public class BluetoothConnector extends Activity
         implements DeviceSelector.DeviceListResultListener,
-        Presenter.PresenterListener {
+        Presenter.PresenterListener, Presenter.PointerListener, Presenter.SessionProvider {
 
     /**
      * This request code is used to verify that the activity result is really our request to
@@ -66,6 +69,16 @@ public class BluetoothConnector extends Activity
      */
     private BluetoothPresenterControl mPresenterControl = null;
 
+    /**
+     * The features of the connection, like thumbnails or speaker notes.
+     */
+    private SessionFeatures mFeatures = null;
+
+    /**
+     * The air mouse, created when it is used the first time.
+     */
+    private AirMouse mAirMouse = null;
+
     /**
      * Stores if the presenter fragment is visible or not.
      */
@@ -76,11 +89,6 @@ public class BluetoothConnector extends Activity
      */
     private boolean mBluetoothConnectorVisible = false;
 
-    /**
-     * The settings instance
-     */
-    private Settings mSettings;
-
     /**
      * The BroadcastReceiver that listens for bluetooth broadcasts
      */
@@ -104,7 +112,10 @@ public class BluetoothConnector extends Activity
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
-        mSettings = new Settings(this);
+        // Make sure the settings are loaded, the key handlers rely on it
+        Settings.getSnapshot(this);
+
+        mFeatures = new SessionFeatures(getCacheDir(), () -> mPresenterControl);
 
         // Get local Bluetooth adapter
         mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
@@ -125,6 +136,8 @@ public class BluetoothConnector extends Activity
     @Override
     public void onDestroy() {
         this.unregisterReceiver(mReceiver);
+        stopAirMouse();
+        mFeatures.shutdown();
 
         super.onDestroy();
         if (mPresenterControl != null) {
@@ -154,6 +167,7 @@ public class BluetoothConnector extends Activity
         } else if (mPresenterControl == null) {
             // Initialize the BluetoothPresenterControl to perform bluetooth connections
             mPresenterControl = new BluetoothPresenterControl(mHandler);
+            mFeatures.attach(mPresenterControl);
         }
 
         // Performing this check in onResume() covers the case in which BT was
@@ -231,6 +245,7 @@ public class BluetoothConnector extends Activity
                 transaction.commit();
 
                 mPresenterVisible = true;
+                mFeatures.onConnected();
                 return;
 
             } else if (msg.what == RemoteControl.ServiceState.CONNECTING.ordinal()) {
@@ -259,6 +274,12 @@ public class BluetoothConnector extends Activity
                         break;
                     case PARSING:
                         errorMessage = getString(R.string.parsing_error);
+                        // An established connection is still usable, so keep the presenter
+                        if (mPresenterVisible) {
+                            Toast.makeText(BluetoothConnector.this, errorMessage, Toast.LENGTH_LONG)
+                                    .show();
+                            return;
+                        }
                         break;
                 }
 
@@ -304,6 +325,7 @@ public class BluetoothConnector extends Activity
         // Get the BluetoothDevice object
         BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
         // Attempt to connect to the device
+        mPresenterControl.setCoalescingWindow(Settings.getSnapshot().coalescingWindow());
         mPresenterControl.connect(device);
     }
 
@@ -311,7 +333,7 @@ public class BluetoothConnector extends Activity
     public boolean onKeyDown(int keyCode, KeyEvent event) {
         // Ignore volume key events if volume keys are used for navigation and
         // presenter fragment is active
-        return (mSettings.useVolumeKeysForNavigation() && mPresenterVisible
+        return (Settings.getSnapshot().useVolumeKeysForNavigation() && mPresenterVisible
                     && ((keyCode == KeyEvent.KEYCODE_VOLUME_UP)
                         || (keyCode == KeyEvent.KEYCODE_VOLUME_DOWN)))
                 || super.onKeyDown(keyCode, event);
@@ -320,11 +342,13 @@ public class BluetoothConnector extends Activity
     @Override
     public boolean onKeyUp(int keyCode, KeyEvent event) {
         // Handle volume key usage for navigation
-        if (mSettings.useVolumeKeysForNavigation() && mPresenterVisible) {
+        if (Settings.getSnapshot().useVolumeKeysForNavigation() && mPresenterVisible) {
             if (keyCode == KeyEvent.KEYCODE_VOLUME_UP) {
+                LatencyTracker.markInput(event);
                 onNextSlide();
                 return true;
             } else if (keyCode == KeyEvent.KEYCODE_VOLUME_DOWN) {
+                LatencyTracker.markInput(event);
                 onPrevSlide();
                 return true;
             }
@@ -335,6 +359,8 @@ public class BluetoothConnector extends Activity
     @Override
     public void onBackPressed() {
         mPresenterVisible = false;
+        stopAirMouse();
+        mFeatures.clear();
         mPresenterControl.disconnect();
         setTitle(R.string.title_device_selector);
         super.onBackPressed();
@@ -359,4 +385,48 @@ public class BluetoothConnector extends Activity
     public void onStopPresentation() {
         mPresenterControl.sendCommand(Command.STOP_PRESENTATION);
     }
+
+    @Override
+    public void onPointerMoved(float[] samples, int count) {
+        if (mPresenterControl != null) {
+            mPresenterControl.getPointerStreamer().addSamples(samples, count);
+        }
+    }
+
+    @Override
+    public void onPointerReleased() {
+        if (mPresenterControl != null) {
+            mPresenterControl.getPointerStreamer().release();
+        }
+    }
+
+    @Override
+    public SessionFeatures getSessionFeatures() {
+        return mFeatures;
+    }
+
+    @Override
+    public void onAirMouse(boolean active) {
+        if (!active) {
+            stopAirMouse();
+            return;
+        }
+
+        if (mAirMouse == null) {
+            // Resolved on every start, so the air mouse follows the connection that is active
+            mAirMouse = new AirMouse(this,
+                    () -> mPresenterControl != null ? mPresenterControl.getPointerSink() : null);
+        }
+        mAirMouse.start();
+    }
+
+    /**
+     * Stops the air mouse, if it is running.
+     */
+    private void stopAirMouse() {
+        if (mAirMouse != null) {
+            mAirMouse.stop();
+            mAirMouse = null;
+        }
+    }
 }
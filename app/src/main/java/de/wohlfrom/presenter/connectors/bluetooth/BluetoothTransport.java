@@ -0,0 +1,313 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Presenter. Android Client to remote control a presentation.          *
+ *  Copyright (C) 2019 Felix Wohlfrom                                    *
+ *                                                                       *
+ *  This program is free software: you can redistribute it and/or modify *
+ *  it under the terms of the GNU General Public License as published by *
+ *  the Free Software Foundation, either version 3 of the License, or    *
+ *  (at your option) any later version.                                  *
+ *                                                                       *
+ *  This program is distributed in the hope that it will be useful,      *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of       *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the        *
+ *  GNU General Public License for more details.                         *
+ *                                                                       *
+ *  You should have received a copy of the GNU General Public License    *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.*
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+
+package de.wohlfrom.presenter.connectors.bluetooth;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import de.wohlfrom.presenter.BuildConfig;
+import de.wohlfrom.presenter.connectors.RemoteControl;
+import de.wohlfrom.presenter.connectors.StreamTransport;
+
+/**
+ * Transport that connects to the presenter server using a bluetooth rfcomm socket.
+ * If the rfcomm channel of the device is known from a previous connection, we first try to
+ * connect directly to this channel. Since channels are assigned dynamically, the server needs
+ * to send its version on this channel in time, see {@link #HANDSHAKE_TIMEOUT}. Otherwise or if
+ * this fails, the channel is looked up using service discovery.
+ */
+class BluetoothTransport extends StreamTransport {
+    // Debugging
+    private static final String TAG = "BluetoothTransport";
+
+    // Unique UUID for this application
+    private static final UUID SERVICE_UUID = UUID.fromString(RemoteControl.SERVICE_ID);
+
+    /**
+     * The time in ms the server has to send its version after connecting to a cached channel.
+     */
+    private static final long HANDSHAKE_TIMEOUT = 2000;
+
+    /**
+     * The maximum length of the version frame in bytes.
+     */
+    private static final int MAX_HANDSHAKE_LENGTH = 1024;
+
+    private final BluetoothAdapter mAdapter;
+    private final BluetoothDevice mDevice;
+    private final RfcommChannelCache mChannelCache;
+    private final Integer mChannel;
+    private BluetoothSocket mSocket;
+
+    /**
+     * The input stream of the socket, if the version was already read from it while
+     * verifying a cached channel. Null otherwise.
+     */
+    private InputStream mInStream;
+
+    /**
+     * Creates a new transport that will connect to the given device.
+     *
+     * @param adapter The local bluetooth adapter
+     * @param device The device to connect to
+     * @param channelCache The cache of known rfcomm channels
+     */
+    BluetoothTransport(BluetoothAdapter adapter, BluetoothDevice device,
+                       RfcommChannelCache channelCache) {
+        mAdapter = adapter;
+        mDevice = device;
+        mChannelCache = channelCache;
+        Integer channel = channelCache.getChannel(device);
+        BluetoothSocket tmp = null;
+
+        // Get a BluetoothSocket for a connection with the given BluetoothDevice
+        if (channel != null) {
+            try {
+                tmp = RfcommChannelCache.createSocket(device, channel);
+            } catch (IOException e) {
+                // Already logged by the cache, just use the service record
+                channelCache.removeChannel(device);
+                channel = null;
+            }
+        }
+        if (tmp == null) {
+            try {
+                tmp = device.createRfcommSocketToServiceRecord(SERVICE_UUID);
+            } catch (IOException e) {
+                Log.e(TAG, "create socket failed", e);
+            }
+        }
+        mChannel = channel;
+        mSocket = tmp;
+    }
+
+    @Override
+    public String getName() {
+        return mDevice.getName();
+    }
+
+    @Override
+    protected void connect() throws IOException {
+        long startTime = SystemClock.elapsedRealtime();
+
+        // Always cancel discovery because it will slow down a connection
+        mAdapter.cancelDiscovery();
+        long discoveryCancelledTime = SystemClock.elapsedRealtime();
+
+        // First try to connect directly to a known channel
+        boolean connected = false;
+        String directResult = "skipped";
+        if (mChannel != null) {
+            connected = connectSocket() && verifyHandshake();
+            directResult = connected ? "succeeded" : "failed";
+
+            if (!connected) {
+                mChannelCache.removeChannel(mDevice);
+
+                synchronized (this) {
+                    if (!isClosed()) {
+                        try {
+                            mSocket = mDevice.createRfcommSocketToServiceRecord(SERVICE_UUID);
+                        } catch (IOException e) {
+                            Log.e(TAG, "create socket failed", e);
+                            mSocket = null;
+                        }
+                    }
+                }
+            }
+        }
+        long directConnectTime = SystemClock.elapsedRealtime();
+
+        // Fall back to the service discovery
+        String serviceRecordResult = "skipped";
+        if (!connected && !isClosed()) {
+            connected = connectSocket();
+            serviceRecordResult = connected ? "succeeded" : "failed";
+
+            if (connected) {
+                mChannelCache.storeChannel(mDevice, mSocket);
+            }
+        }
+        long serviceRecordConnectTime = SystemClock.elapsedRealtime();
+
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "connect to " + mDevice.getAddress() + " took "
+                    + (serviceRecordConnectTime - startTime) + "ms"
+                    + " (cancel discovery: " + (discoveryCancelledTime - startTime) + "ms"
+                    + ", direct channel " + directResult + ": "
+                    + (directConnectTime - discoveryCancelledTime) + "ms"
+                    + ", service record " + serviceRecordResult + ": "
+                    + (serviceRecordConnectTime - directConnectTime) + "ms)");
+        }
+
+        if (!connected) {
+            throw new IOException("Could not connect to " + mDevice.getAddress());
+        }
+    }
+
+    /**
+     * Connects the current socket. If connecting fails, the socket is closed again.
+     *
+     * @return If the connection succeeded
+     */
+    private boolean connectSocket() {
+        BluetoothSocket socket;
+        synchronized (this) {
+            socket = mSocket;
+        }
+        if (socket == null) {
+            return false;
+        }
+
+        // Make a connection to the BluetoothSocket
+        try {
+            // This is a blocking call and will only return on a successful connection
+            // or an exception
+            socket.connect();
+        } catch (IOException e) {
+            closeSocket(socket);
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Verifies that the presenter service still runs on the connected cached channel, since
+     * the channel might have been assigned to another service in the meantime. The server
+     * sends its version first, so the first frame is read and checked. The read data is kept
+     * for {@link #getInputStream()}.
+     *
+     * @return If the server sent its version in time. If not, the socket is closed.
+     */
+    private boolean verifyHandshake() {
+        final BluetoothSocket socket;
+        synchronized (this) {
+            socket = mSocket;
+        }
+
+        // Bluetooth sockets can't time out while reading, so close the socket instead
+        final AtomicBoolean done = new AtomicBoolean(false);
+        Timer timer = new Timer("HandshakeTimeout", true);
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                if (done.compareAndSet(false, true)) {
+                    closeSocket(socket);
+                }
+            }
+        }, HANDSHAKE_TIMEOUT);
+
+        PushbackInputStream verifiedStream = null;
+        try {
+            PushbackInputStream inStream =
+                    new PushbackInputStream(socket.getInputStream(), MAX_HANDSHAKE_LENGTH);
+            byte[] handshake = new byte[MAX_HANDSHAKE_LENGTH];
+            int length = 0;
+            int frameEnd = -1;
+            while (frameEnd == -1 && length < handshake.length && !done.get()) {
+                int readBytes = inStream.read(handshake, length, handshake.length - length);
+                if (readBytes > 0) {
+                    length += readBytes;
+                    frameEnd = new String(handshake, 0, length).indexOf(FRAME_DELIMITER);
+                }
+            }
+
+            if (frameEnd != -1 && RemoteControl.isVersionMessage(
+                    new String(handshake, 0, length).substring(0, frameEnd))) {
+                inStream.unread(handshake, 0, length);
+                verifiedStream = inStream;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "reading version from cached channel failed", e);
+        } finally {
+            timer.cancel();
+        }
+
+        // The timer might have closed the socket in the meantime
+        if (!done.compareAndSet(false, true)) {
+            return false;
+        }
+        if (verifiedStream == null) {
+            closeSocket(socket);
+            return false;
+        }
+
+        synchronized (this) {
+            mInStream = verifiedStream;
+        }
+        return true;
+    }
+
+    /**
+     * Closes the given socket, e.g. after a failed connection.
+     *
+     * @param socket The socket to close
+     */
+    private static void closeSocket(BluetoothSocket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            Log.e(TAG, "unable to close socket during connection failure", e);
+        }
+    }
+
+    /**
+     * Bluetooth sockets signal a lost connection using an exception, so the end of stream just
+     * means that there is currently no data available.
+     *
+     * @return Always false
+     */
+    @Override
+    protected boolean isEndOfStreamConnectionLost() {
+        return false;
+    }
+
+    @Override
+    protected synchronized InputStream getInputStream() throws IOException {
+        if (mInStream != null) {
+            return mInStream;
+        }
+        return mSocket.getInputStream();
+    }
+
+    @Override
+    protected synchronized OutputStream getOutputStream() throws IOException {
+        return mSocket.getOutputStream();
+    }
+
+    @Override
+    protected synchronized void closeConnection() throws IOException {
+        if (mSocket != null) {
+            mSocket.close();
+        }
+    }
+}
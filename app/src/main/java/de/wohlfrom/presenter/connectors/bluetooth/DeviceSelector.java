@@ -27,6 +27,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.Bundle;
+import android.os.Parcelable;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -37,15 +38,20 @@ import android.widget.Button;
 import android.widget.ListView;
 import android.widget.TextView;
 
+import java.util.Comparator;
 import java.util.Set;
 
+import de.wohlfrom.presenter.BuildConfig;
 import de.wohlfrom.presenter.R;
+import de.wohlfrom.presenter.connectors.DiscoveryScheduler;
 
 /**
  * This Activity appears as a dialog. It lists any paired devices and
  * devices detected in the area after discovery. When a device is chosen
  * by the user, the MAC address of the device is sent back to the parent
  * Activity in the result Intent.
+ * The services of all listed devices are looked up, so that devices running the presenter
+ * server can be shown first.
  */
 public class DeviceSelector extends Fragment {
     /**
@@ -58,11 +64,27 @@ public class DeviceSelector extends Fragment {
      */
     private BluetoothAdapter mBtAdapter;
 
+    /**
+     * Already paired devices
+     */
+    private ArrayAdapter<String> mPairedDevicesArrayAdapter;
+
     /**
      * Newly discovered devices
      */
     private ArrayAdapter<String> mNewDevicesArrayAdapter;
 
+    /**
+     * Stores which devices offer our service. Shared between all device selectors, so we don't
+     * need to look up the services again if the device selector is shown again.
+     */
+    private static final ServiceUuidCache sServiceCache = new ServiceUuidCache();
+
+    /**
+     * The scheduler that starts and stops the device discovery.
+     */
+    private DiscoveryScheduler mDiscoveryScheduler;
+
     /**
      * Return values of this fragment
      */
@@ -122,7 +144,8 @@ public class DeviceSelector extends Fragment {
         // Initialize the button to perform device discovery
         Button scanButton = getActivity().findViewById(R.id.button_scan);
         scanButton.setOnClickListener(view -> {
-            doDiscovery();
+            mDiscoveryScheduler.setTargetFound(false);
+            mDiscoveryScheduler.start();
             // Start scanning animations, remove button
             mNewDevicesArrayAdapter.clear();
             getActivity().findViewById(R.id.title_new_devices).setVisibility(View.VISIBLE);
@@ -133,13 +156,12 @@ public class DeviceSelector extends Fragment {
 
         // Initialize array adapters. One for already paired devices and
         // one for newly discovered devices
-        ArrayAdapter<String> pairedDevicesArrayAdapter =
-                new ArrayAdapter<>(getActivity(), R.layout.device_name);
+        mPairedDevicesArrayAdapter = new ArrayAdapter<>(getActivity(), R.layout.device_name);
         mNewDevicesArrayAdapter = new ArrayAdapter<>(getActivity(), R.layout.device_name);
 
         // Find and set up the ListView for paired devices
         ListView pairedListView = getActivity().findViewById(R.id.paired_devices);
-        pairedListView.setAdapter(pairedDevicesArrayAdapter);
+        pairedListView.setAdapter(mPairedDevicesArrayAdapter);
 
         // Find and set up the ListView for newly discovered devices
         ListView newDevicesListView = getActivity().findViewById(R.id.new_devices);
@@ -153,9 +175,20 @@ public class DeviceSelector extends Fragment {
         filter = new IntentFilter(BluetoothAdapter.ACTION_DISCOVERY_FINISHED);
         getActivity().registerReceiver(mReceiver, filter);
 
+        // Register for broadcasts when the services of a device were fetched
+        filter = new IntentFilter(BluetoothDevice.ACTION_UUID);
+        getActivity().registerReceiver(mReceiver, filter);
+
         // Get the local Bluetooth adapter
         mBtAdapter = BluetoothAdapter.getDefaultAdapter();
 
+        // Discovery will only be started once the user requests it. If it was already running
+        // before we got paused, continue it.
+        if (mDiscoveryScheduler == null) {
+            mDiscoveryScheduler = new DiscoveryScheduler(mDiscoveryListener);
+        }
+        mDiscoveryScheduler.resume();
+
         // Get a set of currently paired devices
         Set<BluetoothDevice> pairedDevices = mBtAdapter.getBondedDevices();
 
@@ -165,12 +198,23 @@ public class DeviceSelector extends Fragment {
                     .setVisibility(View.VISIBLE);
             pairedListView.setOnItemClickListener(mDeviceClickListener);
             for (BluetoothDevice device : pairedDevices) {
-                pairedDevicesArrayAdapter.add(device.getName() + "\n" + device.getAddress());
+                mPairedDevicesArrayAdapter.add(device.getName() + "\n" + device.getAddress());
+                requestServices(device);
             }
+            mPairedDevicesArrayAdapter.sort(mDevicePriority);
         } else {
             String noDevices = getResources().getText(R.string.none_paired).toString();
-            pairedDevicesArrayAdapter.add(noDevices);
+            mPairedDevicesArrayAdapter.add(noDevices);
+        }
+    }
+
+    @Override
+    public void onPause() {
+        if (mDiscoveryScheduler != null) {
+            mDiscoveryScheduler.pause();
         }
+
+        super.onPause();
     }
 
     @Override
@@ -178,6 +222,14 @@ public class DeviceSelector extends Fragment {
         // Unregister broadcast listeners
         getActivity().unregisterReceiver(mReceiver);
 
+        if (mDiscoveryScheduler != null) {
+            mDiscoveryScheduler.stop();
+
+            if (BuildConfig.DEBUG) {
+                Log.d(TAG, "Discovery statistics: " + mDiscoveryScheduler);
+            }
+        }
+
         // Make sure we're not doing discovery anymore
         if (mBtAdapter != null) {
             mBtAdapter.cancelDiscovery();
@@ -186,6 +238,67 @@ public class DeviceSelector extends Fragment {
         super.onDestroy();
     }
 
+    /**
+     * Starts and stops the device discovery on request of the discovery scheduler.
+     */
+    private final DiscoveryScheduler.DiscoveryListener mDiscoveryListener
+            = new DiscoveryScheduler.DiscoveryListener() {
+        @Override
+        public void onStartDiscovery() {
+            if (getActivity() != null) {
+                getActivity().findViewById(R.id.device_scanning_active)
+                        .setVisibility(View.VISIBLE);
+                getActivity().findViewById(R.id.button_scan).setVisibility(View.GONE);
+            }
+
+            doDiscovery();
+        }
+
+        @Override
+        public void onStopDiscovery() {
+            // Finished discovery will be handled by our broadcast receiver
+            mBtAdapter.cancelDiscovery();
+        }
+    };
+
+    /**
+     * Returns the cache of devices offering our service.
+     *
+     * @return The service cache.
+     */
+    static ServiceUuidCache getServiceCache() {
+        return sServiceCache;
+    }
+
+    /**
+     * Checks if the given device offers our service. If this is not known yet, the services
+     * of the device are requested. The result will be received by our broadcast receiver.
+     * Requests for multiple devices are running in parallel.
+     *
+     * @param device The device to check
+     * @return True if the device offers our service, false if not and null if it is unknown
+     */
+    private Boolean requestServices(BluetoothDevice device) {
+        Boolean hasService = sServiceCache.hasService(device.getAddress());
+        if (hasService == null) {
+            // Use the services of a previous lookup, if available
+            hasService = sServiceCache.update(device.getAddress(), device.getUuids());
+        }
+        if (hasService == null) {
+            device.fetchUuidsWithSdp();
+        }
+        return hasService;
+    }
+
+    /**
+     * Sorts the devices so that devices offering our service are displayed first.
+     * The device MAC address is the last 17 chars of each entry.
+     */
+    private final Comparator<String> mDevicePriority = (first, second) ->
+            Integer.compare(
+                    sServiceCache.getPriority(first.substring(Math.max(0, first.length() - 17))),
+                    sServiceCache.getPriority(second.substring(Math.max(0, second.length() - 17))));
+
     /**
      * Start device discover with the BluetoothAdapter.
      */
@@ -208,6 +321,7 @@ public class DeviceSelector extends Fragment {
             = new AdapterView.OnItemClickListener() {
         public void onItemClick(AdapterView<?> adapterView, View view, int position, long id) {
             // Cancel discovery because it's costly and we're about to connect
+            mDiscoveryScheduler.stop();
             mBtAdapter.cancelDiscovery();
 
             // Get the device MAC address, which is the last 17 chars in the View
@@ -218,6 +332,15 @@ public class DeviceSelector extends Fragment {
         }
     };
 
+    /**
+     * Called if a newly discovered device offers our service. We don't need to continue
+     * the running inquiry in this case, so it is cancelled early.
+     */
+    private void onServiceFound() {
+        mDiscoveryScheduler.setTargetFound(true);
+        mDiscoveryScheduler.finishBurst();
+    }
+
     /**
      * The BroadcastReceiver that listens for discovered devices and changes the title when
      * discovery is finished.
@@ -233,15 +356,44 @@ public class DeviceSelector extends Fragment {
                 BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
                 // If it's already paired, skip it, because it's been listed already
                 if (device.getBondState() != BluetoothDevice.BOND_BONDED) {
-                    mNewDevicesArrayAdapter.add(device.getName() + "\n" + device.getAddress());
+                    // Remove the "no devices found" entry of a previous discovery burst
+                    String noDevices = getResources().getText(R.string.none_found).toString();
+                    mNewDevicesArrayAdapter.remove(noDevices);
+
+                    String deviceInfo = device.getName() + "\n" + device.getAddress();
+                    if (mNewDevicesArrayAdapter.getPosition(deviceInfo) < 0) {
+                        mNewDevicesArrayAdapter.add(deviceInfo);
+                    }
+
+                    if (Boolean.TRUE.equals(requestServices(device))) {
+                        onServiceFound();
+                    }
+                    mNewDevicesArrayAdapter.sort(mDevicePriority);
                 }
 
+                // Discovery keeps running in bursts, so show the devices as they are found
                 ListView newDevicesListView =
                         getActivity().findViewById(R.id.new_devices);
                 newDevicesListView.setOnItemClickListener(mDeviceClickListener);
+                newDevicesListView.setVisibility(View.VISIBLE);
+
+                // When the services of a device were fetched, update the device order
+            } else if (BluetoothDevice.ACTION_UUID.equals(action)) {
+                BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+                Parcelable[] uuids = intent.getParcelableArrayExtra(BluetoothDevice.EXTRA_UUID);
+
+                if (Boolean.TRUE.equals(sServiceCache.update(device.getAddress(), uuids))
+                        && mNewDevicesArrayAdapter.getPosition(
+                                device.getName() + "\n" + device.getAddress()) >= 0) {
+                    onServiceFound();
+                }
+                mPairedDevicesArrayAdapter.sort(mDevicePriority);
+                mNewDevicesArrayAdapter.sort(mDevicePriority);
 
-                // When discovery is finished, show it in new device array
-            } else if (BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(action)) {
+                // When discovery is finished, show it in new device array. The end of a
+                // single burst is not shown, as the scheduler will start the next one.
+            } else if (BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(action)
+                    && (mDiscoveryScheduler == null || !mDiscoveryScheduler.isRunning())) {
                 getActivity().findViewById(R.id.device_scanning_active)
                         .setVisibility(View.INVISIBLE);
 
@@ -0,0 +1,160 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Presenter. Android Client to remote control a presentation.          *
+ *  Copyright (C) 2019 Felix Wohlfrom                                    *
+ *                                                                       *
+ *  This program is free software: you can redistribute it and/or modify *
+ *  it under the terms of the GNU General Public License as published by *
+ *  the Free Software Foundation, either version 3 of the License, or    *
+ *  (at your option) any later version.                                  *
+ *                                                                       *
+ *  This program is distributed in the hope that it will be useful,      *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of       *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the        *
+ *  GNU General Public License for more details.                         *
+ *                                                                       *
+ *  You should have received a copy of the GNU General Public License    *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.*
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+
+package de.wohlfrom.presenter.connectors.bluetooth;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+import android.util.Log;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Caches the rfcomm channel on which the presenter service of a device was found. This allows
+ * us to connect directly to the channel on a reconnect and skip the service discovery, which
+ * takes most of the time while connecting.
+ *
+ * Android does not offer public api to read the channel of a socket or to create a socket for a
+ * given channel, so the hidden methods are accessed using reflection. If they are not available,
+ * this is logged once and the cache will simply stay empty.
+ */
+class RfcommChannelCache {
+    // Debugging
+    private static final String TAG = "RfcommChannelCache";
+
+    /**
+     * The cached channels. A map of device addresses and channels.
+     */
+    private final Map<String, Integer> mChannels = new HashMap<>();
+
+    /**
+     * If accessing the hidden methods failed. This will not change while the app is running,
+     * so we don't try again.
+     */
+    private static boolean sReflectionFailed = false;
+
+    /**
+     * Returns the cached channel for the given device.
+     *
+     * @param device The device to get the channel for
+     * @return The cached channel or null, if no channel is known for this device.
+     */
+    synchronized Integer getChannel(BluetoothDevice device) {
+        return mChannels.get(device.getAddress());
+    }
+
+    /**
+     * Reads the channel of the given connected socket and stores it for the given device.
+     *
+     * @param device The device to which the socket is connected
+     * @param socket The connected socket
+     */
+    void storeChannel(BluetoothDevice device, BluetoothSocket socket) {
+        if (isReflectionFailed()) {
+            return;
+        }
+
+        int channel;
+        try {
+            Method getPort = BluetoothSocket.class.getDeclaredMethod("getPort");
+            getPort.setAccessible(true);
+            channel = (int) getPort.invoke(socket);
+        } catch (InvocationTargetException e) {
+            Log.w(TAG, "Could not read channel of socket", e.getCause());
+            return;
+        } catch (Exception e) {
+            reflectionFailed(e);
+            return;
+        }
+
+        if (channel > 0) {
+            synchronized (this) {
+                mChannels.put(device.getAddress(), channel);
+            }
+        }
+    }
+
+    /**
+     * Removes the cached channel of the given device, e.g. because connecting to it failed.
+     *
+     * @param device The device to remove from cache
+     */
+    synchronized void removeChannel(BluetoothDevice device) {
+        mChannels.remove(device.getAddress());
+    }
+
+    /**
+     * Removes all cached channels.
+     */
+    synchronized void clear() {
+        mChannels.clear();
+    }
+
+    /**
+     * Creates a socket that directly connects to the given channel without doing a service
+     * discovery.
+     *
+     * @param device The device to connect to
+     * @param channel The channel to connect to
+     * @return The created socket
+     * @throws IOException If creation of the socket failed, this is already logged
+     */
+    static BluetoothSocket createSocket(BluetoothDevice device, int channel) throws IOException {
+        if (isReflectionFailed()) {
+            throw new IOException("Could not create socket for channel " + channel);
+        }
+
+        try {
+            Method createSocket =
+                    BluetoothDevice.class.getMethod("createRfcommSocket", int.class);
+            return (BluetoothSocket) createSocket.invoke(device, channel);
+        } catch (InvocationTargetException e) {
+            Log.w(TAG, "Could not create socket for channel " + channel, e.getCause());
+            throw new IOException("Could not create socket for channel " + channel,
+                    e.getCause());
+        } catch (Exception e) {
+            reflectionFailed(e);
+            throw new IOException("Could not create socket for channel " + channel, e);
+        }
+    }
+
+    /**
+     * Returns if accessing the hidden methods failed before.
+     *
+     * @return If the hidden methods are not available
+     */
+    private static synchronized boolean isReflectionFailed() {
+        return sReflectionFailed;
+    }
+
+    /**
+     * Remembers that accessing the hidden methods failed. Only the first failure is logged.
+     *
+     * @param e The reason of the failure
+     */
+    private static synchronized void reflectionFailed(Exception e) {
+        if (!sReflectionFailed) {
+            sReflectionFailed = true;
+            Log.w(TAG, "Hidden rfcomm api not available, channels are not cached", e);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Presenter. Android Client to remote control a presentation.          *
+ *  Copyright (C) 2019 Felix Wohlfrom                                    *
+ *                                                                       *
+ *  This program is free software: you can redistribute it and/or modify *
+ *  it under the terms of the GNU General Public License as published by *
+ *  the Free Software Foundation, either version 3 of the License, or    *
+ *  (at your option) any later version.                                  *
+ *                                                                       *
+ *  This program is distributed in the hope that it will be useful,      *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of       *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the        *
+ *  GNU General Public License for more details.                         *
+ *                                                                       *
+ *  You should have received a copy of the GNU General Public License    *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.*
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+
+package de.wohlfrom.presenter.connectors.bluetooth;
+
+import android.os.ParcelUuid;
+import android.os.Parcelable;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import de.wohlfrom.presenter.connectors.RemoteControl;
+
+/**
+ * Stores for each bluetooth device if it offers the presenter service, based on the service
+ * uuids reported by the device. Used to show devices running our server first.
+ */
+class ServiceUuidCache {
+    /**
+     * The uuid of our service.
+     */
+    private static final UUID SERVICE_UUID = UUID.fromString(RemoteControl.SERVICE_ID);
+
+    /**
+     * Some android versions report the uuids fetched via sdp in reversed byte order, so we also
+     * need to check for the reversed uuid.
+     */
+    private static final UUID REVERSED_SERVICE_UUID = reverse(SERVICE_UUID);
+
+    /**
+     * The known devices. A map of device addresses and if the device offers our service.
+     */
+    private final Map<String, Boolean> mServiceAvailable = new HashMap<>();
+
+    /**
+     * Returns if the device with the given address offers our service.
+     *
+     * @param address The address of the device
+     * @return True if the device offers our service, false if not and null if it is unknown
+     */
+    synchronized Boolean hasService(String address) {
+        return mServiceAvailable.get(address);
+    }
+
+    /**
+     * Updates the cache for the given device based on the given service uuids. If no uuids are
+     * given, the cache is not changed.
+     *
+     * @param address The address of the device
+     * @param uuids The uuids reported by the device, might be null
+     * @return True if the device offers our service, false if not and null if it is unknown
+     */
+    synchronized Boolean update(String address, Parcelable[] uuids) {
+        if (uuids != null) {
+            mServiceAvailable.put(address, containsService(uuids));
+        }
+        return mServiceAvailable.get(address);
+    }
+
+    /**
+     * Removes all cached devices.
+     */
+    synchronized void clear() {
+        mServiceAvailable.clear();
+    }
+
+    /**
+     * Returns the priority with which the device of the given address should be displayed.
+     * Devices with lower priority values should be displayed first.
+     *
+     * @param address The address of the device
+     * @return 0 for devices offering our service, 1 for unknown devices and 2 for all others
+     */
+    int getPriority(String address) {
+        Boolean hasService = hasService(address);
+        if (hasService == null) {
+            return 1;
+        }
+        return hasService ? 0 : 2;
+    }
+
+    /**
+     * Checks if the given uuids contain our service uuid.
+     *
+     * @param uuids The uuids to check
+     * @return If our service is contained
+     */
+    static boolean containsService(Parcelable[] uuids) {
+        for (Parcelable uuid : uuids) {
+            if (uuid instanceof ParcelUuid) {
+                UUID serviceUuid = ((ParcelUuid) uuid).getUuid();
+                if (SERVICE_UUID.equals(serviceUuid) || REVERSED_SERVICE_UUID.equals(serviceUuid)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reverses the byte order of the given uuid.
+     *
+     * @param uuid The uuid to reverse
+     * @return The reversed uuid
+     */
+    static UUID reverse(UUID uuid) {
+        ByteBuffer buffer = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putLong(uuid.getLeastSignificantBits());
+        buffer.putLong(uuid.getMostSignificantBits());
+        buffer.flip();
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        return new UUID(buffer.getLong(), buffer.getLong());
+    }
+}
@@ -26,6 +26,7 @@ import android.content.Context;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -35,6 +36,7 @@ import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.ListView;
 import android.widget.TextView;
+import android.widget.Toast;
 
 import java.io.IOException;
 import java.net.DatagramPacket;
@@ -47,10 +49,10 @@ import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
 
+import de.wohlfrom.presenter.BuildConfig;
 import de.wohlfrom.presenter.R;
+import de.wohlfrom.presenter.connectors.DiscoveryScheduler;
 import de.wohlfrom.presenter.connectors.RemoteControl;
 
 /**
@@ -86,10 +88,14 @@ public class DeviceSelector extends Fragment {
     private ArrayAdapter<String> mBroadcastDeviceAdapter;
 
     /**
-     * Background threads to manage broadcast list
+     * Background thread to receive broadcasts. Only running during a discovery burst.
      */
     private BroadcastReceiverThread mBroadcastReceiverThread;
-    private Timer mBroadcastCleanupThread;
+
+    /**
+     * The scheduler that starts and stops the broadcast reception.
+     */
+    private DiscoveryScheduler mDiscoveryScheduler;
 
     /**
      * Some constants to be used for thread notification.
@@ -108,6 +114,16 @@ public class DeviceSelector extends Fragment {
          * @param address The address of the selected device
          */
         void onDeviceSelected(String hostname, String address);
+
+        /**
+         * This method is called once a device was long clicked in the device list. The device
+         * is controlled together with the device selected afterwards.
+         *
+         * @param hostname The hostname of the long clicked device
+         * @param address The address of the long clicked device
+         * @return True, if the device is controlled as well now, false if it was removed
+         */
+        boolean onAdditionalDeviceToggled(String hostname, String address);
     }
 
     /**
@@ -169,30 +185,66 @@ public class DeviceSelector extends Fragment {
         ListView broadcastDevicesListView = getActivity().findViewById(R.id.broadcast_devices);
         broadcastDevicesListView.setAdapter(mBroadcastDeviceAdapter);
         broadcastDevicesListView.setOnItemClickListener(mBroadcastDeviceClickListener);
+        broadcastDevicesListView.setOnItemLongClickListener(mBroadcastDeviceLongClickListener);
 
         // Initialize map of last update timestamps
         mBroadcastDevices = new HashMap<>();
-        
-        // Start broadcast reader thread, if not already running
-        if (mBroadcastReceiverThread == null) {
-            mBroadcastReceiverThread = new BroadcastReceiverThread(mHandler);
-            mBroadcastReceiverThread.start();
+
+        // Start listening for broadcasts. The first burst is started immediately.
+        if (mDiscoveryScheduler == null) {
+            mDiscoveryScheduler = new DiscoveryScheduler(mDiscoveryListener);
         }
-        
-        // Start broadcast cleanup thread, if not already running
-        if (mBroadcastCleanupThread == null) {
-            mBroadcastCleanupThread = new Timer();
-            mBroadcastCleanupThread.schedule(new BroadcastCleanupThread(mHandler), 0, 2000);
+        mDiscoveryScheduler.setTargetFound(false);
+        mDiscoveryScheduler.start();
+    }
+
+    @Override
+    public void onPause() {
+        // No need to listen for broadcasts if we are not visible, e.g. since we are connected
+        if (mDiscoveryScheduler != null) {
+            mDiscoveryScheduler.pause();
         }
+
+        super.onPause();
     }
 
     @Override
     public void onDestroy() {
-        mBroadcastReceiverThread.cancel();
-        mBroadcastCleanupThread.cancel();
+        if (mDiscoveryScheduler != null) {
+            mDiscoveryScheduler.stop();
+
+            if (BuildConfig.DEBUG) {
+                Log.d(TAG, "Discovery statistics: " + mDiscoveryScheduler);
+            }
+        }
         super.onDestroy();
     }
 
+    /**
+     * Starts and stops the broadcast reception on request of the discovery scheduler.
+     */
+    private final DiscoveryScheduler.DiscoveryListener mDiscoveryListener
+            = new DiscoveryScheduler.DiscoveryListener() {
+        @Override
+        public void onStartDiscovery() {
+            // Start broadcast reader thread, if not already running
+            if (mBroadcastReceiverThread == null) {
+                mBroadcastReceiverThread = new BroadcastReceiverThread(mHandler);
+                mBroadcastReceiverThread.start();
+            }
+        }
+
+        @Override
+        public void onStopDiscovery() {
+            if (mBroadcastReceiverThread != null) {
+                mBroadcastReceiverThread.cancel();
+                mBroadcastReceiverThread = null;
+            }
+
+            cleanupBroadcasts();
+        }
+    };
+
     /**
      * The on-click listener for all devices in the ListViews.
      */
@@ -207,6 +259,27 @@ public class DeviceSelector extends Fragment {
         }
     };
 
+    /**
+     * The on-long-click listener for all devices in the ListViews. Toggles if the device is
+     * controlled together with the selected device.
+     */
+    private final AdapterView.OnItemLongClickListener mBroadcastDeviceLongClickListener
+            = new AdapterView.OnItemLongClickListener() {
+        public boolean onItemLongClick(AdapterView<?> adapterView, View view, int position,
+                                       long id) {
+            String info = ((TextView) view).getText().toString();
+            String hostname = info.substring(0, info.lastIndexOf('\n'));
+            String address = info.substring(info.lastIndexOf('\n') + 1);
+
+            boolean added = mListener.onAdditionalDeviceToggled(hostname, address);
+            Toast.makeText(getActivity(), getString(added
+                            ? R.string.additional_device_added
+                            : R.string.additional_device_removed, hostname),
+                    Toast.LENGTH_SHORT).show();
+            return true;
+        }
+    };
+
     /**
      * This thread reads all broadcasts. Will emit a message if new broadcasts are received.
      */
@@ -286,41 +359,26 @@ public class DeviceSelector extends Fragment {
     }
 
     /**
-     * Will remove broadcasted devices from list after some time. Timeout is defined in 
-     * {@link #BROADCAST_SHOW_TIMEOUT}.
+     * Will remove broadcasted devices from list after some time. Timeout is defined in
+     * {@link #BROADCAST_SHOW_TIMEOUT}. Called at the end of every discovery burst, since we
+     * can't receive any updates between two bursts anyway.
      */
-    private class BroadcastCleanupThread extends TimerTask {
-        final Handler mHandler;
-
-        /**
-         * Creates the broadcast cleanup thread.
-         *
-         * @param handler The handler that will handle new found devices
-         */
-        BroadcastCleanupThread(Handler handler) {
-            mHandler = handler;
+    private void cleanupBroadcasts() {
+        long currentTime = SystemClock.elapsedRealtime();
+        List<String> deleteItems = new LinkedList<>();
+        for (Map.Entry<String, Long> broadcast: mBroadcastDevices.entrySet()) {
+            if (currentTime - broadcast.getValue() > BROADCAST_SHOW_TIMEOUT) {
+                deleteItems.add(broadcast.getKey());
+            }
         }
 
-        /**
-         * Cleanup broadcasts.
-         */
-        public void run() {
-            Long currentTime = System.currentTimeMillis();
-            List<String> deleteItems = new LinkedList<>();
-            for (Map.Entry<String, Long> broadcast: mBroadcastDevices.entrySet()) {
-                if (currentTime - broadcast.getValue() > BROADCAST_SHOW_TIMEOUT) {
-                    deleteItems.add(broadcast.getKey());
-                }
-            }
-            
-            for (String deleteItem: deleteItems) {
-                mBroadcastDevices.remove(deleteItem);
-            }
+        for (String deleteItem: deleteItems) {
+            mBroadcastDevices.remove(deleteItem);
+        }
 
-            if (deleteItems.size() > 0) {
-                Message notification = mHandler.obtainMessage(ADDRESS_REMOVED);
-                notification.sendToTarget();
-            }
+        if (deleteItems.size() > 0) {
+            Message notification = mHandler.obtainMessage(ADDRESS_REMOVED);
+            notification.sendToTarget();
         }
     }
 
@@ -338,14 +396,15 @@ public class DeviceSelector extends Fragment {
                     if (!mBroadcastDevices.containsKey(ip_to_add)) {
                         mBroadcastDeviceAdapter.add(host + "\n" + ip_to_add);
                     }
-                    mBroadcastDevices.put(ip_to_add, System.currentTimeMillis());
+                    mBroadcastDevices.put(ip_to_add, SystemClock.elapsedRealtime());
+                    mDiscoveryScheduler.setTargetFound(true);
                     return;
                 case ADDRESS_REMOVED:
                     int i = 0;
                     while (i < mBroadcastDeviceAdapter.getCount()) {
                         String info = mBroadcastDeviceAdapter.getItem(i);
                         if (info != null) {
-                            String ip_to_check = info.substring(info.lastIndexOf('\n'));
+                            String ip_to_check = info.substring(info.lastIndexOf('\n') + 1);
                             if (!mBroadcastDevices.containsKey(ip_to_check)) {
                                 mBroadcastDeviceAdapter.remove(info);
                                 // Don't update the index if we removed an item, since the next element
@@ -355,6 +414,7 @@ public class DeviceSelector extends Fragment {
                             }
                         }
                     }
+                    mDiscoveryScheduler.setTargetFound(!mBroadcastDevices.isEmpty());
             }
         }
     };
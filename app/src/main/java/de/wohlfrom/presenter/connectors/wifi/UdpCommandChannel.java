@@ -0,0 +1,288 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Presenter. Android Client to remote control a presentation.          *
+ *  Copyright (C) 2019 Felix Wohlfrom                                    *
+ *                                                                       *
+ *  This program is free software: you can redistribute it and/or modify *
+ *  it under the terms of the GNU General Public License as published by *
+ *  the Free Software Foundation, either version 3 of the License, or    *
+ *  (at your option) any later version.                                  *
+ *                                                                       *
+ *  This program is distributed in the hope that it will be useful,      *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of       *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the        *
+ *  GNU General Public License for more details.                         *
+ *                                                                       *
+ *  You should have received a copy of the GNU General Public License    *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.*
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+
+package de.wohlfrom.presenter.connectors.wifi;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import de.wohlfrom.presenter.connectors.LatencyTracker;
+
+/**
+ * Sends commands to the server using udp instead of the tcp connection. This avoids head of
+ * line blocking and retransmission delays of tcp on lossy networks.
+ * To compensate lost datagrams, each command is sent multiple times with a short delay in
+ * between. The server uses the sequence number of the command to drop duplicates.
+ *
+ * Datagrams are sent on a separate thread, so sending never blocks the caller.
+ */
+class UdpCommandChannel {
+    // Debugging
+    private static final String TAG = "UdpCommandChannel";
+
+    /**
+     * The default number of copies sent for each command.
+     */
+    static final int DEFAULT_COPIES = 3;
+
+    /**
+     * The default time in ms between two copies of a command.
+     */
+    static final long DEFAULT_COPY_INTERVAL = 5;
+
+    /**
+     * Listener that is informed if sending a command failed completely. The command should be
+     * sent using another channel.
+     */
+    interface FallbackListener {
+        /**
+         * Called if not even the first copy of the command could be sent.
+         *
+         * @param datagram The datagram that could not be sent
+         * @param input The input event that caused the command, see {@link LatencyTracker}.
+         *              Might be null.
+         */
+        void onSendFailed(String datagram, LatencyTracker.InputTrace input);
+    }
+
+    /**
+     * A command whose copies are sent. Only accessed on the executor thread.
+     */
+    private static class QueuedCommand {
+        private final String mmDatagram;
+        private final byte[] mmData;
+
+        /**
+         * The input event that caused the command, see {@link LatencyTracker}. Reported for
+         * the first copy that was written and null afterwards.
+         */
+        private LatencyTracker.InputTrace mmInput;
+
+        QueuedCommand(String datagram, LatencyTracker.InputTrace input) {
+            mmDatagram = datagram;
+            mmData = datagram.getBytes();
+            mmInput = input;
+        }
+    }
+
+    private final InetAddress mAddress;
+    private final int mPort;
+    private final int mCopies;
+    private final long mCopyInterval;
+    private final FallbackListener mFallbackListener;
+    private ScheduledExecutorService mExecutor;
+    private DatagramSocket mSocket;
+    private long mNextSequenceNumber = 0;
+    private boolean mFailed = false;
+
+    /**
+     * Statistics about the sent commands.
+     */
+    private int mSentCommands = 0;
+    private int mSentDatagrams = 0;
+    private int mFailedDatagrams = 0;
+
+    /**
+     * Creates a new channel using the {@link #DEFAULT_COPIES} and {@link #DEFAULT_COPY_INTERVAL}.
+     *
+     * @param address The address of the server
+     * @param port The port on which the server receives udp commands
+     * @param fallbackListener The listener informed if sending fails
+     */
+    UdpCommandChannel(InetAddress address, int port, FallbackListener fallbackListener) {
+        this(address, port, DEFAULT_COPIES, DEFAULT_COPY_INTERVAL, fallbackListener);
+    }
+
+    /**
+     * Creates a new channel.
+     *
+     * @param address The address of the server
+     * @param port The port on which the server receives udp commands
+     * @param copies The number of copies to send for each command
+     * @param copyInterval The time in ms between two copies of a command
+     * @param fallbackListener The listener informed if sending fails
+     */
+    UdpCommandChannel(InetAddress address, int port, int copies, long copyInterval,
+                      FallbackListener fallbackListener) {
+        mAddress = address;
+        mPort = port;
+        mCopies = copies;
+        mCopyInterval = copyInterval;
+        mFallbackListener = fallbackListener;
+    }
+
+    /**
+     * Opens the channel.
+     *
+     * @throws SocketException If the socket could not be created
+     */
+    synchronized void open() throws SocketException {
+        mSocket = new DatagramSocket();
+        mExecutor = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    /**
+     * Closes the channel. Copies that were not sent yet are dropped.
+     */
+    synchronized void close() {
+        if (mExecutor != null) {
+            mExecutor.shutdownNow();
+            mExecutor = null;
+        }
+        if (mSocket != null) {
+            mSocket.close();
+            mSocket = null;
+        }
+    }
+
+    /**
+     * Returns if the channel can be used to send commands. If sending failed once, the channel
+     * is not used any more.
+     *
+     * @return If the channel is usable
+     */
+    synchronized boolean isUsable() {
+        return mSocket != null && !mFailed;
+    }
+
+    /**
+     * Returns the sequence number to be used for the next command. Sequence numbers start at
+     * zero for each channel.
+     *
+     * @return The next sequence number
+     */
+    synchronized long nextSequenceNumber() {
+        return mNextSequenceNumber++;
+    }
+
+    /**
+     * Sends the given datagram. The datagram needs to contain a sequence number, see
+     * {@link #nextSequenceNumber()}. This call does not block.
+     *
+     * @param datagram The datagram to send
+     * @param input The input event that caused the command, see {@link LatencyTracker}.
+     *              Might be null.
+     * @return If the datagram was queued for sending
+     */
+    synchronized boolean send(String datagram, LatencyTracker.InputTrace input) {
+        if (!isUsable()) {
+            return false;
+        }
+
+        LatencyTracker.markStage(input, LatencyTracker.Stage.QUEUE);
+        final QueuedCommand command = new QueuedCommand(datagram, input);
+        try {
+            for (int i = 0; i < mCopies; i++) {
+                final boolean firstCopy = i == 0;
+                mExecutor.schedule(() -> sendCopy(command, firstCopy),
+                        i * mCopyInterval, TimeUnit.MILLISECONDS);
+            }
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+
+        mSentCommands++;
+        return true;
+    }
+
+    /**
+     * Sends a single copy of a command. The write is reported for the first copy that was
+     * sent. Executed on the executor thread.
+     *
+     * @param command The command to send
+     * @param firstCopy If this is the first copy of the command
+     */
+    private void sendCopy(QueuedCommand command, boolean firstCopy) {
+        DatagramSocket socket;
+        synchronized (this) {
+            socket = mSocket;
+        }
+        if (socket == null) {
+            return;
+        }
+
+        LatencyTracker.beginSection(LatencyTracker.Stage.WRITE);
+        try {
+            socket.send(new DatagramPacket(command.mmData, command.mmData.length,
+                    mAddress, mPort));
+            LatencyTracker.recordWrite(command.mmInput);
+            command.mmInput = null;
+            synchronized (this) {
+                mSentDatagrams++;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Sending datagram failed", e);
+            synchronized (this) {
+                mFailedDatagrams++;
+                mFailed = true;
+            }
+            // If not even the first copy was sent, the command needs to be sent again
+            if (firstCopy) {
+                mFallbackListener.onSendFailed(command.mmDatagram, command.mmInput);
+                command.mmInput = null;
+            }
+        } finally {
+            LatencyTracker.endSection();
+        }
+    }
+
+    /**
+     * Returns the number of commands sent using this channel.
+     *
+     * @return The number of sent commands
+     */
+    synchronized int getSentCommands() {
+        return mSentCommands;
+    }
+
+    /**
+     * Returns the number of datagrams sent successfully, including all copies.
+     *
+     * @return The number of sent datagrams
+     */
+    synchronized int getSentDatagrams() {
+        return mSentDatagrams;
+    }
+
+    /**
+     * Returns the number of datagrams that could not be sent.
+     *
+     * @return The number of failed datagrams
+     */
+    synchronized int getFailedDatagrams() {
+        return mFailedDatagrams;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "{ " +
+                "\"sentCommands\": \"" + mSentCommands + "\"," +
+                "\"sentDatagrams\": \"" + mSentDatagrams + "\"," +
+                "\"failedDatagrams\": \"" + mFailedDatagrams + "\"" +
+                "}";
+    }
+}
@@ -22,6 +22,8 @@ import android.annotation.SuppressLint;
 import android.app.Activity;
 import android.app.Fragment;
 import android.app.FragmentTransaction;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
@@ -34,12 +36,25 @@ import android.os.Message;
 import android.view.KeyEvent;
 import android.widget.Toast;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.wohlfrom.presenter.AirMouse;
 import de.wohlfrom.presenter.Connecting;
 import de.wohlfrom.presenter.Presenter;
 import de.wohlfrom.presenter.R;
 import de.wohlfrom.presenter.Settings;
 import de.wohlfrom.presenter.connectors.Command;
+import de.wohlfrom.presenter.connectors.FailoverSession;
+import de.wohlfrom.presenter.connectors.LatencyTracker;
+import de.wohlfrom.presenter.connectors.MultiServerController;
+import de.wohlfrom.presenter.connectors.MultipathSession;
 import de.wohlfrom.presenter.connectors.RemoteControl;
+import de.wohlfrom.presenter.connectors.SessionFeatures;
+import de.wohlfrom.presenter.connectors.TransportSelector;
+import de.wohlfrom.presenter.connectors.bluetooth.BluetoothPresenterControl;
 
 /**
  * The wifi connector activity is used to handle the complete presenter control using
@@ -48,7 +63,7 @@ import de.wohlfrom.presenter.connectors.RemoteControl;
  */
 public class WifiConnector extends Activity
         implements DeviceSelector.DeviceListResultListener,
-        Presenter.PresenterListener {
+        Presenter.PresenterListener, Presenter.PointerListener, Presenter.SessionProvider {
 
     /**
      * This request code is used to verify that the activity result is really our request to
@@ -66,6 +81,54 @@ public class WifiConnector extends Activity
      */
     private WifiPresenterControl mPresenterControl = null;
 
+    /**
+     * The bluetooth connection to the same server that is kept as standby, if enabled.
+     */
+    private BluetoothPresenterControl mStandbyControl = null;
+
+    /**
+     * The session that routes the commands to the currently working connection.
+     */
+    private FailoverSession mSession = null;
+
+    /**
+     * The session that sends the commands over the wifi and the bluetooth connection at the
+     * same time, if enabled.
+     */
+    private MultipathSession mMultipath = null;
+
+    /**
+     * Lets the failover session use the faster of the wifi and the bluetooth connection, if
+     * both are available and multipath is not enabled.
+     */
+    private TransportSelector mSelector = null;
+
+    /**
+     * The servers selected to be controlled together with the connected server, by address.
+     */
+    private final Map<String, String> mAdditionalServers = new LinkedHashMap<>();
+
+    /**
+     * The connections to the additional servers.
+     */
+    private final List<WifiPresenterControl> mAdditionalControls = new ArrayList<>();
+
+    /**
+     * Sends the commands to the connected server and all additional servers, if additional
+     * servers are selected.
+     */
+    private MultiServerController mMultiServer = null;
+
+    /**
+     * The features of the connection, like thumbnails or speaker notes.
+     */
+    private SessionFeatures mFeatures = null;
+
+    /**
+     * The air mouse, created when it is used the first time.
+     */
+    private AirMouse mAirMouse = null;
+
     /**
      * Stores if the presenter fragment is visible or not.
      */
@@ -76,11 +139,6 @@ public class WifiConnector extends Activity
      */
     private boolean mWifiConnectorVisible = false;
 
-    /**
-     * The settings instance.
-     */
-    private Settings mSettings;
-
     /**
      * The BroadcastReceiver that listens for wifi broadcasts
      */
@@ -91,7 +149,8 @@ public class WifiConnector extends Activity
             
             if (ConnectivityManager.CONNECTIVITY_ACTION.equals(action)
                     && intent.hasExtra(ConnectivityManager.EXTRA_NO_CONNECTIVITY)
-                    && intent.getBooleanExtra(ConnectivityManager.EXTRA_NO_CONNECTIVITY, true)) {
+                    && intent.getBooleanExtra(ConnectivityManager.EXTRA_NO_CONNECTIVITY, true)
+                    && !isStandbyUsable()) {
                 //Device has disconnected
                 Toast.makeText(WifiConnector.this, R.string.wifi_required_leaving,
                         Toast.LENGTH_LONG).show();
@@ -104,7 +163,10 @@ public class WifiConnector extends Activity
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
-        mSettings = new Settings(this);
+        // Make sure the settings are loaded, the key handlers rely on it
+        Settings.getSnapshot(this);
+
+        mFeatures = new SessionFeatures(getCacheDir(), this::getActiveControl);
 
         // Get connectivity manager
         mConnectivityManager = 
@@ -126,8 +188,12 @@ public class WifiConnector extends Activity
     @Override
     public void onDestroy() {
         this.unregisterReceiver(mReceiver);
+        stopAirMouse();
+        mFeatures.shutdown();
 
         super.onDestroy();
+        stopStandby();
+        stopAdditionalServers();
         if (mPresenterControl != null) {
             mPresenterControl.stop();
         }
@@ -157,6 +223,7 @@ public class WifiConnector extends Activity
         } else if (mPresenterControl == null) {
             // Initialize the WifiPresenterControl to perform wifi connections
             mPresenterControl = new WifiPresenterControl(mHandler);
+            mFeatures.attach(mPresenterControl);
         }
 
         // Performing this check in onResume() covers the case in which wifi was
@@ -233,6 +300,13 @@ public class WifiConnector extends Activity
                 transaction.commit();
 
                 mPresenterVisible = true;
+                mFeatures.onConnected();
+                String hostname = msg.getData().getString(WifiPresenterControl.RESULT_VALUES[0]);
+                if (mAdditionalServers.isEmpty()) {
+                    startStandby(hostname);
+                } else {
+                    startAdditionalServers(hostname);
+                }
                 return;
 
             } else if (msg.what == RemoteControl.ServiceState.CONNECTING.ordinal()) {
@@ -261,12 +335,26 @@ public class WifiConnector extends Activity
                         break;
                     case PARSING:
                         errorMessage = getString(R.string.parsing_error);
+                        // An established connection is still usable, so keep the presenter
+                        if (mPresenterVisible) {
+                            Toast.makeText(WifiConnector.this, errorMessage, Toast.LENGTH_LONG)
+                                    .show();
+                            return;
+                        }
                         break;
                 }
 
                 Toast.makeText(WifiConnector.this, errorMessage, Toast.LENGTH_LONG).show();
 
             } else if (msg.what == RemoteControl.ServiceState.NONE.ordinal()) {
+                // Keep the presenter if we already use or could switch to the standby connection
+                if (mSession != null && (mSession.getActive().getState()
+                        == RemoteControl.ServiceState.CONNECTED || mSession.failover())) {
+                    return;
+                }
+
+                stopStandby();
+                stopAdditionalServers();
                 Toast.makeText(WifiConnector.this,
                         WifiConnector.this.getString(R.string.connection_lost),
                         Toast.LENGTH_LONG).show();
@@ -289,6 +377,194 @@ public class WifiConnector extends Activity
         }
     };
 
+    /**
+     * The handler for the standby connection. Adds the standby connection to the multipath
+     * session once connected and forwards its loss if it is used for commands. All other state
+     * changes are not visible to the user.
+     */
+    @SuppressLint("HandlerLeak") // We don't leak any handlers here
+    private final Handler mStandbyHandler = new Handler() {
+        @Override
+        public void handleMessage(Message msg) {
+            if (msg.what == RemoteControl.ServiceState.CONNECTED.ordinal()
+                    && mMultipath != null && mStandbyControl != null) {
+                // The server needs to know the session before the path can be used
+                mMultipath.addPath(mStandbyControl);
+            } else if (msg.what == RemoteControl.ServiceState.NONE.ordinal()
+                    && mSession != null && mSession.getActive() == mStandbyControl) {
+                mHandler.sendEmptyMessage(msg.what);
+            }
+        }
+    };
+
+    /**
+     * Informs the user about a failover to the bluetooth standby connection. If the bluetooth
+     * connection was used because it was faster, falling back to wifi is not shown.
+     */
+    private final FailoverSession.FailoverListener mFailoverListener =
+            (failed, active, failoverTime) -> {
+                if (active != mPresenterControl) {
+                    mHandler.post(() -> Toast.makeText(WifiConnector.this,
+                            getString(R.string.failover_to_bluetooth, failoverTime),
+                            Toast.LENGTH_LONG).show());
+                }
+            };
+
+    /**
+     * Creates the failover session for the wifi connection and connects the bluetooth standby
+     * connection to the bonded device with the same name as the wifi server, if enabled. If
+     * multipath is enabled, the commands are sent over both connections.
+     *
+     * @param hostname The name of the connected wifi server
+     */
+    private void startStandby(String hostname) {
+        stopStandby();
+        mSession = new FailoverSession(mPresenterControl, mFailoverListener);
+
+        Settings.Snapshot settings = Settings.getSnapshot();
+        if (settings.useMultipath()) {
+            mMultipath = new MultipathSession();
+            mMultipath.addPath(mPresenterControl);
+        }
+
+        BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        if (!(settings.useBluetoothStandby() || settings.useMultipath()) || hostname == null
+                || adapter == null || !adapter.isEnabled()) {
+            return;
+        }
+
+        for (BluetoothDevice device : adapter.getBondedDevices()) {
+            if (hostname.equals(device.getName())) {
+                mStandbyControl = new BluetoothPresenterControl(mStandbyHandler);
+                mStandbyControl.setCoalescingWindow(settings.coalescingWindow());
+                mFeatures.attach(mStandbyControl);
+                mStandbyControl.connect(device);
+                mSession.setStandby(mStandbyControl);
+
+                if (mMultipath == null) {
+                    mSelector = new TransportSelector(mSession::isAlive);
+                    mSelector.addPath("wifi", mPresenterControl);
+                    mSelector.addPath("bluetooth", mStandbyControl);
+                    mSession.setSelector(mSelector);
+                }
+                mSession.start();
+                break;
+            }
+        }
+    }
+
+    /**
+     * Stops the failover session, the multipath session, the transport selector and the
+     * standby connection.
+     */
+    private void stopStandby() {
+        if (mSelector != null) {
+            mSelector.removePaths();
+            mSelector = null;
+        }
+        if (mMultipath != null) {
+            mMultipath.logStats();
+            mMultipath.removePath(mPresenterControl);
+            mMultipath = null;
+        }
+        if (mSession != null) {
+            mSession.stop();
+            mSession = null;
+        }
+        if (mStandbyControl != null) {
+            mStandbyControl.stop();
+            mStandbyControl = null;
+        }
+    }
+
+    /**
+     * The handler for the connection to an additional server. Adds the server to the multi
+     * server controller once connected. All state changes are not visible to the user, a lost
+     * server is skipped by the controller.
+     */
+    @SuppressLint("HandlerLeak") // We don't leak any handlers here
+    private class AdditionalServerHandler extends Handler {
+        private final String mmHostname;
+        private WifiPresenterControl mmControl = null;
+
+        AdditionalServerHandler(String hostname) {
+            mmHostname = hostname;
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            if (msg.what == RemoteControl.ServiceState.CONNECTED.ordinal()
+                    && mMultiServer != null && mAdditionalControls.contains(mmControl)) {
+                mMultiServer.addServer(mmHostname, mmControl);
+            }
+        }
+    }
+
+    /**
+     * Connects the additional servers and sends the commands to them and the connected server
+     * using the multi server controller. The bluetooth standby is not used in this case.
+     *
+     * @param hostname The name of the connected wifi server
+     */
+    private void startAdditionalServers(String hostname) {
+        stopAdditionalServers();
+        mMultiServer = new MultiServerController();
+        mMultiServer.addServer(hostname, mPresenterControl);
+
+        Settings.Snapshot settings = Settings.getSnapshot();
+        for (Map.Entry<String, String> server : mAdditionalServers.entrySet()) {
+            AdditionalServerHandler handler = new AdditionalServerHandler(server.getValue());
+            WifiPresenterControl control = new WifiPresenterControl(handler);
+            handler.mmControl = control;
+            control.setUdpCommandChannelEnabled(settings.useUdpCommandChannel());
+            control.setCoalescingWindow(settings.coalescingWindow());
+            mAdditionalControls.add(control);
+            control.connect(server.getValue(), server.getKey());
+        }
+    }
+
+    /**
+     * Stops the multi server controller and the connections to the additional servers.
+     */
+    private void stopAdditionalServers() {
+        if (mMultiServer != null) {
+            mMultiServer.removeServer(mPresenterControl);
+            mMultiServer = null;
+        }
+        for (WifiPresenterControl control : mAdditionalControls) {
+            control.stop();
+        }
+        mAdditionalControls.clear();
+    }
+
+    /**
+     * Returns if the standby connection is used or could be used for commands.
+     *
+     * @return If the standby connection is usable
+     */
+    private boolean isStandbyUsable() {
+        return mSession != null && mStandbyControl != null
+                && (mSession.getActive() == mStandbyControl || mSession.isStandbyAvailable());
+    }
+
+    /**
+     * Sends the given command using the multi server controller, the multipath session or the
+     * failover session, if available.
+     *
+     * @param command The command to send
+     */
+    private void sendCommand(Command command) {
+        if (mMultiServer != null) {
+            mMultiServer.sendCommand(command);
+        } else if (mMultipath != null) {
+            mMultipath.sendCommand(command);
+        } else if (mSession != null) {
+            mSession.sendCommand(command);
+        } else {
+            mPresenterControl.sendCommand(command);
+        }
+    }
+
     /**
      * Handles answers of our request to enable wifi.
      *
@@ -313,14 +589,28 @@ public class WifiConnector extends Activity
     @Override
     public void onDeviceSelected(String hostname, String address) {
         // Attempt to connect to the device
+        Settings.Snapshot settings = Settings.getSnapshot();
+        mPresenterControl.setUdpCommandChannelEnabled(settings.useUdpCommandChannel());
+        mPresenterControl.setCoalescingWindow(settings.coalescingWindow());
+        mAdditionalServers.remove(address);
         mPresenterControl.connect(hostname, address);
     }
 
+    @Override
+    public boolean onAdditionalDeviceToggled(String hostname, String address) {
+        if (mAdditionalServers.remove(address) != null) {
+            return false;
+        }
+
+        mAdditionalServers.put(address, hostname);
+        return true;
+    }
+
     @Override
     public boolean onKeyDown(int keyCode, KeyEvent event) {
         // Ignore volume key events if volume keys are used for navigation and
         // presenter fragment is active
-        return (mSettings.useVolumeKeysForNavigation() && mPresenterVisible
+        return (Settings.getSnapshot().useVolumeKeysForNavigation() && mPresenterVisible
                     && ((keyCode == KeyEvent.KEYCODE_VOLUME_UP)
                         || (keyCode == KeyEvent.KEYCODE_VOLUME_DOWN)))
                 || super.onKeyDown(keyCode, event);
@@ -329,11 +619,13 @@ public class WifiConnector extends Activity
     @Override
     public boolean onKeyUp(int keyCode, KeyEvent event) {
         // Handle volume key usage for navigation
-        if (mSettings.useVolumeKeysForNavigation() && mPresenterVisible) {
+        if (Settings.getSnapshot().useVolumeKeysForNavigation() && mPresenterVisible) {
             if (keyCode == KeyEvent.KEYCODE_VOLUME_UP) {
+                LatencyTracker.markInput(event);
                 onNextSlide();
                 return true;
             } else if (keyCode == KeyEvent.KEYCODE_VOLUME_DOWN) {
+                LatencyTracker.markInput(event);
                 onPrevSlide();
                 return true;
             }
@@ -344,6 +636,10 @@ public class WifiConnector extends Activity
     @Override
     public void onBackPressed() {
         mPresenterVisible = false;
+        stopAirMouse();
+        mFeatures.clear();
+        stopStandby();
+        stopAdditionalServers();
         mPresenterControl.disconnect();
         setTitle(R.string.title_device_selector);
         super.onBackPressed();
@@ -351,21 +647,74 @@ public class WifiConnector extends Activity
 
     @Override
     public void onPrevSlide() {
-        mPresenterControl.sendCommand(Command.PREV_SLIDE);
+        sendCommand(Command.PREV_SLIDE);
     }
 
     @Override
     public void onNextSlide() {
-        mPresenterControl.sendCommand(Command.NEXT_SLIDE);
+        sendCommand(Command.NEXT_SLIDE);
     }
 
     @Override
     public void onStartPresentation() {
-        mPresenterControl.sendCommand(Command.START_PRESENTATION);
+        sendCommand(Command.START_PRESENTATION);
     }
 
     @Override
     public void onStopPresentation() {
-        mPresenterControl.sendCommand(Command.STOP_PRESENTATION);
+        sendCommand(Command.STOP_PRESENTATION);
+    }
+
+    @Override
+    public void onPointerMoved(float[] samples, int count) {
+        if (getActiveControl() != null) {
+            getActiveControl().getPointerStreamer().addSamples(samples, count);
+        }
+    }
+
+    @Override
+    public void onPointerReleased() {
+        if (getActiveControl() != null) {
+            getActiveControl().getPointerStreamer().release();
+        }
+    }
+
+    @Override
+    public SessionFeatures getSessionFeatures() {
+        return mFeatures;
+    }
+
+    @Override
+    public void onAirMouse(boolean active) {
+        if (!active) {
+            stopAirMouse();
+            return;
+        }
+
+        if (mAirMouse == null) {
+            // Resolved on every start, so the air mouse follows the connection that is active
+            mAirMouse = new AirMouse(this,
+                    () -> getActiveControl() != null ? getActiveControl().getPointerSink() : null);
+        }
+        mAirMouse.start();
+    }
+
+    /**
+     * Stops the air mouse, if it is running.
+     */
+    private void stopAirMouse() {
+        if (mAirMouse != null) {
+            mAirMouse.stop();
+            mAirMouse = null;
+        }
+    }
+
+    /**
+     * Returns the connection currently used to send commands.
+     *
+     * @return The active connection of the failover session, if available
+     */
+    private RemoteControl getActiveControl() {
+        return mSession != null ? mSession.getActive() : mPresenterControl;
     }
 }
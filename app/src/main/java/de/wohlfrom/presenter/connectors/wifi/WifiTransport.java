@@ -0,0 +1,91 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Presenter. Android Client to remote control a presentation.          *
+ *  Copyright (C) 2019 Felix Wohlfrom                                    *
+ *                                                                       *
+ *  This program is free software: you can redistribute it and/or modify *
+ *  it under the terms of the GNU General Public License as published by *
+ *  the Free Software Foundation, either version 3 of the License, or    *
+ *  (at your option) any later version.                                  *
+ *                                                                       *
+ *  This program is distributed in the hope that it will be useful,      *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of       *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the        *
+ *  GNU General Public License for more details.                         *
+ *                                                                       *
+ *  You should have received a copy of the GNU General Public License    *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.*
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+
+package de.wohlfrom.presenter.connectors.wifi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import de.wohlfrom.presenter.connectors.StreamTransport;
+
+/**
+ * Transport that connects to the presenter server using a tcp socket.
+ */
+class WifiTransport extends StreamTransport {
+    /**
+     * The port on which the remote control server is listening.
+     */
+    private static final int REMOTE_CONTROL_SERVER_PORT = 43155;
+
+    private final String mHostname;
+    private final String mAddress;
+    private Socket mSocket;
+
+    /**
+     * Creates a new transport that will connect to the given ip.
+     *
+     * @param hostname The hostname to connect to
+     * @param address The ip to connect to
+     */
+    WifiTransport(String hostname, String address) {
+        mHostname = hostname;
+        mAddress = address;
+    }
+
+    @Override
+    public String getName() {
+        return mHostname;
+    }
+
+    @Override
+    protected void connect() throws IOException {
+        Socket socket = new Socket();
+        synchronized (this) {
+            // Needed to avoid race conditions if the transport was closed before the socket
+            // has been created.
+            if (isClosed()) {
+                throw new IOException("Transport closed before connecting");
+            }
+            mSocket = socket;
+        }
+
+        socket.connect(new InetSocketAddress(
+                InetAddress.getByName(mAddress), REMOTE_CONTROL_SERVER_PORT));
+    }
+
+    @Override
+    protected InputStream getInputStream() throws IOException {
+        return mSocket.getInputStream();
+    }
+
+    @Override
+    protected OutputStream getOutputStream() throws IOException {
+        return mSocket.getOutputStream();
+    }
+
+    @Override
+    protected synchronized void closeConnection() throws IOException {
+        if (mSocket != null) {
+            mSocket.close();
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Presenter. Android Client to remote control a presentation.          *
+ *  Copyright (C) 2019 Felix Wohlfrom                                    *
+ *                                                                       *
+ *  This program is free software: you can redistribute it and/or modify *
+ *  it under the terms of the GNU General Public License as published by *
+ *  the Free Software Foundation, either version 3 of the License, or    *
+ *  (at your option) any later version.                                  *
+ *                                                                       *
+ *  This program is distributed in the hope that it will be useful,      *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of       *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the        *
+ *  GNU General Public License for more details.                         *
+ *                                                                       *
+ *  You should have received a copy of the GNU General Public License    *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.*
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+
+package de.wohlfrom.presenter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+/**
+ * These tests replay synthetic sensor traces through the air mouse fusion and verify the
+ * resulting pointer positions.
+ */
+public class AirMouseFusionTest {
+    /** The standard gravity. */
+    private static final float G = 9.81f;
+
+    /** The time in ns between two gyroscope samples, i.e. a sampling rate of 500 Hz. */
+    private static final long SAMPLE_INTERVAL = 2000000L;
+
+    private AirMouseFusion fusion;
+    private int positions;
+    private float lastX;
+    private float lastY;
+    private long time;
+
+    /**
+     * Creates a new fusion counting the reported positions.
+     */
+    @Before
+    public void initFusion() {
+        positions = 0;
+        lastX = 0.5f;
+        lastY = 0.5f;
+        time = 1000000000L;
+
+        fusion = new AirMouseFusion((x, y) -> {
+            positions++;
+            lastX = x;
+            lastY = y;
+        });
+    }
+
+    /**
+     * Replays a constant rotation for the given time.
+     *
+     * @param duration The duration in ms
+     * @param x The rotation rate around the device x axis
+     * @param y The rotation rate around the device y axis
+     * @param z The rotation rate around the device z axis
+     */
+    private void rotate(long duration, float x, float y, float z) {
+        long end = time + duration * 1000000L;
+        while (time < end) {
+            fusion.onGyroscope(time, x, y, z);
+            time += SAMPLE_INTERVAL;
+        }
+    }
+
+    /**
+     * Verify that the pointer stays in the center if the device is held still, even if the
+     * gyroscope reports some noise.
+     */
+    @Test
+    public void stillDeviceDoesNotMove() {
+        fusion.onGravity(0, 0, G);
+        Random random = new Random(42);
+
+        for (int i = 0; i < 1000; i++) {
+            fusion.onGyroscope(time, noise(random), noise(random), noise(random));
+            time += SAMPLE_INTERVAL;
+        }
+
+        assertThat(positions, is(0));
+        assertThat((double) fusion.getX(), closeTo(0.5, 1e-6));
+        assertThat((double) fusion.getY(), closeTo(0.5, 1e-6));
+        assertThat(fusion.getInputSamples(), is(1000));
+    }
+
+    /**
+     * Returns gyroscope noise within the dead zone.
+     *
+     * @param random The random generator
+     * @return The noise in rad/s
+     */
+    private static float noise(Random random) {
+        return (random.nextFloat() * 2 - 1) * AirMouseFusion.DEAD_ZONE * 0.9f;
+    }
+
+    /**
+     * Verify that turning the device to the left moves the pointer to the left and tilting the
+     * top edge up moves it up.
+     */
+    @Test
+    public void rotationMovesPointer() {
+        fusion.onGravity(0, 0, G);
+
+        // Turn left by 0.1 rad, the smoothing delays the movement by about 20 ms
+        rotate(100, 0, 0, 1);
+        assertThat(lastX, lessThan(0.5f));
+        assertThat((double) fusion.getX(), closeTo(0.5 - 0.08 * AirMouseFusion.GAIN, 0.03));
+        assertThat((double) lastY, closeTo(0.5, 1e-6));
+
+        // Turn back and hold still, the pointer ends up close to the start
+        rotate(100, 0, 0, -1);
+        rotate(100, 0, 0, 0);
+        assertThat((double) fusion.getX(), closeTo(0.5, 0.05));
+
+        // Tilt up
+        float x = fusion.getX();
+        rotate(50, 1, 0, 0);
+        assertThat(lastY, lessThan(0.5f));
+        assertThat(fusion.getX(), is(x));
+    }
+
+    /**
+     * Verify that the pointer follows the turn around the vertical axis, independent of how the
+     * device is rolled in the hand.
+     */
+    @Test
+    public void rotationIndependentOfRoll() {
+        // The device is rolled onto its side, so its x axis points down
+        fusion.onGravity(-G, 0, 0);
+
+        // Turning left is now a rotation around the negative x axis
+        rotate(100, -1, 0, 0);
+        assertThat(fusion.getX(), lessThan(0.5f));
+        assertThat((double) fusion.getY(), closeTo(0.5, 1e-6));
+
+        // Tilting the top edge up is a rotation around the z axis
+        fusion.reset();
+        rotate(100, 0, 0, 1);
+        assertThat(fusion.getY(), lessThan(0.5f));
+        assertThat((double) fusion.getX(), closeTo(0.5, 1e-6));
+    }
+
+    /**
+     * Verify that the positions are reported at most with the maximum output rate.
+     */
+    @Test
+    public void outputIsDecimated() {
+        fusion.onGravity(0, 0, G);
+
+        // Move slowly for a second, so the pointer does not hit the border
+        rotate(1000, 0, 0, 0.2f);
+
+        assertThat(fusion.getInputSamples(), is(500));
+        assertThat(positions, greaterThan(AirMouseFusion.MAX_OUTPUT_RATE / 2));
+        assertThat(positions, lessThanOrEqualTo(AirMouseFusion.MAX_OUTPUT_RATE + 1));
+        assertThat(fusion.getOutputSamples(), is(positions));
+    }
+
+    /**
+     * Verify that the pointer stops at the border of the presentation and does not report
+     * positions while it is pinned there.
+     */
+    @Test
+    public void positionIsClamped() {
+        fusion.onGravity(0, 0, G);
+
+        rotate(1000, 0, 0, 2);
+        assertThat(lastX, is(0f));
+
+        int reported = positions;
+        rotate(500, 0, 0, 2);
+        assertThat(positions, is(reported));
+
+        // Turning back immediately moves the pointer away from the border
+        rotate(100, 0, 0, -2);
+        assertThat(lastX, greaterThan(0f));
+    }
+
+    /**
+     * Verify that the rotation is not integrated over a gap in the samples.
+     */
+    @Test
+    public void gapDoesNotJump() {
+        fusion.onGravity(0, 0, G);
+        rotate(20, 0, 0, 1);
+        float x = fusion.getX();
+
+        time += 2 * AirMouseFusion.MAX_SAMPLE_GAP;
+        fusion.onGyroscope(time, 0, 0, 1);
+        assertThat(fusion.getX(), is(x));
+    }
+}
@@ -22,6 +22,9 @@ import android.app.Activity;
 import android.app.Fragment;
 import android.media.AudioManager;
 import android.os.Build;
+import android.os.SystemClock;
+import android.view.MotionEvent;
+import android.view.View;
 
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -139,4 +142,48 @@ public class PresenterTest {
                 is(AudioManager.RINGER_MODE_NORMAL));
         
     }
+
+    /**
+     * Verify that slide changes are sent on touch down if configured in settings and that
+     * a cancelled touch does not send any further command.
+     */
+    @Test
+    public void touchDownNavigation() {
+        Fragment presenter = Presenter.newInstance(new ProtocolVersion(1, 1));
+        ActivityController activityController = Robolectric.buildActivity(
+                PresenterTestDummyActivity.class);
+        PresenterTestDummyActivity activity =
+                (PresenterTestDummyActivity) activityController.get();
+        activity.setFragment(presenter);
+
+        new Settings(activity).useTouchDownNavigation(true);
+        activityController.create().resume().visible();
+
+        View nextSlide = Objects.requireNonNull(presenter.getView())
+                .findViewById(R.id.next_slide);
+        long downTime = SystemClock.uptimeMillis();
+
+        nextSlide.dispatchTouchEvent(MotionEvent.obtain(downTime, downTime,
+                MotionEvent.ACTION_DOWN, 1, 1, 0));
+        assertThat("Did not send 'next slide' on touch down",
+                activity.isNextSlidePressed());
+
+        nextSlide.dispatchTouchEvent(MotionEvent.obtain(downTime, downTime,
+                MotionEvent.ACTION_UP, 1, 1, 0));
+        assertThat("Sent 'next slide' again on touch up",
+                !activity.isNextSlidePressed());
+        assertThat("Sent 'previous slide' on touch up", !activity.isPrevSlidePressed());
+
+        nextSlide.dispatchTouchEvent(MotionEvent.obtain(downTime, downTime,
+                MotionEvent.ACTION_DOWN, 1, 1, 0));
+        nextSlide.dispatchTouchEvent(MotionEvent.obtain(downTime, downTime,
+                MotionEvent.ACTION_MOVE, -1000, -1000, 0));
+        nextSlide.dispatchTouchEvent(MotionEvent.obtain(downTime, downTime,
+                MotionEvent.ACTION_CANCEL, -1000, -1000, 0));
+        assertThat("Did not send 'next slide' on touch down",
+                activity.isNextSlidePressed());
+        assertThat("Sent 'previous slide' for cancelled touch",
+                !activity.isPrevSlidePressed());
+        assertThat("Button still pressed after cancelled touch", !nextSlide.isPressed());
+    }
 }
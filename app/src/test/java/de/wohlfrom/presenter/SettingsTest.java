@@ -18,12 +18,18 @@
 
 package de.wohlfrom.presenter;
 
+import android.app.Activity;
+
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.Robolectric;
 import org.robolectric.RobolectricTestRunner;
 
+import de.wohlfrom.presenter.connectors.CommandCoalescer;
+
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.core.Is.is;
 
@@ -32,11 +38,13 @@ import static org.hamcrest.core.Is.is;
  */
 @RunWith(RobolectricTestRunner.class)
 public class SettingsTest {
+    private Activity mActivity;
     private Settings mSettings;
 
     @Before
     public void setUp() {
-        mSettings = new Settings(Robolectric.setupActivity(DummyActivity.class));
+        mActivity = Robolectric.setupActivity(DummyActivity.class);
+        mSettings = new Settings(mActivity);
     }
 
     /**
@@ -60,4 +68,108 @@ public class SettingsTest {
         mSettings.useVolumeKeysForNavigation(false);
         assertThat(mSettings.useVolumeKeysForNavigation(), is(false));
     }
+
+    /**
+     * Verify that "use udp command channel" setting is stored and restored properly.
+     */
+    @Test
+    public void verifyUseUdpCommandChannelStoring() {
+        assertThat(mSettings.useUdpCommandChannel(), is(false));
+        mSettings.useUdpCommandChannel(true);
+        assertThat(mSettings.useUdpCommandChannel(), is(true));
+        mSettings.useUdpCommandChannel(false);
+        assertThat(mSettings.useUdpCommandChannel(), is(false));
+    }
+
+    /**
+     * Verify that "use bluetooth standby" setting is stored and restored properly.
+     */
+    @Test
+    public void verifyUseBluetoothStandbyStoring() {
+        assertThat(mSettings.useBluetoothStandby(), is(false));
+        mSettings.useBluetoothStandby(true);
+        assertThat(mSettings.useBluetoothStandby(), is(true));
+        mSettings.useBluetoothStandby(false);
+        assertThat(mSettings.useBluetoothStandby(), is(false));
+    }
+
+    /**
+     * Verify that "use multipath" setting is stored and restored properly.
+     */
+    @Test
+    public void verifyUseMultipathStoring() {
+        assertThat(mSettings.useMultipath(), is(false));
+        mSettings.useMultipath(true);
+        assertThat(mSettings.useMultipath(), is(true));
+        assertThat(Settings.getSnapshot(mActivity).useMultipath(), is(true));
+        mSettings.useMultipath(false);
+        assertThat(mSettings.useMultipath(), is(false));
+    }
+
+    /**
+     * Verify that "use touch down navigation" setting is stored and restored properly.
+     */
+    @Test
+    public void verifyUseTouchDownNavigationStoring() {
+        assertThat(mSettings.useTouchDownNavigation(), is(false));
+        mSettings.useTouchDownNavigation(true);
+        assertThat(mSettings.useTouchDownNavigation(), is(true));
+        mSettings.useTouchDownNavigation(false);
+        assertThat(mSettings.useTouchDownNavigation(), is(false));
+    }
+
+    /**
+     * Verify that "coalescing window" setting is stored and restored properly.
+     */
+    @Test
+    public void verifyCoalescingWindowStoring() {
+        assertThat(mSettings.coalescingWindow(), is(CommandCoalescer.DEFAULT_WINDOW));
+        mSettings.coalescingWindow(0);
+        assertThat(mSettings.coalescingWindow(), is(0L));
+        mSettings.coalescingWindow(300);
+        assertThat(mSettings.coalescingWindow(), is(300L));
+    }
+
+    /**
+     * Verify that the "slide durations" and "loop slides" settings are stored and restored
+     * properly and that the snapshot contains the parsed durations.
+     */
+    @Test
+    public void verifySlideDurationsStoring() {
+        assertThat(mSettings.slideDurations(), is(""));
+        assertThat(mSettings.loopSlides(), is(false));
+        assertThat(Settings.getSnapshot(mActivity).slideDurations().length, is(0));
+
+        mSettings.slideDurations("30, 1.5,invalid, -2,60");
+        mSettings.loopSlides(true);
+        assertThat(mSettings.slideDurations(), is("30, 1.5,invalid, -2,60"));
+        assertThat(mSettings.loopSlides(), is(true));
+        assertThat(Settings.getSnapshot(mActivity).slideDurations(),
+                is(new long[] { 30000, 1500, 60000 }));
+        assertThat(Settings.getSnapshot(mActivity).loopSlides(), is(true));
+
+        // The snapshot can not be changed through the returned durations
+        Settings.getSnapshot(mActivity).slideDurations()[0] = 1;
+        assertThat(Settings.getSnapshot(mActivity).slideDurations()[0], is(30000L));
+    }
+
+    /**
+     * Verify that the snapshot contains the stored settings, is kept as long as nothing changes
+     * and is replaced as soon as a setting was changed.
+     */
+    @Test
+    public void verifySnapshotUpdating() {
+        mSettings.useVolumeKeysForNavigation(false);
+
+        Settings.Snapshot snapshot = Settings.getSnapshot(mActivity);
+        assertThat(snapshot.useVolumeKeysForNavigation(), is(false));
+        assertThat(snapshot.coalescingWindow(), is(CommandCoalescer.DEFAULT_WINDOW));
+        assertThat(Settings.getSnapshot(mActivity), is(sameInstance(snapshot)));
+        assertThat(Settings.getSnapshot(), is(sameInstance(snapshot)));
+
+        mSettings.useVolumeKeysForNavigation(true);
+        assertThat(Settings.getSnapshot(), is(not(sameInstance(snapshot))));
+        assertThat(Settings.getSnapshot().useVolumeKeysForNavigation(), is(true));
+        assertThat(snapshot.useVolumeKeysForNavigation(), is(false));
+    }
 }
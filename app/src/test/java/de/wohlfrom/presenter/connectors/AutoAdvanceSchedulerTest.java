@@ -0,0 +1,204 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Presenter. Android Client to remote control a presentation.          *
+ *  Copyright (C) 2019 Felix Wohlfrom                                    *
+ *                                                                       *
+ *  This program is free software: you can redistribute it and/or modify *
+ *  it under the terms of the GNU General Public License as published by *
+ *  the Free Software Foundation, either version 3 of the License, or    *
+ *  (at your option) any later version.                                  *
+ *                                                                       *
+ *  This program is distributed in the hope that it will be useful,      *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of       *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the        *
+ *  GNU General Public License for more details.                         *
+ *                                                                       *
+ *  You should have received a copy of the GNU General Public License    *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.*
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+
+package de.wohlfrom.presenter.connectors;
+
+import android.os.Looper;
+import android.os.SystemClock;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.lessThan;
+
+/**
+ * These tests verify that the auto advance scheduler sends the prepared commands at the
+ * planned times, loops or stops after the last slide and records the jitter.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class AutoAdvanceSchedulerTest {
+    /** The encoded slide change */
+    private static final String NEXT_FRAME = "next";
+    /** The prefix of an encoded advance command */
+    private static final String ADVANCE_FRAME = "advance:";
+
+    private final List<String> frames = new ArrayList<>();
+    private final List<Long> sendTimes = new ArrayList<>();
+    private int encodedCommands;
+    private boolean advanceSupported;
+    private int notifications;
+    private AutoAdvanceScheduler scheduler;
+
+    /**
+     * Creates a new scheduler on the main looper that records the sent frames.
+     */
+    @Before
+    public void initScheduler() {
+        frames.clear();
+        sendTimes.clear();
+        encodedCommands = 0;
+        advanceSupported = true;
+        notifications = 0;
+
+        scheduler = new AutoAdvanceScheduler(new AutoAdvanceScheduler.AdvanceSink() {
+            @Override
+            public String encodeCommand(Command command) {
+                encodedCommands++;
+                return command == Command.NEXT_SLIDE ? NEXT_FRAME : command.getCommand();
+            }
+
+            @Override
+            public String encodeAdvance(int slides) {
+                encodedCommands++;
+                return advanceSupported ? ADVANCE_FRAME + slides : null;
+            }
+
+            @Override
+            public void sendEncoded(String frame) {
+                frames.add(frame);
+                sendTimes.add(SystemClock.uptimeMillis());
+            }
+        }, Looper.getMainLooper());
+        scheduler.setListener(changed -> notifications++);
+    }
+
+    /**
+     * Stops the scheduler.
+     */
+    @After
+    public void shutdown() {
+        scheduler.shutdown();
+    }
+
+    /**
+     * Advances the main looper by the given time.
+     *
+     * @param time The time in ms to advance
+     */
+    private void advance(long time) {
+        ShadowLooper.idleMainLooper(time, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Verify that the slides are advanced at the sums of the durations of the previous slides
+     * and that the schedule stops after the last slide.
+     */
+    @Test
+    public void advancesAtPlannedTimes() {
+        long start = SystemClock.uptimeMillis();
+        scheduler.start(new long[] { 1000, 2500, 1500 }, false);
+        assertThat(scheduler.isRunning(), is(true));
+        assertThat(scheduler.getNextAdvanceTime(), is(start + 1000));
+
+        advance(999);
+        assertThat(frames.size(), is(0));
+        advance(1);
+        assertThat(frames, is(Arrays.asList(NEXT_FRAME)));
+        assertThat(scheduler.getSlide(), is(1));
+
+        advance(5000);
+        assertThat(frames, is(Arrays.asList(NEXT_FRAME, NEXT_FRAME)));
+        assertThat(sendTimes, is(Arrays.asList(start + 1000, start + 3500)));
+        assertThat(scheduler.isRunning(), is(false));
+        assertThat(scheduler.getAdvances(), is(2));
+        assertThat(notifications, is(4));
+
+        // Every fire time was measured, also the one of the last slide
+        LatencyHistogram jitter = scheduler.getJitter();
+        assertThat(jitter.getCount(), is(3L));
+        assertThat(jitter.getMax(), lessThan(TimeUnit.MILLISECONDS.toMicros(1)));
+    }
+
+    /**
+     * Verify that the commands are encoded when the schedule is started and not when they
+     * are sent.
+     */
+    @Test
+    public void commandsArePreEncoded() {
+        scheduler.start(new long[] { 100, 100, 100, 100 }, true);
+        assertThat(encodedCommands, is(2));
+
+        advance(1000);
+        assertThat(frames.size(), is(10));
+        assertThat(encodedCommands, is(2));
+    }
+
+    /**
+     * Verify that a loop moves back to the first slide after the last one, without shifting
+     * the following fire times.
+     */
+    @Test
+    public void loopRewindsToFirstSlide() {
+        long start = SystemClock.uptimeMillis();
+        scheduler.start(new long[] { 1000, 2000, 3000 }, true);
+
+        advance(12000);
+        assertThat(frames, is(Arrays.asList(NEXT_FRAME, NEXT_FRAME, ADVANCE_FRAME + "-2",
+                NEXT_FRAME, NEXT_FRAME, ADVANCE_FRAME + "-2")));
+        assertThat(sendTimes, is(Arrays.asList(start + 1000, start + 3000, start + 6000,
+                start + 7000, start + 9000, start + 12000)));
+        assertThat(scheduler.getSlide(), is(0));
+        assertThat(scheduler.isRunning(), is(true));
+    }
+
+    /**
+     * Verify that a loop stops after the last slide, if the server can not move back to the
+     * first slide.
+     */
+    @Test
+    public void loopStopsWithoutAdvanceSupport() {
+        advanceSupported = false;
+        scheduler.start(new long[] { 1000, 1000 }, true);
+
+        advance(5000);
+        assertThat(frames, is(Arrays.asList(NEXT_FRAME)));
+        assertThat(scheduler.isRunning(), is(false));
+    }
+
+    /**
+     * Verify that a stopped schedule sends nothing and a restarted schedule starts from the
+     * time it was restarted.
+     */
+    @Test
+    public void stopAndRestart() {
+        scheduler.start(new long[] { 1000, 1000 }, false);
+        advance(500);
+        scheduler.stop();
+        assertThat(scheduler.isRunning(), is(false));
+        assertThat(scheduler.getNextAdvanceTime(), is(0L));
+
+        advance(5000);
+        assertThat(frames.size(), is(0));
+
+        long restart = SystemClock.uptimeMillis();
+        scheduler.start(new long[] { 1000, 1000 }, false);
+        advance(5000);
+        assertThat(sendTimes, is(Arrays.asList(restart + 1000)));
+    }
+}
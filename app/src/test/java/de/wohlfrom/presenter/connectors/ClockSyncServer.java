@@ -0,0 +1,130 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Presenter. Android Client to remote control a presentation.          *
+ *  Copyright (C) 2019 Felix Wohlfrom                                    *
+ *                                                                       *
+ *  This program is free software: you can redistribute it and/or modify *
+ *  it under the terms of the GNU General Public License as published by *
+ *  the Free Software Foundation, either version 3 of the License, or    *
+ *  (at your option) any later version.                                  *
+ *                                                                       *
+ *  This program is distributed in the hope that it will be useful,      *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of       *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the        *
+ *  GNU General Public License for more details.                         *
+ *                                                                       *
+ *  You should have received a copy of the GNU General Public License    *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.*
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+
+package de.wohlfrom.presenter.connectors;
+
+import android.os.Handler;
+
+import java.util.Random;
+
+/**
+ * A stand-in for the time service of the presenter server. Its clock has a fixed offset and
+ * drift relative to the local clock. Requests and responses are delivered on the main looper
+ * after injected delays, which consist of a base delay per direction and random queueing
+ * delays, so the paths can be asymmetric.
+ */
+class ClockSyncServer implements SynchronizedClock.TimeSink {
+    /** The time in us the server needs to answer a request. */
+    static final long PROCESSING_TIME = 50;
+
+    private final Handler mHandler = new Handler();
+    private final Random mRandom = new Random(42);
+    private final long mOffset;
+    private final double mDrift;
+    private final long mEpoch = SynchronizedClock.localTime();
+    private SynchronizedClock mClock;
+
+    /** The injected delays in ms. */
+    private long mUplinkDelay = 0;
+    private long mDownlinkDelay = 0;
+    private long mMaxQueueing = 0;
+    private double mQueueingProbability = 0;
+
+    private int mRequests = 0;
+
+    /**
+     * Creates a new server.
+     *
+     * @param offset The offset of the server clock to the local clock in us
+     * @param drift The drift of the server clock in ppm, positive if it runs faster
+     */
+    ClockSyncServer(long offset, double drift) {
+        mOffset = offset;
+        mDrift = drift / 1e6;
+    }
+
+    /**
+     * Sets the clock the responses are passed to.
+     *
+     * @param clock The clock
+     */
+    void setClock(SynchronizedClock clock) {
+        mClock = clock;
+    }
+
+    /**
+     * Sets the delays injected into requests and responses. Each direction is delayed by its
+     * base delay and, with the given probability, by a random queueing delay.
+     *
+     * @param uplink The base delay of the requests in ms
+     * @param downlink The base delay of the responses in ms
+     * @param maxQueueing The maximum queueing delay in ms
+     * @param probability The probability of a queueing delay per direction
+     */
+    void setDelays(long uplink, long downlink, long maxQueueing, double probability) {
+        mUplinkDelay = uplink;
+        mDownlinkDelay = downlink;
+        mMaxQueueing = maxQueueing;
+        mQueueingProbability = probability;
+    }
+
+    /**
+     * Returns the true time of the server clock.
+     *
+     * @param localTime The local time in us
+     * @return The server time in us
+     */
+    long serverTime(long localTime) {
+        return localTime + mOffset + Math.round(mDrift * (localTime - mEpoch));
+    }
+
+    /**
+     * Returns the number of requests received.
+     *
+     * @return The number of requests
+     */
+    int getRequests() {
+        return mRequests;
+    }
+
+    @Override
+    public void sendTimeRequest(long origin) {
+        mRequests++;
+        long uplink = mUplinkDelay + queueing();
+        long downlink = mDownlinkDelay + queueing();
+
+        mHandler.postDelayed(() -> {
+            long receive = serverTime(SynchronizedClock.localTime());
+            long transmit = receive + PROCESSING_TIME;
+            mHandler.postDelayed(() -> mClock.onTimeResponse(origin, receive, transmit,
+                    SynchronizedClock.localTime()), downlink);
+        }, uplink);
+    }
+
+    /**
+     * Returns a random queueing delay.
+     *
+     * @return The delay in ms
+     */
+    private long queueing() {
+        if (mRandom.nextDouble() >= mQueueingProbability) {
+            return 0;
+        }
+        return 1 + mRandom.nextInt((int) mMaxQueueing);
+    }
+}
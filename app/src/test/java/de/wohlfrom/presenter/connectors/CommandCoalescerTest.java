@@ -0,0 +1,177 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Presenter. Android Client to remote control a presentation.          *
+ *  Copyright (C) 2019 Felix Wohlfrom                                    *
+ *                                                                       *
+ *  This program is free software: you can redistribute it and/or modify *
+ *  it under the terms of the GNU General Public License as published by *
+ *  the Free Software Foundation, either version 3 of the License, or    *
+ *  (at your option) any later version.                                  *
+ *                                                                       *
+ *  This program is distributed in the hope that it will be useful,      *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of       *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the        *
+ *  GNU General Public License for more details.                         *
+ *                                                                       *
+ *  You should have received a copy of the GNU General Public License    *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.*
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+
+package de.wohlfrom.presenter.connectors;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * These tests verify that bursts of slide changes are merged into a single command without
+ * changing the order of the commands.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class CommandCoalescerTest {
+    /** The coalescing window in ms used for our tests */
+    private static final long WINDOW = 100;
+    /** The maximum time in ms to wait for a state change */
+    private static final int STATE_CHANGE_TIME = 5000;
+
+    private final List<String> sentFrames = new ArrayList<>();
+    private CommandCoalescer coalescer;
+
+    /**
+     * Creates a coalescer that records the sent frames.
+     */
+    @Before
+    public void createCoalescer() {
+        sentFrames.clear();
+        coalescer = new CommandCoalescer((command, count, input) -> {
+            synchronized (sentFrames) {
+                sentFrames.add(command.getCommand() + " " + count);
+                sentFrames.notifyAll();
+            }
+        }, WINDOW);
+    }
+
+    /**
+     * Verify that a single command is sent without delay.
+     */
+    @Test
+    public void singleCommandIsNotDelayed() {
+        coalescer.submit(Command.NEXT_SLIDE);
+        assertThat(getSentFrames(), is(Collections.singletonList("nextSlide 1")));
+    }
+
+    /**
+     * Verify that a burst of commands is sent as two frames, the first command and all
+     * following ones.
+     */
+    @Test
+    public void burstIsCoalesced() throws InterruptedException {
+        for (int i = 0; i < 15; i++) {
+            coalescer.submit(Command.NEXT_SLIDE);
+        }
+        assertThat(getSentFrames(), is(Collections.singletonList("nextSlide 1")));
+
+        assertThat(awaitSentFrames(2), is(true));
+        assertThat(getSentFrames(), is(Arrays.asList("nextSlide 1", "nextSlide 14")));
+        assertThat(coalescer.getSubmittedCommands(), is(15));
+        assertThat(coalescer.getSentFrames(), is(2));
+        assertThat(coalescer.getLargestBurst(), is(14));
+    }
+
+    /**
+     * Verify that changing the direction sends the pending commands first.
+     */
+    @Test
+    public void directionChangeKeepsOrder() {
+        coalescer.submit(Command.NEXT_SLIDE);
+        coalescer.submit(Command.NEXT_SLIDE);
+        coalescer.submit(Command.NEXT_SLIDE);
+        coalescer.submit(Command.PREV_SLIDE);
+        coalescer.flush();
+
+        assertThat(getSentFrames(),
+                is(Arrays.asList("nextSlide 1", "nextSlide 2", "prevSlide 1")));
+    }
+
+    /**
+     * Verify that no commands are merged if the window is disabled.
+     */
+    @Test
+    public void disabledWindowPassesThrough() {
+        coalescer.setWindow(0);
+        coalescer.submit(Command.PREV_SLIDE);
+        coalescer.submit(Command.PREV_SLIDE);
+
+        assertThat(getSentFrames(), is(Arrays.asList("prevSlide 1", "prevSlide 1")));
+    }
+
+    /**
+     * Verify that the remote control sends a burst using the advance command.
+     */
+    @Test
+    public void remoteControlSendsAdvance() throws IOException, InterruptedException {
+        InMemoryServer server = new InMemoryServer("server");
+        TestRemoteControl control = new TestRemoteControl();
+        control.setCoalescingWindow(WINDOW);
+        control.connect(server.getClientTransport());
+        server.start();
+
+        try {
+            assertThat(control.awaitConnected(STATE_CHANGE_TIME), is(true));
+
+            for (int i = 0; i < 5; i++) {
+                control.sendCommand(Command.PREV_SLIDE);
+            }
+            control.sendCommand(Command.STOP_PRESENTATION);
+            assertThat(server.awaitReceivedCommands(3, STATE_CHANGE_TIME), is(true));
+
+            assertThat(server.getReceivedCommands(), is(Arrays.asList(
+                    Command.PREV_SLIDE.getCommand(), Command.ADVANCE.getCommand(),
+                    Command.STOP_PRESENTATION.getCommand())));
+        } finally {
+            control.stop();
+            server.close();
+        }
+    }
+
+    /**
+     * Waits until the given number of frames was sent.
+     *
+     * @param count The number of frames to wait for
+     * @return If the frames were sent in time
+     * @throws InterruptedException If waiting was interrupted
+     */
+    private boolean awaitSentFrames(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + STATE_CHANGE_TIME;
+        synchronized (sentFrames) {
+            while (sentFrames.size() < count) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                sentFrames.wait(remaining);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns a copy of the frames sent so far.
+     *
+     * @return The sent frames
+     */
+    private List<String> getSentFrames() {
+        synchronized (sentFrames) {
+            return new ArrayList<>(sentFrames);
+        }
+    }
+}
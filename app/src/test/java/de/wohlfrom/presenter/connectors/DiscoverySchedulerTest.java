@@ -0,0 +1,188 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Presenter. Android Client to remote control a presentation.          *
+ *  Copyright (C) 2019 Felix Wohlfrom                                    *
+ *                                                                       *
+ *  This program is free software: you can redistribute it and/or modify *
+ *  it under the terms of the GNU General Public License as published by *
+ *  the Free Software Foundation, either version 3 of the License, or    *
+ *  (at your option) any later version.                                  *
+ *                                                                       *
+ *  This program is distributed in the hope that it will be useful,      *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of       *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the        *
+ *  GNU General Public License for more details.                         *
+ *                                                                       *
+ *  You should have received a copy of the GNU General Public License    *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.*
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+
+package de.wohlfrom.presenter.connectors;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * These tests verify that the discovery scheduler starts and stops the discovery bursts at the
+ * expected times and counts the statistics properly.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class DiscoverySchedulerTest {
+    /** The burst time used for our tests. */
+    private static final long BURST_TIME = 1000;
+
+    private DiscoveryScheduler scheduler;
+    private int startedBursts;
+    private int stoppedBursts;
+
+    /**
+     * Creates a new scheduler that counts the started and stopped bursts.
+     */
+    @Before
+    public void initScheduler() {
+        startedBursts = 0;
+        stoppedBursts = 0;
+
+        scheduler = new DiscoveryScheduler(new DiscoveryScheduler.DiscoveryListener() {
+            @Override
+            public void onStartDiscovery() {
+                startedBursts++;
+            }
+
+            @Override
+            public void onStopDiscovery() {
+                stoppedBursts++;
+            }
+        }, BURST_TIME);
+    }
+
+    /**
+     * Advances the main looper by the given time.
+     *
+     * @param time The time in ms to advance
+     */
+    private void advance(long time) {
+        ShadowLooper.idleMainLooper(time, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Verify that the first burst is started immediately and stopped after the burst time.
+     */
+    @Test
+    public void firstBurstStartsImmediately() {
+        scheduler.start();
+        assertThat(startedBursts, is(1));
+        assertThat(scheduler.isBurstActive(), is(true));
+
+        advance(BURST_TIME);
+        assertThat(stoppedBursts, is(1));
+        assertThat(scheduler.isBurstActive(), is(false));
+        // Further bursts will follow
+        assertThat(scheduler.isRunning(), is(true));
+        assertThat(scheduler.getRadioOnTime(), is(BURST_TIME));
+    }
+
+    /**
+     * Verify that bursts are repeated quickly as long as no target was found.
+     */
+    @Test
+    public void fastRepetitionWithoutTarget() {
+        scheduler.start();
+        advance(BURST_TIME + DiscoveryScheduler.FAST_IDLE_TIME);
+        assertThat(startedBursts, is(2));
+
+        advance(BURST_TIME + DiscoveryScheduler.FAST_IDLE_TIME);
+        assertThat(startedBursts, is(3));
+        assertThat(scheduler.getWakeups(), is(3));
+    }
+
+    /**
+     * Verify that the time between bursts grows once the target was found.
+     */
+    @Test
+    public void backoffAfterTargetFound() {
+        scheduler.start();
+        scheduler.setTargetFound(true);
+
+        advance(BURST_TIME + DiscoveryScheduler.SLOW_IDLE_TIME);
+        assertThat(startedBursts, is(2));
+
+        // The next idle time is doubled, so we should not see a new burst after the slow time
+        advance(BURST_TIME + DiscoveryScheduler.SLOW_IDLE_TIME);
+        assertThat(startedBursts, is(2));
+        advance(DiscoveryScheduler.SLOW_IDLE_TIME);
+        assertThat(startedBursts, is(3));
+
+        // Idle time never exceeds the maximum
+        advance(BURST_TIME + DiscoveryScheduler.MAX_IDLE_TIME);
+        assertThat(startedBursts, is(4));
+        advance(BURST_TIME + DiscoveryScheduler.MAX_IDLE_TIME);
+        assertThat(startedBursts, is(5));
+    }
+
+    /**
+     * Verify that a burst can be finished early and the next burst is scheduled afterwards.
+     */
+    @Test
+    public void finishBurstEarly() {
+        scheduler.start();
+        scheduler.setTargetFound(true);
+        advance(BURST_TIME / 2);
+        scheduler.finishBurst();
+        assertThat(stoppedBursts, is(1));
+        assertThat(scheduler.getRadioOnTime(), is(BURST_TIME / 2));
+
+        // Finishing without running burst does nothing
+        scheduler.finishBurst();
+        assertThat(stoppedBursts, is(1));
+
+        advance(DiscoveryScheduler.SLOW_IDLE_TIME);
+        assertThat(startedBursts, is(2));
+    }
+
+    /**
+     * Verify that no discovery is done while the scheduler is paused.
+     */
+    @Test
+    public void pauseAndResume() {
+        scheduler.start();
+        assertThat(scheduler.isRunning(), is(true));
+        scheduler.pause();
+        assertThat(stoppedBursts, is(1));
+        assertThat(scheduler.isBurstActive(), is(false));
+        assertThat(scheduler.isRunning(), is(false));
+
+        advance(10 * (BURST_TIME + DiscoveryScheduler.MAX_IDLE_TIME));
+        assertThat(startedBursts, is(1));
+        assertThat(scheduler.getRadioOnTime(), is(0L));
+
+        scheduler.resume();
+        assertThat(startedBursts, is(2));
+        assertThat(scheduler.isBurstActive(), is(true));
+        assertThat(scheduler.isRunning(), is(true));
+    }
+
+    /**
+     * Verify that a stopped scheduler is not started again by resuming it.
+     */
+    @Test
+    public void resumeAfterStop() {
+        scheduler.resume();
+        assertThat(startedBursts, is(0));
+        assertThat(scheduler.isRunning(), is(false));
+
+        scheduler.start();
+        scheduler.stop();
+        scheduler.resume();
+        assertThat(startedBursts, is(1));
+        assertThat(stoppedBursts, is(1));
+        assertThat(scheduler.isRunning(), is(false));
+    }
+}
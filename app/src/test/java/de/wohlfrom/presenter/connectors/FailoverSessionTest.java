@@ -0,0 +1,174 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Presenter. Android Client to remote control a presentation.          *
+ *  Copyright (C) 2019 Felix Wohlfrom                                    *
+ *                                                                       *
+ *  This program is free software: you can redistribute it and/or modify *
+ *  it under the terms of the GNU General Public License as published by *
+ *  the Free Software Foundation, either version 3 of the License, or    *
+ *  (at your option) any later version.                                  *
+ *                                                                       *
+ *  This program is distributed in the hope that it will be useful,      *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of       *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the        *
+ *  GNU General Public License for more details.                         *
+ *                                                                       *
+ *  You should have received a copy of the GNU General Public License    *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.*
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+
+package de.wohlfrom.presenter.connectors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.lessThan;
+
+/**
+ * These tests verify that the failover session routes commands to the primary connection as
+ * long as it is healthy and switches to the standby connection if it fails.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class FailoverSessionTest {
+    /** The heartbeat interval in ms used for our tests */
+    private static final long HEARTBEAT_INTERVAL = 50;
+    /** The heartbeat timeout in ms used for our tests */
+    private static final long HEARTBEAT_TIMEOUT = 200;
+    /** The maximum time in ms to wait for a state change */
+    private static final int STATE_CHANGE_TIME = 5000;
+
+    private InMemoryServer primaryServer;
+    private InMemoryServer standbyServer;
+    private TestRemoteControl primary;
+    private TestRemoteControl standby;
+    private FailoverSession session;
+
+    private RemoteControl failedControl;
+    private long failoverTime;
+    private CountDownLatch failedOver;
+
+    /**
+     * Connects the primary and standby connection to two in-memory servers and creates the
+     * session.
+     */
+    @Before
+    public void connect() throws IOException, InterruptedException {
+        primaryServer = new InMemoryServer("primary");
+        standbyServer = new InMemoryServer("standby");
+        primary = new TestRemoteControl();
+        standby = new TestRemoteControl();
+
+        primary.connect(primaryServer.getClientTransport());
+        standby.connect(standbyServer.getClientTransport());
+        primaryServer.start();
+        standbyServer.start();
+        assertThat(primary.awaitConnected(STATE_CHANGE_TIME), is(true));
+        assertThat(standby.awaitConnected(STATE_CHANGE_TIME), is(true));
+
+        failedControl = null;
+        failoverTime = -1;
+        failedOver = new CountDownLatch(1);
+        session = new FailoverSession(primary, (failed, active, time) -> {
+            failedControl = failed;
+            failoverTime = time;
+            failedOver.countDown();
+        }, HEARTBEAT_INTERVAL, HEARTBEAT_TIMEOUT);
+        session.setStandby(standby);
+    }
+
+    /**
+     * Stops the session and all connections.
+     */
+    @After
+    public void disconnect() {
+        session.stop();
+        primary.stop();
+        standby.stop();
+        primaryServer.close();
+        standbyServer.close();
+    }
+
+    /**
+     * Verify that commands are sent via the primary connection as long as it is healthy.
+     */
+    @Test
+    public void commandsUsePrimary() throws InterruptedException {
+        session.start();
+        assertThat(primary.awaitHeartbeats((int) (4 * HEARTBEAT_TIMEOUT / HEARTBEAT_INTERVAL),
+                STATE_CHANGE_TIME), is(true));
+
+        session.sendCommand(Command.NEXT_SLIDE);
+        assertThat(primaryServer.awaitReceivedCommands(1, STATE_CHANGE_TIME), is(true));
+
+        assertThat(session.getActive(), is(sameInstance(primary)));
+        assertThat(session.getFailoverCount(), is(0));
+        assertThat(primaryServer.getReceivedCommands(),
+                is(Collections.singletonList(Command.NEXT_SLIDE.getCommand())));
+        assertThat(standbyServer.getReceivedCommands().isEmpty(), is(true));
+        assertThat(primary.getRoundTripTime() >= 0, is(true));
+    }
+
+    /**
+     * Verify that a primary connection that stops answering heartbeats is detected and the
+     * commands are rerouted to the standby connection.
+     */
+    @Test
+    public void failoverOnMissingHeartbeats() throws InterruptedException {
+        session.start();
+        primaryServer.setAnswerHeartbeats(false);
+        assertThat(failedOver.await(STATE_CHANGE_TIME, TimeUnit.MILLISECONDS), is(true));
+
+        assertThat(failedControl, is(sameInstance(primary)));
+        assertThat(failoverTime, lessThan(HEARTBEAT_TIMEOUT + 10 * HEARTBEAT_INTERVAL));
+        assertThat(session.getLastFailoverTime(), is(failoverTime));
+
+        session.sendCommand(Command.PREV_SLIDE);
+        assertThat(standbyServer.awaitReceivedCommands(1, STATE_CHANGE_TIME), is(true));
+        assertThat(standbyServer.getReceivedCommands(),
+                is(Collections.singletonList(Command.PREV_SLIDE.getCommand())));
+        assertThat(primaryServer.getReceivedCommands().isEmpty(), is(true));
+    }
+
+    /**
+     * Verify that a lost primary connection leads to a failover at the latest on the next
+     * command.
+     */
+    @Test
+    public void failoverOnLostConnection() throws InterruptedException {
+        session.start();
+        primaryServer.close();
+        assertThat(primary.awaitConnectionLost(STATE_CHANGE_TIME), is(true));
+
+        session.sendCommand(Command.NEXT_SLIDE);
+        assertThat(standbyServer.awaitReceivedCommands(1, STATE_CHANGE_TIME), is(true));
+
+        assertThat(session.getActive(), is(sameInstance(standby)));
+        assertThat(session.getFailoverCount(), is(1));
+        assertThat(standbyServer.getReceivedCommands(),
+                is(Collections.singletonList(Command.NEXT_SLIDE.getCommand())));
+    }
+
+    /**
+     * Verify that no failover happens if the standby connection is not alive.
+     */
+    @Test
+    public void noFailoverWithoutStandby() {
+        standby.stop();
+        assertThat(session.isStandbyAvailable(), is(false));
+        assertThat(session.failover(), is(false));
+
+        session.setStandby(null);
+        assertThat(session.failover(), is(false));
+        assertThat(session.getActive(), is(sameInstance(primary)));
+    }
+}
@@ -0,0 +1,290 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Presenter. Android Client to remote control a presentation.          *
+ *  Copyright (C) 2019 Felix Wohlfrom                                    *
+ *                                                                       *
+ *  This program is free software: you can redistribute it and/or modify *
+ *  it under the terms of the GNU General Public License as published by *
+ *  the Free Software Foundation, either version 3 of the License, or    *
+ *  (at your option) any later version.                                  *
+ *                                                                       *
+ *  This program is distributed in the hope that it will be useful,      *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of       *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the        *
+ *  GNU General Public License for more details.                         *
+ *                                                                       *
+ *  You should have received a copy of the GNU General Public License    *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.*
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+
+package de.wohlfrom.presenter.connectors;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A presenter server that runs on the server end of an in-memory pipe. It sends its version
+ * once started, answers heartbeats and records all received commands.
+ * Several pipes can be connected to the same server to simulate multiple paths. Commands of a
+ * multipath session are deduplicated by their sequence number and acknowledged on the path
+ * they were received on.
+ */
+class InMemoryServer {
+    /** Pattern to extract type and data of a received message. */
+    private static final Pattern MESSAGE_PATTERN
+            = Pattern.compile("\"type\": \"(\\w+)\", \"data\": \"([^\"]*)\"");
+
+    /** Pattern to extract the session sequence number of a received command. */
+    private static final Pattern SEQUENCE_PATTERN =
+            Pattern.compile("\"sessionSeq\": \"(\\d+)\"");
+
+    /**
+     * The state shared by all pipes connected to the same server.
+     */
+    private static class SharedState {
+        private final List<String> mDeliveredCommands = new ArrayList<>();
+        private final Set<String> mDeliveredSequenceNumbers = new HashSet<>();
+        private int mDuplicates = 0;
+    }
+
+    private final InMemoryTransport mClient;
+    private final InMemoryTransport mServer;
+    private final List<String> mReceivedCommands = new ArrayList<>();
+    private final SharedState mSharedState;
+    private volatile boolean mAnswerHeartbeats = true;
+    private volatile long mDelay = 0;
+    private String mSessionId = null;
+
+    /**
+     * Creates the pipe to a new server.
+     *
+     * @param name The name of the server
+     */
+    InMemoryServer(String name) {
+        this(name, new SharedState());
+    }
+
+    /**
+     * Creates another pipe to the same server as the given one.
+     *
+     * @param name The name of the server
+     * @param server The server to connect to
+     */
+    InMemoryServer(String name, InMemoryServer server) {
+        this(name, server.mSharedState);
+    }
+
+    /**
+     * Creates the pipe to the server.
+     *
+     * @param name The name of the server
+     * @param sharedState The state of the server shared by all pipes
+     */
+    private InMemoryServer(String name, SharedState sharedState) {
+        mClient = InMemoryTransport.createPipe(name, "client");
+        mServer = mClient.getPeer();
+        mSharedState = sharedState;
+    }
+
+    /**
+     * Returns the client end of the pipe, to be connected by the remote control.
+     *
+     * @return The client transport
+     */
+    InMemoryTransport getClientTransport() {
+        return mClient;
+    }
+
+    /**
+     * Opens the server end of the pipe, sends the server version and starts receiving.
+     *
+     * @throws IOException If opening the pipe failed
+     */
+    void start() throws IOException {
+        start(RemoteControl.CLIENT_PROTOCOL_VERSION);
+    }
+
+    /**
+     * Opens the server end of the pipe, sends the given server version and starts receiving.
+     *
+     * @param version The protocol version supported by the server
+     * @throws IOException If opening the pipe failed
+     */
+    void start(ProtocolVersion version) throws IOException {
+        mServer.open();
+        mServer.send("{ \"type\" = \"version\", \"data\" = '" + version + "' }");
+        new ReceiverThread().start();
+    }
+
+    /**
+     * Closes the server end of the pipe, which is recognized as lost connection by the client.
+     */
+    void close() {
+        mServer.close();
+    }
+
+    /**
+     * Sets if heartbeats should be answered. Can be used to simulate a stalled connection.
+     *
+     * @param answer If heartbeats should be answered
+     */
+    void setAnswerHeartbeats(boolean answer) {
+        mAnswerHeartbeats = answer;
+    }
+
+    /**
+     * Sets the time each received frame is delayed before it is handled. Can be used to
+     * simulate a slow path.
+     *
+     * @param delay The delay in ms
+     */
+    void setDelay(long delay) {
+        mDelay = delay;
+    }
+
+    /**
+     * Returns the commands executed by the server, i.e. the commands received by all pipes
+     * without duplicates, in order of arrival.
+     *
+     * @return The executed commands
+     */
+    List<String> getDeliveredCommands() {
+        synchronized (mSharedState) {
+            return new ArrayList<>(mSharedState.mDeliveredCommands);
+        }
+    }
+
+    /**
+     * Waits until the server executed the given number of commands.
+     *
+     * @param count The number of commands to wait for
+     * @param timeout The maximum time to wait in ms
+     * @return If the commands were executed in time
+     * @throws InterruptedException If waiting was interrupted
+     */
+    boolean awaitDeliveredCommands(int count, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (mSharedState) {
+            while (mSharedState.mDeliveredCommands.size() < count) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                mSharedState.wait(remaining);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of commands that were dropped by the server because they were already
+     * received using another pipe.
+     *
+     * @return The number of duplicates
+     */
+    int getDuplicates() {
+        synchronized (mSharedState) {
+            return mSharedState.mDuplicates;
+        }
+    }
+
+    /**
+     * Returns the commands received by this pipe, in order of arrival.
+     *
+     * @return The received commands
+     */
+    synchronized List<String> getReceivedCommands() {
+        return new ArrayList<>(mReceivedCommands);
+    }
+
+    /**
+     * Waits until this pipe received the given number of commands.
+     *
+     * @param count The number of commands to wait for
+     * @param timeout The maximum time to wait in ms
+     * @return If the commands were received in time
+     * @throws InterruptedException If waiting was interrupted
+     */
+    synchronized boolean awaitReceivedCommands(int count, long timeout)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (mReceivedCommands.size() < count) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return true;
+    }
+
+    /**
+     * Handles a single received frame.
+     *
+     * @param frame The received frame
+     */
+    private void handleFrame(String frame) {
+        Matcher matcher = MESSAGE_PATTERN.matcher(frame);
+        if (!matcher.find()) {
+            return;
+        }
+
+        String type = matcher.group(1);
+        String data = matcher.group(2);
+        if ("ping".equals(type)) {
+            if (mAnswerHeartbeats) {
+                mServer.send("{ \"type\": \"pong\", \"data\": \"" + data + "\"}");
+            }
+        } else if ("session".equals(type)) {
+            mSessionId = data;
+        } else if ("command".equals(type)) {
+            synchronized (this) {
+                mReceivedCommands.add(data);
+                notifyAll();
+            }
+
+            Matcher sequence = SEQUENCE_PATTERN.matcher(frame);
+            boolean acknowledge = mSessionId != null && sequence.find();
+            synchronized (mSharedState) {
+                boolean deliver = !acknowledge || mSharedState.mDeliveredSequenceNumbers.add(
+                        mSessionId + ":" + sequence.group(1));
+                if (deliver) {
+                    mSharedState.mDeliveredCommands.add(data);
+                } else {
+                    mSharedState.mDuplicates++;
+                }
+                mSharedState.notifyAll();
+            }
+
+            // Commands are acknowledged once they were executed
+            if (acknowledge) {
+                mServer.send("{ \"type\": \"ack\", \"data\": \"" + sequence.group(1) + "\"}");
+            }
+        }
+    }
+
+    /**
+     * The thread receiving the frames sent by the client.
+     */
+    private class ReceiverThread extends Thread {
+        @Override
+        public void run() {
+            try {
+                //noinspection InfiniteLoopStatement
+                while (true) {
+                    String frame = mServer.receive();
+                    if (mDelay > 0) {
+                        Thread.sleep(mDelay);
+                    }
+                    handleFrame(frame);
+                }
+            } catch (IOException | InterruptedException e) {
+                // Pipe closed
+            }
+        }
+    }
+}
@@ -0,0 +1,268 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Presenter. Android Client to remote control a presentation.          *
+ *  Copyright (C) 2019 Felix Wohlfrom                                    *
+ *                                                                       *
+ *  This program is free software: you can redistribute it and/or modify *
+ *  it under the terms of the GNU General Public License as published by *
+ *  the Free Software Foundation, either version 3 of the License, or    *
+ *  (at your option) any later version.                                  *
+ *                                                                       *
+ *  This program is distributed in the hope that it will be useful,      *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of       *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the        *
+ *  GNU General Public License for more details.                         *
+ *                                                                       *
+ *  You should have received a copy of the GNU General Public License    *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.*
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+
+package de.wohlfrom.presenter.connectors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.fail;
+
+/**
+ * These tests verify that the in-memory transport passes frames between both ends of the pipe
+ * and that the protocol stack of the remote control works on top of it.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class InMemoryTransportTest {
+    /** The version information sent by our server */
+    private static final String SERVER_VERSION_SUCCESS
+            = "{ \"type\" = \"version\"," +
+            " \"data\" = '" + RemoteControl.CLIENT_PROTOCOL_VERSION + "' }";
+    /** The maximum time in ms to wait for a service state change */
+    private static final int SERVICE_STATE_CHANGE_TIME = 5000;
+    /** The number of commands sent in our throughput test */
+    private static final int COMMAND_COUNT = 1000;
+    /** The maximum average time in us to transmit one command through the pipe */
+    private static final long MAX_COMMAND_TIME = 1000;
+
+    private InMemoryTransport client;
+    private InMemoryTransport server;
+    private TestRemoteControl control;
+
+    /**
+     * Creates a new pipe and opens the server end of it.
+     */
+    @Before
+    public void createPipe() throws IOException {
+        client = InMemoryTransport.createPipe("server", "client");
+        server = client.getPeer();
+        server.open();
+        control = new TestRemoteControl();
+    }
+
+    /**
+     * Closes the control and pipe.
+     */
+    @After
+    public void closePipe() {
+        control.stop();
+        server.close();
+    }
+
+    /**
+     * Verify that frames are passed in both directions and in order.
+     */
+    @Test
+    public void framesArePassed() throws IOException {
+        client.open();
+        assertThat(client.send("first"), is(true));
+        assertThat(client.send("second"), is(true));
+        assertThat(server.getPendingFrames(), is(2));
+        assertThat(server.receive(), is("first"));
+        assertThat(server.receive(), is("second"));
+
+        assertThat(server.send("answer"), is(true));
+        assertThat(client.receive(), is("answer"));
+        assertThat(client.getName(), is("server"));
+        assertThat(server.getName(), is("client"));
+    }
+
+    /**
+     * Verify that frames can't be sent before the transport was opened or after it was closed.
+     */
+    @Test
+    public void sendOnlyIfOpen() throws IOException {
+        assertThat(client.send("frame"), is(false));
+
+        client.open();
+        client.close();
+        assertThat(client.send("frame"), is(false));
+    }
+
+    /**
+     * Verify that closing one end of the pipe is recognized as end of stream by the other end.
+     */
+    @Test
+    public void closeSignalsEndOfStream() throws IOException {
+        client.open();
+        client.close();
+
+        try {
+            server.receive();
+            fail("No end of stream recognized");
+        } catch (EOFException e) {
+            // Expected
+        }
+
+        try {
+            client.receive();
+            fail("Receiving from closed transport possible");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    /**
+     * Verify that the remote control can connect using the pipe and that commands are received
+     * by the server.
+     */
+    @Test
+    public void remoteControlConnects() throws IOException, InterruptedException {
+        control.connect(client);
+        server.send(SERVER_VERSION_SUCCESS);
+        assertThat(control.awaitConnected(SERVICE_STATE_CHANGE_TIME), is(true));
+
+        control.sendCommand(Command.NEXT_SLIDE);
+        assertThat(server.receive(), is("{ \"type\": \"command\", " +
+                "\"data\": \"" + Command.NEXT_SLIDE.getCommand() + "\"}"));
+    }
+
+    /**
+     * Verify that thumbnail requests are sent as bulk frames, so prefetching thumbnails does
+     * not delay commands on stream transports.
+     */
+    @Test
+    public void thumbnailRequestsAreBulk() throws IOException, InterruptedException {
+        List<Transport.Priority> priorities = Collections.synchronizedList(new ArrayList<>());
+        control.connect(new Transport() {
+            @Override
+            public String getName() {
+                return client.getName();
+            }
+
+            @Override
+            public void open() throws IOException {
+                client.open();
+            }
+
+            @Override
+            public String receive() throws IOException {
+                return client.receive();
+            }
+
+            @Override
+            public boolean send(String frame) {
+                return send(frame, Priority.CONTROL, null);
+            }
+
+            @Override
+            public boolean send(String frame, Priority priority,
+                                LatencyTracker.InputTrace input) {
+                priorities.add(priority);
+                return client.send(frame, priority, input);
+            }
+
+            @Override
+            public int getQueuedFrames() {
+                return client.getQueuedFrames();
+            }
+
+            @Override
+            public void close() {
+                client.close();
+            }
+        });
+        server.send(SERVER_VERSION_SUCCESS);
+        assertThat(control.awaitConnected(SERVICE_STATE_CHANGE_TIME), is(true));
+        priorities.clear();
+
+        control.requestThumbnail(3);
+        control.sendCommand(Command.START_PRESENTATION);
+        assertThat(server.receive(), is("{ \"type\": \"thumbnail\", \"data\": \"3\"}"));
+        assertThat(server.receive(), is("{ \"type\": \"command\", " +
+                "\"data\": \"" + Command.START_PRESENTATION.getCommand() + "\"}"));
+        assertThat(priorities, is(Arrays.asList(
+                Transport.Priority.BULK, Transport.Priority.CONTROL)));
+    }
+
+    /**
+     * Verify that malformed messages of the server, also inside a reassembled payload, are
+     * ignored and the connection is kept.
+     */
+    @Test
+    public void malformedMessagesAreIgnored() throws IOException, InterruptedException {
+        control.setAckListener((ackControl, sequenceNumber) -> { });
+        control.connect(client);
+        server.send(SERVER_VERSION_SUCCESS);
+        assertThat(control.awaitConnected(SERVICE_STATE_CHANGE_TIME), is(true));
+
+        String payload = "{ \\\"type\\\": \\\"pong\\\", \\\"data\\\": \\\"x\\\"}";
+        server.send("{ \"type\": \"pong\", \"data\": \"not a number\"}");
+        server.send("{ \"type\": \"window\", \"data\": \"1e\", \"stream\": 1}");
+        server.send("{ \"type\": \"ack\", \"data\": \"\"}");
+        server.send("{ \"type\": \"unknown\", \"data\": \"\"}");
+        server.send("{ \"type\": \"chunk\", \"data\": \"" + payload + "\", \"stream\": 1, "
+                + "\"offset\": 0, \"length\": 30}");
+
+        // The reader thread still answers heartbeats
+        server.send("{ \"type\": \"ping\", \"data\": \"42\"}");
+        assertThat(server.receive(), is("{ \"type\": \"pong\", \"data\": \"42\"}"));
+        assertThat(control.getState(), is(RemoteControl.ServiceState.CONNECTED));
+    }
+
+    /**
+     * Verify that the remote control recognizes if the server closes the pipe.
+     */
+    @Test
+    public void remoteControlRecognizesLostConnection() throws InterruptedException {
+        control.connect(client);
+        server.send(SERVER_VERSION_SUCCESS);
+        assertThat(control.awaitConnected(SERVICE_STATE_CHANGE_TIME), is(true));
+
+        server.close();
+        assertThat(control.awaitConnectionLost(SERVICE_STATE_CHANGE_TIME), is(true));
+    }
+
+    /**
+     * Sends a lot of commands through the protocol stack and verifies that all of them are
+     * received in order. Can be used to benchmark the protocol stack without any network.
+     */
+    @Test
+    public void commandThroughput() throws IOException, InterruptedException {
+        control.connect(client);
+        server.send(SERVER_VERSION_SUCCESS);
+        assertThat(control.awaitConnected(SERVICE_STATE_CHANGE_TIME), is(true));
+
+        long startTime = System.nanoTime();
+        for (int i = 0; i < COMMAND_COUNT; i++) {
+            control.sendCommand(i % 2 == 0 ? Command.NEXT_SLIDE : Command.PREV_SLIDE);
+        }
+        for (int i = 0; i < COMMAND_COUNT; i++) {
+            Command expected = i % 2 == 0 ? Command.NEXT_SLIDE : Command.PREV_SLIDE;
+            assertThat(server.receive(), is("{ \"type\": \"command\", " +
+                    "\"data\": \"" + expected.getCommand() + "\"}"));
+        }
+        long duration = System.nanoTime() - startTime;
+
+        // Generous bound, only catches a protocol stack that stalls per command
+        assertThat(duration / 1000 / COMMAND_COUNT, lessThan(MAX_COMMAND_TIME));
+    }
+}
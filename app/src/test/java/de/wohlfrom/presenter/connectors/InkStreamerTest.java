@@ -0,0 +1,344 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Presenter. Android Client to remote control a presentation.          *
+ *  Copyright (C) 2019 Felix Wohlfrom                                    *
+ *                                                                       *
+ *  This program is free software: you can redistribute it and/or modify *
+ *  it under the terms of the GNU General Public License as published by *
+ *  the Free Software Foundation, either version 3 of the License, or    *
+ *  (at your option) any later version.                                  *
+ *                                                                       *
+ *  This program is distributed in the hope that it will be useful,      *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of       *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the        *
+ *  GNU General Public License for more details.                         *
+ *                                                                       *
+ *  You should have received a copy of the GNU General Public License    *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.*
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+
+package de.wohlfrom.presenter.connectors;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+/**
+ * These tests verify that the ink streamer batches and simplifies the strokes within the
+ * tolerance, encodes them compactly and tracks the confirmations of the server.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class InkStreamerTest {
+    /** The number of positions of the drawn circle */
+    private static final int CIRCLE_POINTS = 200;
+    /** The number of positions passed per display frame */
+    private static final int POINTS_PER_FRAME = 2;
+
+    private final List<String> frames = new ArrayList<>();
+    private int queuedFrames;
+    private InkStreamer streamer;
+
+    /**
+     * A stroke reassembled from the sent frames.
+     */
+    private static class DecodedStroke {
+        final List<int[]> points = new ArrayList<>();
+        boolean ended = false;
+    }
+
+    /**
+     * Creates a new streamer that stores the sent frames.
+     */
+    @Before
+    public void initStreamer() {
+        frames.clear();
+        queuedFrames = 0;
+
+        streamer = new InkStreamer(new InkStreamer.InkSink() {
+            @Override
+            public void sendInk(String frame) {
+                frames.add(frame);
+            }
+
+            @Override
+            public int getQueuedFrames() {
+                return queuedFrames;
+            }
+        });
+
+        // Make sure the first frame is not delayed by the rate limit
+        advance(InkStreamer.MIN_FRAME_INTERVAL);
+    }
+
+    /**
+     * Advances the main looper by the given time.
+     *
+     * @param time The time in ms to advance
+     */
+    private void advance(long time) {
+        ShadowLooper.idleMainLooper(time, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the normalized positions of a circle.
+     *
+     * @return The positions, x and y alternating
+     */
+    private static float[] circle() {
+        float[] positions = new float[2 * CIRCLE_POINTS];
+        for (int i = 0; i < CIRCLE_POINTS; i++) {
+            double angle = 2 * Math.PI * i / CIRCLE_POINTS;
+            positions[2 * i] = (float) (0.5 + 0.2 * Math.cos(angle));
+            positions[2 * i + 1] = (float) (0.5 + 0.2 * Math.sin(angle));
+        }
+        return positions;
+    }
+
+    /**
+     * Draws the given positions as a single stroke, a few positions per display frame.
+     *
+     * @param positions The normalized positions, x and y alternating
+     */
+    private void draw(float[] positions) {
+        float[] batch = new float[2 * POINTS_PER_FRAME];
+        for (int i = 0; i < positions.length / 2; i += POINTS_PER_FRAME) {
+            int count = Math.min(POINTS_PER_FRAME, positions.length / 2 - i);
+            System.arraycopy(positions, 2 * i, batch, 0, 2 * count);
+            streamer.addSamples(batch, count);
+            advance(InkStreamer.MIN_FRAME_INTERVAL);
+        }
+        streamer.endStroke();
+        advance(InkStreamer.MIN_FRAME_INTERVAL);
+    }
+
+    /**
+     * Reassembles the strokes from the sent frames and verifies that no point is missing.
+     *
+     * @return The decoded strokes, the index is the stroke id
+     */
+    private List<DecodedStroke> decode() {
+        List<DecodedStroke> strokes = new ArrayList<>();
+        for (String frame : frames) {
+            if ("clear".equals(frame)) {
+                continue;
+            }
+
+            String[] parts = frame.split(":", -1);
+            String[] header = parts[0].split(",");
+            int id = Integer.parseInt(header[0]);
+            while (strokes.size() <= id) {
+                strokes.add(new DecodedStroke());
+            }
+            DecodedStroke stroke = strokes.get(id);
+            assertThat(Integer.parseInt(header[1]), is(stroke.points.size()));
+
+            int x = 0;
+            int y = 0;
+            if (!parts[1].isEmpty()) {
+                String[] points = parts[1].split(";");
+                for (int i = 0; i < points.length; i++) {
+                    String[] point = points[i].split(",");
+                    x = (i == 0 ? 0 : x) + Integer.parseInt(point[0]);
+                    y = (i == 0 ? 0 : y) + Integer.parseInt(point[1]);
+                    stroke.points.add(new int[] { x, y });
+                }
+            }
+            stroke.ended = "1".equals(header[2]);
+        }
+        return strokes;
+    }
+
+    /**
+     * Returns the distance in px of the remote screen of a position from a decoded stroke.
+     *
+     * @param stroke The decoded stroke
+     * @param x The normalized x position
+     * @param y The normalized y position
+     * @param width The width of the remote screen
+     * @param height The height of the remote screen
+     * @return The distance
+     */
+    private static float distance(DecodedStroke stroke, float x, float y, int width,
+                                  int height) {
+        float scaleX = (float) width / PointerStreamer.RESOLUTION;
+        float scaleY = (float) height / PointerStreamer.RESOLUTION;
+        float pointX = PointerStreamer.quantize(x) * scaleX;
+        float pointY = PointerStreamer.quantize(y) * scaleY;
+
+        float minDistance = Float.MAX_VALUE;
+        for (int i = 1; i < stroke.points.size(); i++) {
+            int[] start = stroke.points.get(i - 1);
+            int[] end = stroke.points.get(i);
+            minDistance = Math.min(minDistance, InkStreamer.distance(pointX, pointY,
+                    start[0] * scaleX, start[1] * scaleY, end[0] * scaleX, end[1] * scaleY));
+        }
+        return minDistance;
+    }
+
+    /**
+     * Verify that only the end points of a straight line are kept.
+     */
+    @Test
+    public void straightLineIsSimplified() {
+        int count = 50;
+        int[] x = new int[count];
+        int[] y = new int[count];
+        for (int i = 0; i < count; i++) {
+            x[i] = 100 * i;
+            y[i] = 50 * i;
+        }
+        boolean[] keep = new boolean[count];
+
+        assertThat(InkStreamer.simplify(x, y, count, 1, 1, 1, keep, new int[2 * count]),
+                is(2));
+        assertThat(keep[0], is(true));
+        assertThat(keep[count - 1], is(true));
+    }
+
+    /**
+     * Verify that the first position of a stroke is sent immediately.
+     */
+    @Test
+    public void firstPositionIsSentImmediately() {
+        streamer.addSamples(new float[] { 0.5f, 0.25f }, 1);
+        assertThat(frames.size(), is(1));
+        assertThat(frames.get(0), is("0,0,0:5000,2500"));
+    }
+
+    /**
+     * Verify that a stroke is sent with much fewer points, all drawn positions stay within the
+     * tolerance and the stroke ends where it was drawn.
+     */
+    @Test
+    public void strokeStaysWithinTolerance() {
+        float[] circle = circle();
+        draw(circle);
+
+        List<DecodedStroke> strokes = decode();
+        assertThat(strokes.size(), is(1));
+        DecodedStroke stroke = strokes.get(0);
+        assertThat(stroke.ended, is(true));
+        assertThat(stroke.points.size(), lessThan(CIRCLE_POINTS / 3));
+        assertThat(streamer.getSentPoints(), is(stroke.points.size()));
+        assertThat(streamer.getCollectedPoints(), is(CIRCLE_POINTS));
+
+        int[] last = stroke.points.get(stroke.points.size() - 1);
+        assertThat(last[0], is(PointerStreamer.quantize(circle[circle.length - 2])));
+        assertThat(last[1], is(PointerStreamer.quantize(circle[circle.length - 1])));
+
+        for (int i = 0; i < CIRCLE_POINTS; i++) {
+            assertThat(distance(stroke, circle[2 * i], circle[2 * i + 1],
+                    InkStreamer.DEFAULT_REMOTE_WIDTH, InkStreamer.DEFAULT_REMOTE_HEIGHT),
+                    lessThanOrEqualTo(InkStreamer.TOLERANCE * 1.01f));
+        }
+    }
+
+    /**
+     * Verify that a smaller remote screen allows a coarser stroke.
+     */
+    @Test
+    public void toleranceFollowsRemoteSize() {
+        draw(circle());
+        int fullSizePoints = streamer.getSentPoints();
+
+        streamer.postRemoteSize(InkStreamer.DEFAULT_REMOTE_WIDTH / 4,
+                InkStreamer.DEFAULT_REMOTE_HEIGHT / 4);
+        advance(0);
+        draw(circle());
+        assertThat(streamer.getSentPoints() - fullSizePoints, lessThan(fullSizePoints));
+    }
+
+    /**
+     * Verify that positions collected within a display frame are sent together.
+     */
+    @Test
+    public void positionsAreBatchedPerFrame() {
+        float[] circle = circle();
+        streamer.addSamples(circle, 1);
+        for (int i = 1; i < 10; i++) {
+            streamer.addSamples(new float[] { circle[2 * i], circle[2 * i + 1] }, 1);
+        }
+        assertThat(frames.size(), is(1));
+
+        advance(InkStreamer.MIN_FRAME_INTERVAL);
+        assertThat(frames.size(), is(2));
+    }
+
+    /**
+     * Verify that a long straight line reaches the server while it is still drawn.
+     */
+    @Test
+    public void straightLineIsSentWhileDrawing() {
+        for (int i = 0; i < 4 * InkStreamer.MAX_PENDING_POINTS; i++) {
+            streamer.addSamples(new float[] { 0.1f + 0.002f * i, 0.5f }, 1);
+            advance(InkStreamer.MIN_FRAME_INTERVAL);
+        }
+        assertThat(frames.size(), greaterThan(2));
+        assertThat(decode().get(0).ended, is(false));
+    }
+
+    /**
+     * Verify that positions are held back while the link falls behind and sent together
+     * afterwards.
+     */
+    @Test
+    public void positionsAreHeldBackWhileLinkFallsBehind() {
+        float[] circle = circle();
+        streamer.addSamples(circle, 1);
+        queuedFrames = InkStreamer.MAX_QUEUED_FRAMES + 1;
+
+        for (int i = 1; i < 20; i++) {
+            streamer.addSamples(new float[] { circle[2 * i], circle[2 * i + 1] }, 1);
+            advance(InkStreamer.MIN_FRAME_INTERVAL);
+        }
+        assertThat(frames.size(), is(1));
+
+        queuedFrames = 0;
+        advance(InkStreamer.MIN_FRAME_INTERVAL);
+        assertThat(frames.size(), is(2));
+        assertThat(decode().get(0).points.size(), greaterThan(2));
+    }
+
+    /**
+     * Verify that the listener is informed about confirmed strokes and that cleared strokes
+     * count as confirmed.
+     */
+    @Test
+    public void confirmations() {
+        List<Integer> confirmed = new ArrayList<>();
+        streamer.setListener(confirmed::add);
+
+        draw(circle());
+        draw(circle());
+        assertThat(streamer.getStrokeCount(), is(2));
+        assertThat(streamer.getConfirmedStrokes(), is(0));
+
+        streamer.postConfirmation(0);
+        // Unknown strokes are ignored
+        streamer.postConfirmation(5);
+        advance(0);
+        assertThat(confirmed.size(), is(1));
+        assertThat(confirmed.get(0), is(1));
+        assertThat(streamer.getConfirmedStrokes(), is(1));
+
+        streamer.clear();
+        assertThat(frames.get(frames.size() - 1), is("clear"));
+        assertThat(streamer.getConfirmedStrokes(), is(2));
+
+        // A late confirmation does not go back
+        streamer.postConfirmation(0);
+        advance(0);
+        assertThat(streamer.getConfirmedStrokes(), is(2));
+    }
+}
@@ -0,0 +1,88 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Presenter. Android Client to remote control a presentation.          *
+ *  Copyright (C) 2019 Felix Wohlfrom                                    *
+ *                                                                       *
+ *  This program is free software: you can redistribute it and/or modify *
+ *  it under the terms of the GNU General Public License as published by *
+ *  the Free Software Foundation, either version 3 of the License, or    *
+ *  (at your option) any later version.                                  *
+ *                                                                       *
+ *  This program is distributed in the hope that it will be useful,      *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of       *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the        *
+ *  GNU General Public License for more details.                         *
+ *                                                                       *
+ *  You should have received a copy of the GNU General Public License    *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.*
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+
+package de.wohlfrom.presenter.connectors;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * These tests verify that the latency histogram sorts the latencies into the right buckets
+ * and calculates the statistics properly.
+ */
+public class LatencyHistogramTest {
+    /**
+     * Verify that latencies end up in the bucket of their power of two.
+     */
+    @Test
+    public void bucketsGrowExponentially() {
+        assertThat(LatencyHistogram.bucketOf(0), is(0));
+        assertThat(LatencyHistogram.bucketOf(1), is(0));
+        assertThat(LatencyHistogram.bucketOf(2), is(1));
+        assertThat(LatencyHistogram.bucketOf(3), is(1));
+        assertThat(LatencyHistogram.bucketOf(1024), is(10));
+        assertThat(LatencyHistogram.bucketOf(Long.MAX_VALUE),
+                is(LatencyHistogram.BUCKETS - 1));
+    }
+
+    /**
+     * Verify that the statistics are calculated properly.
+     */
+    @Test
+    public void statistics() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertThat(histogram.getAverage(), is(-1L));
+        assertThat(histogram.getPercentile(50), is(-1L));
+
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i * 100);
+        }
+        histogram.record(-5);
+
+        assertThat(histogram.getCount(), is(101L));
+        assertThat(histogram.getMin(), is(0L));
+        assertThat(histogram.getMax(), is(10000L));
+        assertThat(histogram.getAverage(), is(5000L));
+        assertThat(histogram.getBucketCount(0), is(1L));
+
+        // 5000 is in the bucket [4096, 8191]
+        assertThat(histogram.getPercentile(50), is(8191L));
+        // The upper bound is capped by the largest latency
+        assertThat(histogram.getPercentile(99), is(10000L));
+        assertThat(histogram.getPercentile(0), is(1L));
+    }
+
+    /**
+     * Verify that copies are independent of their original.
+     */
+    @Test
+    public void copyAndReset() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(100);
+
+        LatencyHistogram copy = new LatencyHistogram(histogram);
+        histogram.reset();
+
+        assertThat(histogram.getCount(), is(0L));
+        assertThat(histogram.getMax(), is(-1L));
+        assertThat(copy.getCount(), is(1L));
+        assertThat(copy.getMax(), is(100L));
+    }
+}
@@ -0,0 +1,140 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Presenter. Android Client to remote control a presentation.          *
+ *  Copyright (C) 2019 Felix Wohlfrom                                    *
+ *                                                                       *
+ *  This program is free software: you can redistribute it and/or modify *
+ *  it under the terms of the GNU General Public License as published by *
+ *  the Free Software Foundation, either version 3 of the License, or    *
+ *  (at your option) any later version.                                  *
+ *                                                                       *
+ *  This program is distributed in the hope that it will be useful,      *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of       *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the        *
+ *  GNU General Public License for more details.                         *
+ *                                                                       *
+ *  You should have received a copy of the GNU General Public License    *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.*
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+
+package de.wohlfrom.presenter.connectors;
+
+import android.os.SystemClock;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * These tests verify that the latency tracker measures the time between an input event and
+ * the socket write of the resulting frame, and the time spent in the single stages.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class LatencyTrackerTest {
+    /**
+     * Removes the statistics of previous tests.
+     */
+    @Before
+    public void reset() {
+        LatencyTracker.reset();
+    }
+
+    /**
+     * Verify that the time from input to write is measured.
+     */
+    @Test
+    public void inputToWriteIsMeasured() {
+        LatencyTracker.markInput(SystemClock.uptimeMillis());
+        ShadowLooper.idleMainLooper(20, TimeUnit.MILLISECONDS);
+
+        LatencyTracker.InputTrace input = LatencyTracker.takeInput();
+        assertThat(LatencyTracker.takeInput(), is(nullValue()));
+
+        ShadowLooper.idleMainLooper(5, TimeUnit.MILLISECONDS);
+        LatencyTracker.recordWrite(input);
+
+        assertThat(LatencyTracker.getSamples(), is(1));
+        assertThat(LatencyTracker.getLastLatency(), is(25L));
+        assertThat(LatencyTracker.getAverageLatency(), is(25L));
+    }
+
+    /**
+     * Verify that inputs that did not lead to a frame in time are dropped.
+     */
+    @Test
+    public void staleInputIsDropped() {
+        LatencyTracker.markInput(SystemClock.uptimeMillis());
+        ShadowLooper.idleMainLooper(LatencyTracker.MAX_INPUT_AGE + 1, TimeUnit.MILLISECONDS);
+
+        LatencyTracker.InputTrace input = LatencyTracker.takeInput();
+        assertThat(input, is(nullValue()));
+
+        LatencyTracker.recordWrite(input);
+        assertThat(LatencyTracker.getSamples(), is(0));
+    }
+
+    /**
+     * Verify that every stage passed by an input is recorded once.
+     */
+    @Test
+    public void stagesAreRecorded() {
+        LatencyTracker.markInput(SystemClock.uptimeMillis() - 10);
+        LatencyTracker.InputTrace input = LatencyTracker.takeInput();
+        LatencyTracker.markStage(input, LatencyTracker.Stage.SEND_COMMAND);
+        LatencyTracker.markStage(input, LatencyTracker.Stage.ENCODE);
+        // Sending the command on another path does not count again
+        LatencyTracker.markStage(input, LatencyTracker.Stage.SEND_COMMAND);
+        LatencyTracker.markStage(input, LatencyTracker.Stage.QUEUE);
+        LatencyTracker.recordWrite(input);
+        LatencyTracker.recordAck();
+        LatencyTracker.recordAck();
+
+        assertThat(LatencyTracker.getStageLatency(LatencyTracker.Stage.LISTENER).getMin(),
+                is(10000L));
+        for (LatencyTracker.Stage stage : LatencyTracker.Stage.values()) {
+            if (stage != LatencyTracker.Stage.INPUT) {
+                assertThat(stage.getName(),
+                        LatencyTracker.getStageLatency(stage).getCount(), is(1L));
+            }
+        }
+    }
+
+    /**
+     * Verify that stages are ignored if no input is pending.
+     */
+    @Test
+    public void stagesWithoutInputAreIgnored() {
+        LatencyTracker.markStage(LatencyTracker.takeInput(), LatencyTracker.Stage.SEND_COMMAND);
+        LatencyTracker.recordWrite(LatencyTracker.takeInput());
+        LatencyTracker.recordAck();
+
+        for (LatencyTracker.Stage stage : LatencyTracker.Stage.values()) {
+            assertThat(LatencyTracker.getStageLatency(stage).getCount(), is(0L));
+        }
+    }
+
+    /**
+     * Verify that an input is only taken by commands sent on the thread that marked it.
+     */
+    @Test
+    public void inputIsNotTakenByOtherThreads() throws InterruptedException {
+        LatencyTracker.markInput(SystemClock.uptimeMillis());
+
+        final AtomicReference<LatencyTracker.InputTrace> taken = new AtomicReference<>();
+        Thread other = new Thread(() -> taken.set(LatencyTracker.takeInput()));
+        other.start();
+        other.join();
+
+        assertThat(taken.get(), is(nullValue()));
+        assertThat(LatencyTracker.takeInput(), is(notNullValue()));
+    }
+}
@@ -0,0 +1,135 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Presenter. Android Client to remote control a presentation.          *
+ *  Copyright (C) 2019 Felix Wohlfrom                                    *
+ *                                                                       *
+ *  This program is free software: you can redistribute it and/or modify *
+ *  it under the terms of the GNU General Public License as published by *
+ *  the Free Software Foundation, either version 3 of the License, or    *
+ *  (at your option) any later version.                                  *
+ *                                                                       *
+ *  This program is distributed in the hope that it will be useful,      *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of       *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the        *
+ *  GNU General Public License for more details.                         *
+ *                                                                       *
+ *  You should have received a copy of the GNU General Public License    *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.*
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+
+package de.wohlfrom.presenter.connectors;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * These tests verify that the mirror controller lowers the quality as soon as the link is
+ * congested and only increases it again after the link was fine for a while.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class MirrorControllerTest {
+    /** A round trip time in us of a good link. */
+    private static final long GOOD_ROUND_TRIP_TIME = MirrorController.LOW_ROUND_TRIP_TIME / 2;
+    /** A round trip time in us of a congested link. */
+    private static final long HIGH_ROUND_TRIP_TIME = MirrorController.HIGH_ROUND_TRIP_TIME * 2;
+
+    private MirrorController controller;
+
+    /**
+     * Creates a new controller.
+     */
+    @Before
+    public void initController() {
+        controller = new MirrorController();
+    }
+
+    /**
+     * Passes the given sample multiple times to the controller.
+     *
+     * @param count The number of samples
+     * @param roundTripTime The round trip time in us
+     * @param queuedFrames The number of queued frames
+     */
+    private void sample(int count, long roundTripTime, int queuedFrames) {
+        for (int i = 0; i < count; i++) {
+            controller.onSample(roundTripTime, queuedFrames);
+        }
+    }
+
+    /**
+     * Verify that the controller starts with the start level.
+     */
+    @Test
+    public void startQuality() {
+        assertThat(controller.getLevel(), is(MirrorController.START_LEVEL));
+        assertThat(controller.getWidth(),
+                is(MirrorController.WIDTHS[MirrorController.START_LEVEL]));
+        assertThat(controller.getFrameRate(),
+                is(MirrorController.FRAME_RATES[MirrorController.START_LEVEL]));
+    }
+
+    /**
+     * Verify that a high round trip time lowers the quality, but only once while the frames
+     * sent with the old quality drain.
+     */
+    @Test
+    public void highRoundTripTimeLowersQuality() {
+        assertThat(controller.onSample(HIGH_ROUND_TRIP_TIME, 0), is(true));
+        assertThat(controller.getLevel(), is(MirrorController.START_LEVEL + 1));
+
+        for (int i = 1; i < MirrorController.DOWNGRADE_HOLD_SAMPLES; i++) {
+            assertThat(controller.onSample(HIGH_ROUND_TRIP_TIME, 0), is(false));
+        }
+        assertThat(controller.getLevel(), is(MirrorController.START_LEVEL + 1));
+
+        assertThat(controller.onSample(HIGH_ROUND_TRIP_TIME, 0), is(true));
+        assertThat(controller.getLevel(), is(MirrorController.START_LEVEL + 2));
+    }
+
+    /**
+     * Verify that queued frames lower the quality even if the round trip time is unknown.
+     */
+    @Test
+    public void queuedFramesLowerQuality() {
+        assertThat(controller.onSample(-1, MirrorController.MAX_QUEUED_FRAMES), is(false));
+        assertThat(controller.onSample(-1, MirrorController.MAX_QUEUED_FRAMES + 1), is(true));
+        assertThat(controller.getLevel(), is(MirrorController.START_LEVEL + 1));
+    }
+
+    /**
+     * Verify that the quality is only increased after enough good samples in a row.
+     */
+    @Test
+    public void goodLinkIncreasesQuality() {
+        sample(MirrorController.UPGRADE_SAMPLES - 1, GOOD_ROUND_TRIP_TIME, 0);
+        assertThat(controller.getLevel(), is(MirrorController.START_LEVEL));
+
+        // A mediocre sample restarts the counting
+        sample(1, MirrorController.LOW_ROUND_TRIP_TIME, 0);
+        sample(MirrorController.UPGRADE_SAMPLES - 1, GOOD_ROUND_TRIP_TIME, 0);
+        assertThat(controller.getLevel(), is(MirrorController.START_LEVEL));
+
+        assertThat(controller.onSample(GOOD_ROUND_TRIP_TIME, 0), is(true));
+        assertThat(controller.getLevel(), is(MirrorController.START_LEVEL - 1));
+    }
+
+    /**
+     * Verify that the quality never leaves the available levels.
+     */
+    @Test
+    public void qualityStaysInBounds() {
+        sample(10 * MirrorController.UPGRADE_SAMPLES, GOOD_ROUND_TRIP_TIME, 0);
+        assertThat(controller.getLevel(), is(0));
+
+        sample(10 * MirrorController.WIDTHS.length * MirrorController.DOWNGRADE_HOLD_SAMPLES,
+                HIGH_ROUND_TRIP_TIME, 0);
+        assertThat(controller.getLevel(), is(MirrorController.WIDTHS.length - 1));
+
+        controller.reset();
+        assertThat(controller.getLevel(), is(MirrorController.START_LEVEL));
+    }
+}
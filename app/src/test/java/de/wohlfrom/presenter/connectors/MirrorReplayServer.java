@@ -0,0 +1,374 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Presenter. Android Client to remote control a presentation.          *
+ *  Copyright (C) 2019 Felix Wohlfrom                                    *
+ *                                                                       *
+ *  This program is free software: you can redistribute it and/or modify *
+ *  it under the terms of the GNU General Public License as published by *
+ *  the Free Software Foundation, either version 3 of the License, or    *
+ *  (at your option) any later version.                                  *
+ *                                                                       *
+ *  This program is distributed in the hope that it will be useful,      *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of       *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the        *
+ *  GNU General Public License for more details.                         *
+ *                                                                       *
+ *  You should have received a copy of the GNU General Public License    *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.*
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+
+package de.wohlfrom.presenter.connectors;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+
+/**
+ * A stand-in for the screen mirror of the presenter server. It replays recorded screens over
+ * the server end of an in-memory pipe, scaled to the width requested by the client. Like the
+ * real server, it sends a key frame on start and on request and otherwise only the tiles that
+ * changed since the previous frame.
+ */
+class MirrorReplayServer {
+    /** The size in px of the tiles. */
+    static final int TILE_SIZE = 32;
+
+    /** Pattern to extract type and data of a received message. */
+    private static final Pattern MESSAGE_PATTERN
+            = Pattern.compile("\"type\": \"(\\w+)\", \"data\": \"([^\"]*)\"");
+
+    /** Pattern to extract the requested quality of a start message. */
+    private static final Pattern START_PATTERN
+            = Pattern.compile("\"width\": \"(\\d+)\", \"fps\": \"(\\d+)\"");
+
+    private final InMemoryTransport mClient;
+    private final InMemoryTransport mServer;
+    private final int[][] mScreens;
+    private final int mScreenWidth;
+    private final int mScreenHeight;
+
+    private final List<String> mRequests = new ArrayList<>();
+    private final List<Integer> mSentTiles = new ArrayList<>();
+
+    /**
+     * The state of the stream, guarded by this.
+     */
+    private boolean mStarted = false;
+    private int mWidth = 0;
+    private int mHeight = 0;
+    private int mScreen = 0;
+    private long mFrame = 0;
+    private int[] mSent = null;
+
+    /**
+     * Creates a new server replaying the given screens.
+     *
+     * @param screens The recorded screens, ARGB pixels row by row
+     * @param width The width of the recorded screens in px
+     * @param height The height of the recorded screens in px
+     */
+    MirrorReplayServer(int[][] screens, int width, int height) {
+        mClient = InMemoryTransport.createPipe("mirror", "client");
+        mServer = mClient.getPeer();
+        mScreens = screens;
+        mScreenWidth = width;
+        mScreenHeight = height;
+    }
+
+    /**
+     * Returns the client end of the pipe, to be connected by the remote control.
+     *
+     * @return The client transport
+     */
+    InMemoryTransport getClientTransport() {
+        return mClient;
+    }
+
+    /**
+     * Opens the server end of the pipe, sends the server version and starts receiving.
+     *
+     * @throws IOException If opening the pipe failed
+     */
+    void start() throws IOException {
+        mServer.open();
+        mServer.send("{ \"type\" = \"version\", \"data\" = '"
+                + RemoteControl.CLIENT_PROTOCOL_VERSION + "' }");
+        new ReceiverThread().start();
+    }
+
+    /**
+     * Closes the server end of the pipe.
+     */
+    void close() {
+        mServer.close();
+    }
+
+    /**
+     * Sends the next recorded screen as frame diff, if the stream is started.
+     *
+     * @return If a frame was sent
+     */
+    synchronized boolean sendNextScreen() {
+        if (!mStarted || mScreen + 1 >= mScreens.length) {
+            return false;
+        }
+        mScreen++;
+        sendFrame(false);
+        return true;
+    }
+
+    /**
+     * Skips the next recorded screen, as if its frame was lost on the way.
+     */
+    synchronized void loseNextScreen() {
+        mScreen++;
+        mSent = scale(mScreens[mScreen]);
+        mFrame++;
+    }
+
+    /**
+     * Returns the requests received from the client, e.g. "start:480:8", "key" or "stop".
+     *
+     * @return The requests in order of arrival
+     */
+    synchronized List<String> getRequests() {
+        return new ArrayList<>(mRequests);
+    }
+
+    /**
+     * Returns the number of tiles of each sent frame.
+     *
+     * @return The tile counts in the order the frames were sent
+     */
+    synchronized List<Integer> getSentTiles() {
+        return new ArrayList<>(mSentTiles);
+    }
+
+    /**
+     * Waits until the given request was received from the client.
+     *
+     * @param request The request to wait for, e.g. "key"
+     * @param timeout The maximum time to wait in ms
+     * @return If the request was received in time
+     * @throws InterruptedException If waiting was interrupted
+     */
+    synchronized boolean awaitRequest(String request, long timeout)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (!mRequests.contains(request)) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return true;
+    }
+
+    /**
+     * Waits until the given number of frames was sent.
+     *
+     * @param count The number of frames to wait for
+     * @param timeout The maximum time to wait in ms
+     * @return If the frames were sent in time
+     * @throws InterruptedException If waiting was interrupted
+     */
+    synchronized boolean awaitSentFrames(int count, long timeout)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (mSentTiles.size() < count) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the last sent screen as the client should display it, scaled to the requested
+     * width and reduced to the colors of RGB565.
+     *
+     * @return The pixels, row by row
+     */
+    synchronized int[] getExpectedScreen() {
+        int[] expected = new int[mSent.length];
+        for (int i = 0; i < expected.length; i++) {
+            expected[i] = MirrorFrame.rgb565ToArgb(toRgb565(mSent[i]));
+        }
+        return expected;
+    }
+
+    /**
+     * Returns the width of the sent frames.
+     *
+     * @return The width in px
+     */
+    synchronized int getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * Handles a single received frame.
+     *
+     * @param frame The received frame
+     */
+    private synchronized void handleFrame(String frame) {
+        // Waiting threads are woken up once the frame was handled and the lock is released
+        notifyAll();
+
+        Matcher matcher = MESSAGE_PATTERN.matcher(frame);
+        if (!matcher.find() || !"mirror".equals(matcher.group(1))) {
+            return;
+        }
+
+        String request = matcher.group(2);
+        if ("start".equals(request)) {
+            Matcher start = START_PATTERN.matcher(frame);
+            if (!start.find()) {
+                return;
+            }
+            mRequests.add("start:" + start.group(1) + ":" + start.group(2));
+            mStarted = true;
+            mWidth = Integer.parseInt(start.group(1));
+            mHeight = mScreenHeight * mWidth / mScreenWidth;
+            sendFrame(true);
+        } else if ("key".equals(request)) {
+            mRequests.add(request);
+            sendFrame(true);
+        } else if ("stop".equals(request)) {
+            mRequests.add(request);
+            mStarted = false;
+        }
+    }
+
+    /**
+     * Sends the current screen, either completely or only the tiles that changed since the
+     * last sent frame.
+     *
+     * @param key If a key frame should be sent
+     */
+    private void sendFrame(boolean key) {
+        int[] screen = scale(mScreens[mScreen]);
+        StringBuilder tiles = new StringBuilder();
+        int tileCount = 0;
+        for (int y = 0; y < mHeight; y += TILE_SIZE) {
+            for (int x = 0; x < mWidth; x += TILE_SIZE) {
+                int width = Math.min(TILE_SIZE, mWidth - x);
+                int height = Math.min(TILE_SIZE, mHeight - y);
+                if (!key && !tileChanged(screen, x, y, width, height)) {
+                    continue;
+                }
+
+                if (tileCount++ > 0) {
+                    tiles.append(',');
+                }
+                tiles.append("{\"x\": ").append(x).append(", \"y\": ").append(y)
+                        .append(", \"w\": ").append(width).append(", \"h\": ").append(height)
+                        .append(", \"data\": \"")
+                        .append(encodeTile(screen, x, y, width, height)).append("\"}");
+            }
+        }
+
+        mFrame++;
+        mSent = screen;
+        mSentTiles.add(tileCount);
+        notifyAll();
+        String data = "{\"frame\": " + mFrame + ", \"key\": " + key
+                + ", \"width\": " + mWidth + ", \"height\": " + mHeight
+                + ", \"tiles\": [" + tiles + "]}";
+        mServer.send("{ \"type\": \"mirror\", \"data\": " + data + "}");
+    }
+
+    /**
+     * Scales the given screen to the requested width using the nearest pixels.
+     *
+     * @param screen The recorded screen
+     * @return The scaled screen
+     */
+    private int[] scale(int[] screen) {
+        int[] scaled = new int[mWidth * mHeight];
+        for (int y = 0; y < mHeight; y++) {
+            for (int x = 0; x < mWidth; x++) {
+                scaled[y * mWidth + x] = screen[(y * mScreenHeight / mHeight) * mScreenWidth
+                        + x * mScreenWidth / mWidth];
+            }
+        }
+        return scaled;
+    }
+
+    /**
+     * Returns if the given tile changed since the last sent frame.
+     */
+    private boolean tileChanged(int[] screen, int x, int y, int width, int height) {
+        if (mSent == null || mSent.length != screen.length) {
+            return true;
+        }
+        for (int row = y; row < y + height; row++) {
+            for (int column = x; column < x + width; column++) {
+                if (screen[row * mWidth + column] != mSent[row * mWidth + column]) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Encodes the pixels of a tile as compressed RGB565, base64 encoded.
+     */
+    private String encodeTile(int[] screen, int x, int y, int width, int height) {
+        byte[] pixels = new byte[width * height * 2];
+        int i = 0;
+        for (int row = y; row < y + height; row++) {
+            for (int column = x; column < x + width; column++) {
+                int color = toRgb565(screen[row * mWidth + column]);
+                pixels[i++] = (byte) color;
+                pixels[i++] = (byte) (color >> 8);
+            }
+        }
+
+        Deflater deflater = new Deflater();
+        deflater.setInput(pixels);
+        deflater.finish();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        while (!deflater.finished()) {
+            compressed.write(buffer, 0, deflater.deflate(buffer));
+        }
+        deflater.end();
+        return Base64.getEncoder().encodeToString(compressed.toByteArray());
+    }
+
+    /**
+     * Converts an ARGB8888 color to RGB565.
+     *
+     * @param color The ARGB8888 color
+     * @return The RGB565 color
+     */
+    static int toRgb565(int color) {
+        return (color >> 19 & 0x1f) << 11 | (color >> 10 & 0x3f) << 5 | (color >> 3 & 0x1f);
+    }
+
+    /**
+     * The thread receiving the frames sent by the client.
+     */
+    private class ReceiverThread extends Thread {
+        @Override
+        public void run() {
+            try {
+                //noinspection InfiniteLoopStatement
+                while (true) {
+                    handleFrame(mServer.receive());
+                }
+            } catch (IOException e) {
+                // Pipe closed
+            }
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Presenter. Android Client to remote control a presentation.          *
+ *  Copyright (C) 2019 Felix Wohlfrom                                    *
+ *                                                                       *
+ *  This program is free software: you can redistribute it and/or modify *
+ *  it under the terms of the GNU General Public License as published by *
+ *  the Free Software Foundation, either version 3 of the License, or    *
+ *  (at your option) any later version.                                  *
+ *                                                                       *
+ *  This program is distributed in the hope that it will be useful,      *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of       *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the        *
+ *  GNU General Public License for more details.                         *
+ *                                                                       *
+ *  You should have received a copy of the GNU General Public License    *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.*
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+
+package de.wohlfrom.presenter.connectors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.IOException;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThan;
+
+/**
+ * These tests verify that the multi server controller fans out commands to all servers
+ * without being blocked by slow servers and measures the delivery skew.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class MultiServerControllerTest {
+    /** The number of commands sent in our tests */
+    private static final int COMMAND_COUNT = 10;
+    /** The delay in ms of the slow server */
+    private static final long SLOW_SERVER_DELAY = 50;
+    /** The maximum time in ms to wait for a state change */
+    private static final int STATE_CHANGE_TIME = 5000;
+
+    private InMemoryServer projectorServer;
+    private InMemoryServer streamingServer;
+    private TestRemoteControl projector;
+    private TestRemoteControl streaming;
+    private MultiServerController controller;
+
+    /**
+     * Creates two independent servers, the streaming server being slow.
+     */
+    @Before
+    public void createServers() {
+        projectorServer = new InMemoryServer("projector");
+        streamingServer = new InMemoryServer("streaming");
+        streamingServer.setDelay(SLOW_SERVER_DELAY);
+        projector = new TestRemoteControl();
+        streaming = new TestRemoteControl();
+        controller = new MultiServerController();
+    }
+
+    /**
+     * Stops all connections.
+     */
+    @After
+    public void disconnect() {
+        projector.stop();
+        streaming.stop();
+        projectorServer.close();
+        streamingServer.close();
+    }
+
+    /**
+     * Verify that all servers receive all commands, that the slow server does not delay the
+     * fast one and that the skew between them is measured.
+     */
+    @Test
+    public void fanOutWithoutBlocking() throws IOException, InterruptedException {
+        connect(RemoteControl.CLIENT_PROTOCOL_VERSION);
+
+        for (int i = 0; i < COMMAND_COUNT; i++) {
+            assertThat(controller.sendCommand(Command.NEXT_SLIDE), is(2));
+        }
+
+        // The fast server has all commands long before the slow one handled them
+        waitForCommands(projectorServer, COMMAND_COUNT);
+        assertThat(streamingServer.getReceivedCommands().size(), lessThan(COMMAND_COUNT));
+
+        waitForCommands(streamingServer, COMMAND_COUNT);
+        assertThat(streaming.awaitAcks(COMMAND_COUNT, STATE_CHANGE_TIME), is(true));
+        assertThat(controller.getAverageSkew(), greaterThanOrEqualTo(SLOW_SERVER_DELAY * 1000));
+        assertThat(controller.getMaxSkew(), greaterThanOrEqualTo(controller.getLastSkew()));
+        assertThat(controller.getAverageLatency(streaming),
+                greaterThan(controller.getAverageLatency(projector)));
+    }
+
+    /**
+     * Verify that only commands supported by all servers are sent.
+     */
+    @Test
+    public void lowestCommonVersionIsUsed() throws IOException, InterruptedException {
+        projectorServer.start();
+        streamingServer.start(new ProtocolVersion(1, 1));
+        projector.connect(projectorServer.getClientTransport());
+        streaming.connect(streamingServer.getClientTransport());
+        assertThat(projector.awaitConnected(STATE_CHANGE_TIME), is(true));
+        assertThat(streaming.awaitConnected(STATE_CHANGE_TIME), is(true));
+        controller.addServer("projector", projector);
+        controller.addServer("streaming", streaming);
+
+        ProtocolVersion common = controller.getCommonProtocolVersion();
+        assertThat(common.getMinVersion(), is(1));
+        assertThat(common.getMaxVersion(), is(1));
+
+        assertThat(controller.sendCommand(Command.START_PRESENTATION), is(0));
+        assertThat(controller.sendCommand(Command.NEXT_SLIDE), is(2));
+        waitForCommands(projectorServer, 1);
+        waitForCommands(streamingServer, 1);
+
+        // The old server does not acknowledge commands, so no skew can be measured
+        assertThat(controller.getLastSkew(), is(-1L));
+    }
+
+    /**
+     * Verify that lost servers are ignored.
+     */
+    @Test
+    public void lostServerIsIgnored() throws IOException, InterruptedException {
+        connect(RemoteControl.CLIENT_PROTOCOL_VERSION);
+        streamingServer.close();
+        assertThat(streaming.awaitConnectionLost(STATE_CHANGE_TIME), is(true));
+        assertThat(controller.getConnectedServers(), is(1));
+
+        assertThat(controller.sendCommand(Command.PREV_SLIDE), is(1));
+        controller.removeServer(projector);
+        assertThat(controller.getCommonProtocolVersion(), is(nullValue()));
+    }
+
+    /**
+     * Connects both servers using the given version and adds them to the controller.
+     *
+     * @param version The protocol version of the servers
+     */
+    private void connect(ProtocolVersion version) throws IOException, InterruptedException {
+        projectorServer.start(version);
+        streamingServer.start(version);
+        projector.connect(projectorServer.getClientTransport());
+        streaming.connect(streamingServer.getClientTransport());
+        assertThat(projector.awaitConnected(STATE_CHANGE_TIME), is(true));
+        assertThat(streaming.awaitConnected(STATE_CHANGE_TIME), is(true));
+        controller.addServer("projector", projector);
+        controller.addServer("streaming", streaming);
+    }
+
+    /**
+     * Waits until the given server received the given number of commands.
+     *
+     * @param server The server to check
+     * @param count The number of commands
+     * @throws InterruptedException If waiting failed
+     */
+    private void waitForCommands(InMemoryServer server, int count)
+            throws InterruptedException {
+        assertThat(server.awaitReceivedCommands(count, STATE_CHANGE_TIME), is(true));
+    }
+}
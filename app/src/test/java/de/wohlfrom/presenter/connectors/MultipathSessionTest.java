@@ -0,0 +1,192 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Presenter. Android Client to remote control a presentation.          *
+ *  Copyright (C) 2019 Felix Wohlfrom                                    *
+ *                                                                       *
+ *  This program is free software: you can redistribute it and/or modify *
+ *  it under the terms of the GNU General Public License as published by *
+ *  the Free Software Foundation, either version 3 of the License, or    *
+ *  (at your option) any later version.                                  *
+ *                                                                       *
+ *  This program is distributed in the hope that it will be useful,      *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of       *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the        *
+ *  GNU General Public License for more details.                         *
+ *                                                                       *
+ *  You should have received a copy of the GNU General Public License    *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.*
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+
+package de.wohlfrom.presenter.connectors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+/**
+ * These tests verify that the multipath session sends commands over all paths, that the server
+ * executes each command only once and that the faster path is recognized.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class MultipathSessionTest {
+    /** The number of commands sent in our tests */
+    private static final int COMMAND_COUNT = 20;
+    /** The delay in ms of the slow path */
+    private static final long SLOW_PATH_DELAY = 20;
+    /** The maximum time in ms to wait for a state change */
+    private static final int STATE_CHANGE_TIME = 5000;
+
+    private InMemoryServer fastServer;
+    private InMemoryServer slowServer;
+    private TestRemoteControl fastPath;
+    private TestRemoteControl slowPath;
+    private MultipathSession session;
+
+    /**
+     * Connects two paths to the same in-memory server and adds them to a new session.
+     */
+    @Before
+    public void connect() throws IOException, InterruptedException {
+        fastServer = new InMemoryServer("fast");
+        slowServer = new InMemoryServer("slow", fastServer);
+        slowServer.setDelay(SLOW_PATH_DELAY);
+        fastPath = new TestRemoteControl();
+        slowPath = new TestRemoteControl();
+
+        fastPath.connect(fastServer.getClientTransport());
+        slowPath.connect(slowServer.getClientTransport());
+        fastServer.start();
+        slowServer.start();
+        assertThat(fastPath.awaitConnected(STATE_CHANGE_TIME), is(true));
+        assertThat(slowPath.awaitConnected(STATE_CHANGE_TIME), is(true));
+
+        session = new MultipathSession();
+        session.addPath(fastPath);
+        session.addPath(slowPath);
+    }
+
+    /**
+     * Stops all connections.
+     */
+    @After
+    public void disconnect() {
+        fastPath.stop();
+        slowPath.stop();
+        fastServer.close();
+        slowServer.close();
+    }
+
+    /**
+     * Verify that every command is sent on both paths but executed only once, in order.
+     */
+    @Test
+    public void commandsAreDeduplicated() throws InterruptedException {
+        List<String> expected = sendCommands();
+        waitForAcknowledged(slowPath);
+
+        assertThat(fastServer.getDeliveredCommands(), is(expected));
+        assertThat(fastServer.getReceivedCommands(), is(expected));
+        assertThat(slowServer.getReceivedCommands(), is(expected));
+        assertThat(fastServer.getDuplicates(), is(COMMAND_COUNT));
+    }
+
+    /**
+     * Verify that the faster path wins the commands and has the lower latency.
+     */
+    @Test
+    public void fasterPathWins() throws InterruptedException {
+        sendCommands();
+        waitForAcknowledged(slowPath);
+
+        MultipathSession.PathStats fast = session.getPathStats(fastPath);
+        MultipathSession.PathStats slow = session.getPathStats(slowPath);
+        assertThat(fast.getSent(), is(COMMAND_COUNT));
+        assertThat(fast.getAcknowledged(), is(COMMAND_COUNT));
+        assertThat(fast.getWins(), is(COMMAND_COUNT));
+        assertThat(slow.getWins(), is(0));
+        assertThat(slow.getAverageLatency(), greaterThan(fast.getAverageLatency()));
+        assertThat(session.getWinner(1), is(sameInstance(fastPath)));
+        assertThat(slow.getSent(), is(COMMAND_COUNT));
+        assertThat(slow.getAcknowledged(), is(COMMAND_COUNT));
+        assertThat(fast.getMinLatency(), lessThanOrEqualTo(fast.getAverageLatency()));
+    }
+
+    /**
+     * Verify that commands are still executed if one of the paths is lost.
+     */
+    @Test
+    public void lostPathIsSkipped() throws InterruptedException {
+        fastServer.close();
+        assertThat(fastPath.awaitConnectionLost(STATE_CHANGE_TIME), is(true));
+
+        assertThat(session.sendCommand(Command.NEXT_SLIDE), is(1));
+        waitForAcknowledged(slowPath, 1);
+        assertThat(slowServer.getDeliveredCommands().size(), is(1));
+    }
+
+    /**
+     * Verify that the sequence numbers of a single connection, like those of the udp command
+     * channel, are not mistaken for sequence numbers of the session.
+     */
+    @Test
+    public void connectionSequenceNumbersAreIgnored() throws InterruptedException {
+        assertThat(session.sendCommand(Command.NEXT_SLIDE), is(2));
+        fastPath.sendFrame("{ \"type\": \"command\", \"data\": \""
+                + Command.PREV_SLIDE.getCommand() + "\", \"seq\": \"1\"}");
+        waitForAcknowledged(slowPath, 1);
+
+        assertThat(fastServer.awaitDeliveredCommands(2, STATE_CHANGE_TIME), is(true));
+        assertThat(fastServer.getDeliveredCommands(), is(Arrays.asList(
+                Command.NEXT_SLIDE.getCommand(), Command.PREV_SLIDE.getCommand())));
+    }
+
+    /**
+     * Sends {@link #COMMAND_COUNT} alternating commands using the session.
+     *
+     * @return The sent commands
+     */
+    private List<String> sendCommands() {
+        List<String> sent = new ArrayList<>();
+        for (int i = 0; i < COMMAND_COUNT; i++) {
+            Command command = i % 2 == 0 ? Command.NEXT_SLIDE : Command.PREV_SLIDE;
+            assertThat(session.sendCommand(command), is(2));
+            sent.add(command.getCommand());
+        }
+        return sent;
+    }
+
+    /**
+     * Waits until all commands were acknowledged on the given path.
+     *
+     * @param path The path to check
+     * @throws InterruptedException If waiting failed
+     */
+    private void waitForAcknowledged(TestRemoteControl path) throws InterruptedException {
+        waitForAcknowledged(path, COMMAND_COUNT);
+    }
+
+    /**
+     * Waits until the given number of commands was acknowledged on the given path.
+     *
+     * @param path The path to check
+     * @param count The number of commands
+     * @throws InterruptedException If waiting failed
+     */
+    private void waitForAcknowledged(TestRemoteControl path, int count)
+            throws InterruptedException {
+        assertThat(path.awaitAcks(count, STATE_CHANGE_TIME), is(true));
+        assertThat(session.getPathStats(path).getAcknowledged(), is(count));
+    }
+}
@@ -0,0 +1,240 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Presenter. Android Client to remote control a presentation.          *
+ *  Copyright (C) 2019 Felix Wohlfrom                                    *
+ *                                                                       *
+ *  This program is free software: you can redistribute it and/or modify *
+ *  it under the terms of the GNU General Public License as published by *
+ *  the Free Software Foundation, either version 3 of the License, or    *
+ *  (at your option) any later version.                                  *
+ *                                                                       *
+ *  This program is distributed in the hope that it will be useful,      *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of       *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the        *
+ *  GNU General Public License for more details.                         *
+ *                                                                       *
+ *  You should have received a copy of the GNU General Public License    *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.*
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+
+package de.wohlfrom.presenter.connectors;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * These tests verify that the payload receiver reassembles the chunks sent by the server and
+ * grants enough window to keep large payloads flowing.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PayloadReceiverTest {
+    /** The chunk size used for our tests. */
+    private static final int CHUNK_SIZE = 10;
+    /** The window used for our tests. */
+    private static final int WINDOW = 40;
+
+    /**
+     * A chunk that was sent but not received yet.
+     */
+    private static class Chunk {
+        final int stream;
+        final int offset;
+        final int length;
+        final String data;
+
+        Chunk(int stream, int offset, int length, String data) {
+            this.stream = stream;
+            this.offset = offset;
+            this.length = length;
+            this.data = data;
+        }
+    }
+
+    private final Queue<Chunk> inFlight = new ArrayDeque<>();
+    private PayloadSender sender;
+    private PayloadReceiver receiver;
+
+    /**
+     * Creates a sender that queues the chunks and a receiver that grants window to the sender.
+     */
+    @Before
+    public void initSender() {
+        inFlight.clear();
+        sender = new PayloadSender((stream, offset, length, chunk) ->
+                inFlight.add(new Chunk(stream, offset, length, chunk)), CHUNK_SIZE, WINDOW);
+        receiver = new PayloadReceiver(sender::onWindowUpdate, WINDOW);
+    }
+
+    /**
+     * Creates a payload of the given length.
+     *
+     * @param length The length of the payload
+     * @return The payload
+     */
+    private static String createPayload(int length) {
+        StringBuilder payload = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            payload.append((char) ('a' + i % 26));
+        }
+        return payload.toString();
+    }
+
+    /**
+     * Delivers all chunks in flight to the receiver, including the ones sent because of window
+     * updates.
+     *
+     * @return The last completed payload, null if none was completed
+     */
+    private String deliverAll() {
+        String payload = null;
+        while (!inFlight.isEmpty()) {
+            Chunk chunk = inFlight.remove();
+            String completed = receiver.onChunk(chunk.stream, chunk.offset, chunk.length,
+                    chunk.data);
+            if (completed != null) {
+                payload = completed;
+            }
+        }
+        return payload;
+    }
+
+    /**
+     * Verify that small payloads are sent as a single chunk.
+     */
+    @Test
+    public void smallPayloadSingleChunk() {
+        int stream = sender.send("abc");
+
+        assertThat(inFlight.size(), is(1));
+        Chunk chunk = inFlight.peek();
+        assertThat(chunk.stream, is(stream));
+        assertThat(chunk.offset, is(0));
+        assertThat(chunk.length, is(3));
+        assertThat(sender.getPendingStreams(), is(0));
+
+        assertThat(deliverAll(), is("abc"));
+    }
+
+    /**
+     * Verify that empty payloads are sent as a single empty chunk.
+     */
+    @Test
+    public void emptyPayload() {
+        sender.send("");
+        assertThat(inFlight.size(), is(1));
+        assertThat(deliverAll(), is(""));
+    }
+
+    /**
+     * Verify that a stream stops sending once its window is used up and continues after a
+     * window update.
+     */
+    @Test
+    public void windowLimitsChunksInFlight() {
+        int stream = sender.send(createPayload(10 * CHUNK_SIZE));
+
+        assertThat(inFlight.size(), is(WINDOW / CHUNK_SIZE));
+        assertThat(sender.getPendingStreams(), is(1));
+        assertThat(sender.getPendingCharacters(), is((long) 6 * CHUNK_SIZE));
+        assertThat(sender.getStalls(), is(1));
+
+        // Updates of unknown streams are ignored
+        sender.onWindowUpdate(stream + 1, WINDOW);
+        assertThat(inFlight.size(), is(WINDOW / CHUNK_SIZE));
+
+        sender.onWindowUpdate(stream, 2 * CHUNK_SIZE);
+        assertThat(inFlight.size(), is(WINDOW / CHUNK_SIZE + 2));
+    }
+
+    /**
+     * Verify that large payloads are reassembled completely, with the receiver granting window
+     * while consuming the chunks.
+     */
+    @Test
+    public void largePayloadRoundTrip() {
+        String payload = createPayload(100 * CHUNK_SIZE + 5);
+        sender.send(payload);
+
+        assertThat(deliverAll(), is(payload));
+        assertThat(sender.getPendingStreams(), is(0));
+        assertThat(receiver.getPendingStreams(), is(0));
+    }
+
+    /**
+     * Verify that the chunks of several streams are reassembled independently.
+     */
+    @Test
+    public void interleavedStreams() {
+        String first = createPayload(3 * CHUNK_SIZE);
+        String second = createPayload(2 * CHUNK_SIZE + 1);
+        int firstStream = sender.send(first);
+        int secondStream = sender.send(second);
+        assertThat(firstStream == secondStream, is(false));
+
+        Chunk[] chunks = inFlight.toArray(new Chunk[0]);
+        inFlight.clear();
+
+        // Deliver the chunks of both streams alternating
+        String[] completed = new String[2];
+        for (int i = 0; i < 3; i++) {
+            for (int j = i; j < chunks.length; j += 3) {
+                Chunk chunk = chunks[j];
+                String payload = receiver.onChunk(chunk.stream, chunk.offset, chunk.length,
+                        chunk.data);
+                if (payload != null) {
+                    completed[chunk.stream == firstStream ? 0 : 1] = payload;
+                }
+            }
+        }
+        assertThat(completed[0], is(first));
+        assertThat(completed[1], is(second));
+    }
+
+    /**
+     * Verify that a stream that skips data is dropped.
+     */
+    @Test
+    public void missingChunkDropsStream() {
+        sender.send(createPayload(3 * CHUNK_SIZE));
+        inFlight.remove();
+
+        assertThat(deliverAll(), is(nullValue()));
+        assertThat(receiver.getDroppedPayloads(), is(2));
+        assertThat(receiver.getPendingStreams(), is(0));
+    }
+
+    /**
+     * Verify that payloads longer than the maximum length are not accepted.
+     */
+    @Test
+    public void tooLongPayloadDropped() {
+        assertThat(receiver.onChunk(1, 0, PayloadReceiver.MAX_PAYLOAD_LENGTH + 1, "a"),
+                is(nullValue()));
+        assertThat(receiver.getDroppedPayloads(), is(1));
+        assertThat(receiver.getPendingStreams(), is(0));
+    }
+
+    /**
+     * Verify that resetting drops all incomplete streams.
+     */
+    @Test
+    public void resetDropsStreams() {
+        sender.send(createPayload(10 * CHUNK_SIZE));
+        inFlight.remove();
+        receiver.onChunk(1, 0, 10 * CHUNK_SIZE, createPayload(CHUNK_SIZE));
+        assertThat(receiver.getPendingStreams(), is(1));
+
+        sender.reset();
+        receiver.reset();
+        assertThat(sender.getPendingStreams(), is(0));
+        assertThat(receiver.getPendingStreams(), is(0));
+    }
+}
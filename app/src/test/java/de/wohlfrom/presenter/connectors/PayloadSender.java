@@ -0,0 +1,215 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Presenter. Android Client to remote control a presentation.          *
+ *  Copyright (C) 2019 Felix Wohlfrom                                    *
+ *                                                                       *
+ *  This program is free software: you can redistribute it and/or modify *
+ *  it under the terms of the GNU General Public License as published by *
+ *  the Free Software Foundation, either version 3 of the License, or    *
+ *  (at your option) any later version.                                  *
+ *                                                                       *
+ *  This program is distributed in the hope that it will be useful,      *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of       *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the        *
+ *  GNU General Public License for more details.                         *
+ *                                                                       *
+ *  You should have received a copy of the GNU General Public License    *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.*
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+
+package de.wohlfrom.presenter.connectors;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The sending side of chunked payloads, like the presenter server implements it. Splits large
+ * payloads into chunks that are sent as their own stream. A stream may only have
+ * {@link PayloadReceiver#DEFAULT_WINDOW} characters in flight, the receiver grants more by
+ * sending window updates. Used to feed the {@link PayloadReceiver} and the transports in
+ * our tests.
+ *
+ * Chunks are passed to the sink while holding the lock of the sender to keep them in order,
+ * so the sink must never block or call back into the sender.
+ */
+class PayloadSender {
+    /**
+     * The default number of characters of a single chunk.
+     */
+    static final int DEFAULT_CHUNK_SIZE = 4096;
+
+    /**
+     * The sink that sends the chunks.
+     */
+    interface ChunkSink {
+        /**
+         * Sends a single chunk. Must not block.
+         *
+         * @param stream The stream the chunk belongs to
+         * @param offset The offset of the chunk in the payload
+         * @param length The total length of the payload
+         * @param chunk The chunk data
+         */
+        void sendChunk(int stream, int offset, int length, String chunk);
+    }
+
+    private final ChunkSink mSink;
+    private final int mChunkSize;
+    private final int mInitialWindow;
+
+    /**
+     * The streams that are not completely sent yet, in the order they were started.
+     */
+    private final Map<Integer, OutgoingStream> mStreams = new LinkedHashMap<>();
+    private int mNextStream = 1;
+
+    /**
+     * Statistics of the sent payloads.
+     */
+    private int mSentPayloads = 0;
+    private int mSentChunks = 0;
+    private int mStalls = 0;
+
+    /**
+     * Creates a new sender using the {@link #DEFAULT_CHUNK_SIZE} and
+     * {@link PayloadReceiver#DEFAULT_WINDOW}.
+     *
+     * @param sink The sink that sends the chunks
+     */
+    PayloadSender(ChunkSink sink) {
+        this(sink, DEFAULT_CHUNK_SIZE, PayloadReceiver.DEFAULT_WINDOW);
+    }
+
+    /**
+     * Creates a new sender.
+     *
+     * @param sink The sink that sends the chunks
+     * @param chunkSize The number of characters of a single chunk
+     * @param window The number of characters a stream may send before waiting for a window
+     *               update, needs to be the same as the receiver uses
+     */
+    PayloadSender(ChunkSink sink, int chunkSize, int window) {
+        mSink = sink;
+        mChunkSize = chunkSize;
+        mInitialWindow = window;
+    }
+
+    /**
+     * Starts sending the given payload. As many chunks as the window allows are sent
+     * immediately, the others once the receiver granted more window.
+     *
+     * @param payload The payload to send
+     * @return The stream the payload is sent on
+     */
+    synchronized int send(String payload) {
+        int stream = mNextStream++;
+        OutgoingStream outgoing = new OutgoingStream(payload, mInitialWindow);
+        mStreams.put(stream, outgoing);
+        mSentPayloads++;
+        pump(stream, outgoing);
+        return stream;
+    }
+
+    /**
+     * Grants the given stream more window, sent by the receiver once it consumed chunks.
+     * Updates of unknown streams are ignored, since the stream might already be complete.
+     *
+     * @param stream The stream
+     * @param window The number of characters the stream may send additionally
+     */
+    synchronized void onWindowUpdate(int stream, int window) {
+        OutgoingStream outgoing = mStreams.get(stream);
+        if (outgoing != null && window > 0) {
+            outgoing.mmWindow += window;
+            pump(stream, outgoing);
+        }
+    }
+
+    /**
+     * Drops all streams that are not completely sent, e.g. because the connection was lost.
+     */
+    synchronized void reset() {
+        mStreams.clear();
+    }
+
+    /**
+     * Sends as many chunks of the given stream as its window allows. An empty payload is sent
+     * as a single empty chunk.
+     *
+     * @param stream The stream
+     * @param outgoing The state of the stream
+     */
+    private void pump(int stream, OutgoingStream outgoing) {
+        int length = outgoing.mmPayload.length();
+        do {
+            int chunkLength = Math.min(mChunkSize, length - outgoing.mmOffset);
+            if (chunkLength > outgoing.mmWindow) {
+                mStalls++;
+                return;
+            }
+
+            int offset = outgoing.mmOffset;
+            outgoing.mmOffset += chunkLength;
+            outgoing.mmWindow -= chunkLength;
+            mSentChunks++;
+            mSink.sendChunk(stream, offset, length,
+                    outgoing.mmPayload.substring(offset, offset + chunkLength));
+        } while (outgoing.mmOffset < length);
+        mStreams.remove(stream);
+    }
+
+    /**
+     * Returns the number of streams that are not completely sent yet.
+     *
+     * @return The number of pending streams
+     */
+    synchronized int getPendingStreams() {
+        return mStreams.size();
+    }
+
+    /**
+     * Returns the number of characters that were not sent yet over all streams.
+     *
+     * @return The number of pending characters
+     */
+    synchronized long getPendingCharacters() {
+        long pending = 0;
+        for (OutgoingStream outgoing : mStreams.values()) {
+            pending += outgoing.mmPayload.length() - outgoing.mmOffset;
+        }
+        return pending;
+    }
+
+    /**
+     * Returns how often a stream had to wait for a window update.
+     *
+     * @return The number of stalls
+     */
+    synchronized int getStalls() {
+        return mStalls;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "{ " +
+                "\"payloads\": \"" + mSentPayloads + "\"," +
+                "\"chunks\": \"" + mSentChunks + "\"," +
+                "\"pendingStreams\": \"" + getPendingStreams() + "\"," +
+                "\"pendingCharacters\": \"" + getPendingCharacters() + "\"," +
+                "\"stalls\": \"" + mStalls + "\"" +
+                "}";
+    }
+
+    /**
+     * The state of a stream that is not completely sent yet.
+     */
+    private static class OutgoingStream {
+        private final String mmPayload;
+        private int mmOffset = 0;
+        private int mmWindow;
+
+        OutgoingStream(String payload, int window) {
+            mmPayload = payload;
+            mmWindow = window;
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Presenter. Android Client to remote control a presentation.          *
+ *  Copyright (C) 2019 Felix Wohlfrom                                    *
+ *                                                                       *
+ *  This program is free software: you can redistribute it and/or modify *
+ *  it under the terms of the GNU General Public License as published by *
+ *  the Free Software Foundation, either version 3 of the License, or    *
+ *  (at your option) any later version.                                  *
+ *                                                                       *
+ *  This program is distributed in the hope that it will be useful,      *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of       *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the        *
+ *  GNU General Public License for more details.                         *
+ *                                                                       *
+ *  You should have received a copy of the GNU General Public License    *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.*
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+
+package de.wohlfrom.presenter.connectors;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * These tests verify that the pointer streamer encodes the pointer positions compactly, limits
+ * the frame rate and drops samples if the link falls behind.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PointerStreamerTest {
+    private final List<String> frames = new ArrayList<>();
+    private int queuedFrames;
+    private PointerStreamer streamer;
+
+    /**
+     * Creates a new streamer that stores the sent frames.
+     */
+    @Before
+    public void initStreamer() {
+        frames.clear();
+        queuedFrames = 0;
+
+        streamer = new PointerStreamer(new PointerStreamer.PointerSink() {
+            @Override
+            public void sendPointer(String frame) {
+                frames.add(frame);
+            }
+
+            @Override
+            public int getQueuedFrames() {
+                return queuedFrames;
+            }
+        });
+
+        // Make sure the first frame is not delayed by the rate limit
+        advance(PointerStreamer.MIN_FRAME_INTERVAL);
+    }
+
+    /**
+     * Advances the main looper by the given time.
+     *
+     * @param time The time in ms to advance
+     */
+    private void advance(long time) {
+        ShadowLooper.idleMainLooper(time, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Verify that the first position is sent immediately and further positions are sent delta
+     * encoded once the frame interval passed.
+     */
+    @Test
+    public void samplesAreBatchedAndDeltaEncoded() {
+        streamer.addSamples(new float[] { 0.5f, 0.25f }, 1);
+        assertThat(frames.size(), is(1));
+        assertThat(frames.get(0), is("5000,2500"));
+
+        streamer.addSamples(new float[] { 0.501f, 0.25f, 0.5f, 0.2497f }, 2);
+        assertThat(frames.size(), is(1));
+
+        advance(PointerStreamer.MIN_FRAME_INTERVAL);
+        assertThat(frames.size(), is(2));
+        assertThat(frames.get(1), is("5010,2500;-10,-3"));
+
+        assertThat(streamer.getSentFrames(), is(2));
+        assertThat(streamer.getSentSamples(), is(3));
+        assertThat(streamer.getDroppedSamples(), is(0));
+    }
+
+    /**
+     * Verify that positions are clamped to the pad and unchanged positions are skipped.
+     */
+    @Test
+    public void positionsAreClampedAndDeduplicated() {
+        streamer.addSamples(new float[] { -0.5f, 1.5f, 0f, 1f }, 2);
+        assertThat(frames.size(), is(1));
+        assertThat(frames.get(0), is("0," + PointerStreamer.RESOLUTION));
+    }
+
+    /**
+     * Verify that the frame rate never exceeds the maximum rate.
+     */
+    @Test
+    public void rateIsLimited() {
+        for (int i = 0; i < 1000; i++) {
+            streamer.addSamples(new float[] { i / 1000f, 0.5f }, 1);
+            advance(1);
+        }
+        advance(PointerStreamer.MIN_FRAME_INTERVAL);
+
+        assertThat(frames.size() <= 1000 / PointerStreamer.MIN_FRAME_INTERVAL + 1, is(true));
+        assertThat(streamer.getSentSamples(), is(1000));
+    }
+
+    /**
+     * Verify that only the newest position is sent if the link falls behind.
+     */
+    @Test
+    public void intermediateSamplesAreDroppedIfLinkFallsBehind() {
+        queuedFrames = PointerStreamer.MAX_QUEUED_FRAMES + 1;
+
+        streamer.addSamples(new float[] { 0.1f, 0.1f, 0.2f, 0.2f, 0.3f, 0.3f }, 3);
+        advance(5 * PointerStreamer.MIN_FRAME_INTERVAL);
+        streamer.addSamples(new float[] { 0.4f, 0.4f }, 1);
+        assertThat(frames.size(), is(0));
+
+        queuedFrames = 0;
+        advance(PointerStreamer.MIN_FRAME_INTERVAL);
+        assertThat(frames.size(), is(1));
+        assertThat(frames.get(0), is("4000,4000"));
+        assertThat(streamer.getDroppedSamples(), is(3));
+    }
+
+    /**
+     * Verify that a frame never gets larger than the maximum number of samples.
+     */
+    @Test
+    public void frameSizeIsLimited() {
+        streamer.addSamples(new float[] { 0f, 0f }, 1);
+
+        float[] samples = new float[4 * PointerStreamer.MAX_SAMPLES_PER_FRAME];
+        for (int i = 0; i < 2 * PointerStreamer.MAX_SAMPLES_PER_FRAME; i++) {
+            samples[2 * i] = (i + 1) / 10000f;
+        }
+        streamer.addSamples(samples, 2 * PointerStreamer.MAX_SAMPLES_PER_FRAME);
+        advance(PointerStreamer.MIN_FRAME_INTERVAL);
+
+        assertThat(frames.size(), is(2));
+        assertThat(frames.get(1).split(";").length, is(PointerStreamer.MAX_SAMPLES_PER_FRAME));
+        // The newest position is always kept
+        assertThat(frames.get(1).endsWith(";" + (PointerStreamer.MAX_SAMPLES_PER_FRAME + 1)
+                + ",0"), is(true));
+        assertThat(streamer.getDroppedSamples(), is(PointerStreamer.MAX_SAMPLES_PER_FRAME));
+    }
+
+    /**
+     * Verify that releasing the pointer drops pending samples and hides the pointer.
+     */
+    @Test
+    public void releaseHidesPointer() {
+        streamer.addSamples(new float[] { 0.5f, 0.5f }, 1);
+        streamer.addSamples(new float[] { 0.6f, 0.6f }, 1);
+        streamer.release();
+        advance(PointerStreamer.MIN_FRAME_INTERVAL);
+
+        assertThat(frames.size(), is(2));
+        assertThat(frames.get(1), is(""));
+        assertThat(streamer.getDroppedSamples(), is(1));
+    }
+}
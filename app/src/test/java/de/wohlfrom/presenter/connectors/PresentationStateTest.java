@@ -0,0 +1,162 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Presenter. Android Client to remote control a presentation.          *
+ *  Copyright (C) 2019 Felix Wohlfrom                                    *
+ *                                                                       *
+ *  This program is free software: you can redistribute it and/or modify *
+ *  it under the terms of the GNU General Public License as published by *
+ *  the Free Software Foundation, either version 3 of the License, or    *
+ *  (at your option) any later version.                                  *
+ *                                                                       *
+ *  This program is distributed in the hope that it will be useful,      *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of       *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the        *
+ *  GNU General Public License for more details.                         *
+ *                                                                       *
+ *  You should have received a copy of the GNU General Public License    *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.*
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+
+package de.wohlfrom.presenter.connectors;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * These tests verify that the presentation state applies the updates pushed by the server and
+ * informs its listener only about the fields that changed.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PresentationStateTest {
+    private final List<Integer> changes = new ArrayList<>();
+    private PresentationState state;
+
+    /**
+     * Creates a state that records the changed fields.
+     */
+    @Before
+    public void initState() {
+        changes.clear();
+        state = new PresentationState();
+        state.setListener((changedState, changed) -> changes.add(changed));
+    }
+
+    /**
+     * Passes the given update to the state and runs it.
+     */
+    private void update(int slide, int total, Boolean running) {
+        state.onUpdate(slide, total, running, PresentationState.UNKNOWN);
+        ShadowLooper.idleMainLooper();
+    }
+
+    /**
+     * Verify that the state is unknown until the first update was received.
+     */
+    @Test
+    public void unknownInitially() {
+        assertThat(state.getSlide(), is(PresentationState.UNKNOWN));
+        assertThat(state.getTotal(), is(PresentationState.UNKNOWN));
+        assertThat(state.isRunning(), is(false));
+        assertThat(state.isPositionKnown(), is(false));
+    }
+
+    /**
+     * Verify that a full update changes all fields.
+     */
+    @Test
+    public void fullUpdate() {
+        update(0, 12, true);
+
+        assertThat(state.getSlide(), is(0));
+        assertThat(state.getTotal(), is(12));
+        assertThat(state.isRunning(), is(true));
+        assertThat(state.isPositionKnown(), is(true));
+        assertThat(changes, is(Arrays.asList(PresentationState.SLIDE
+                | PresentationState.TOTAL | PresentationState.RUNNING)));
+    }
+
+    /**
+     * Verify that delta updates only change and report the fields they contain.
+     */
+    @Test
+    public void deltaUpdates() {
+        update(0, 12, true);
+        changes.clear();
+
+        update(1, PresentationState.UNKNOWN, null);
+        assertThat(state.getSlide(), is(1));
+        assertThat(state.getTotal(), is(12));
+        assertThat(state.isRunning(), is(true));
+
+        update(PresentationState.UNKNOWN, PresentationState.UNKNOWN, false);
+        assertThat(state.getSlide(), is(1));
+        assertThat(state.isRunning(), is(false));
+
+        update(PresentationState.UNKNOWN, 13, null);
+        assertThat(state.getTotal(), is(13));
+
+        assertThat(changes, is(Arrays.asList(PresentationState.SLIDE,
+                PresentationState.RUNNING, PresentationState.TOTAL)));
+    }
+
+    /**
+     * Verify that the start time is only reported if it changed.
+     */
+    @Test
+    public void startTimeUpdates() {
+        state.onUpdate(0, 12, true, 1571000000000L);
+        state.onUpdate(1, PresentationState.UNKNOWN, null, 1571000000000L);
+        state.onUpdate(0, PresentationState.UNKNOWN, null, 1571000600000L);
+        ShadowLooper.idleMainLooper();
+
+        assertThat(state.getStartTime(), is(1571000600000L));
+        assertThat(changes, is(Arrays.asList(PresentationState.SLIDE | PresentationState.TOTAL
+                        | PresentationState.RUNNING | PresentationState.START_TIME,
+                PresentationState.SLIDE,
+                PresentationState.SLIDE | PresentationState.START_TIME)));
+
+        state.clear();
+        ShadowLooper.idleMainLooper();
+        assertThat(state.getStartTime(), is((long) PresentationState.UNKNOWN));
+    }
+
+    /**
+     * Verify that updates repeating the known state do not inform the listener.
+     */
+    @Test
+    public void unchangedUpdateIgnored() {
+        update(3, 12, true);
+        update(3, 12, true);
+        update(PresentationState.UNKNOWN, PresentationState.UNKNOWN, null);
+
+        assertThat(changes.size(), is(1));
+    }
+
+    /**
+     * Verify that clearing forgets the state and reports the fields that were known.
+     */
+    @Test
+    public void clear() {
+        update(3, PresentationState.UNKNOWN, null);
+        state.clear();
+        ShadowLooper.idleMainLooper();
+
+        assertThat(state.getSlide(), is(PresentationState.UNKNOWN));
+        assertThat(changes, is(Arrays.asList(PresentationState.SLIDE,
+                PresentationState.SLIDE)));
+
+        // Clearing an unknown state changes nothing
+        state.clear();
+        ShadowLooper.idleMainLooper();
+        assertThat(changes.size(), is(2));
+    }
+}
@@ -0,0 +1,290 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Presenter. Android Client to remote control a presentation.          *
+ *  Copyright (C) 2019 Felix Wohlfrom                                    *
+ *                                                                       *
+ *  This program is free software: you can redistribute it and/or modify *
+ *  it under the terms of the GNU General Public License as published by *
+ *  the Free Software Foundation, either version 3 of the License, or    *
+ *  (at your option) any later version.                                  *
+ *                                                                       *
+ *  This program is distributed in the hope that it will be useful,      *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of       *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the        *
+ *  GNU General Public License for more details.                         *
+ *                                                                       *
+ *  You should have received a copy of the GNU General Public License    *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.*
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+
+package de.wohlfrom.presenter.connectors;
+
+import android.graphics.Bitmap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.hasItem;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.fail;
+
+/**
+ * These tests verify that the screen mirror composites the frame diffs replayed by a stand-in
+ * server into the screen shown by the server, recovers from lost frames and lowers the
+ * requested quality if frames queue up.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ScreenMirrorTest {
+    /** The width in px of the recorded screens */
+    private static final int SCREEN_WIDTH = 640;
+    /** The height in px of the recorded screens */
+    private static final int SCREEN_HEIGHT = 360;
+    /** The number of recorded screens */
+    private static final int SCREEN_COUNT = 6;
+    /** The maximum time in ms to wait for a state change */
+    private static final int STATE_CHANGE_TIME = 5000;
+
+    private MirrorReplayServer server;
+    private TestRemoteControl control;
+    private ExecutorService decoder;
+    private ScreenMirror mirror;
+    private Set<Bitmap> shownBitmaps;
+
+    /** Notified whenever the decoder finished a task, guards {@link #decodedTasks} */
+    private final Object decoderProgress = new Object();
+    private int decodedTasks = 0;
+
+    /**
+     * Connects a remote control to a server replaying the recorded screens and creates a
+     * mirror for it.
+     */
+    @Before
+    public void connect() throws IOException, InterruptedException {
+        server = new MirrorReplayServer(recordScreens(), SCREEN_WIDTH, SCREEN_HEIGHT);
+        control = new TestRemoteControl();
+        control.connect(server.getClientTransport());
+        server.start();
+        assertThat(control.awaitConnected(STATE_CHANGE_TIME), is(true));
+
+        decoder = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>()) {
+            @Override
+            protected void afterExecute(Runnable task, Throwable throwable) {
+                synchronized (decoderProgress) {
+                    decodedTasks++;
+                    decoderProgress.notifyAll();
+                }
+            }
+        };
+        mirror = new ScreenMirror(decoder);
+        mirror.setRequester(new ScreenMirror.MirrorRequester() {
+            @Override
+            public void startMirror(int width, int frameRate) {
+                control.startMirror(width, frameRate);
+            }
+
+            @Override
+            public void stopMirror() {
+                control.stopMirror();
+            }
+
+            @Override
+            public void requestKeyFrame() {
+                control.requestKeyFrame();
+            }
+        });
+        shownBitmaps = Collections.newSetFromMap(new IdentityHashMap<>());
+        mirror.setListener(shownBitmaps::add);
+        control.setScreenMirror(mirror);
+    }
+
+    /**
+     * Stops the mirror and the connection.
+     */
+    @After
+    public void disconnect() {
+        mirror.shutdown();
+        control.stop();
+        server.close();
+    }
+
+    /**
+     * Creates the recorded screens. Every screen adds a small rectangle to the previous one,
+     * like a slide build.
+     *
+     * @return The screens
+     */
+    private static int[][] recordScreens() {
+        int[][] screens = new int[SCREEN_COUNT][];
+        screens[0] = new int[SCREEN_WIDTH * SCREEN_HEIGHT];
+        for (int y = 0; y < SCREEN_HEIGHT; y++) {
+            for (int x = 0; x < SCREEN_WIDTH; x++) {
+                screens[0][y * SCREEN_WIDTH + x] = 0xff000000 | (x / 3) << 16 | (y / 2) << 8 | 0x80;
+            }
+        }
+
+        for (int i = 1; i < SCREEN_COUNT; i++) {
+            screens[i] = screens[i - 1].clone();
+            int left = 60 + 90 * i;
+            int top = 40 + 50 * i;
+            for (int y = top; y < top + 40; y++) {
+                Arrays.fill(screens[i], y * SCREEN_WIDTH + left, y * SCREEN_WIDTH + left + 40,
+                        0xff000000 | (40 * i) << 16 | 0xff00);
+            }
+        }
+        return screens;
+    }
+
+    /**
+     * Waits until the mirror shows the screen last sent by the server. The frames posted by
+     * the decoder are processed whenever it finished a task.
+     *
+     * @throws InterruptedException If waiting failed
+     */
+    private void waitForServerScreen() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + STATE_CHANGE_TIME;
+        while (true) {
+            int tasks;
+            synchronized (decoderProgress) {
+                tasks = decodedTasks;
+            }
+
+            ShadowLooper.idleMainLooper();
+            if (showsServerScreen()) {
+                return;
+            }
+
+            synchronized (decoderProgress) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    fail("Mirror does not show the server screen");
+                }
+                if (decodedTasks == tasks) {
+                    decoderProgress.wait(remaining);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns if the mirror shows the screen last sent by the server.
+     *
+     * @return If the shown pixels equal the sent pixels
+     */
+    private boolean showsServerScreen() {
+        Bitmap frame = mirror.getFrame();
+        if (frame == null || frame.getWidth() != server.getWidth()) {
+            return false;
+        }
+
+        int[] pixels = new int[frame.getWidth() * frame.getHeight()];
+        frame.getPixels(pixels, 0, frame.getWidth(), 0, 0, frame.getWidth(), frame.getHeight());
+        return Arrays.equals(pixels, server.getExpectedScreen());
+    }
+
+    /**
+     * Verify that the key frame and the following diffs are composited into the screen shown
+     * by the server and that diffs only contain the changed tiles.
+     */
+    @Test
+    public void diffsAreComposited() throws InterruptedException {
+        mirror.start();
+        waitForServerScreen();
+        assertThat(server.getWidth(), is(MirrorController.WIDTHS[MirrorController.START_LEVEL]));
+
+        while (server.sendNextScreen()) {
+            waitForServerScreen();
+        }
+
+        List<Integer> sentTiles = server.getSentTiles();
+        assertThat(sentTiles.size(), is(SCREEN_COUNT));
+        for (int tiles : sentTiles.subList(1, sentTiles.size())) {
+            assertThat(tiles, lessThan(sentTiles.get(0) / 10));
+        }
+        assertThat(server.getRequests(), is(Collections.singletonList(
+                "start:" + MirrorController.WIDTHS[MirrorController.START_LEVEL]
+                        + ":" + MirrorController.FRAME_RATES[MirrorController.START_LEVEL])));
+    }
+
+    /**
+     * Verify that the mirror does not allocate a new bitmap for every frame.
+     */
+    @Test
+    public void bitmapsAreReused() throws InterruptedException {
+        mirror.start();
+        waitForServerScreen();
+        while (server.sendNextScreen()) {
+            waitForServerScreen();
+        }
+
+        assertThat(shownBitmaps.size(), lessThanOrEqualTo(2));
+    }
+
+    /**
+     * Verify that a lost frame leads to a key frame request, after which the mirror shows the
+     * server screen again.
+     */
+    @Test
+    public void lostFrameRequestsKeyFrame() throws InterruptedException {
+        mirror.start();
+        waitForServerScreen();
+
+        server.loseNextScreen();
+        server.sendNextScreen();
+        assertThat(server.awaitRequest("key", STATE_CHANGE_TIME), is(true));
+        waitForServerScreen();
+
+        List<Integer> sentTiles = server.getSentTiles();
+        assertThat(sentTiles.get(sentTiles.size() - 1), is(sentTiles.get(0)));
+    }
+
+    /**
+     * Verify that frames waiting for the decoder lower the requested quality and that the
+     * mirror continues with the lower resolution.
+     */
+    @Test
+    public void queuedFramesLowerQuality() throws InterruptedException {
+        CountDownLatch decoderBlocked = new CountDownLatch(1);
+        decoder.execute(() -> {
+            try {
+                decoderBlocked.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        mirror.start();
+        assertThat(server.awaitSentFrames(1, STATE_CHANGE_TIME), is(true));
+        for (int i = 0; i <= MirrorController.MAX_QUEUED_FRAMES; i++) {
+            server.sendNextScreen();
+        }
+
+        String lowerQuality = "start:" + MirrorController.WIDTHS[MirrorController.START_LEVEL + 1]
+                + ":" + MirrorController.FRAME_RATES[MirrorController.START_LEVEL + 1];
+        assertThat(server.awaitRequest(lowerQuality, STATE_CHANGE_TIME), is(true));
+        assertThat(mirror.getRequestedWidth(),
+                is(MirrorController.WIDTHS[MirrorController.START_LEVEL + 1]));
+
+        decoderBlocked.countDown();
+        waitForServerScreen();
+        assertThat(server.getRequests(), hasItem(lowerQuality));
+    }
+}
@@ -0,0 +1,148 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Presenter. Android Client to remote control a presentation.          *
+ *  Copyright (C) 2019 Felix Wohlfrom                                    *
+ *                                                                       *
+ *  This program is free software: you can redistribute it and/or modify *
+ *  it under the terms of the GNU General Public License as published by *
+ *  the Free Software Foundation, either version 3 of the License, or    *
+ *  (at your option) any later version.                                  *
+ *                                                                       *
+ *  This program is distributed in the hope that it will be useful,      *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of       *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the        *
+ *  GNU General Public License for more details.                         *
+ *                                                                       *
+ *  You should have received a copy of the GNU General Public License    *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.*
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+
+package de.wohlfrom.presenter.connectors;
+
+import android.os.Handler;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * These tests verify that the session features send their requests using the connection
+ * that is currently active and hide the features the server does not support.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class SessionFeaturesTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private RecordingControl first;
+    private RecordingControl second;
+    private RemoteControl active;
+    private SessionFeatures features;
+
+    /**
+     * A connection that records the requests instead of sending them.
+     */
+    private static class RecordingControl extends RemoteControl {
+        private final List<Long> timeRequests = new ArrayList<>();
+        private final List<Integer> thumbnailRequests = new ArrayList<>();
+
+        RecordingControl() {
+            super(new Handler());
+        }
+
+        @Override
+        public void sendTimeRequest(long origin) {
+            timeRequests.add(origin);
+        }
+
+        @Override
+        public void requestThumbnail(int slide) {
+            thumbnailRequests.add(slide);
+        }
+    }
+
+    /**
+     * Creates the features using the first connection.
+     */
+    @Before
+    public void createFeatures() {
+        first = new RecordingControl();
+        second = new RecordingControl();
+        active = first;
+        features = new SessionFeatures(folder.getRoot(), () -> active);
+    }
+
+    /**
+     * Releases the features.
+     */
+    @After
+    public void shutdown() {
+        features.shutdown();
+    }
+
+    /**
+     * Verify that the requests are sent using the connection that is active at that time.
+     */
+    @Test
+    public void requestsFollowActiveControl() {
+        features.sendTimeRequest(1);
+        active = second;
+        features.sendTimeRequest(2);
+
+        assertThat(first.timeRequests.size(), is(1));
+        assertThat(first.timeRequests.get(0), is(1L));
+        assertThat(second.timeRequests.size(), is(1));
+        assertThat(second.timeRequests.get(0), is(2L));
+    }
+
+    /**
+     * Verify that the thumbnail prefetcher requests its thumbnails using the active connection.
+     */
+    @Test
+    public void prefetchUsesActiveControl() {
+        active = second;
+        features.getThumbnailCache().setCurrentSlide(0);
+
+        assertThat(first.thumbnailRequests.isEmpty(), is(true));
+        assertThat(second.thumbnailRequests.isEmpty(), is(false));
+    }
+
+    /**
+     * Verify that requests are dropped if there is no connection.
+     */
+    @Test
+    public void noControlDropsRequests() {
+        active = null;
+
+        features.sendTimeRequest(1);
+        features.startMirror(100, 10);
+        features.sendEncoded("frame");
+        assertThat(features.encodeCommand(Command.NEXT_SLIDE), is(nullValue()));
+        assertThat(features.getQueuedFrames(), is(0));
+        assertThat(features.getInkStreamer(), is(nullValue()));
+        assertThat(features.getSynchronizedClock(), is(nullValue()));
+    }
+
+    /**
+     * Verify that features the connected server does not support are hidden and that the
+     * clock is not started for such a server.
+     */
+    @Test
+    public void unsupportedFeaturesAreHidden() {
+        features.onConnected();
+
+        assertThat(features.getInkStreamer(), is(nullValue()));
+        assertThat(features.getSynchronizedClock(), is(nullValue()));
+        assertThat(first.timeRequests.isEmpty(), is(true));
+    }
+}
@@ -0,0 +1,179 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Presenter. Android Client to remote control a presentation.          *
+ *  Copyright (C) 2019 Felix Wohlfrom                                    *
+ *                                                                       *
+ *  This program is free software: you can redistribute it and/or modify *
+ *  it under the terms of the GNU General Public License as published by *
+ *  the Free Software Foundation, either version 3 of the License, or    *
+ *  (at your option) any later version.                                  *
+ *                                                                       *
+ *  This program is distributed in the hope that it will be useful,      *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of       *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the        *
+ *  GNU General Public License for more details.                         *
+ *                                                                       *
+ *  You should have received a copy of the GNU General Public License    *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.*
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+
+package de.wohlfrom.presenter.connectors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+/**
+ * These tests verify that the slide asset store keeps the thumbnails across restarts, replaces
+ * older thumbnails and stays within its maximum size.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class SlideAssetStoreTest {
+    /** The deck used for our tests. */
+    private static final String DECK = "0123456789abcdef";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+    private SlideAssetStore store;
+
+    /**
+     * Creates a new store in a temporary folder.
+     */
+    @Before
+    public void initStore() {
+        file = new File(folder.getRoot(), SlideAssetStore.DEFAULT_FILE_NAME);
+        store = new SlideAssetStore(file);
+    }
+
+    /**
+     * Closes the store.
+     */
+    @After
+    public void closeStore() {
+        store.close();
+    }
+
+    /**
+     * Creates the data of a thumbnail.
+     *
+     * @param size The size of the data
+     * @param content The value of all bytes
+     * @return The data
+     */
+    private static byte[] thumbnail(int size, int content) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) content;
+        }
+        return data;
+    }
+
+    /**
+     * Verify that stored thumbnails can be read again, also after the store was reopened.
+     */
+    @Test
+    public void thumbnailsArePersisted() {
+        assertThat(store.contains(DECK, 1), is(false));
+        store.put(DECK, 1, thumbnail(100, 1));
+        store.put(DECK, 2, thumbnail(200, 2));
+        store.put("otherDeck", 1, thumbnail(50, 3));
+
+        assertThat(store.contains(DECK, 1), is(true));
+        assertThat(store.get(DECK, 2), is(thumbnail(200, 2)));
+        assertThat(store.get(DECK, 3), is(nullValue()));
+        store.close();
+
+        store = new SlideAssetStore(file);
+        assertThat(store.open(), is(true));
+        assertThat(store.getEntries(), is(3));
+        assertThat(store.get(DECK, 1), is(thumbnail(100, 1)));
+        assertThat(store.get(DECK, 2), is(thumbnail(200, 2)));
+        assertThat(store.get("otherDeck", 1), is(thumbnail(50, 3)));
+    }
+
+    /**
+     * Verify that a thumbnail stored again replaces the older one.
+     */
+    @Test
+    public void thumbnailIsReplaced() {
+        store.put(DECK, 1, thumbnail(100, 1));
+        store.put(DECK, 1, thumbnail(150, 2));
+
+        assertThat(store.getEntries(), is(1));
+        assertThat(store.get(DECK, 1), is(thumbnail(150, 2)));
+    }
+
+    /**
+     * Verify that the file is compacted once it grows above its maximum size and that the
+     * most recently used thumbnails are kept.
+     */
+    @Test
+    public void sizeIsBounded() {
+        store = new SlideAssetStore(file, 10000);
+        for (int i = 0; i < 20; i++) {
+            store.put(DECK, i, thumbnail(1000, i));
+
+            // Keep using the first slide
+            assertThat(store.get(DECK, 0), is(thumbnail(1000, 0)));
+            assertThat(store.getSize(), is(lessThanOrEqualTo(10000L)));
+        }
+
+        assertThat(store.getCompactions(), is(greaterThan(0)));
+        assertThat(file.length(), is(store.getSize()));
+        assertThat(store.get(DECK, 19), is(thumbnail(1000, 19)));
+        assertThat(store.contains(DECK, 1), is(false));
+    }
+
+    /**
+     * Verify that thumbnails larger than half of the maximum size are not stored.
+     */
+    @Test
+    public void largeThumbnailsAreIgnored() {
+        store = new SlideAssetStore(file, 10000);
+        store.put(DECK, 1, thumbnail(6000, 1));
+
+        assertThat(store.contains(DECK, 1), is(false));
+        assertThat(store.getSize(), is(0L));
+    }
+
+    /**
+     * Verify that an incomplete record at the end of the file is dropped.
+     *
+     * @throws IOException If the file could not be written
+     */
+    @Test
+    public void incompleteRecordIsDropped() throws IOException {
+        store.put(DECK, 1, thumbnail(100, 1));
+        long size = store.getSize();
+        store.close();
+
+        // Append the start of another record
+        try (FileOutputStream output = new FileOutputStream(file, true)) {
+            output.write(new byte[] {0, 4, 'd', 'e', 'c', 'k', 0, 0});
+        }
+
+        store = new SlideAssetStore(file);
+        assertThat(store.open(), is(true));
+        assertThat(store.getEntries(), is(1));
+        assertThat(store.getSize(), is(size));
+        assertThat(file.length(), is(size));
+
+        store.put(DECK, 2, thumbnail(100, 2));
+        assertThat(store.get(DECK, 2), is(thumbnail(100, 2)));
+    }
+}
@@ -0,0 +1,198 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Presenter. Android Client to remote control a presentation.          *
+ *  Copyright (C) 2019 Felix Wohlfrom                                    *
+ *                                                                       *
+ *  This program is free software: you can redistribute it and/or modify *
+ *  it under the terms of the GNU General Public License as published by *
+ *  the Free Software Foundation, either version 3 of the License, or    *
+ *  (at your option) any later version.                                  *
+ *                                                                       *
+ *  This program is distributed in the hope that it will be useful,      *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of       *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the        *
+ *  GNU General Public License for more details.                         *
+ *                                                                       *
+ *  You should have received a copy of the GNU General Public License    *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.*
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+
+package de.wohlfrom.presenter.connectors;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.lessThan;
+
+/**
+ * These tests verify that the speaker notes store applies full notes and edits, requests the
+ * full notes if its revision does not match and keeps the notes of several presentations.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class SpeakerNotesStoreTest {
+    /** The content hash of our test presentation. */
+    private static final String DECK = "deck";
+
+    private final List<String> notified = new ArrayList<>();
+    private final List<String> requested = new ArrayList<>();
+    private SpeakerNotesStore store;
+
+    /**
+     * Creates a store that records the notified notes and requests.
+     */
+    @Before
+    public void initStore() {
+        notified.clear();
+        requested.clear();
+        store = new SpeakerNotesStore();
+        store.setListener((slide, notes) -> notified.add(slide + ":" + notes));
+        store.setRequester((slide, deck, revision) ->
+                requested.add(slide + ":" + deck + ":" + revision));
+    }
+
+    /**
+     * Passes the given full notes to the store and runs the update.
+     */
+    private void notes(int slide, int current, String deck, int revision, String text) {
+        store.onNotes(slide, current, deck, revision, text);
+        ShadowLooper.idleMainLooper();
+    }
+
+    /**
+     * Passes the given edits to the store and runs the update.
+     */
+    private void diff(int slide, int current, int base, int revision,
+                      SpeakerNotesStore.Edit... edits) {
+        store.onNotesDiff(slide, current, DECK, base, revision, Arrays.asList(edits));
+        ShadowLooper.idleMainLooper();
+    }
+
+    /**
+     * Verify that full notes of the current slide are stored and shown.
+     */
+    @Test
+    public void fullNotesShown() {
+        notes(2, 2, DECK, 1, "Hello");
+
+        assertThat(store.getCurrentSlide(), is(2));
+        assertThat(store.get(2), is("Hello"));
+        assertThat(notified, is(Collections.singletonList("2:Hello")));
+        assertThat(requested.isEmpty(), is(true));
+    }
+
+    /**
+     * Verify that edits are applied to the stored notes and transfer less than the notes.
+     */
+    @Test
+    public void editsApplied() {
+        notes(2, 2, DECK, 1, "Hello world, this are long speaker notes.");
+        diff(2, -1, 1, 2, new SpeakerNotesStore.Edit(13, 8, "these"),
+                new SpeakerNotesStore.Edit(5, 6, ""));
+
+        assertThat(store.get(2), is("Hello, these long speaker notes."));
+        assertThat(notified.get(1), is("2:Hello, these long speaker notes."));
+        assertThat(store.getTransferRatio(), lessThan(0.7));
+
+        // Edits of other slides are not shown
+        notes(3, -1, DECK, 1, "Other");
+        diff(3, -1, 1, 2, new SpeakerNotesStore.Edit(0, 0, "An"));
+        assertThat(store.get(3), is("AnOther"));
+        assertThat(notified.size(), is(2));
+    }
+
+    /**
+     * Verify that switching to a slide whose notes are stored needs no transfer and switching
+     * to an unknown slide requests its notes.
+     */
+    @Test
+    public void slideChange() {
+        notes(2, 2, DECK, 1, "Two");
+        notes(3, -1, DECK, 4, "Three");
+
+        diff(3, 3, 4, 4);
+        assertThat(notified.get(1), is("3:Three"));
+        assertThat(requested.isEmpty(), is(true));
+
+        diff(5, 5, 1, 1);
+        assertThat(notified.get(2), is("5:null"));
+        assertThat(requested, is(Collections.singletonList("5:" + DECK + ":-1")));
+    }
+
+    /**
+     * Verify that edits based on another revision are not applied and the full notes are
+     * requested only once.
+     */
+    @Test
+    public void revisionMismatchRequestsFullNotes() {
+        notes(2, 2, DECK, 1, "Hello");
+
+        diff(2, -1, 2, 3, new SpeakerNotesStore.Edit(0, 5, "Bye"));
+        diff(2, -1, 3, 4, new SpeakerNotesStore.Edit(0, 3, "Hi"));
+        assertThat(store.get(2), is("Hello"));
+        assertThat(requested, is(Collections.singletonList("2:" + DECK + ":1")));
+        assertThat(store.getResyncs(), is(1));
+
+        notes(2, -1, DECK, 4, "Hi");
+        assertThat(store.get(2), is("Hi"));
+        assertThat(notified.get(1), is("2:Hi"));
+    }
+
+    /**
+     * Verify that edits outside of the notes request the full notes.
+     */
+    @Test
+    public void invalidEditRequestsFullNotes() {
+        notes(2, 2, DECK, 1, "Hello");
+        diff(2, -1, 1, 2, new SpeakerNotesStore.Edit(3, 5, ""));
+
+        assertThat(store.get(2), is("Hello"));
+        assertThat(requested, is(Collections.singletonList("2:" + DECK + ":1")));
+    }
+
+    /**
+     * Verify that the notes of recently shown presentations are kept.
+     */
+    @Test
+    public void notesKeptPerDeck() {
+        notes(1, 1, "first", 1, "First");
+        notes(1, 1, "second", 1, "Second");
+        assertThat(store.get(1), is("Second"));
+
+        store.onNotesDiff(1, 1, "first", 1, 1, Collections.emptyList());
+        ShadowLooper.idleMainLooper();
+        assertThat(store.get(1), is("First"));
+        assertThat(requested.isEmpty(), is(true));
+
+        // The least recently shown presentation is dropped
+        for (int i = 0; i < SpeakerNotesStore.MAX_DECKS; i++) {
+            notes(1, 1, "deck" + i, 1, "Deck " + i);
+        }
+        store.onNotesDiff(1, 1, "first", 1, 1, Collections.emptyList());
+        ShadowLooper.idleMainLooper();
+        assertThat(store.get(1), is(nullValue()));
+        assertThat(requested, is(Collections.singletonList("1:first:-1")));
+    }
+
+    /**
+     * Verify that clearing removes all notes.
+     */
+    @Test
+    public void clear() {
+        notes(2, 2, DECK, 1, "Hello");
+        store.clear();
+        ShadowLooper.idleMainLooper();
+
+        assertThat(store.getCurrentSlide(), is(-1));
+        assertThat(store.get(2), is(nullValue()));
+    }
+}
@@ -0,0 +1,240 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Presenter. Android Client to remote control a presentation.          *
+ *  Copyright (C) 2019 Felix Wohlfrom                                    *
+ *                                                                       *
+ *  This program is free software: you can redistribute it and/or modify *
+ *  it under the terms of the GNU General Public License as published by *
+ *  the Free Software Foundation, either version 3 of the License, or    *
+ *  (at your option) any later version.                                  *
+ *                                                                       *
+ *  This program is distributed in the hope that it will be useful,      *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of       *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the        *
+ *  GNU General Public License for more details.                         *
+ *                                                                       *
+ *  You should have received a copy of the GNU General Public License    *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.*
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+
+package de.wohlfrom.presenter.connectors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+/**
+ * These tests verify that the stream transport writes control frames before queued bulk
+ * frames, so commands are not delayed by large transfers on the same connection.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class StreamTransportTest {
+    /** The chunk size used for our bulk transfer. */
+    private static final int CHUNK_SIZE = PayloadSender.DEFAULT_CHUNK_SIZE;
+    /** The number of chunks of our bulk transfer. */
+    private static final int CHUNK_COUNT = 64;
+    /** The time in ns our throttled link needs to write a single chunk. */
+    private static final long CHUNK_WRITE_TIME = TimeUnit.MILLISECONDS.toNanos(5);
+    /** The maximum time in ms to wait for frames to be written */
+    private static final int WRITE_TIMEOUT = 5000;
+    /** The command frame sent during the transfer. */
+    private static final String COMMAND = "{ \"type\": \"command\", \"data\": \"nextSlide\"}";
+
+    /**
+     * A frame written to the link.
+     */
+    private static class WrittenFrame {
+        final long time;
+        final boolean command;
+
+        WrittenFrame(long time, boolean command) {
+            this.time = time;
+            this.command = command;
+        }
+    }
+
+    /**
+     * Output stream that simulates a slow link, writing a chunk takes
+     * {@link #CHUNK_WRITE_TIME}.
+     */
+    private class ThrottledOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            LockSupport.parkNanos(CHUNK_WRITE_TIME * len / CHUNK_SIZE);
+            String frame = new String(b, off, len);
+            synchronized (written) {
+                written.add(new WrittenFrame(System.nanoTime(), frame.startsWith(COMMAND)));
+                written.notifyAll();
+            }
+        }
+    }
+
+    private final List<WrittenFrame> written = new ArrayList<>();
+    private StreamTransport transport;
+
+    /**
+     * Opens a transport writing to a throttled link.
+     */
+    @Before
+    public void openTransport() throws Exception {
+        written.clear();
+        transport = new StreamTransport() {
+            @Override
+            protected void connect() {
+            }
+
+            @Override
+            protected InputStream getInputStream() {
+                return new ByteArrayInputStream(new byte[0]);
+            }
+
+            @Override
+            protected OutputStream getOutputStream() {
+                return new ThrottledOutputStream();
+            }
+
+            @Override
+            protected void closeConnection() {
+            }
+
+            @Override
+            public String getName() {
+                return "throttled";
+            }
+        };
+        transport.open();
+    }
+
+    /**
+     * Closes the transport.
+     */
+    @After
+    public void closeTransport() {
+        transport.close();
+    }
+
+    /**
+     * Waits until the given number of frames was written.
+     *
+     * @param count The number of frames
+     */
+    private void waitForFrames(int count) throws InterruptedException {
+        long timeout = System.currentTimeMillis() + WRITE_TIMEOUT;
+        synchronized (written) {
+            while (written.size() < count && System.currentTimeMillis() < timeout) {
+                written.wait(WRITE_TIMEOUT);
+            }
+            assertThat(written.size() >= count, is(true));
+        }
+    }
+
+    /**
+     * Starts a bulk transfer of {@link #CHUNK_COUNT} chunks, all queued at once.
+     */
+    private void startBulkTransfer() {
+        StringBuilder payload = new StringBuilder();
+        for (int i = 0; i < CHUNK_COUNT * CHUNK_SIZE; i++) {
+            payload.append('x');
+        }
+        PayloadSender sender = new PayloadSender((stream, offset, length, chunk) ->
+                transport.send(chunk, Transport.Priority.BULK, null),
+                CHUNK_SIZE, payload.length());
+        sender.send(payload.toString());
+    }
+
+    /**
+     * Verify that a command sent during a large transfer only waits for the chunk that is
+     * currently written, not for the whole transfer.
+     */
+    @Test
+    public void commandLatencyBoundedDuringTransfer() throws InterruptedException {
+        startBulkTransfer();
+        waitForFrames(4);
+
+        long sent = System.nanoTime();
+        transport.send(COMMAND);
+        waitForFrames(CHUNK_COUNT + 1);
+
+        int commandIndex = -1;
+        int chunksBeforeCommand = 0;
+        synchronized (written) {
+            for (int i = 0; i < written.size(); i++) {
+                WrittenFrame frame = written.get(i);
+                if (frame.command) {
+                    commandIndex = i;
+                    break;
+                } else if (frame.time > sent) {
+                    chunksBeforeCommand++;
+                }
+            }
+
+            // At most the chunk being written when the command was sent delays the command
+            assertThat(commandIndex, greaterThan(0));
+            assertThat(chunksBeforeCommand, lessThanOrEqualTo(1));
+
+            // The transfer was still running, so the command really preempted the chunks
+            assertThat(written.size() - commandIndex - 1, greaterThan(CHUNK_COUNT / 2));
+
+            // The latency is bounded by the write time of a few chunks, while waiting for the
+            // whole transfer would take more than 30 chunks
+            long latency = written.get(commandIndex).time - sent;
+            assertThat(latency, lessThan(10 * CHUNK_WRITE_TIME));
+        }
+    }
+
+    /**
+     * Verify that queued bulk frames are not reported as queued frames, so the pointer
+     * streaming does not back off during transfers.
+     */
+    @Test
+    public void bulkFramesNotCountedAsQueued() throws InterruptedException {
+        startBulkTransfer();
+        assertThat(transport.getQueuedFrames(), is(0));
+
+        waitForFrames(1);
+        transport.send(COMMAND);
+        transport.send(COMMAND);
+        assertThat(transport.getQueuedFrames(), lessThanOrEqualTo(2));
+
+        waitForFrames(CHUNK_COUNT + 2);
+        assertThat(transport.getQueuedFrames(), is(0));
+    }
+
+    /**
+     * Verify that frames of the same priority keep their order.
+     */
+    @Test
+    public void framesOfSamePriorityInOrder() throws InterruptedException {
+        for (int i = 0; i < 10; i++) {
+            transport.send(COMMAND);
+        }
+        startBulkTransfer();
+        waitForFrames(CHUNK_COUNT + 10);
+
+        synchronized (written) {
+            for (int i = 0; i < written.size(); i++) {
+                assertThat(written.get(i).command, is(i < 10));
+            }
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Presenter. Android Client to remote control a presentation.          *
+ *  Copyright (C) 2019 Felix Wohlfrom                                    *
+ *                                                                       *
+ *  This program is free software: you can redistribute it and/or modify *
+ *  it under the terms of the GNU General Public License as published by *
+ *  the Free Software Foundation, either version 3 of the License, or    *
+ *  (at your option) any later version.                                  *
+ *                                                                       *
+ *  This program is distributed in the hope that it will be useful,      *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of       *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the        *
+ *  GNU General Public License for more details.                         *
+ *                                                                       *
+ *  You should have received a copy of the GNU General Public License    *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.*
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+
+package de.wohlfrom.presenter.connectors;
+
+import android.os.Handler;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+/**
+ * These tests verify that the synchronized clock follows the clock of a stand-in server with
+ * injected delays, within the reported accuracy.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class SynchronizedClockTest {
+    /** The offset of the server clock used by our tests, about one hour. */
+    private static final long OFFSET = 3600123456L;
+
+    private SynchronizedClock clock;
+    private int updates;
+
+    /**
+     * Resets the counted updates.
+     */
+    @Before
+    public void init() {
+        updates = 0;
+    }
+
+    /**
+     * Stops the clock.
+     */
+    @After
+    public void shutdown() {
+        clock.shutdown();
+    }
+
+    /**
+     * Creates a clock synchronizing with the given server.
+     *
+     * @param server The server to synchronize with
+     */
+    private void startClock(ClockSyncServer server) {
+        clock = new SynchronizedClock(server);
+        clock.setListener(updated -> updates++);
+        server.setClock(clock);
+        clock.start();
+    }
+
+    /**
+     * Advances the main looper by the given time.
+     *
+     * @param time The time in ms to advance
+     */
+    private void advance(long time) {
+        ShadowLooper.idleMainLooper(time, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the error of the estimated server time.
+     *
+     * @param server The server synchronized with
+     * @return The absolute error in us
+     */
+    private long error(ClockSyncServer server) {
+        long now = SynchronizedClock.localTime();
+        return Math.abs(clock.toServerTime(now) - server.serverTime(now));
+    }
+
+    /**
+     * Verify that the clock is synchronized after the first round, although most samples
+     * were delayed in one direction.
+     */
+    @Test
+    public void queueingDelaysAreFiltered() {
+        ClockSyncServer server = new ClockSyncServer(OFFSET, 0);
+        server.setDelays(5, 5, 200, 0.3);
+        startClock(server);
+        assertThat(clock.isSynchronized(), is(false));
+        assertThat(clock.getAccuracy(), is(-1L));
+
+        advance(2000);
+        assertThat(server.getRequests(), is(SynchronizedClock.SAMPLES_PER_ROUND));
+        assertThat(clock.isSynchronized(), is(true));
+        assertThat(updates, is(1));
+        assertThat(clock.getAccuracy(), lessThanOrEqualTo(5000L));
+        assertThat(error(server), lessThan(100L));
+        assertThat(Math.abs(clock.getOffset() - OFFSET), lessThan(100L));
+    }
+
+    /**
+     * Verify that the error caused by asymmetric delays stays within the reported accuracy.
+     */
+    @Test
+    public void asymmetricDelaysWithinAccuracy() {
+        ClockSyncServer server = new ClockSyncServer(OFFSET, 0);
+        server.setDelays(9, 1, 0, 0);
+        startClock(server);
+
+        advance(2000);
+        assertThat(clock.getAccuracy(), lessThanOrEqualTo(5000L));
+        assertThat(error(server), lessThanOrEqualTo(clock.getAccuracy()));
+    }
+
+    /**
+     * Verify that the drift of the server clock is estimated, so the offset is still correct
+     * right before the next round.
+     */
+    @Test
+    public void driftIsEstimated() {
+        ClockSyncServer server = new ClockSyncServer(OFFSET, 200);
+        server.setDelays(5, 5, 200, 0.3);
+        startClock(server);
+
+        // Without drift estimation, the error would grow by 6 ms per round
+        advance(SynchronizedClock.MAX_ROUNDS * SynchronizedClock.ROUND_INTERVAL - 10);
+        assertThat(updates, is(SynchronizedClock.MAX_ROUNDS));
+        assertThat(clock.getDrift(), closeTo(200, 5));
+        assertThat(error(server), lessThan(500L));
+
+        // Old rounds are replaced by new ones
+        advance(3 * SynchronizedClock.ROUND_INTERVAL);
+        assertThat(clock.getDrift(), closeTo(200, 5));
+        assertThat(error(server), lessThan(500L));
+    }
+
+    /**
+     * Verify that a handler message can be scheduled at a time of the server clock.
+     */
+    @Test
+    public void scheduleAtServerTime() {
+        ClockSyncServer server = new ClockSyncServer(OFFSET, 100);
+        server.setDelays(5, 5, 0, 0);
+        startClock(server);
+        advance(3 * SynchronizedClock.ROUND_INTERVAL);
+
+        long target = clock.currentTimeMillis() + 10000;
+        long[] fired = new long[1];
+        new Handler().postAtTime(
+                () -> fired[0] = server.serverTime(SynchronizedClock.localTime()) / 1000,
+                clock.toUptimeMillis(target));
+
+        advance(20000);
+        assertThat(Math.abs(fired[0] - target), lessThanOrEqualTo(1L));
+    }
+
+    /**
+     * Verify that stopping drops the estimate and no more requests are sent.
+     */
+    @Test
+    public void stopDropsEstimate() {
+        ClockSyncServer server = new ClockSyncServer(OFFSET, 0);
+        server.setDelays(5, 5, 0, 0);
+        startClock(server);
+        advance(2000);
+        assertThat(clock.isSynchronized(), is(true));
+
+        clock.stop();
+        assertThat(clock.isSynchronized(), is(false));
+        assertThat(clock.getOffset(), is(0L));
+
+        advance(3 * SynchronizedClock.ROUND_INTERVAL);
+        assertThat(server.getRequests(), is(SynchronizedClock.SAMPLES_PER_ROUND));
+        assertThat(clock.isSynchronized(), is(false));
+    }
+
+    /**
+     * Verify that responses arriving after their round are not used.
+     */
+    @Test
+    public void lateResponsesRejected() {
+        ClockSyncServer server = new ClockSyncServer(OFFSET, 0);
+        server.setDelays(5, 5000, 0, 0);
+        startClock(server);
+
+        advance(SynchronizedClock.ROUND_INTERVAL / 2);
+        assertThat(clock.isSynchronized(), is(false));
+        assertThat(clock.getSamples(), is(0));
+        assertThat(updates, is(0));
+    }
+}
@@ -0,0 +1,159 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Presenter. Android Client to remote control a presentation.          *
+ *  Copyright (C) 2019 Felix Wohlfrom                                    *
+ *                                                                       *
+ *  This program is free software: you can redistribute it and/or modify *
+ *  it under the terms of the GNU General Public License as published by *
+ *  the Free Software Foundation, either version 3 of the License, or    *
+ *  (at your option) any later version.                                  *
+ *                                                                       *
+ *  This program is distributed in the hope that it will be useful,      *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of       *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the        *
+ *  GNU General Public License for more details.                         *
+ *                                                                       *
+ *  You should have received a copy of the GNU General Public License    *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.*
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+
+package de.wohlfrom.presenter.connectors;
+
+import android.os.Handler;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A remote control that signals its connection events, heartbeat responses and acknowledged
+ * commands, so tests can wait for them instead of polling the state of the control.
+ * Listeners set by the code under test are still informed.
+ */
+class TestRemoteControl extends RemoteControl {
+    private final CountDownLatch mConnected = new CountDownLatch(1);
+    private final CountDownLatch mConnectionLost = new CountDownLatch(1);
+    private volatile HeartbeatListener mHeartbeatDelegate;
+    private volatile AckListener mAckDelegate;
+    private int mHeartbeats = 0;
+    private int mAcks = 0;
+
+    /**
+     * Creates the control, using a handler on the main looper.
+     */
+    TestRemoteControl() {
+        super(new Handler());
+
+        super.setHeartbeatListener((control, roundTripTime) -> {
+            HeartbeatListener listener = mHeartbeatDelegate;
+            if (listener != null) {
+                listener.onHeartbeat(control, roundTripTime);
+            }
+            synchronized (this) {
+                mHeartbeats++;
+                notifyAll();
+            }
+        });
+        super.setAckListener((control, sequenceNumber) -> {
+            AckListener listener = mAckDelegate;
+            if (listener != null) {
+                listener.onAck(control, sequenceNumber);
+            }
+            synchronized (this) {
+                mAcks++;
+                notifyAll();
+            }
+        });
+    }
+
+    @Override
+    public void setHeartbeatListener(HeartbeatListener listener) {
+        mHeartbeatDelegate = listener;
+    }
+
+    @Override
+    public void setAckListener(AckListener listener) {
+        mAckDelegate = listener;
+    }
+
+    @Override
+    protected void onConnected() {
+        mConnected.countDown();
+    }
+
+    @Override
+    protected void onConnectionLost() {
+        mConnectionLost.countDown();
+    }
+
+    /**
+     * Waits until the control is connected.
+     *
+     * @param timeout The maximum time to wait in ms
+     * @return If the control connected in time
+     * @throws InterruptedException If waiting was interrupted
+     */
+    boolean awaitConnected(long timeout) throws InterruptedException {
+        return mConnected.await(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Waits until the control recognized that the connection was lost.
+     *
+     * @param timeout The maximum time to wait in ms
+     * @return If the lost connection was recognized in time
+     * @throws InterruptedException If waiting was interrupted
+     */
+    boolean awaitConnectionLost(long timeout) throws InterruptedException {
+        return mConnectionLost.await(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the number of heartbeat responses received so far.
+     *
+     * @return The number of heartbeat responses
+     */
+    synchronized int getHeartbeats() {
+        return mHeartbeats;
+    }
+
+    /**
+     * Waits until the given number of heartbeat responses was received. The listener set by
+     * the code under test was informed about all of them once this method returns.
+     *
+     * @param count The number of heartbeat responses to wait for
+     * @param timeout The maximum time to wait in ms
+     * @return If the heartbeat responses were received in time
+     * @throws InterruptedException If waiting was interrupted
+     */
+    synchronized boolean awaitHeartbeats(int count, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (mHeartbeats < count) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return true;
+    }
+
+    /**
+     * Waits until the given number of acknowledgements was received. The listener set by the
+     * code under test was informed about all of them once this method returns.
+     *
+     * @param count The number of acknowledgements to wait for
+     * @param timeout The maximum time to wait in ms
+     * @return If the acknowledgements were received in time
+     * @throws InterruptedException If waiting was interrupted
+     */
+    synchronized boolean awaitAcks(int count, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (mAcks < count) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,154 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Presenter. Android Client to remote control a presentation.          *
+ *  Copyright (C) 2019 Felix Wohlfrom                                    *
+ *                                                                       *
+ *  This program is free software: you can redistribute it and/or modify *
+ *  it under the terms of the GNU General Public License as published by *
+ *  the Free Software Foundation, either version 3 of the License, or    *
+ *  (at your option) any later version.                                  *
+ *                                                                       *
+ *  This program is distributed in the hope that it will be useful,      *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of       *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the        *
+ *  GNU General Public License for more details.                         *
+ *                                                                       *
+ *  You should have received a copy of the GNU General Public License    *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.*
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+
+package de.wohlfrom.presenter.connectors;
+
+import android.graphics.Bitmap;
+import android.util.Base64;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * These tests verify that the thumbnail cache downscales the thumbnails, keeps its byte budget
+ * and counts its statistics properly.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ThumbnailCacheTest {
+    /** The size of a single test thumbnail in bytes. */
+    private static final int THUMBNAIL_SIZE = 100 * 100 * 4;
+
+    private final List<Integer> notifiedSlides = new ArrayList<>();
+    private ThumbnailCache cache;
+
+    /**
+     * Creates a cache for two thumbnails that decodes directly on the calling thread.
+     */
+    @Before
+    public void initCache() {
+        notifiedSlides.clear();
+        cache = new ThumbnailCache(2 * THUMBNAIL_SIZE, Runnable::run, Runnable::run);
+        cache.setListener(notifiedSlides::add);
+    }
+
+    /**
+     * Creates a thumbnail for our tests.
+     *
+     * @return A thumbnail of 100x100 px
+     */
+    private static Bitmap createThumbnail() {
+        return Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * Verify that images are downscaled by powers of two as long as they stay at least as
+     * large as the target size.
+     */
+    @Test
+    public void sampleSizeCalculation() {
+        assertThat(ThumbnailCache.calculateInSampleSize(1920, 1080, 0, 0), is(1));
+        assertThat(ThumbnailCache.calculateInSampleSize(1920, 1080, 1920, 1080), is(1));
+        assertThat(ThumbnailCache.calculateInSampleSize(1920, 1080, 960, 540), is(2));
+        assertThat(ThumbnailCache.calculateInSampleSize(1920, 1080, 540, 360), is(2));
+        assertThat(ThumbnailCache.calculateInSampleSize(1920, 1080, 200, 100), is(8));
+
+        // Both dimensions need to stay large enough
+        assertThat(ThumbnailCache.calculateInSampleSize(1920, 1080, 100, 500), is(2));
+    }
+
+    /**
+     * Verify that the least recently used thumbnails are removed once the budget is exceeded.
+     */
+    @Test
+    public void budgetIsKept() {
+        cache.put(1, createThumbnail());
+        cache.put(2, createThumbnail());
+        assertThat(cache.getSize(), is(2 * THUMBNAIL_SIZE));
+
+        // Use the first slide, so the second one is the least recently used
+        assertThat(cache.get(1), is(notNullValue()));
+        cache.put(3, createThumbnail());
+
+        assertThat(cache.getSize(), is(2 * THUMBNAIL_SIZE));
+        assertThat(cache.get(1), is(notNullValue()));
+        assertThat(cache.get(2), is(nullValue()));
+        assertThat(cache.get(3), is(notNullValue()));
+    }
+
+    /**
+     * Verify that the hit rate is calculated from the requested thumbnails.
+     */
+    @Test
+    public void hitRate() {
+        assertThat(cache.getHitRate(), is(0f));
+
+        cache.put(1, createThumbnail());
+        cache.get(1);
+        cache.get(1);
+        cache.get(1);
+        cache.get(2);
+
+        assertThat(cache.getHitRate(), is(0.75f));
+    }
+
+    /**
+     * Verify that decoded thumbnails are added to the cache and the listener is informed about
+     * them and the current slide on the main thread.
+     */
+    @Test
+    public void decodedThumbnailIsNotified() {
+        String image = Base64.encodeToString(new byte[] {1, 2, 3, 4}, Base64.DEFAULT);
+        cache.decode(3, 2, "", image);
+        assertThat(notifiedSlides.size(), is(0));
+
+        ShadowLooper.idleMainLooper();
+        assertThat(notifiedSlides.size(), is(1));
+        assertThat(notifiedSlides.get(0), is(2));
+        assertThat(cache.getCurrentSlide(), is(2));
+        assertThat(cache.get(3), is(notNullValue()));
+        assertThat(cache.getDecodeTime().getCount(), is(1L));
+    }
+
+    /**
+     * Verify that the listener is only informed if the current slide changes and that clearing
+     * the cache forgets the current slide.
+     */
+    @Test
+    public void currentSlideChanges() {
+        cache.setCurrentSlide(1);
+        cache.setCurrentSlide(1);
+        cache.setCurrentSlide(2);
+        assertThat(notifiedSlides.size(), is(2));
+
+        cache.put(1, createThumbnail());
+        cache.clear();
+        assertThat(cache.getCurrentSlide(), is(-1));
+        assertThat(cache.getSize(), is(0));
+    }
+}
@@ -0,0 +1,188 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Presenter. Android Client to remote control a presentation.          *
+ *  Copyright (C) 2019 Felix Wohlfrom                                    *
+ *                                                                       *
+ *  This program is free software: you can redistribute it and/or modify *
+ *  it under the terms of the GNU General Public License as published by *
+ *  the Free Software Foundation, either version 3 of the License, or    *
+ *  (at your option) any later version.                                  *
+ *                                                                       *
+ *  This program is distributed in the hope that it will be useful,      *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of       *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the        *
+ *  GNU General Public License for more details.                         *
+ *                                                                       *
+ *  You should have received a copy of the GNU General Public License    *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.*
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+
+package de.wohlfrom.presenter.connectors;
+
+import android.graphics.Bitmap;
+import android.util.Base64;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * These tests verify that the prefetcher requests the thumbnails around the current slide,
+ * forgets stale requests on jumps and keeps within the budget of the cache.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ThumbnailPrefetcherTest {
+    /** The size of a single test thumbnail in bytes. */
+    private static final int THUMBNAIL_SIZE = 100 * 100 * 4;
+
+    /** Some image data, the content does not matter for our tests. */
+    private static final String IMAGE =
+            Base64.encodeToString(new byte[] {1, 2, 3, 4}, Base64.DEFAULT);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<Integer> requests = new ArrayList<>();
+    private ThumbnailCache cache;
+    private ThumbnailPrefetcher prefetcher;
+
+    /**
+     * Creates a cache for ten thumbnails that decodes directly on the calling thread.
+     */
+    @Before
+    public void initPrefetcher() {
+        requests.clear();
+        cache = new ThumbnailCache(10 * THUMBNAIL_SIZE, Runnable::run, Runnable::run);
+        prefetcher = new ThumbnailPrefetcher(cache, requests::add, 3, 1);
+        cache.setPrefetcher(prefetcher);
+    }
+
+    /**
+     * Creates a thumbnail for our tests.
+     *
+     * @return A thumbnail of 100x100 px
+     */
+    private static Bitmap createThumbnail() {
+        return Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * Verify that the missing thumbnails around the current slide are requested, the following
+     * slides first, and that they are not requested twice.
+     */
+    @Test
+    public void requestsWindow() {
+        cache.put(6, createThumbnail());
+        cache.setCurrentSlide(5);
+        assertThat(requests, is(Arrays.asList(5, 7, 8, 4)));
+
+        // The next slide change only requests the newly needed slide
+        requests.clear();
+        cache.setCurrentSlide(6);
+        assertThat(requests, is(Arrays.asList(9)));
+        assertThat(prefetcher.getRequests(), is(5));
+    }
+
+    /**
+     * Verify that no slides before the first slide are requested.
+     */
+    @Test
+    public void windowStartsAtFirstSlide() {
+        cache.setCurrentSlide(0);
+        assertThat(requests, is(Arrays.asList(0, 1, 2, 3)));
+    }
+
+    /**
+     * Verify that received thumbnails are decoded and not requested again.
+     */
+    @Test
+    public void receivedThumbnailsAreCached() {
+        cache.setCurrentSlide(5);
+        cache.decode(7, 5, "", IMAGE);
+        ShadowLooper.idleMainLooper();
+        assertThat(cache.get(7), is(notNullValue()));
+
+        requests.clear();
+        cache.setCurrentSlide(4);
+        cache.setCurrentSlide(5);
+        assertThat(requests.contains(7), is(false));
+    }
+
+    /**
+     * Verify that requests are cancelled if the presenter jumps to another slide and that the
+     * thumbnails of these requests are dropped without decoding.
+     */
+    @Test
+    public void jumpCancelsStaleRequests() {
+        cache.setCurrentSlide(5);
+        cache.setCurrentSlide(20);
+        assertThat(prefetcher.getCancelled(), is(5));
+
+        // Thumbnails of the old window are dropped
+        cache.decode(7, 20, "", IMAGE);
+        ShadowLooper.idleMainLooper();
+        assertThat(cache.getDropped(), is(1));
+        assertThat(cache.get(7), is(nullValue()));
+
+        cache.decode(21, 20, "", IMAGE);
+        ShadowLooper.idleMainLooper();
+        assertThat(cache.get(21), is(notNullValue()));
+
+        // Jumping back requests the slide again
+        requests.clear();
+        cache.setCurrentSlide(7);
+        assertThat(requests.contains(7), is(true));
+    }
+
+    /**
+     * Verify that the window is limited, so all prefetched thumbnails fit into the cache.
+     */
+    @Test
+    public void budgetLimitsWindow() {
+        cache = new ThumbnailCache(3 * THUMBNAIL_SIZE, Runnable::run, Runnable::run);
+        prefetcher = new ThumbnailPrefetcher(cache, requests::add, 3, 1);
+        cache.setPrefetcher(prefetcher);
+
+        cache.put(5, createThumbnail());
+        cache.setCurrentSlide(5);
+
+        // Room for the current slide and two more
+        assertThat(requests, is(Arrays.asList(6, 7)));
+    }
+
+    /**
+     * Verify that thumbnails kept in the asset store are loaded from disk instead of being
+     * requested from the server.
+     */
+    @Test
+    public void storedThumbnailsAreLoaded() {
+        SlideAssetStore store = new SlideAssetStore(new File(folder.getRoot(), "thumbnails"));
+        store.put("deck", 6, Base64.decode(IMAGE, Base64.DEFAULT));
+        cache.setAssetStore(store);
+
+        cache.decode(5, 5, "deck", IMAGE);
+        ShadowLooper.idleMainLooper();
+        assertThat(requests, is(Arrays.asList(7, 8, 4)));
+
+        ShadowLooper.idleMainLooper();
+        assertThat(cache.getLoaded(), is(1));
+        assertThat(cache.get(6), is(notNullValue()));
+
+        // The received thumbnail was stored as well
+        assertThat(store.contains("deck", 5), is(true));
+        store.close();
+    }
+}
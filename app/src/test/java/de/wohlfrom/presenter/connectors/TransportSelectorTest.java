@@ -0,0 +1,207 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Presenter. Android Client to remote control a presentation.          *
+ *  Copyright (C) 2019 Felix Wohlfrom                                    *
+ *                                                                       *
+ *  This program is free software: you can redistribute it and/or modify *
+ *  it under the terms of the GNU General Public License as published by *
+ *  the Free Software Foundation, either version 3 of the License, or    *
+ *  (at your option) any later version.                                  *
+ *                                                                       *
+ *  This program is distributed in the hope that it will be useful,      *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of       *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the        *
+ *  GNU General Public License for more details.                         *
+ *                                                                       *
+ *  You should have received a copy of the GNU General Public License    *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.*
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+
+package de.wohlfrom.presenter.connectors;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.junit.Assert.fail;
+
+/**
+ * These tests verify that the transport selector measures the paths, selects the faster one
+ * and does not flap between paths of similar quality. The selector is driven by a failover
+ * session, like in the app.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class TransportSelectorTest {
+    /** The heartbeat interval in ms used for our tests */
+    private static final long HEARTBEAT_INTERVAL = 50;
+    /** The heartbeat timeout in ms used for our tests */
+    private static final long HEARTBEAT_TIMEOUT = 500;
+    /** The delay in ms of a fast path */
+    private static final long FAST_DELAY = 2;
+    /** The delay in ms of a slow path */
+    private static final long SLOW_DELAY = 30;
+    /** The maximum time in ms to wait for a state change */
+    private static final int STATE_CHANGE_TIME = 5000;
+    /** The number of heartbeats exchanged before the paths are measured */
+    private static final int WARM_UP_HEARTBEATS = 10;
+    /** The number of heartbeats after which similar paths must still not be switched */
+    private static final int FLAPPING_HEARTBEATS = 40;
+
+    private InMemoryServer wifiServer;
+    private InMemoryServer bluetoothServer;
+    private TestRemoteControl wifi;
+    private TestRemoteControl bluetooth;
+    private FailoverSession session;
+    private TransportSelector selector;
+
+    /**
+     * Connects two paths to the same in-memory server and adds them to a new selector used by
+     * a failover session.
+     */
+    @Before
+    public void connect() throws IOException, InterruptedException {
+        wifiServer = new InMemoryServer("wifi");
+        bluetoothServer = new InMemoryServer("bluetooth", wifiServer);
+        wifi = new TestRemoteControl();
+        bluetooth = new TestRemoteControl();
+
+        wifi.connect(wifiServer.getClientTransport());
+        bluetooth.connect(bluetoothServer.getClientTransport());
+        wifiServer.start();
+        bluetoothServer.start();
+        assertThat(wifi.awaitConnected(STATE_CHANGE_TIME), is(true));
+        assertThat(bluetooth.awaitConnected(STATE_CHANGE_TIME), is(true));
+
+        // Exchange some heartbeats first, so the slow first responses of a cold JVM are not
+        // taken as quality of the paths
+        for (int i = 1; i <= WARM_UP_HEARTBEATS; i++) {
+            wifi.sendHeartbeat();
+            bluetooth.sendHeartbeat();
+            assertThat(wifi.awaitHeartbeats(i, STATE_CHANGE_TIME), is(true));
+            assertThat(bluetooth.awaitHeartbeats(i, STATE_CHANGE_TIME), is(true));
+        }
+
+        session = new FailoverSession(wifi, null, HEARTBEAT_INTERVAL, HEARTBEAT_TIMEOUT);
+        session.setStandby(bluetooth);
+        selector = new TransportSelector(session::isAlive);
+        selector.addPath("wifi", wifi);
+        selector.addPath("bluetooth", bluetooth);
+        session.setSelector(selector);
+    }
+
+    /**
+     * Stops the session and all connections.
+     */
+    @After
+    public void disconnect() {
+        session.stop();
+        selector.removePaths();
+        wifi.stop();
+        bluetooth.stop();
+        wifiServer.close();
+        bluetoothServer.close();
+    }
+
+    /**
+     * Verify that the session switches to the path selected as faster and back once the
+     * quality of the paths changes, without reporting these switches as failovers.
+     */
+    @Test
+    public void switchesToFasterPath() throws InterruptedException, JSONException {
+        assertThat(selector.getSelected(), is(sameInstance(wifi)));
+
+        wifiServer.setDelay(SLOW_DELAY);
+        bluetoothServer.setDelay(FAST_DELAY);
+        session.start();
+        assertThat(TransportSelector.getLastCreated(), is(sameInstance(selector)));
+        waitForSelected(bluetooth);
+        assertThat(selector.getRoundTripTime(wifi),
+                greaterThan(selector.getRoundTripTime(bluetooth)));
+        assertThat(session.getStandby(), is(sameInstance(wifi)));
+
+        session.sendCommand(Command.NEXT_SLIDE);
+        assertThat(bluetoothServer.awaitReceivedCommands(1, STATE_CHANGE_TIME), is(true));
+        assertThat(bluetoothServer.getReceivedCommands().size(), is(1));
+        assertThat(wifiServer.getReceivedCommands().size(), is(0));
+
+        wifiServer.setDelay(FAST_DELAY);
+        bluetoothServer.setDelay(SLOW_DELAY);
+        waitForSelected(wifi);
+        assertThat(session.getFailoverCount(), is(0));
+
+        List<TransportSelector.Decision> decisions = selector.getDecisionLog();
+        assertThat(decisions.size(), is(3));
+        assertThat(decisions.get(0).getReason(), is("initial"));
+        assertThat(decisions.get(1).getReason(), is("faster"));
+        assertThat(decisions.get(1).getTo(), is("bluetooth"));
+        assertThat(decisions.get(2).getTo(), is("wifi"));
+
+        // The exported log contains the same decisions
+        JSONArray exported = new JSONArray(selector.exportDecisionLog());
+        assertThat(exported.length(), is(3));
+        assertThat(exported.getJSONObject(0).getString("reason"), is("initial"));
+        assertThat(exported.getJSONObject(1).getString("from"), is("wifi"));
+        assertThat(exported.getJSONObject(1).getString("to"), is("bluetooth"));
+        assertThat(exported.getJSONObject(1).getString("reason"), is("faster"));
+        assertThat(exported.getJSONObject(2).getString("to"), is("wifi"));
+    }
+
+    /**
+     * Verify that paths with similar quality do not lead to switching between them.
+     */
+    @Test
+    public void noFlappingBetweenSimilarPaths() throws InterruptedException {
+        wifiServer.setDelay(FAST_DELAY);
+        bluetoothServer.setDelay(FAST_DELAY);
+        session.start();
+        int heartbeats = WARM_UP_HEARTBEATS + FLAPPING_HEARTBEATS;
+        assertThat(wifi.awaitHeartbeats(heartbeats, STATE_CHANGE_TIME), is(true));
+        assertThat(bluetooth.awaitHeartbeats(heartbeats, STATE_CHANGE_TIME), is(true));
+
+        assertThat(session.getActive(), is(sameInstance(wifi)));
+        assertThat(selector.getDecisionLog().size(), is(1));
+        assertThat(selector.getJitter(bluetooth) >= 0, is(true));
+    }
+
+    /**
+     * Verify that a lost path is replaced immediately and reported as failover.
+     */
+    @Test
+    public void lostPathIsReplaced() throws InterruptedException {
+        wifiServer.close();
+        assertThat(wifi.awaitConnectionLost(STATE_CHANGE_TIME), is(true));
+
+        session.sendCommand(Command.NEXT_SLIDE);
+        assertThat(session.getActive(), is(sameInstance(bluetooth)));
+        assertThat(session.getFailoverCount(), is(1));
+        assertThat(selector.getDecisionLog().get(1).getReason(), is("lost"));
+    }
+
+    /**
+     * Waits until the session uses the given path. The selection is checked again after each
+     * heartbeat response of the path, as the session evaluates the paths with every heartbeat.
+     *
+     * @param control The path to wait for
+     * @throws InterruptedException If waiting failed
+     */
+    private void waitForSelected(TestRemoteControl control) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + STATE_CHANGE_TIME;
+        while (session.getActive() != control) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0
+                    || !control.awaitHeartbeats(control.getHeartbeats() + 1, remaining)) {
+                fail("Path not selected");
+            }
+        }
+    }
+}
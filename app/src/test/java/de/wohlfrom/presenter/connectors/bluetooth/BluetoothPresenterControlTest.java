@@ -32,6 +32,7 @@ import org.robolectric.shadows.ShadowBluetoothAdapter;
 import org.robolectric.shadows.ShadowBluetoothDevice;
 import org.robolectric.shadows.ShadowLooper;
 
+import java.io.IOException;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
@@ -43,6 +44,7 @@ import static junit.framework.Assert.fail;
 import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.isEmptyString;
 import static org.hamcrest.core.IsNull.notNullValue;
+import static org.hamcrest.core.IsNull.nullValue;
 import static org.junit.Assert.assertThat;
 import static org.robolectric.Shadows.shadowOf;
 
@@ -59,6 +61,9 @@ public class BluetoothPresenterControlTest {
     private static final String DEVICE_ADDRESS = "12:34:56:78:AB:CD";
     private static final String DEVICE_NAME = "DeviceName";
 
+    /** The rfcomm channel on which our fake service is running */
+    private static final int SERVICE_CHANNEL = 5;
+
     /** The version information to transmit from our fake server. */
     private static final String SERVER_VERSION_SUCCESS
             = "{ \"type\" = \"version\"," +
@@ -91,6 +96,11 @@ public class BluetoothPresenterControlTest {
         ShadowBluetoothSocket.setFailReading(false);
         ShadowBluetoothSocket.setFailStreamGetter(false);
         ShadowBluetoothSocket.setConnectionSucceed(true);
+        ShadowBluetoothSocket.setDirectConnectionSucceed(true);
+        ShadowBluetoothSocket.setServiceRecordChannel(0);
+        ShadowBluetoothSocket.setServiceRecordTransmittedString(null);
+        ShadowBluetoothSocket.resetConnectionAttempts();
+        BluetoothPresenterControl.getChannelCache().clear();
     }
 
     /**
@@ -202,6 +212,102 @@ public class BluetoothPresenterControlTest {
         waitForServiceStateChanged(control, RemoteControl.ServiceState.CONNECTED);
     }
 
+    /**
+     * Test that the channel of the service is cached after the first connection and used
+     * directly for reconnecting.
+     */
+    @Test
+    public void testReconnectUsesCachedChannel() throws InterruptedException {
+        ShadowBluetoothSocket.setServiceRecordChannel(SERVICE_CHANNEL);
+        ShadowBluetoothSocket.setTransmittedString(SERVER_VERSION_SUCCESS);
+
+        control = new BluetoothPresenterControl(new Handler() {});
+        BluetoothDevice bluetoothDevice = ShadowBluetoothDevice.newInstance(DEVICE_ADDRESS);
+        control.connect(bluetoothDevice);
+        waitForServiceStateChanged(control, RemoteControl.ServiceState.CONNECTED);
+
+        assertThat(BluetoothPresenterControl.getChannelCache().getChannel(bluetoothDevice),
+                is(SERVICE_CHANNEL));
+        assertThat(ShadowBluetoothSocket.getServiceRecordConnectionAttempts(), is(1));
+        assertThat(ShadowBluetoothSocket.getDirectConnectionAttempts(), is(0));
+
+        control.stop();
+        ShadowBluetoothSocket.setTransmittedString(SERVER_VERSION_SUCCESS);
+        control.connect(bluetoothDevice);
+        waitForServiceStateChanged(control, RemoteControl.ServiceState.CONNECTED);
+
+        assertThat(ShadowBluetoothSocket.getServiceRecordConnectionAttempts(), is(1));
+        assertThat(ShadowBluetoothSocket.getDirectConnectionAttempts(), is(1));
+    }
+
+    /**
+     * Test that we fall back to the service record if connecting to the cached channel fails
+     * and that the cache is updated afterwards.
+     */
+    @Test
+    public void testCachedChannelFallback() throws InterruptedException, IOException {
+        BluetoothDevice bluetoothDevice = ShadowBluetoothDevice.newInstance(DEVICE_ADDRESS);
+        ShadowBluetoothSocket.setServiceRecordChannel(SERVICE_CHANNEL + 1);
+        ShadowBluetoothSocket.setDirectConnectionSucceed(false);
+        ShadowBluetoothSocket.setTransmittedString(SERVER_VERSION_SUCCESS);
+
+        // Fill the cache with an outdated channel
+        BluetoothPresenterControl.getChannelCache().storeChannel(bluetoothDevice,
+                RfcommChannelCache.createSocket(bluetoothDevice, SERVICE_CHANNEL));
+        assertThat(BluetoothPresenterControl.getChannelCache().getChannel(bluetoothDevice),
+                is(SERVICE_CHANNEL));
+
+        control = new BluetoothPresenterControl(new Handler() {});
+        control.connect(bluetoothDevice);
+        waitForServiceStateChanged(control, RemoteControl.ServiceState.CONNECTED);
+
+        assertThat(ShadowBluetoothSocket.getDirectConnectionAttempts(), is(1));
+        assertThat(ShadowBluetoothSocket.getServiceRecordConnectionAttempts(), is(1));
+        assertThat(BluetoothPresenterControl.getChannelCache().getChannel(bluetoothDevice),
+                is(SERVICE_CHANNEL + 1));
+    }
+
+    /**
+     * Test that we fall back to the service record if another service runs on the cached
+     * channel by now, i.e. if it does not send our version.
+     */
+    @Test
+    public void testCachedChannelOfOtherService() throws InterruptedException, IOException {
+        BluetoothDevice bluetoothDevice = ShadowBluetoothDevice.newInstance(DEVICE_ADDRESS);
+        ShadowBluetoothSocket.setServiceRecordChannel(SERVICE_CHANNEL + 1);
+        ShadowBluetoothSocket.setTransmittedString("This is another service\n\n");
+        ShadowBluetoothSocket.setServiceRecordTransmittedString(SERVER_VERSION_SUCCESS);
+
+        // Fill the cache with a channel that now belongs to another service
+        BluetoothPresenterControl.getChannelCache().storeChannel(bluetoothDevice,
+                RfcommChannelCache.createSocket(bluetoothDevice, SERVICE_CHANNEL));
+
+        control = new BluetoothPresenterControl(new Handler() {});
+        control.connect(bluetoothDevice);
+        waitForServiceStateChanged(control, RemoteControl.ServiceState.CONNECTED);
+
+        assertThat(ShadowBluetoothSocket.getDirectConnectionAttempts(), is(1));
+        assertThat(ShadowBluetoothSocket.getServiceRecordConnectionAttempts(), is(1));
+        assertThat(BluetoothPresenterControl.getChannelCache().getChannel(bluetoothDevice),
+                is(SERVICE_CHANNEL + 1));
+    }
+
+    /**
+     * Test that nothing is cached if the channel of the socket can not be determined.
+     */
+    @Test
+    public void testUnknownChannelNotCached() throws InterruptedException {
+        ShadowBluetoothSocket.setTransmittedString(SERVER_VERSION_SUCCESS);
+
+        control = new BluetoothPresenterControl(new Handler() {});
+        BluetoothDevice bluetoothDevice = ShadowBluetoothDevice.newInstance(DEVICE_ADDRESS);
+        control.connect(bluetoothDevice);
+        waitForServiceStateChanged(control, RemoteControl.ServiceState.CONNECTED);
+
+        assertThat(BluetoothPresenterControl.getChannelCache().getChannel(bluetoothDevice),
+                is(nullValue()));
+    }
+
     /**
      * Test that if connection fails, we get the correct state of the service.
      */
@@ -507,9 +613,10 @@ public class BluetoothPresenterControlTest {
 
         ShadowBluetoothSocket.resetLastTransmittedString();
         control.sendCommand(Command.NEXT_SLIDE);
-        assertThat(ShadowBluetoothSocket.getLastTransmittedString(),
-                is("{ \"type\": \"command\", " +
-                        "\"data\": \"" + Command.NEXT_SLIDE.getCommand() + "\"}\n\n"));
+        String transmitted = ShadowBluetoothSocket.awaitTransmittedString("\n\n",
+                MESSAGE_RECEIVING_TIMEOUT);
+        assertThat(transmitted, is("{ \"type\": \"command\", " +
+                "\"data\": \"" + Command.NEXT_SLIDE.getCommand() + "\"}\n\n"));
     }
 
     /**
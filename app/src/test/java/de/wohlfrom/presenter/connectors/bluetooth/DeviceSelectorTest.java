@@ -23,6 +23,8 @@ import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.content.Intent;
 import android.os.Build;
+import android.os.ParcelUuid;
+import android.os.Parcelable;
 import android.view.View;
 import android.widget.ListAdapter;
 import android.widget.ListView;
@@ -40,8 +42,10 @@ import org.robolectric.shadows.ShadowBluetoothDevice;
 
 import java.util.HashSet;
 import java.util.Objects;
+import java.util.UUID;
 
 import de.wohlfrom.presenter.R;
+import de.wohlfrom.presenter.connectors.RemoteControl;
 
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.notNullValue;
@@ -62,6 +66,7 @@ import static org.robolectric.util.FragmentTestUtil.startFragment;
 public class DeviceSelectorTest {
 
     private final String BLUETOOTH_DEVICE_ID = "AA:BB:CC:DD:EE:FF";
+    private final String BLUETOOTH_SERVER_ID = "11:22:33:44:55:66";
 
     private DeviceSelector deviceSelector;
     private ActivityController activityController;
@@ -74,6 +79,8 @@ public class DeviceSelectorTest {
         deviceSelector = new DeviceSelector();
         activityController = Robolectric.buildActivity(DummyActivity.class);
         ((DummyActivity) activityController.get()).setFragment(deviceSelector);
+
+        DeviceSelector.getServiceCache().clear();
     }
 
     /**
@@ -228,6 +235,97 @@ public class DeviceSelectorTest {
                         .getAdapter().getCount(), is(1));
     }
 
+    /**
+     * Sends out the intent that a new device was found during discovery.
+     *
+     * @param address The address of the found device
+     */
+    private void sendDeviceFound(String address) {
+        Intent intent = new Intent(BluetoothDevice.ACTION_FOUND);
+        intent.putExtra(BluetoothDevice.EXTRA_DEVICE,
+                BluetoothAdapter.getDefaultAdapter().getRemoteDevice(address));
+        RuntimeEnvironment.application.sendBroadcast(intent);
+    }
+
+    /**
+     * Check that the services of a newly found device are requested.
+     */
+    @Test
+    public void findNewDeviceFetchesServices() {
+        activityController.create().resume().visible();
+
+        BluetoothDevice device =
+                BluetoothAdapter.getDefaultAdapter().getRemoteDevice(BLUETOOTH_DEVICE_ID);
+        Intent intent = new Intent(BluetoothDevice.ACTION_FOUND);
+        intent.putExtra(BluetoothDevice.EXTRA_DEVICE, device);
+        RuntimeEnvironment.application.sendBroadcast(intent);
+
+        assertThat("Did not request services of new device",
+                shadowOf(device).getFetchUuidsWithSdpCount(), is(1));
+    }
+
+    /**
+     * Check that the services are not requested again if they are already known.
+     */
+    @Test
+    public void knownServicesNotFetched() {
+        BluetoothDevice device = ShadowBluetoothDevice.newInstance(BLUETOOTH_SERVER_ID);
+        shadowOf(device).setUuids(
+                new ParcelUuid[] { ParcelUuid.fromString(RemoteControl.SERVICE_ID) });
+        HashSet<BluetoothDevice> devices = new HashSet<>();
+        devices.add(device);
+        shadowOf(BluetoothAdapter.getDefaultAdapter()).setBondedDevices(devices);
+
+        activityController.create().resume();
+
+        assertThat("Requested services although they are known",
+                shadowOf(device).getFetchUuidsWithSdpCount(), is(0));
+        assertThat("Service not stored in cache",
+                DeviceSelector.getServiceCache().hasService(BLUETOOTH_SERVER_ID), is(true));
+    }
+
+    /**
+     * Check that devices offering our service are displayed before other devices.
+     */
+    @Test
+    public void serviceDevicesListedFirst() {
+        activityController.create().resume().visible();
+
+        sendDeviceFound(BLUETOOTH_DEVICE_ID);
+        sendDeviceFound(BLUETOOTH_SERVER_ID);
+
+        Intent intent = new Intent(BluetoothDevice.ACTION_UUID);
+        intent.putExtra(BluetoothDevice.EXTRA_DEVICE,
+                BluetoothAdapter.getDefaultAdapter().getRemoteDevice(BLUETOOTH_SERVER_ID));
+        intent.putExtra(BluetoothDevice.EXTRA_UUID,
+                new Parcelable[] { ParcelUuid.fromString(RemoteControl.SERVICE_ID) });
+        RuntimeEnvironment.application.sendBroadcast(intent);
+
+        View view = deviceSelector.getView();
+        ListAdapter adapter =
+                ((ListView) Objects.requireNonNull(view).findViewById(R.id.new_devices))
+                        .getAdapter();
+        assertThat("Found not exactly two devices", adapter.getCount(), is(2));
+        assertThat("Server device is not listed first",
+                adapter.getItem(0).toString().endsWith(BLUETOOTH_SERVER_ID), is(true));
+    }
+
+    /**
+     * Check that the service is also recognized if the uuid is reported in reversed byte order.
+     */
+    @Test
+    public void reversedServiceUuidRecognized() {
+        UUID serviceUuid = UUID.fromString(RemoteControl.SERVICE_ID);
+        ParcelUuid reversed = new ParcelUuid(ServiceUuidCache.reverse(serviceUuid));
+
+        assertThat(ServiceUuidCache.reverse(reversed.getUuid()), is(serviceUuid));
+        assertThat(ServiceUuidCache.containsService(new Parcelable[] { reversed }), is(true));
+        assertThat(ServiceUuidCache.containsService(
+                new Parcelable[] { ParcelUuid.fromString(RemoteControl.SERVICE_ID) }), is(true));
+        assertThat(ServiceUuidCache.containsService(new Parcelable[] {
+                ParcelUuid.fromString("00001101-0000-1000-8000-00805f9b34fb") }), is(false));
+    }
+
     /**
      * Check that finishing discovery without finding any devices works fine.
      */
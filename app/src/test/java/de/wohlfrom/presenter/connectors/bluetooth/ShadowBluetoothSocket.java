@@ -31,6 +31,7 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Arrays;
 
 /**
  * This class is used to create a fake bluetooth socket.
@@ -39,6 +40,9 @@ import java.io.OutputStream;
  * succeed (using {@link #failReading}.
  * It is also possible to read the last data written to inputStream using
  * {@link #getLastTransmittedString()}.
+ * Sockets created directly for a given rfcomm channel can be configured separately
+ * (using {@link #setDirectConnectionSucceed(boolean)}) and connection attempts of both kinds of
+ * sockets are counted.
  *
  * The class needs to be public to make Robolectric happy.
  */
@@ -55,6 +59,30 @@ public class ShadowBluetoothSocket implements Closeable {
     private static Boolean failStreamGetter = null;
     private static Boolean failClosing = null;
     private static byte[] stringToTransmit = null;
+    private static boolean directConnectionSucceed = true;
+
+    /**
+     * The string to transmit once a socket created using the service record is connected.
+     */
+    private static byte[] serviceRecordStringToTransmit = null;
+
+    /**
+     * The channel that is returned for sockets created using the service record. Sockets created
+     * for a given channel will always return this channel.
+     */
+    private static int serviceRecordChannel = 0;
+
+    /**
+     * The number of connection attempts for sockets created using the service record and for
+     * sockets created directly for a given channel.
+     */
+    private static int serviceRecordConnectionAttempts = 0;
+    private static int directConnectionAttempts = 0;
+
+    /**
+     * The channel of this socket or -1 if the socket was created using the service record.
+     */
+    private int channel = -1;
 
     /**
      * Our input stream that will either return an empty value or throws an IOException,
@@ -81,16 +109,21 @@ public class ShadowBluetoothSocket implements Closeable {
 
         @Override
         public int read(@NonNull byte[] b) throws IOException {
+            return read(b, 0, b.length);
+        }
+
+        @Override
+        public int read(@NonNull byte[] b, int off, int len) throws IOException {
             if (failReading) {
                 throw new IOException("Reading error");
             } else {
                 if (stringToTransmit != null) {
-                    int transmissionLength = Math.min(stringToTransmit.length, b.length);
-                    System.arraycopy(stringToTransmit, 0, b, 0, transmissionLength);
+                    int transmissionLength = Math.min(stringToTransmit.length, len);
+                    System.arraycopy(stringToTransmit, 0, b, off, transmissionLength);
 
-                    if (stringToTransmit.length > b.length) {
-                        System.arraycopy(stringToTransmit, 0, stringToTransmit, b.length,
-                                stringToTransmit.length - b.length);
+                    if (stringToTransmit.length > transmissionLength) {
+                        stringToTransmit = Arrays.copyOfRange(stringToTransmit,
+                                transmissionLength, stringToTransmit.length);
                     } else {
                         stringToTransmit = null;
                     }
@@ -103,21 +136,60 @@ public class ShadowBluetoothSocket implements Closeable {
         }
     };
 
-    /** Stream to receive the data, can be returned by {@link #getLastTransmittedString()} */
+    /**
+     * Stream to receive the data, can be returned by {@link #getLastTransmittedString()}.
+     * Notifies waiting threads on each write.
+     */
     private final static ByteArrayOutputStream transmittedStringWriter
-            = new ByteArrayOutputStream();
+            = new ByteArrayOutputStream() {
+        @Override
+        public synchronized void write(int b) {
+            super.write(b);
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void write(@NonNull byte[] b, int off, int len) {
+            super.write(b, off, len);
+            notifyAll();
+        }
+    };
 
     @Implementation
     protected void __constructor__(int type, int fd, boolean auth, boolean encrypt,
                         BluetoothDevice device, int port, ParcelUuid uuid) {
-        // Empty dummy
+        if (uuid == null) {
+            channel = port;
+        }
     }
 
     @Implementation
     protected void connect() throws IOException {
+        if (channel != -1) {
+            directConnectionAttempts++;
+            if (!directConnectionSucceed) {
+                throw new IOException("Direct connection failed");
+            }
+        } else {
+            serviceRecordConnectionAttempts++;
+        }
+
         if (!connectionSucceed) {
             throw new IOException("Connection failed");
         }
+
+        if (channel == -1 && serviceRecordStringToTransmit != null) {
+            stringToTransmit = serviceRecordStringToTransmit;
+            serviceRecordStringToTransmit = null;
+        }
+    }
+
+    @Implementation
+    protected int getPort() {
+        if (channel != -1) {
+            return channel;
+        }
+        return serviceRecordChannel;
     }
 
     @Implementation
@@ -152,6 +224,52 @@ public class ShadowBluetoothSocket implements Closeable {
         ShadowBluetoothSocket.connectionSucceed = connectionSucceed;
     }
 
+    /**
+     * Set if the connection to a socket created for a given channel should succeed or not.
+     * Will only succeed if also {@link #setConnectionSucceed(boolean)} is set to true.
+     *
+     * @param directConnectionSucceed If direct connection should succeed or not
+     */
+    static void setDirectConnectionSucceed(boolean directConnectionSucceed) {
+        ShadowBluetoothSocket.directConnectionSucceed = directConnectionSucceed;
+    }
+
+    /**
+     * Sets the channel on which the service is found using the service record. If set to 0,
+     * the channel can not be determined.
+     *
+     * @param channel The channel of the service
+     */
+    static void setServiceRecordChannel(int channel) {
+        ShadowBluetoothSocket.serviceRecordChannel = channel;
+    }
+
+    /**
+     * Returns the number of connection attempts using the service record since last reset.
+     *
+     * @return The number of connection attempts.
+     */
+    static int getServiceRecordConnectionAttempts() {
+        return serviceRecordConnectionAttempts;
+    }
+
+    /**
+     * Returns the number of connection attempts directly to a channel since last reset.
+     *
+     * @return The number of connection attempts.
+     */
+    static int getDirectConnectionAttempts() {
+        return directConnectionAttempts;
+    }
+
+    /**
+     * Resets the counters of connection attempts.
+     */
+    static void resetConnectionAttempts() {
+        serviceRecordConnectionAttempts = 0;
+        directConnectionAttempts = 0;
+    }
+
     /**
      * Sets if reading from the socket should fail.
      *
@@ -193,6 +311,17 @@ public class ShadowBluetoothSocket implements Closeable {
         }
     }
 
+    /**
+     * Sets the string to transmit once a socket created using the service record is
+     * connected. Allows transmitting different data on a directly connected channel before.
+     *
+     * @param stringToTransmit The string to transmit, null to transmit nothing
+     */
+    static void setServiceRecordTransmittedString(String stringToTransmit) {
+        ShadowBluetoothSocket.serviceRecordStringToTransmit =
+                stringToTransmit != null ? stringToTransmit.getBytes() : null;
+    }
+
     /**
      * Resets the last transmitted string. Can be used to ensure you get just the data you
      * have written since the last call of this method.
@@ -211,4 +340,29 @@ public class ShadowBluetoothSocket implements Closeable {
         transmittedStringWriter.reset();
         return string;
     }
+
+    /**
+     * Waits until the string transmitted via input stream contains the given string and
+     * returns it. Like {@link #getLastTransmittedString()}, the transmitted string is reset.
+     *
+     * @param expected The string to wait for
+     * @param timeout The maximum time to wait in ms
+     * @return The string received since the last reset, might not contain the expected string
+     *         if the timeout elapsed
+     * @throws InterruptedException If waiting was interrupted
+     */
+    static String awaitTransmittedString(String expected, long timeout)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (transmittedStringWriter) {
+            while (!transmittedStringWriter.toString().contains(expected)) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    break;
+                }
+                transmittedStringWriter.wait(remaining);
+            }
+            return getLastTransmittedString();
+        }
+    }
 }
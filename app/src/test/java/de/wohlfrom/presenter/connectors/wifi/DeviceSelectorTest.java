@@ -35,11 +35,14 @@ import org.robolectric.RobolectricTestRunner;
 import org.robolectric.android.controller.ActivityController;
 import org.robolectric.annotation.Config;
 import org.robolectric.shadows.ShadowLooper;
+import org.robolectric.shadows.ShadowToast;
 
 import java.util.Objects;
+import java.util.concurrent.TimeUnit;
 
 import de.wohlfrom.presenter.R;
 
+import static org.hamcrest.CoreMatchers.hasItem;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.notNullValue;
 import static org.hamcrest.MatcherAssert.assertThat;
@@ -165,9 +168,9 @@ public class DeviceSelectorTest {
         broadcastServer.stop();
         ShadowLooper.runUiThreadTasks();
         
-        // Sleep some longer time than the removal time, just to be sure it is properly removed.
-        Thread.sleep(15000);
-        ShadowLooper.runUiThreadTasks();
+        // Wait some longer time than the removal time, just to be sure it is properly removed.
+        // Removal is done at the end of a discovery burst, so we need to advance the scheduler.
+        ShadowLooper.idleMainLooper(15000, TimeUnit.MILLISECONDS);
         assertThat("Found a device, although it should have been removed.",
                 ((ListView) view.findViewById(R.id.broadcast_devices))
                         .getAdapter().getCount(), is(0));
@@ -224,6 +227,42 @@ public class DeviceSelectorTest {
                 is(BroadcastServer.WIFI_DEVICE_NAME));
     }
 
+    /**
+     * Ensures that a long click on a device toggles it as additional device on the
+     * {@link DeviceSelector.DeviceListResultListener}.
+     *
+     * @throws InterruptedException On test failures
+     */
+    @Test
+    public void longClickOnDevice() throws InterruptedException {
+        activityController.create().resume().visible();
+
+        // Start broadcasting of new devices
+        new BroadcastServer().start();
+        ShadowLooper.runUiThreadTasks();
+
+        View view = deviceSelector.getView();
+
+        ListView listView = Objects.requireNonNull(view).findViewById(R.id.broadcast_devices);
+        ListAdapter adapter = listView.getAdapter();
+        View itemView = adapter.getView(0, null, listView);
+        DummyActivity activity = (DummyActivity) activityController.get();
+
+        listView.getOnItemLongClickListener().onItemLongClick(listView, itemView, 0,
+                adapter.getItemId(0));
+        assertThat("Device not added on device listener", activity.getAdditionalAddresses(),
+                hasItem(BroadcastServer.WIFI_IP_ADDRESS));
+        assertThat(ShadowToast.getTextOfLatestToast(), is(activity.getString(
+                R.string.additional_device_added, BroadcastServer.WIFI_DEVICE_NAME)));
+
+        listView.getOnItemLongClickListener().onItemLongClick(listView, itemView, 0,
+                adapter.getItemId(0));
+        assertThat("Device not removed on device listener",
+                activity.getAdditionalAddresses().isEmpty(), is(true));
+        assertThat(ShadowToast.getTextOfLatestToast(), is(activity.getString(
+                R.string.additional_device_removed, BroadcastServer.WIFI_DEVICE_NAME)));
+    }
+
     /**
      * Ensures that clicking on manual connection displays the correct view.
      */
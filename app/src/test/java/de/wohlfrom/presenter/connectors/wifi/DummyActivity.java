@@ -23,6 +23,9 @@ import android.app.Fragment;
 import android.app.FragmentTransaction;
 import android.os.Bundle;
 
+import java.util.LinkedHashSet;
+import java.util.Set;
+
 import de.wohlfrom.presenter.R;
 
 /**
@@ -41,6 +44,7 @@ public class DummyActivity extends Activity
     
     private String hostname = null;
     private String address = null;
+    private final Set<String> additionalAddresses = new LinkedHashSet<>();
     private Fragment fragment;
 
     /**
@@ -72,6 +76,14 @@ public class DummyActivity extends Activity
         this.address = address;
     }
 
+    @Override
+    public boolean onAdditionalDeviceToggled(String hostname, String address) {
+        if (additionalAddresses.remove(address)) {
+            return false;
+        }
+        return additionalAddresses.add(address);
+    }
+
     /**
      * Returns the hostname set by {@link DeviceSelector.DeviceListResultListener}
      *
@@ -89,4 +101,13 @@ public class DummyActivity extends Activity
     public String getAddress() {
         return address;
     }
+
+    /**
+     * Returns the addresses toggled on by {@link DeviceSelector.DeviceListResultListener}
+     *
+     * @return The addresses of the additional devices
+     */
+    public Set<String> getAdditionalAddresses() {
+        return additionalAddresses;
+    }
 }
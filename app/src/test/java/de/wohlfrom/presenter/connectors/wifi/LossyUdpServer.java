@@ -0,0 +1,210 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Presenter. Android Client to remote control a presentation.          *
+ *  Copyright (C) 2019 Felix Wohlfrom                                    *
+ *                                                                       *
+ *  This program is free software: you can redistribute it and/or modify *
+ *  it under the terms of the GNU General Public License as published by *
+ *  the Free Software Foundation, either version 3 of the License, or    *
+ *  (at your option) any later version.                                  *
+ *                                                                       *
+ *  This program is distributed in the hope that it will be useful,      *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of       *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the        *
+ *  GNU General Public License for more details.                         *
+ *                                                                       *
+ *  You should have received a copy of the GNU General Public License    *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.*
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+
+package de.wohlfrom.presenter.connectors.wifi;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A local udp command server that simulates a lossy network. Each received datagram is dropped
+ * with a given probability. The remaining datagrams are deduplicated by their sequence number,
+ * like the real server does.
+ */
+class LossyUdpServer {
+    /** Pattern to extract command and sequence number from a datagram. */
+    private static final Pattern DATAGRAM_PATTERN
+            = Pattern.compile("\"data\": \"(\\w+)\", \"seq\": \"(\\d+)\"");
+
+    private final DatagramSocket mSocket;
+    private final double mLossRate;
+    private final Random mRandom;
+
+    private final Set<Long> mReceivedSequenceNumbers = new HashSet<>();
+    private final List<String> mDeliveredCommands = new ArrayList<>();
+    private int mReceivedDatagrams = 0;
+    private int mDroppedDatagrams = 0;
+    private int mDuplicates = 0;
+
+    /**
+     * Creates the server on a free port and starts receiving.
+     *
+     * @param lossRate The probability with which a datagram is dropped, between 0 and 1
+     * @param seed The seed for the random loss, to get reproducible results
+     * @throws SocketException If the socket could not be created
+     */
+    LossyUdpServer(double lossRate, long seed) throws SocketException {
+        mSocket = new DatagramSocket();
+        mLossRate = lossRate;
+        mRandom = new Random(seed);
+
+        new ReceiverThread().start();
+    }
+
+    /**
+     * Returns the port of the server.
+     *
+     * @return The port
+     */
+    int getPort() {
+        return mSocket.getLocalPort();
+    }
+
+    /**
+     * Closes the server.
+     */
+    void close() {
+        mSocket.close();
+    }
+
+    /**
+     * Returns the commands delivered to the presentation, in order of arrival and without
+     * duplicates.
+     *
+     * @return The delivered commands
+     */
+    synchronized List<String> getDeliveredCommands() {
+        return new ArrayList<>(mDeliveredCommands);
+    }
+
+    /**
+     * Returns the number of datagrams that reached the server, including dropped ones.
+     *
+     * @return The number of received datagrams
+     */
+    synchronized int getReceivedDatagrams() {
+        return mReceivedDatagrams;
+    }
+
+    /**
+     * Waits until the given number of datagrams reached the server, including dropped ones.
+     *
+     * @param count The number of datagrams to wait for
+     * @param timeout The maximum time to wait in ms
+     * @return If the datagrams were received in time
+     * @throws InterruptedException If waiting was interrupted
+     */
+    synchronized boolean awaitReceivedDatagrams(int count, long timeout)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (mReceivedDatagrams < count) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return true;
+    }
+
+    /**
+     * Waits until the given number of commands was delivered to the presentation.
+     *
+     * @param count The number of commands to wait for
+     * @param timeout The maximum time to wait in ms
+     * @return If the commands were delivered in time
+     * @throws InterruptedException If waiting was interrupted
+     */
+    synchronized boolean awaitDeliveredCommands(int count, long timeout)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (mDeliveredCommands.size() < count) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of datagrams dropped by the simulated loss.
+     *
+     * @return The number of dropped datagrams
+     */
+    synchronized int getDroppedDatagrams() {
+        return mDroppedDatagrams;
+    }
+
+    /**
+     * Returns the number of datagrams that were ignored because the command was already
+     * delivered.
+     *
+     * @return The number of duplicates
+     */
+    synchronized int getDuplicates() {
+        return mDuplicates;
+    }
+
+    /**
+     * Handles a single received datagram.
+     *
+     * @param datagram The received datagram
+     */
+    private synchronized void handleDatagram(String datagram) {
+        // Waiting threads are woken up once the datagram was handled and the lock is released
+        notifyAll();
+
+        mReceivedDatagrams++;
+        if (mRandom.nextDouble() < mLossRate) {
+            mDroppedDatagrams++;
+            return;
+        }
+
+        Matcher matcher = DATAGRAM_PATTERN.matcher(datagram);
+        if (!matcher.find()) {
+            return;
+        }
+
+        if (mReceivedSequenceNumbers.add(Long.parseLong(matcher.group(2)))) {
+            mDeliveredCommands.add(matcher.group(1));
+        } else {
+            mDuplicates++;
+        }
+    }
+
+    /**
+     * The thread receiving the datagrams.
+     */
+    private class ReceiverThread extends Thread {
+        @Override
+        public void run() {
+            byte[] buffer = new byte[1024];
+
+            while (!mSocket.isClosed()) {
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                try {
+                    mSocket.receive(packet);
+                } catch (IOException e) {
+                    return;
+                }
+                handleDatagram(new String(packet.getData(), 0, packet.getLength()));
+            }
+        }
+    }
+}
@@ -97,6 +97,30 @@ class MockupServer {
         return string;
     }
 
+    /**
+     * Waits until the string transmitted via input stream contains the given string and
+     * returns it. Like {@link #getLastTransmittedString()}, the transmitted string is reset.
+     *
+     * @param expected The string to wait for
+     * @param timeout The maximum time to wait in ms
+     * @return The string received since the last reset, might not contain the expected string
+     *         if the timeout elapsed
+     * @throws InterruptedException If waiting was interrupted
+     */
+    String awaitTransmittedString(String expected, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (mLastReadMessage) {
+            while (mLastReadMessage.indexOf(expected) < 0) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    break;
+                }
+                mLastReadMessage.wait(remaining);
+            }
+            return getLastTransmittedString();
+        }
+    }
+
     /**
      * The thread to wait for new connections.
      * Will spawn new threads on new client connections.
@@ -160,8 +184,11 @@ class MockupServer {
                         return;
                     }
 
-                    for (int i = 0; i < readBytes; i++) {
-                        mLastReadMessage.append((char) buffer[i]);
+                    synchronized (mLastReadMessage) {
+                        for (int i = 0; i < readBytes; i++) {
+                            mLastReadMessage.append((char) buffer[i]);
+                        }
+                        mLastReadMessage.notifyAll();
                     }
                     
                 } catch (IOException e) {
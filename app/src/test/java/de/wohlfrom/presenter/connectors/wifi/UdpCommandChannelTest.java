@@ -0,0 +1,245 @@
+/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * *
+ *  Presenter. Android Client to remote control a presentation.          *
+ *  Copyright (C) 2019 Felix Wohlfrom                                    *
+ *                                                                       *
+ *  This program is free software: you can redistribute it and/or modify *
+ *  it under the terms of the GNU General Public License as published by *
+ *  the Free Software Foundation, either version 3 of the License, or    *
+ *  (at your option) any later version.                                  *
+ *                                                                       *
+ *  This program is distributed in the hope that it will be useful,      *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of       *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the        *
+ *  GNU General Public License for more details.                         *
+ *                                                                       *
+ *  You should have received a copy of the GNU General Public License    *
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.*
+ * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+
+package de.wohlfrom.presenter.connectors.wifi;
+
+import android.os.Handler;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import de.wohlfrom.presenter.connectors.Command;
+import de.wohlfrom.presenter.connectors.RemoteControl;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertThat;
+
+/**
+ * These testcases verify that commands are sent properly using the udp command channel, also
+ * if the network loses datagrams, and that the channel is negotiated with the server.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class UdpCommandChannelTest {
+    /** The version information to transmit from our fake server. */
+    private static final String SERVER_VERSION_SUCCESS
+            = "{ \"type\" = \"version\"," +
+            " \"data\" = '" + RemoteControl.CLIENT_PROTOCOL_VERSION + "' }\n\n";
+
+    /** The number of commands to send in the loss tests. */
+    private static final int COMMAND_COUNT = 200;
+    /** The simulated loss rate of the network. */
+    private static final double LOSS_RATE = 0.3;
+    /** The seed for the simulated loss. */
+    private static final long LOSS_SEED = 42;
+    /** The maximum time in ms to wait for datagrams or state changes. */
+    private static final int WAIT_TIME = 5000;
+
+    private final List<UdpCommandChannel> channels = new ArrayList<>();
+    private final List<String> fallbackDatagrams = new ArrayList<>();
+    private LossyUdpServer server = null;
+    private MockupServer mockupServer = null;
+    private WifiPresenterControl control = null;
+    private final CountDownLatch udpCommandChannelOffered = new CountDownLatch(1);
+
+    /**
+     * Closes all servers and channels.
+     */
+    @After
+    public void cleanup() throws IOException {
+        for (UdpCommandChannel channel : channels) {
+            channel.close();
+        }
+        if (control != null) {
+            control.stop();
+        }
+        if (server != null) {
+            server.close();
+        }
+        if (mockupServer != null) {
+            mockupServer.close();
+        }
+    }
+
+    /**
+     * Creates and opens a channel to our lossy server.
+     *
+     * @param copies The number of copies to send for each command
+     * @return The opened channel
+     */
+    private UdpCommandChannel openChannel(int copies) throws IOException {
+        UdpCommandChannel channel = new UdpCommandChannel(
+                InetAddress.getByName(BroadcastServer.WIFI_IP_ADDRESS), server.getPort(),
+                copies, UdpCommandChannel.DEFAULT_COPY_INTERVAL,
+                (datagram, input) -> fallbackDatagrams.add(datagram));
+        channel.open();
+        channels.add(channel);
+        return channel;
+    }
+
+    /**
+     * Creates a control that signals once the server offered its udp command channel.
+     *
+     * @return The created control
+     */
+    private WifiPresenterControl createControl() {
+        return new WifiPresenterControl(new Handler() {}) {
+            @Override
+            protected synchronized void onUdpCommandChannelOffered(int port) {
+                super.onUdpCommandChannelOffered(port);
+                udpCommandChannelOffered.countDown();
+            }
+        };
+    }
+
+    /**
+     * Sends the given number of commands using the channel and waits until all datagrams
+     * reached the server.
+     *
+     * @param channel The channel to use
+     * @param copies The number of copies the channel sends
+     */
+    private void sendCommands(UdpCommandChannel channel, int copies)
+            throws InterruptedException {
+        int receivedBefore = server.getReceivedDatagrams();
+        for (int i = 0; i < COMMAND_COUNT; i++) {
+            assertThat(channel.send("{ \"type\": \"command\", \"data\": \"nextSlide\"," +
+                    " \"seq\": \"" + channel.nextSequenceNumber() + "\"}", null), is(true));
+        }
+        assertThat(server.awaitReceivedDatagrams(receivedBefore + COMMAND_COUNT * copies,
+                WAIT_TIME), is(true));
+    }
+
+    /**
+     * Verify that each command is sent multiple times, but delivered only once.
+     */
+    @Test
+    public void commandsAreDeduplicated() throws IOException, InterruptedException {
+        server = new LossyUdpServer(0, LOSS_SEED);
+        UdpCommandChannel channel = openChannel(UdpCommandChannel.DEFAULT_COPIES);
+
+        sendCommands(channel, UdpCommandChannel.DEFAULT_COPIES);
+        assertThat(server.getDeliveredCommands().size(), is(COMMAND_COUNT));
+        assertThat(server.getDuplicates(),
+                is(COMMAND_COUNT * (UdpCommandChannel.DEFAULT_COPIES - 1)));
+        assertThat(channel.getSentCommands(), is(COMMAND_COUNT));
+        assertThat(channel.getSentDatagrams(),
+                is(COMMAND_COUNT * UdpCommandChannel.DEFAULT_COPIES));
+        assertThat(fallbackDatagrams.size(), is(0));
+    }
+
+    /**
+     * Verify that sending redundant copies compensates most of the lost datagrams.
+     */
+    @Test
+    public void redundancyCompensatesLoss() throws IOException, InterruptedException {
+        server = new LossyUdpServer(LOSS_RATE, LOSS_SEED);
+
+        sendCommands(openChannel(1), 1);
+        int deliveredWithoutRedundancy = server.getDeliveredCommands().size();
+
+        server.close();
+        server = new LossyUdpServer(LOSS_RATE, LOSS_SEED);
+        sendCommands(openChannel(UdpCommandChannel.DEFAULT_COPIES),
+                UdpCommandChannel.DEFAULT_COPIES);
+        int deliveredWithRedundancy = server.getDeliveredCommands().size();
+
+        // With three copies and 30% loss, we expect to lose less than 3% of the commands
+        assertThat(deliveredWithRedundancy, is(greaterThan(deliveredWithoutRedundancy)));
+        assertThat(deliveredWithRedundancy, is(greaterThan(COMMAND_COUNT * 95 / 100)));
+    }
+
+    /**
+     * Verify that a closed channel doesn't accept commands any more.
+     */
+    @Test
+    public void closedChannelNotUsable() throws IOException {
+        server = new LossyUdpServer(0, LOSS_SEED);
+        UdpCommandChannel channel = openChannel(1);
+        assertThat(channel.isUsable(), is(true));
+
+        channel.close();
+        assertThat(channel.isUsable(), is(false));
+        assertThat(channel.send("{}", null), is(false));
+    }
+
+    /**
+     * Verify that the channel is negotiated with the server and commands are sent using udp
+     * afterwards. Once the channel is closed, commands are sent using tcp again.
+     */
+    @Test
+    public void channelNegotiatedWithServer() throws IOException, InterruptedException {
+        server = new LossyUdpServer(0, LOSS_SEED);
+        mockupServer = new MockupServer();
+        mockupServer.setTransmittedString(SERVER_VERSION_SUCCESS
+                + "{ \"type\" = \"udp\", \"data\" = '{ \"port\": \"" + server.getPort()
+                + "\" }' }\n\n");
+
+        control = createControl();
+        control.setUdpCommandChannelEnabled(true);
+        control.connect(BroadcastServer.WIFI_DEVICE_NAME, BroadcastServer.WIFI_IP_ADDRESS);
+        assertThat(udpCommandChannelOffered.await(WAIT_TIME, TimeUnit.MILLISECONDS), is(true));
+        assertThat(control.getState(), is(RemoteControl.ServiceState.CONNECTED));
+        assertThat(control.getUdpCommandChannel(), is(not((UdpCommandChannel) null)));
+
+        // The channel was requested using tcp
+        assertThat(mockupServer.awaitTransmittedString("\"type\": \"udp\"", WAIT_TIME),
+                containsString("\"type\": \"udp\""));
+
+        control.sendCommand(Command.NEXT_SLIDE);
+        assertThat(server.awaitDeliveredCommands(1, WAIT_TIME), is(true));
+        assertThat(server.getDeliveredCommands().get(0), is(Command.NEXT_SLIDE.getCommand()));
+        assertThat(mockupServer.getLastTransmittedString(), not(containsString("command")));
+
+        // Without channel, the command is sent using tcp and still contains a sequence number
+        control.getUdpCommandChannel().close();
+        control.sendCommand(Command.PREV_SLIDE);
+        assertThat(mockupServer.awaitTransmittedString("\n\n", WAIT_TIME),
+                is("{ \"type\": \"command\", \"data\": \"" + Command.PREV_SLIDE.getCommand()
+                        + "\", \"seq\": \"1\"}\n\n"));
+    }
+
+    /**
+     * Verify that the channel is not used if disabled, even if the server offers it.
+     */
+    @Test
+    public void channelNotUsedIfDisabled() throws IOException, InterruptedException {
+        server = new LossyUdpServer(0, LOSS_SEED);
+        mockupServer = new MockupServer();
+        mockupServer.setTransmittedString(SERVER_VERSION_SUCCESS
+                + "{ \"type\" = \"udp\", \"data\" = '{ \"port\": \"" + server.getPort()
+                + "\" }' }\n\n");
+
+        control = createControl();
+        control.connect(BroadcastServer.WIFI_DEVICE_NAME, BroadcastServer.WIFI_IP_ADDRESS);
+        assertThat(udpCommandChannelOffered.await(WAIT_TIME, TimeUnit.MILLISECONDS), is(true));
+        assertThat(control.getState(), is(RemoteControl.ServiceState.CONNECTED));
+        assertThat(control.getUdpCommandChannel(), is((UdpCommandChannel) null));
+    }
+}